@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+
+import de.ub0r.android.lib.Log;
+
+/**
+ * Measure how long the UI's queries wait while a rematch writes logs.
+ *
+ * @author flx
+ */
+public class ContentionTest extends DataProviderTestCase {
+
+    /** Tag for output. */
+    private static final String TAG = "ContentionTest";
+
+    /** Number of logs rematched. */
+    private static final int LOGS = 50000;
+    /** Maximal latency of a query with write-ahead logging in ms. */
+    private static final long MAX_LATENCY_WAL = 500L;
+    /** Maximal latency of a query with rollback journal in ms: a writer's batch takes 200ms. */
+    private static final long MAX_LATENCY_JOURNAL = 1000L;
+
+    /**
+     * Query the plans as shown by the UI.
+     *
+     * @param now date of query
+     */
+    private void queryPlans(final long now) {
+        final Uri uri = DataProvider.Plans.CONTENT_URI_SUM.buildUpon()
+                .appendQueryParameter(DataProvider.Plans.PARAM_DATE, String.valueOf(now))
+                .build();
+        final Cursor c = getContentResolver().query(uri, DataProvider.Plans.PROJECTION_SUM,
+                null, null, null);
+        assertNotNull(c);
+        assertTrue(c.getCount() > 0);
+        c.close();
+    }
+
+    /**
+     * Query plans and logs while matching all logs in the background.
+     *
+     * @throws InterruptedException InterruptedException
+     */
+    public void testReaderLatency() throws InterruptedException {
+        insertLogs(LOGS, 1L);
+        final long now = System.currentTimeMillis();
+        queryPlans(now);
+        final boolean[] matched = new boolean[1];
+        final Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                matched[0] = RuleMatcher.match(getMockContext(), false);
+            }
+        });
+        final long start = SystemClock.elapsedRealtime();
+        t.start();
+        int queries = 0;
+        long max = 0L;
+        long sum = 0L;
+        while (t.isAlive()) {
+            final long ct = SystemClock.elapsedRealtime();
+            queryPlans(now);
+            countLogs(DataProvider.Logs.PLAN_ID + " = " + DataProvider.NO_ID);
+            final long latency = SystemClock.elapsedRealtime() - ct;
+            max = Math.max(max, latency);
+            sum += latency;
+            ++queries;
+        }
+        t.join();
+        Log.i(TAG, "match(" + LOGS + "): " + queries + " queries, avg. latency: "
+                + (sum / Math.max(1, queries)) + "ms, max. latency: " + max + "ms", start);
+
+        assertTrue(matched[0]);
+        assertEquals(0, countLogs(DataProvider.Logs.PLAN_ID + " = " + DataProvider.NO_ID));
+        assertTrue(queries > 0);
+        final long limit = DataProvider.isWriteAheadLogging() ? MAX_LATENCY_WAL
+                : MAX_LATENCY_JOURNAL;
+        assertTrue("max. latency: " + max + "ms", max < limit);
+    }
+}
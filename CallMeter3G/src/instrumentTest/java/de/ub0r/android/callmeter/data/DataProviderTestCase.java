@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.test.ProviderTestCase2;
+
+import java.util.Random;
+
+/**
+ * Runs tests against an isolated {@link DataProvider} holding the default rule set. Tests add
+ * generated logs with insertLogs().
+ *
+ * @author flx
+ */
+public abstract class DataProviderTestCase extends ProviderTestCase2<DataProvider> {
+
+    /** Milliseconds per day. */
+    private static final long MILLIS_DAY = 24L * 60L * 60L * 1000L;
+    /** Number of logs inserted per bulkInsert(). */
+    private static final int INSERT_CHUNK = 1000;
+    /** Number of different remote numbers. */
+    private static final int REMOTES = 200;
+
+    /**
+     * Default constructor.
+     */
+    public DataProviderTestCase() {
+        super(DataProvider.class, DataProvider.AUTHORITY);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        // drop rule set and totals cached for the previous test's database
+        RuleMatcher.flush();
+        RuleMatcher.invalidateTotals();
+    }
+
+    /**
+     * @return {@link ContentResolver} of the isolated {@link DataProvider}
+     */
+    protected ContentResolver getContentResolver() {
+        return getMockContentResolver();
+    }
+
+    /**
+     * Insert unmatched logs of all types spread over the last 180 days. The same seed gives the
+     * same logs.
+     *
+     * @param count number of logs
+     * @param seed  seed of {@link Random}
+     */
+    protected void insertLogs(final int count, final long seed) {
+        final Random rnd = new Random(seed);
+        final long now = System.currentTimeMillis();
+        final ContentResolver cr = getContentResolver();
+        int done = 0;
+        while (done < count) {
+            final ContentValues[] values = new ContentValues[Math.min(INSERT_CHUNK,
+                    count - done)];
+            for (int i = 0; i < values.length; i++) {
+                final ContentValues cv = new ContentValues();
+                final int t = rnd.nextInt(20);
+                final int type;
+                final long amount;
+                if (t < 10) {
+                    type = DataProvider.TYPE_CALL;
+                    amount = rnd.nextInt(1200);
+                } else if (t < 16) {
+                    type = DataProvider.TYPE_SMS;
+                    amount = 1 + rnd.nextInt(3);
+                } else if (t < 17) {
+                    type = DataProvider.TYPE_MMS;
+                    amount = 1;
+                } else {
+                    type = DataProvider.TYPE_DATA;
+                    amount = rnd.nextInt(10 * 1024 * 1024);
+                }
+                cv.put(DataProvider.Logs.PLAN_ID, DataProvider.NO_ID);
+                cv.put(DataProvider.Logs.RULE_ID, DataProvider.NO_ID);
+                cv.put(DataProvider.Logs.TYPE, type);
+                cv.put(DataProvider.Logs.DIRECTION, rnd.nextBoolean() ? DataProvider.DIRECTION_IN
+                        : DataProvider.DIRECTION_OUT);
+                cv.put(DataProvider.Logs.DATE, now - (long) (rnd.nextDouble() * 180 * MILLIS_DAY));
+                cv.put(DataProvider.Logs.AMOUNT, amount);
+                if (type != DataProvider.TYPE_DATA) {
+                    cv.put(DataProvider.Logs.REMOTE, "+49151" + (1000000 + rnd.nextInt(REMOTES)));
+                }
+                cv.put(DataProvider.Logs.ROAMED, rnd.nextInt(50) == 0 ? 1 : 0);
+                values[i] = cv;
+            }
+            done += cr.bulkInsert(DataProvider.Logs.CONTENT_URI, values);
+        }
+    }
+
+    /**
+     * Count logs.
+     *
+     * @param selection selection
+     * @return number of logs matching the selection
+     */
+    protected int countLogs(final String selection) {
+        final Cursor c = getContentResolver().query(DataProvider.Logs.CONTENT_URI,
+                new String[]{"count(*)"}, selection, null, null);
+        assertNotNull(c);
+        try {
+            assertTrue(c.moveToFirst());
+            return c.getInt(0);
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import de.ub0r.android.lib.Log;
+
+/**
+ * Measure writing matched logs with {@link LogResultWriter.StatementWriter} against
+ * {@link LogResultWriter.BatchWriter}, which uses applyBatch(). Timings are written to logcat.
+ *
+ * @author flx
+ */
+public class LogResultWriterBenchmark extends DataProviderTestCase {
+
+    /** Tag for output. */
+    private static final String TAG = "LogResultWriterBenchmark";
+
+    /** Number of logs written. */
+    private static final int LOGS = 100000;
+    /** Number of logs written per flush(), as done by {@link RuleMatcher}. */
+    private static final int BATCH = 500;
+
+    /** Plan's id. */
+    private long pid;
+    /** Rule's id. */
+    private long rid;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        insertLogs(LOGS, 4L);
+        pid = getFirstId(DataProvider.Plans.CONTENT_URI, DataProvider.Plans.ID,
+                DataProvider.Plans.TYPE + " = " + DataProvider.TYPE_CALL);
+        rid = getFirstId(DataProvider.Rules.CONTENT_URI, DataProvider.Rules.ID, null);
+    }
+
+    /**
+     * Get the id of the first row.
+     *
+     * @param uri       {@link Uri}
+     * @param id        id column
+     * @param selection selection
+     * @return id
+     */
+    private long getFirstId(final Uri uri, final String id, final String selection) {
+        final Cursor c = getContentResolver().query(uri, new String[]{id}, selection, null,
+                id + " ASC");
+        assertNotNull(c);
+        assertTrue(c.moveToFirst());
+        final long ret = c.getLong(0);
+        c.close();
+        return ret;
+    }
+
+    /**
+     * Write all unmatched logs.
+     *
+     * @param w {@link LogResultWriter}
+     * @return time in ms
+     * @throws OperationApplicationException OperationApplicationException
+     * @throws RemoteException               RemoteException
+     */
+    private long write(final LogResultWriter w) throws OperationApplicationException,
+            RemoteException {
+        RuleMatcher.unmatch(getMockContext());
+        assertEquals(LOGS, countLogs(DataProvider.Logs.PLAN_ID + " = " + DataProvider.NO_ID));
+        final Cursor c = getContentResolver().query(DataProvider.Logs.CONTENT_URI,
+                DataProvider.Logs.PROJECTION, DataProvider.Logs.PLAN_ID + " = "
+                        + DataProvider.NO_ID, null, DataProvider.Logs.DATE + " ASC");
+        assertNotNull(c);
+        final long ct = SystemClock.elapsedRealtime();
+        while (c.moveToNext()) {
+            w.write(c, pid, rid, 1f, 0.1f, 0f);
+            if (w.size() >= BATCH) {
+                w.flush();
+            }
+        }
+        w.flush();
+        final long time = SystemClock.elapsedRealtime() - ct;
+        c.close();
+        assertEquals(0, countLogs(DataProvider.Logs.PLAN_ID + " = " + DataProvider.NO_ID));
+        final SQLiteDatabase db = DataProvider.getWritableDatabase();
+        final Cursor s = db.rawQuery("SELECT sum(" + DataProvider.PlanSums.COUNT + ") FROM "
+                + DataProvider.PlanSums.TABLE + " WHERE " + DataProvider.PlanSums.PLAN_ID
+                + " = " + pid, null);
+        assertTrue(s.moveToFirst());
+        assertEquals(LOGS, s.getInt(0));
+        s.close();
+        return time;
+    }
+
+    /**
+     * Write all logs with both writers.
+     *
+     * @throws OperationApplicationException OperationApplicationException
+     * @throws RemoteException               RemoteException
+     */
+    public void testWriters() throws OperationApplicationException, RemoteException {
+        final SQLiteDatabase db = DataProvider.getWritableDatabase();
+        assertNotNull(db);
+        // warm up
+        write(new LogResultWriter.StatementWriter(getContentResolver(), db));
+        final long tBatch = write(new LogResultWriter.BatchWriter(getContentResolver()));
+        final long tStatement = write(new LogResultWriter.StatementWriter(getContentResolver(),
+                db));
+        Log.i(TAG, "write(" + LOGS + "), " + BATCH + " per flush: applyBatch(): " + tBatch
+                + "ms, statements: " + tStatement + "ms");
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import de.ub0r.android.callmeter.ui.LogsFragment;
+import de.ub0r.android.lib.DbUtils;
+import de.ub0r.android.lib.Log;
+
+/**
+ * Check that the queries on {@link DataProvider.Logs} issued by the app are served by the
+ * indexes created in {@link DataProvider.Logs#createIndexes(SQLiteDatabase)}. Queries sent to the
+ * {@link DataProvider} are built by {@link DataProvider#buildQuery(SQLiteDatabase, Uri, String[],
+ * String, String)} from the selections used by the app.
+ *
+ * @author flx
+ */
+public class LogsIndexTest extends DataProviderTestCase {
+
+    /** Tag for output. */
+    private static final String TAG = "LogsIndexTest";
+
+    /** Index on plan and date. */
+    private static final String IDX_PLAN = DataProvider.Logs.TABLE + "_plan_idx";
+    /** Index on type and date. */
+    private static final String IDX_TYPE = DataProvider.Logs.TABLE + "_type_idx";
+    /** Index on type, direction and date. */
+    private static final String IDX_TYPE_DIRECTION = DataProvider.Logs.TABLE
+            + "_type_direction_idx";
+    /** Index on date. */
+    private static final String IDX_DATE = DataProvider.Logs.TABLE + "_date_idx";
+    /** Index on rule. */
+    private static final String IDX_RULE = DataProvider.Logs.TABLE + "_rule_idx";
+    /** Lookup by primary key. */
+    private static final String PRIMARY_KEY = "INTEGER PRIMARY KEY";
+
+    /** All types of logs. */
+    private static final List<Integer> TYPES = Arrays.asList(DataProvider.TYPE_CALL,
+            DataProvider.TYPE_SMS, DataProvider.TYPE_MMS, DataProvider.TYPE_DATA);
+    /** All directions of logs. */
+    private static final List<Integer> DIRECTIONS = Arrays.asList(DataProvider.DIRECTION_IN,
+            DataProvider.DIRECTION_OUT);
+
+    /** {@link SQLiteDatabase} of the {@link DataProvider}. */
+    private SQLiteDatabase db;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        insertLogs(1000, 1L);
+        db = DataProvider.getWritableDatabase();
+        assertNotNull(db);
+    }
+
+    /**
+     * Get the query plan of a statement.
+     *
+     * @param sql  SQL statement
+     * @param args arguments
+     * @return details of the query plan, one per row
+     */
+    private ArrayList<String> explain(final String sql, final String[] args) {
+        final ArrayList<String> ret = new ArrayList<String>();
+        final Cursor c = db.rawQuery("EXPLAIN QUERY PLAN " + sql, args);
+        assertNotNull(c);
+        final int idx = c.getColumnIndex("detail");
+        while (c.moveToNext()) {
+            ret.add(c.getString(idx));
+        }
+        c.close();
+        Log.d(TAG, sql + ": " + TextUtils.join("; ", ret));
+        return ret;
+    }
+
+    /**
+     * Get the SQL of a query sent to the {@link DataProvider}.
+     *
+     * @param uri        {@link Uri}
+     * @param projection projection
+     * @param selection  selection
+     * @param sortOrder  sort order
+     * @return SQL
+     */
+    private String query(final Uri uri, final String[] projection, final String selection,
+            final String sortOrder) {
+        return DataProvider.buildQuery(db, uri, projection, selection, sortOrder);
+    }
+
+    /**
+     * Assert a statement on {@link DataProvider.Logs} uses an index and needs no sorting.
+     *
+     * @param index expected index
+     * @param sql   SQL statement
+     * @param args  arguments
+     */
+    private void assertUsesIndex(final String index, final String sql, final String[] args) {
+        final ArrayList<String> plan = explain(sql, args);
+        assertFalse(sql, plan.isEmpty());
+        boolean found = false;
+        for (String s : plan) {
+            assertFalse("temp b-tree: " + sql + ": " + s, s.contains("TEMP B-TREE"));
+            if (s.contains(DataProvider.Logs.TABLE)) {
+                assertTrue("full scan: " + sql + ": " + s, s.contains(" USING "));
+                found |= s.contains(" " + index);
+            }
+        }
+        assertTrue("index " + index + " not used: " + sql + ": " + plan, found);
+    }
+
+    /**
+     * Assert a statement scans no table without index, except for the given ones. Sorting small
+     * results is allowed.
+     *
+     * @param sql     SQL statement
+     * @param args    arguments
+     * @param allowed tables or aliases, which may be scanned
+     * @return details of the query plan, one per row
+     */
+    private ArrayList<String> assertNoFullScan(final String sql, final String[] args,
+            final String... allowed) {
+        final ArrayList<String> plan = explain(sql, args);
+        assertFalse(sql, plan.isEmpty());
+        for (String s : plan) {
+            if (!s.startsWith("SCAN ") || s.contains(" USING ")) {
+                continue;
+            }
+            // "SCAN TABLE logs AS l (~1000 rows)" or "SCAN l"
+            final String[] words = s.substring("SCAN ".length()).replaceFirst("^TABLE ", "")
+                    .split(" ");
+            final String table = words[0];
+            if (table.equals("SUBQUERY") || table.equals("CONSTANT")) {
+                continue;
+            }
+            assertTrue("full scan: " + sql + ": " + s, Arrays.asList(allowed).contains(table));
+        }
+        return plan;
+    }
+
+    /**
+     * Get the id of the first row.
+     *
+     * @param uri    {@link Uri}
+     * @param column column
+     * @return value of column
+     */
+    private long getFirst(final Uri uri, final String column) {
+        final Cursor c = getContentResolver().query(uri, new String[]{column}, null, null, null);
+        assertNotNull(c);
+        assertTrue(c.moveToFirst());
+        final long ret = c.getLong(0);
+        c.close();
+        return ret;
+    }
+
+    /**
+     * Unmatched logs selected by RuleMatcher.match().
+     */
+    public void testMatch() {
+        assertUsesIndex(IDX_PLAN, query(DataProvider.Logs.CONTENT_URI,
+                DataProvider.Logs.PROJECTION, DataProvider.Logs.PLAN_ID + " = "
+                        + DataProvider.NO_ID, DataProvider.Logs.DATE + " ASC"), null);
+    }
+
+    /**
+     * Logs of a plan selected by RuleMatcher.rerate() and PlanSums.update().
+     */
+    public void testRerate() {
+        assertUsesIndex(IDX_PLAN, "SELECT " + DataProvider.Logs.ID + " FROM "
+                + DataProvider.Logs.TABLE + " WHERE " + DbUtils.sqlAnd(DataProvider.Logs.PLAN_ID
+                + " >= 0", DataProvider.Logs.PLAN_ID + " = ?"), new String[]{"1"});
+        assertUsesIndex(IDX_PLAN, "UPDATE " + DataProvider.Logs.TABLE + " SET "
+                + DataProvider.Logs.COST + " = 0 WHERE " + DataProvider.Logs.PLAN_ID + " = 1",
+                null);
+    }
+
+    /**
+     * Newest log of a type selected by LogRunnerService.getMaxDate(type) and for call info.
+     */
+    public void testMaxDateType() {
+        assertUsesIndex(IDX_TYPE, query(DataProvider.Logs.CONTENT_URI,
+                new String[]{DataProvider.Logs.DATE}, DataProvider.Logs.TYPE + " = ?",
+                DataProvider.Logs.DATE + " DESC LIMIT 1"),
+                new String[]{String.valueOf(DataProvider.TYPE_SMS)});
+        assertUsesIndex(IDX_TYPE, query(DataProvider.Logs.CONTENT_URI,
+                DataProvider.Logs.PROJECTION, DataProvider.Logs.TYPE + " = "
+                        + DataProvider.TYPE_CALL, DataProvider.Logs.DATE + " DESC LIMIT 1"),
+                null);
+    }
+
+    /**
+     * Newest log of a type and direction selected by LogRunnerService.getMaxDate(type,
+     * direction) and getLastData().
+     */
+    public void testMaxDateTypeDirection() {
+        assertUsesIndex(IDX_TYPE_DIRECTION, query(DataProvider.Logs.CONTENT_URI,
+                new String[]{DataProvider.Logs.ID, DataProvider.Logs.AMOUNT,
+                        DataProvider.Logs.PLAN_ID, DataProvider.Logs.ROAMED},
+                DataProvider.Logs.TYPE + " = ? AND " + DataProvider.Logs.DIRECTION + " = ?",
+                DataProvider.Logs.DATE + " DESC LIMIT 1"),
+                new String[]{String.valueOf(DataProvider.TYPE_DATA),
+                        String.valueOf(DataProvider.DIRECTION_IN)});
+    }
+
+    /**
+     * Old logs deleted by LogRunnerService.deleteOldLogs().
+     */
+    public void testDeleteOldLogs() {
+        assertUsesIndex(IDX_DATE, "DELETE FROM " + DataProvider.Logs.TABLE + " WHERE "
+                + DataProvider.Logs.DATE + " < ?",
+                new String[]{String.valueOf(System.currentTimeMillis() - 1000000000L)});
+    }
+
+    /**
+     * Normalized remote parts written by DataProvider.Logs.normalizeRemotes(). Logs are read once
+     * without index, each one is updated by its id.
+     */
+    public void testNormalizeRemotes() {
+        assertUsesIndex(PRIMARY_KEY, DataProvider.Logs.SQL_NORMALIZE_REMOTE,
+                new String[]{"+49151", "1"});
+    }
+
+    /**
+     * Logs selected and unmatched by {@link RematchScope} after editing a rule.
+     *
+     * @param typeChanged rule's type was changed
+     */
+    private void checkRematch(final boolean typeChanged) {
+        final long rid = getFirst(DataProvider.Rules.CONTENT_URI, DataProvider.Rules.ID);
+        final long pid = getFirst(DataProvider.Rules.CONTENT_URI, DataProvider.Rules.PLAN_ID);
+        final RematchScope scope = new RematchScope(getContentResolver());
+        scope.addRule(rid, typeChanged);
+        final String rulesWhere = scope.getRulesWhere();
+        assertNotNull(rulesWhere);
+        // plans losing logs: grouped by plan, joined to the few plans
+        assertNoFullScan(query(DataProvider.Logs.SUM_URI, RematchScope.PROJECTION_LOGS_PLANS,
+                rulesWhere, null), null, DataProvider.Plans.TABLE);
+        final String minDate = query(DataProvider.Logs.CONTENT_URI,
+                RematchScope.PROJECTION_LOGS_MIN_DATE, rulesWhere, null);
+        assertNoFullScan(minDate, null);
+        if (typeChanged) {
+            // logs of any type
+            assertUsesIndex(IDX_RULE, minDate, null);
+        }
+
+        final HashSet<Long> affected = new HashSet<Long>();
+        affected.add(pid);
+        final String where = scope.getWhere(affected, System.currentTimeMillis(), rulesWhere);
+        assertNotNull(where);
+        // PlanSums.update() and update() of logs
+        assertNoFullScan("SELECT " + DataProvider.Logs.PLAN_ID + "," + DataProvider.Logs.DATE
+                + " FROM " + DataProvider.Logs.TABLE + " WHERE " + DbUtils.sqlAnd(
+                DataProvider.Logs.PLAN_ID + " >= 0", where), null);
+        assertNoFullScan("UPDATE " + DataProvider.Logs.TABLE + " SET "
+                + DataProvider.Logs.PLAN_ID + " = " + DataProvider.NO_ID + ", "
+                + DataProvider.Logs.RULE_ID + " = " + DataProvider.NO_ID + " WHERE " + where,
+                null);
+    }
+
+    /**
+     * Logs selected and unmatched by {@link RematchScope} after editing a rule.
+     */
+    public void testRematchRule() {
+        checkRematch(false);
+    }
+
+    /**
+     * Logs selected and unmatched by {@link RematchScope} after changing a rule's type.
+     */
+    public void testRematchRuleType() {
+        checkRematch(true);
+    }
+
+    /**
+     * Plans with their sums shown by PlansFragment. Only plans are scanned, all sums are looked
+     * up by index.
+     */
+    public void testPlansSum() {
+        final Uri uri = DataProvider.Plans.CONTENT_URI_SUM.buildUpon()
+                .appendQueryParameter(DataProvider.Plans.PARAM_DATE,
+                        String.valueOf(System.currentTimeMillis()))
+                .appendQueryParameter(DataProvider.Plans.PARAM_HIDE_ZERO, "true")
+                .appendQueryParameter(DataProvider.Plans.PARAM_HIDE_NOCOST, "false")
+                .appendQueryParameter(DataProvider.Plans.PARAM_HIDE_TODAY, "false")
+                .appendQueryParameter(DataProvider.Plans.PARAM_HIDE_ALLTIME, "false").build();
+        // bill period's plans summed up by SUM_CPP as "p"
+        final String plan = TextUtils.join("; ", assertNoFullScan(query(uri,
+                DataProvider.Plans.PROJECTION_SUM, null, null), null, DataProvider.Plans.TABLE,
+                "p"));
+        for (String t : new String[]{DataProvider.PlanMerges.TABLE, DataProvider.PlanSums.TABLE,
+                DataProvider.PlanDays.TABLE}) {
+            assertTrue(t + ": " + plan, plan.contains("sqlite_autoindex_" + t));
+        }
+    }
+
+    /**
+     * Logs shown by LogsFragment, newest first.
+     */
+    public void testLogsList() {
+        assertUsesIndex(IDX_DATE, query(DataProvider.Logs.CONTENT_URI_JOIN,
+                DataProvider.Logs.PROJECTION_JOIN, LogsFragment.getWhere(TYPES, DIRECTIONS,
+                        null), LogsFragment.ORDER), null);
+        assertUsesIndex(IDX_DATE, query(DataProvider.Logs.CONTENT_URI_JOIN,
+                DataProvider.Logs.PROJECTION_JOIN, LogsFragment.getWhere(
+                        Arrays.asList(DataProvider.TYPE_SMS), DIRECTIONS, null),
+                LogsFragment.ORDER), null);
+        final long pid = getFirst(DataProvider.Rules.CONTENT_URI, DataProvider.Rules.PLAN_ID);
+        assertUsesIndex(IDX_PLAN, query(DataProvider.Logs.CONTENT_URI_JOIN,
+                DataProvider.Logs.PROJECTION_JOIN, LogsFragment.getWhere(TYPES, DIRECTIONS,
+                        DataProvider.Plans.parseMergerWhere(pid, null)), LogsFragment.ORDER),
+                null);
+    }
+}
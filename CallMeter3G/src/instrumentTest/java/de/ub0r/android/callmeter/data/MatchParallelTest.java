@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.database.Cursor;
+
+import java.util.HashSet;
+
+/**
+ * Check that matching logs in parallel gives the same result as matching them one by one.
+ *
+ * @author flx
+ */
+public class MatchParallelTest extends DataProviderTestCase {
+
+    /** Number of logs matched. */
+    private static final int LOGS = 5000;
+    /** Number of threads compared with sequential matching. */
+    private static final int[] THREADS = new int[]{2, 4, 8};
+
+    /** Columns compared. */
+    private static final String[] PROJECTION = new String[]{DataProvider.Logs.ID,
+            DataProvider.Logs.PLAN_ID, DataProvider.Logs.RULE_ID, DataProvider.Logs.BILL_AMOUNT,
+            DataProvider.Logs.COST, DataProvider.Logs.FREE};
+
+    /**
+     * Get results of all logs.
+     *
+     * @return rows of {id, plan id, rule id, billed amount, cost, free} ordered by id
+     */
+    private double[][] getResults() {
+        final Cursor c = getContentResolver().query(DataProvider.Logs.CONTENT_URI, PROJECTION,
+                null, null, DataProvider.Logs.ID + " ASC");
+        assertNotNull(c);
+        final double[][] ret = new double[c.getCount()][];
+        int i = 0;
+        while (c.moveToNext()) {
+            final double[] row = new double[PROJECTION.length];
+            for (int j = 0; j < row.length; j++) {
+                row[j] = c.getDouble(j);
+            }
+            ret[i] = row;
+            ++i;
+        }
+        c.close();
+        return ret;
+    }
+
+    /**
+     * Unmatch all logs and match them again.
+     *
+     * @param threads number of threads
+     * @return results of all logs
+     */
+    private double[][] rematch(final int threads) {
+        RuleMatcher.unmatch(getMockContext());
+        assertEquals(LOGS, countLogs(DataProvider.Logs.PLAN_ID + " = " + DataProvider.NO_ID));
+        assertTrue(RuleMatcher.match(getMockContext(), false, false, threads));
+        assertEquals(0, countLogs(DataProvider.Logs.PLAN_ID + " = " + DataProvider.NO_ID));
+        return getResults();
+    }
+
+    /**
+     * Compare plan, rule, billed amount, cost and free cost of every log.
+     */
+    public void testSameAsSequential() {
+        insertLogs(LOGS, 2L);
+        final double[][] expected = rematch(1);
+        assertEquals(LOGS, expected.length);
+        // the default rule set bills logs to different plans
+        final HashSet<Double> pids = new HashSet<Double>();
+        for (double[] row : expected) {
+            pids.add(row[1]);
+        }
+        assertTrue("plans: " + pids, pids.size() > 1);
+
+        for (int t : THREADS) {
+            final double[][] actual = rematch(t);
+            assertEquals(expected.length, actual.length);
+            for (int i = 0; i < expected.length; i++) {
+                for (int j = 0; j < PROJECTION.length; j++) {
+                    assertEquals("threads=" + t + ", log=" + (long) expected[i][0] + ", "
+                            + PROJECTION[j], expected[i][j], actual[i][j], 0d);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import junit.framework.TestCase;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Check days of {@link DataProvider.PlanDays} in different time zones.
+ *
+ * @author flx
+ */
+public class PlanDaysTest extends TestCase {
+
+    /** Berlin. */
+    private static final TimeZone BERLIN = TimeZone.getTimeZone("Europe/Berlin");
+    /** New York. */
+    private static final TimeZone NEW_YORK = TimeZone.getTimeZone("America/New_York");
+    /** Kolkata, half-hour offset. */
+    private static final TimeZone KOLKATA = TimeZone.getTimeZone("Asia/Kolkata");
+    /** UTC. */
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    /**
+     * Get a date.
+     *
+     * @param tz     {@link TimeZone}
+     * @param year   year
+     * @param month  month, starting with 0
+     * @param day    day of month
+     * @param hour   hour of day
+     * @param minute minute
+     * @return date in milliseconds
+     */
+    private static long getDate(final TimeZone tz, final int year, final int month,
+            final int day, final int hour, final int minute) {
+        final Calendar c = Calendar.getInstance(tz);
+        c.clear();
+        c.set(year, month, day, hour, minute);
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * Days are the local calendar date.
+     */
+    public void testGetDay() {
+        final long expected = getDate(UTC, 2013, Calendar.MARCH, 30, 0, 0);
+        for (TimeZone tz : new TimeZone[]{BERLIN, NEW_YORK, KOLKATA, UTC}) {
+            assertEquals(tz.getID(), expected, DataProvider.PlanDays.getDay(tz,
+                    getDate(tz, 2013, Calendar.MARCH, 30, 0, 0)));
+            assertEquals(tz.getID(), expected, DataProvider.PlanDays.getDay(tz,
+                    getDate(tz, 2013, Calendar.MARCH, 30, 23, 59)));
+        }
+    }
+
+    /**
+     * Days around changes of daylight saving time.
+     */
+    public void testGetDayDst() {
+        // Berlin: 2013-03-31 02:00 -> 03:00 and 2013-10-27 03:00 -> 02:00
+        assertEquals(getDate(UTC, 2013, Calendar.MARCH, 31, 0, 0), DataProvider.PlanDays.getDay(
+                BERLIN, getDate(BERLIN, 2013, Calendar.MARCH, 31, 23, 30)));
+        assertEquals(getDate(UTC, 2013, Calendar.OCTOBER, 27, 0, 0), DataProvider.PlanDays
+                .getDay(BERLIN, getDate(BERLIN, 2013, Calendar.OCTOBER, 27, 0, 30)));
+        assertEquals(getDate(UTC, 2013, Calendar.OCTOBER, 27, 0, 0), DataProvider.PlanDays
+                .getDay(BERLIN, getDate(BERLIN, 2013, Calendar.OCTOBER, 27, 23, 30)));
+    }
+
+    /**
+     * A day starts at local midnight.
+     */
+    public void testGetStart() {
+        for (TimeZone tz : new TimeZone[]{BERLIN, NEW_YORK, KOLKATA, UTC}) {
+            final long start = getDate(tz, 2013, Calendar.OCTOBER, 27, 0, 0);
+            assertEquals(tz.getID(), start, DataProvider.PlanDays.getStart(tz,
+                    DataProvider.PlanDays.getDay(tz, start + 1000L)));
+        }
+    }
+
+    /**
+     * A log matched in one time zone keeps its day when queried in another one.
+     */
+    public void testTimeZoneChange() {
+        final long log = getDate(BERLIN, 2013, Calendar.MAY, 10, 8, 0);
+        final long query = getDate(NEW_YORK, 2013, Calendar.MAY, 10, 20, 0);
+        assertEquals(DataProvider.PlanDays.getDay(BERLIN, log),
+                DataProvider.PlanDays.getDay(NEW_YORK, query));
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+
+import de.ub0r.android.lib.Log;
+
+/**
+ * Measure the main screen's query of {@link DataProvider.Plans#CONTENT_URI_SUM} against the
+ * former join of logs to plans by {@link DataProvider.Plans#MERGED_PLANS} like '%,id,%'. Both
+ * must count the same logs per plan. Timings are written to logcat.
+ *
+ * @author flx
+ */
+public class PlansSumBenchmark extends DataProviderTestCase {
+
+    /** Tag for output. */
+    private static final String TAG = "PlansSumBenchmark";
+
+    /** Number of logs. */
+    private static final int LOGS = 100000;
+    /** Number of runs per query. The first one warms up. */
+    private static final int RUNS = 4;
+
+    /** Former join of logs to the plans summing them up. */
+    private static final String LIKE_JOIN = DataProvider.Plans.TABLE + " left outer join "
+            + DataProvider.Logs.TABLE + " on (" + DataProvider.Logs.TABLE + "."
+            + DataProvider.Logs.PLAN_ID + "=" + DataProvider.Plans.TABLE + "."
+            + DataProvider.Plans.ID + " or " + DataProvider.Plans.TABLE + "."
+            + DataProvider.Plans.MERGED_PLANS + " like '%,'||" + DataProvider.Logs.TABLE + "."
+            + DataProvider.Logs.PLAN_ID + "||',%' or (" + DataProvider.Plans.TABLE + "."
+            + DataProvider.Plans.TYPE + "=" + DataProvider.TYPE_BILLPERIOD + " and ("
+            + DataProvider.Logs.TABLE + "." + DataProvider.Logs.PLAN_ID + " in (select "
+            + DataProvider.Plans.ID + " from " + DataProvider.Plans.TABLE + " as p where p."
+            + DataProvider.Plans.BILLPERIOD_ID + "=" + DataProvider.Plans.TABLE + "."
+            + DataProvider.Plans.ID + ") or 1 in (select 1 from " + DataProvider.Plans.TABLE
+            + " as pp where pp." + DataProvider.Plans.MERGED_PLANS + " like '%,'||"
+            + DataProvider.Logs.TABLE + "." + DataProvider.Logs.PLAN_ID + "||',%' and pp."
+            + DataProvider.Plans.BILLPERIOD_ID + "=" + DataProvider.Plans.TABLE + "."
+            + DataProvider.Plans.ID + "))))";
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        insertLogs(LOGS, 6L);
+        assertTrue(RuleMatcher.match(getMockContext(), false, false, 1));
+        assertEquals(0, countLogs(DataProvider.Logs.PLAN_ID + " = " + DataProvider.NO_ID));
+    }
+
+    /**
+     * Count logs per plan with the former join.
+     *
+     * @param db {@link SQLiteDatabase}
+     * @return plan id -> number of logs
+     */
+    private static HashMap<Long, Integer> queryLike(final SQLiteDatabase db) {
+        final Cursor c = db.rawQuery("SELECT " + DataProvider.Plans.TABLE + "."
+                + DataProvider.Plans.ID + ", count(" + DataProvider.Logs.TABLE + "."
+                + DataProvider.Logs.ID + ") FROM " + LIKE_JOIN + " GROUP BY "
+                + DataProvider.Plans.TABLE + "." + DataProvider.Plans.ID, null);
+        final HashMap<Long, Integer> ret = new HashMap<Long, Integer>();
+        while (c.moveToNext()) {
+            ret.put(c.getLong(0), c.getInt(1));
+        }
+        c.close();
+        return ret;
+    }
+
+    /**
+     * Count logs per plan as shown on the main screen.
+     *
+     * @return plan id -> number of logs
+     */
+    private HashMap<Long, Integer> querySum() {
+        final Cursor c = getContentResolver().query(DataProvider.Plans.CONTENT_URI_SUM,
+                DataProvider.Plans.PROJECTION_SUM, null, null, null);
+        assertNotNull(c);
+        final HashMap<Long, Integer> ret = new HashMap<Long, Integer>();
+        while (c.moveToNext()) {
+            ret.put(c.getLong(DataProvider.Plans.INDEX_ID),
+                    c.getInt(DataProvider.Plans.INDEX_SUM_AT_COUNT));
+        }
+        c.close();
+        return ret;
+    }
+
+    /**
+     * Run both queries and compare their results.
+     */
+    public void testPlansSum() {
+        final SQLiteDatabase db = DataProvider.getWritableDatabase();
+        assertNotNull(db);
+        long tLike = Long.MAX_VALUE;
+        long tSum = Long.MAX_VALUE;
+        HashMap<Long, Integer> like = null;
+        HashMap<Long, Integer> sum = null;
+        for (int i = 0; i < RUNS; i++) {
+            long ct = SystemClock.elapsedRealtime();
+            like = queryLike(db);
+            final long t0 = SystemClock.elapsedRealtime() - ct;
+            ct = SystemClock.elapsedRealtime();
+            sum = querySum();
+            final long t1 = SystemClock.elapsedRealtime() - ct;
+            Log.d(TAG, "run=" + i + ": like: " + t0 + "ms, plan_merges: " + t1 + "ms");
+            if (i > 0) {
+                tLike = Math.min(tLike, t0);
+                tSum = Math.min(tSum, t1);
+            }
+        }
+        assertEquals(like.size(), sum.size());
+        int total = 0;
+        for (Long pid : like.keySet()) {
+            assertEquals("plan " + pid, like.get(pid), sum.get(pid));
+            total += sum.get(pid);
+        }
+        assertTrue(total >= LOGS);
+        Log.i(TAG, "plans sum(" + LOGS + "): like: " + tLike + "ms, plan_merges: " + tSum
+                + "ms");
+    }
+}
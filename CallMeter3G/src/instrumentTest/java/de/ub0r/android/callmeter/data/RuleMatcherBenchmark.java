@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.os.SystemClock;
+
+import de.ub0r.android.lib.Log;
+
+/**
+ * Measure RuleMatcher.match() with 1, 2, 4 and 8 threads. Timings are written to logcat.
+ *
+ * @author flx
+ */
+public class RuleMatcherBenchmark extends DataProviderTestCase {
+
+    /** Tag for output. */
+    private static final String TAG = "RuleMatcherBenchmark";
+
+    /** Number of logs matched. */
+    private static final int LOGS = 20000;
+    /** Number of threads. */
+    private static final int[] THREADS = new int[]{1, 2, 4, 8};
+    /** Number of runs per number of threads. The first one warms up. */
+    private static final int RUNS = 3;
+
+    /**
+     * Match all logs with each number of threads.
+     */
+    public void testThreads() {
+        insertLogs(LOGS, 3L);
+        final StringBuilder sb = new StringBuilder();
+        for (int t : THREADS) {
+            long best = Long.MAX_VALUE;
+            for (int i = 0; i < RUNS; i++) {
+                RuleMatcher.unmatch(getMockContext());
+                final long ct = SystemClock.elapsedRealtime();
+                assertTrue(RuleMatcher.match(getMockContext(), false, false, t));
+                final long time = SystemClock.elapsedRealtime() - ct;
+                Log.d(TAG, "threads=" + t + ", run=" + i + ": " + time + "ms");
+                if (i > 0) {
+                    best = Math.min(best, time);
+                }
+                assertEquals(0, countLogs(DataProvider.Logs.PLAN_ID + " = "
+                        + DataProvider.NO_ID));
+            }
+            sb.append(", ").append(t).append(" threads: ").append(best).append("ms");
+        }
+        Log.i(TAG, "match(" + LOGS + ")" + sb + ", "
+                + Runtime.getRuntime().availableProcessors() + " cpus");
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.content.ContentValues;
+import android.content.res.AssetManager;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+
+/**
+ * Check the ranking of rule sets by {@link TariffComparison}.
+ *
+ * @author flx
+ */
+public class TariffComparisonTest extends DataProviderTestCase {
+
+    /** Number of logs. */
+    private static final int LOGS = 2000;
+    /** Number of bill periods compared. */
+    private static final int PERIODS = 2;
+    /** Number of bundled rule sets compared. */
+    private static final int BUNDLED = 3;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        insertLogs(LOGS, 5L);
+    }
+
+    /**
+     * Export the rule set of the {@link DataProvider} with all prices set.
+     *
+     * @param cost cost per item and amount
+     * @param fee  cost per plan
+     * @return XML
+     */
+    private String export(final float cost, final float fee) {
+        final ContentValues cv = new ContentValues();
+        cv.put(DataProvider.Plans.COST_PER_ITEM, cost);
+        cv.put(DataProvider.Plans.COST_PER_AMOUNT1, cost);
+        cv.put(DataProvider.Plans.COST_PER_AMOUNT2, cost);
+        cv.put(DataProvider.Plans.COST_PER_ITEM_IN_LIMIT, cost);
+        cv.put(DataProvider.Plans.COST_PER_AMOUNT_IN_LIMIT1, cost);
+        cv.put(DataProvider.Plans.COST_PER_AMOUNT_IN_LIMIT2, cost);
+        cv.put(DataProvider.Plans.COST_PER_PLAN, fee);
+        assertTrue(getContentResolver().update(DataProvider.Plans.CONTENT_URI, cv, null,
+                null) > 0);
+        return DataProvider.backupRuleSet(getMockContext(), "test", "test",
+                cost + "/" + fee);
+    }
+
+    /**
+     * Get a {@link TariffComparison.Result} by name.
+     *
+     * @param results {@link TariffComparison.Result}s
+     * @param name    name
+     * @return {@link TariffComparison.Result}
+     */
+    private static TariffComparison.Result get(final TariffComparison.Result[] results,
+            final String name) {
+        for (TariffComparison.Result r : results) {
+            if (r.name.equals(name)) {
+                return r;
+            }
+        }
+        fail("missing result: " + name);
+        return null;
+    }
+
+    /**
+     * Assert results are ranked cheapest first and all saw the same logs.
+     *
+     * @param results {@link TariffComparison.Result}s
+     */
+    private static void assertRanked(final TariffComparison.Result[] results) {
+        final int logs = results[0].matched + results[0].notMatched;
+        for (int i = 0; i < results.length; i++) {
+            assertEquals(results[i].name, logs, results[i].matched + results[i].notMatched);
+            if (i > 0) {
+                assertTrue(results[i - 1].name + " > " + results[i].name,
+                        results[i - 1].cost <= results[i].cost);
+            }
+        }
+    }
+
+    /**
+     * Rank variants of the default rule set by price.
+     */
+    public void testRanking() {
+        final HashMap<String, String> ruleSets = new HashMap<String, String>();
+        ruleSets.put("expensive", export(0.1f, 0f));
+        ruleSets.put("cheap", export(0.01f, 0f));
+        ruleSets.put("fees", export(0f, 5f));
+        ruleSets.put("free", export(0f, 0f));
+
+        final TariffComparison.Result[] results = TariffComparison.compare(getMockContext(),
+                ruleSets, PERIODS);
+        assertEquals(ruleSets.size(), results.length);
+        assertRanked(results);
+        assertEquals("free", results[0].name);
+        assertTrue(results[0].matched > 0);
+
+        final TariffComparison.Result free = get(results, "free");
+        final TariffComparison.Result cheap = get(results, "cheap");
+        final TariffComparison.Result expensive = get(results, "expensive");
+        final TariffComparison.Result fees = get(results, "fees");
+        assertEquals(0f, free.cost, 0f);
+        assertEquals(0f, free.fees, 0f);
+        assertTrue(cheap.cost > 0f);
+        assertTrue(expensive.cost > cheap.cost);
+        assertEquals(0f, cheap.fees, 0f);
+        assertTrue(fees.fees > 0f);
+        assertEquals(fees.fees, fees.cost, 0f);
+
+        // cached rule sets give the same results
+        final TariffComparison.Result[] again = TariffComparison.compare(getMockContext(),
+                ruleSets, PERIODS);
+        assertEquals(results.length, again.length);
+        for (int i = 0; i < results.length; i++) {
+            assertEquals(results[i].name, again[i].name);
+            assertEquals(results[i].cost, again[i].cost, 0f);
+        }
+    }
+
+    /**
+     * Rate rule sets bundled with the app.
+     *
+     * @throws IOException IOException
+     */
+    public void testBundled() throws IOException {
+        final AssetManager assets = getContext().getAssets();
+        final String[] files = assets.list(TariffComparison.ASSETS_RULESETS);
+        assertTrue(files.length >= BUNDLED);
+        final HashMap<String, String> ruleSets = new HashMap<String, String>();
+        for (String f : files) {
+            if (ruleSets.size() == BUNDLED || !f.endsWith(".xml")) {
+                continue;
+            }
+            final BufferedReader r = new BufferedReader(new InputStreamReader(assets.open(
+                    TariffComparison.ASSETS_RULESETS + "/" + f), "UTF-8"));
+            final StringBuilder sb = new StringBuilder();
+            String l;
+            while ((l = r.readLine()) != null) {
+                sb.append(l).append('\n');
+            }
+            r.close();
+            ruleSets.put(f, sb.toString());
+        }
+        final TariffComparison.Result[] results = TariffComparison.compare(getMockContext(),
+                ruleSets, PERIODS);
+        assertEquals(BUNDLED, results.length);
+        assertRanked(results);
+    }
+}
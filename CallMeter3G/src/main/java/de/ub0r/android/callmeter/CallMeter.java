@@ -21,10 +21,15 @@ package de.ub0r.android.callmeter;
 import com.actionbarsherlock.app.ActionBar;
 
 import android.app.Application;
+import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.graphics.Shader.TileMode;
 import android.graphics.drawable.BitmapDrawable;
+import android.preference.PreferenceManager;
 
+import de.ub0r.android.callmeter.data.RuleProfiler;
+import de.ub0r.android.callmeter.data.Trace;
+import de.ub0r.android.callmeter.ui.prefs.Preferences;
 import de.ub0r.android.lib.Log;
 import de.ub0r.android.lib.Utils;
 
@@ -74,6 +79,9 @@ public final class CallMeter extends Application {
         Log.init("CallMeter3G");
         Log.d(TAG, "init");
         Utils.setLocale(this);
+        final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(this);
+        Trace.setEnabled(p.getBoolean(Preferences.PREFS_TRACE, false));
+        RuleProfiler.setEnabled(p.getBoolean(Preferences.PREFS_PROFILE_RULES, false));
     }
 
     /**
@@ -21,6 +21,7 @@ package de.ub0r.android.callmeter.data;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import android.annotation.TargetApi;
 import android.content.ContentProvider;
 import android.content.ContentProviderOperation;
 import android.content.ContentProviderResult;
@@ -40,7 +41,9 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
 import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.text.TextUtils;
@@ -58,7 +61,10 @@ import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -94,9 +100,10 @@ public final class DataProvider extends ContentProvider {
     /** Name of the {@link SQLiteDatabase}. */
     private static final String DATABASE_NAME = "callmeter.db";
     /** Version of the {@link SQLiteDatabase}. */
-    private static final int DATABASE_VERSION = 35;
+    private static final int DATABASE_VERSION = 45;
     /** Versions of {@link SQLiteDatabase}, which need no unmatch(). */
-    private static final int[] DATABASE_KNOWNGOOD = new int[]{30, 31, 32, 33, 34};
+    private static final int[] DATABASE_KNOWNGOOD = new int[]{30, 31, 32, 33, 34, 35, 36, 37,
+            38, 39, 40, 41, 42, 43, 44};
 
     /** Version of the export file. */
     private static final int EXPORT_VERSION = 2;
@@ -208,10 +215,12 @@ public final class DataProvider extends ContentProvider {
         public static final int INDEX_FREE = 11;
         /** Index in projection: my own number. */
         public static final int INDEX_MYNUMBER = 12;
+        /** Index in projection: Normalized remote part. */
+        public static final int INDEX_REMOTE_NORMALIZED = 13;
         /** Index in projection: Plan name. */
-        public static final int INDEX_PLAN_NAME = 13;
+        public static final int INDEX_PLAN_NAME = 14;
         /** Index in projection: Rule name. */
-        public static final int INDEX_RULE_NAME = 14;
+        public static final int INDEX_RULE_NAME = 15;
 
         /** Index in projection - sum: Type of log. */
         public static final int INDEX_SUM_TYPE = 0;
@@ -258,10 +267,16 @@ public final class DataProvider extends ContentProvider {
         public static final String PLAN_TYPE = "_plan_type";
         /** My own number. */
         public static final String MYNUMBER = "_mynumber";
+        /**
+         * Remote part as compared by the {@link RuleMatcher}: leading zeros stripped and
+         * international prefix added as set in preferences.
+         */
+        public static final String REMOTE_NORMALIZED = "_remote_normalized";
 
         /** Projection used for query. */
         public static final String[] PROJECTION = new String[]{ID, PLAN_ID, RULE_ID, TYPE,
-                DIRECTION, DATE, AMOUNT, BILL_AMOUNT, REMOTE, ROAMED, COST, FREE, MYNUMBER};
+                DIRECTION, DATE, AMOUNT, BILL_AMOUNT, REMOTE, ROAMED, COST, FREE, MYNUMBER,
+                REMOTE_NORMALIZED};
         /** Projection used for join query. */
         public static final String[] PROJECTION_JOIN;
 
@@ -288,6 +303,9 @@ public final class DataProvider extends ContentProvider {
                 + "/logs/join");
         /** Content {@link Uri} - sum. */
         public static final Uri SUM_URI = Uri.parse("content://" + AUTHORITY + "/logs/sum");
+
+        /** Parameter for delete(): keep deleted logs in {@link PlanSums} and {@link PlanDays}. */
+        public static final String PARAM_KEEP_SUMS = "keep_sums";
         /**
          * The MIME type of {@link #CONTENT_URI} providing a list.
          */
@@ -298,6 +316,10 @@ public final class DataProvider extends ContentProvider {
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.ub0r.log";
 
+        /** Update {@link #REMOTE_NORMALIZED} of a single log by id. */
+        static final String SQL_NORMALIZE_REMOTE = "UPDATE " + TABLE + " SET "
+                + REMOTE_NORMALIZED + "=? WHERE " + ID + "=?";
+
         /**
          * Create table in {@link SQLiteDatabase}.
          *
@@ -310,9 +332,97 @@ public final class DataProvider extends ContentProvider {
                     + PLAN_ID + " LONG, " + RULE_ID + " LONG, " + TYPE + " INTEGER, " + DIRECTION
                     + " INTEGER, " + DATE + " LONG, " + AMOUNT + " LONG, " + BILL_AMOUNT
                     + " FLOAT, " + REMOTE + " TEXT, " + ROAMED + " INTEGER, " + COST + " FLOAT, "
-                    + FREE + " FLOAT," + MYNUMBER + " TEXT" + ");");
-            db.execSQL("CREATE INDEX " + TABLE + "_idx on " + TABLE + " (" + ID + "," + PLAN_ID
-                    + "," + DATE + ")");
+                    + FREE + " FLOAT," + MYNUMBER + " TEXT," + REMOTE_NORMALIZED + " TEXT"
+                    + ");");
+            createIndexes(db);
+        }
+
+        /**
+         * Create indexes. Logs are selected by plan (unmatched logs, rerating), by type and
+         * direction (newest log of a kind) and by date (old logs), mostly ordered by date.
+         *
+         * @param db {@link SQLiteDatabase}
+         */
+        static void createIndexes(final SQLiteDatabase db) {
+            Log.i(TAG, "create indexes: " + TABLE);
+            // leading _id, not usable for any query
+            db.execSQL("DROP INDEX IF EXISTS " + TABLE + "_idx");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_plan_idx on " + TABLE + " ("
+                    + PLAN_ID + "," + DATE + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_type_idx on " + TABLE + " ("
+                    + TYPE + "," + DATE + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_type_direction_idx on " + TABLE
+                    + " (" + TYPE + "," + DIRECTION + "," + DATE + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_date_idx on " + TABLE + " ("
+                    + DATE + ")");
+            // logs of edited rules, see RematchScope
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + TABLE + "_rule_idx on " + TABLE + " ("
+                    + RULE_ID + ")");
+        }
+
+        /**
+         * Fill {@link #REMOTE_NORMALIZED} as set in preferences, see
+         * {@link #normalizeRemotes(SQLiteDatabase, boolean, boolean, String)}.
+         *
+         * @param context {@link Context}
+         * @param db      {@link SQLiteDatabase}
+         * @param all     recompute all logs, not only logs without normalized remote part
+         */
+        static void normalizeRemotes(final Context context, final SQLiteDatabase db,
+                final boolean all) {
+            final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+            normalizeRemotes(db, all, p.getBoolean(Preferences.PREFS_STRIP_LEADING_ZEROS, false),
+                    p.getString(Preferences.PREFS_INT_PREFIX, ""));
+        }
+
+        /**
+         * Fill {@link #REMOTE_NORMALIZED}. Logs are read once and updated by id, each distinct
+         * remote part is normalized once. Runs in a single transaction.
+         *
+         * @param db     {@link SQLiteDatabase}
+         * @param all    recompute all logs, not only logs without normalized remote part
+         * @param strip  strip leading zeros
+         * @param prefix international number prefix
+         * @return number of updated logs
+         */
+        static int normalizeRemotes(final SQLiteDatabase db, final boolean all,
+                final boolean strip, final String prefix) {
+            final long ct = SystemClock.elapsedRealtime();
+            String where = REMOTE + " is not null";
+            if (!all) {
+                where += " and " + REMOTE_NORMALIZED + " is null";
+            }
+            final HashMap<String, String> normalized = new HashMap<String, String>();
+            int ret = 0;
+            db.beginTransaction();
+            try {
+                final Cursor c = db.query(TABLE, new String[]{ID, REMOTE}, where, null, null,
+                        null, null);
+                final SQLiteStatement stmt = db.compileStatement(SQL_NORMALIZE_REMOTE);
+                try {
+                    while (c.moveToNext()) {
+                        final String r = c.getString(1);
+                        String n = normalized.get(r);
+                        if (n == null) {
+                            n = RuleMatcher.normalizeRemote(r, strip, prefix);
+                            normalized.put(r, n);
+                        }
+                        stmt.bindString(1, n);
+                        stmt.bindLong(2, c.getLong(0));
+                        stmt.execute();
+                        ++ret;
+                    }
+                } finally {
+                    stmt.close();
+                    c.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            Log.d(TAG, "normalizeRemotes(" + all + "): " + ret + " logs, " + normalized.size()
+                    + " remotes", ct);
+            return ret;
         }
 
         /**
@@ -519,7 +629,792 @@ public final class DataProvider extends ContentProvider {
         }
 
         /** Hide constructor. */
-        private SipCall() {
+        private SipCall() {
+            // nothing here.
+        }
+    }
+
+    /**
+     * Running totals of {@link RuleMatcher} per plan and bill period. A row holds the sum of all
+     * matched logs in this bill period. Missing rows are unknown, unless the table is marked as
+     * complete.
+     *
+     * @author flx
+     */
+    public static final class PlanTotals {
+
+        /** Table name. */
+        public static final String TABLE = "plan_totals";
+
+        /** Index in projection: plan id. */
+        public static final int INDEX_PLAN_ID = 0;
+        /** Index in projection: start of bill period. */
+        public static final int INDEX_BILLDAY = 1;
+        /** Index in projection: billed amount. */
+        public static final int INDEX_BILLED_AMOUNT = 2;
+        /** Index in projection: cost. */
+        public static final int INDEX_COST = 3;
+
+        /** Plan id. */
+        public static final String PLAN_ID = "_plan_id";
+        /** Start of bill period. */
+        public static final String BILLDAY = "_billday";
+        /** Billed amount. */
+        public static final String BILLED_AMOUNT = "_billed_amount";
+        /** Cost. */
+        public static final String COST = "_cost";
+
+        /** Projection used for query. */
+        public static final String[] PROJECTION = new String[]{PLAN_ID, BILLDAY, BILLED_AMOUNT,
+                COST};
+
+        /** Plan id of the row marking the table as complete. */
+        private static final int COMPLETE = NO_ID;
+
+        /** Content {@link Uri}. */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/plantotals");
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a list.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.ub0r.plantotals";
+
+        /**
+         * Create table in {@link SQLiteDatabase}.
+         *
+         * @param db {@link SQLiteDatabase}
+         */
+        public static void onCreate(final SQLiteDatabase db) {
+            Log.i(TAG, "create table: " + TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+            db.execSQL("CREATE TABLE " + TABLE + " (" + PLAN_ID + " INTEGER, " + BILLDAY
+                    + " LONG, " + BILLED_AMOUNT + " FLOAT, " + COST + " FLOAT, UNIQUE (" + PLAN_ID
+                    + ", " + BILLDAY + ") ON CONFLICT REPLACE);");
+            Checkpoint.onCreate(db);
+        }
+
+        /**
+         * Drop all totals. Call after logs were changed outside of {@link RuleMatcher}. The
+         * table is marked as complete, if no log is assigned to any plan.
+         *
+         * @param db {@link SQLiteDatabase}
+         */
+        static void reset(final SQLiteDatabase db) {
+            Log.d(TAG, "reset plan totals");
+            db.delete(TABLE, null, null);
+            // a run can't be resumed without its totals
+            db.delete(Checkpoint.TABLE, null, null);
+            final Cursor c = db.query(Logs.TABLE, new String[]{Logs.ID}, Logs.PLAN_ID + " >= 0",
+                    null, null, null, null, "1");
+            final boolean complete = c == null || !c.moveToFirst();
+            if (c != null && !c.isClosed()) {
+                c.close();
+            }
+            if (complete) {
+                final ContentValues cv = new ContentValues();
+                cv.put(PLAN_ID, COMPLETE);
+                cv.put(BILLDAY, 0L);
+                db.insert(TABLE, null, cv);
+            }
+            RuleMatcher.invalidateTotals();
+        }
+
+        /**
+         * Drop totals of some plans. Totals of other plans are kept, but the table is not
+         * marked as complete anymore.
+         *
+         * @param db   {@link SQLiteDatabase}
+         * @param pids plans' ids, like "1,2"
+         */
+        static void reset(final SQLiteDatabase db, final String pids) {
+            Log.d(TAG, "reset plan totals: " + pids);
+            db.delete(TABLE, PLAN_ID + " in (" + pids + ") OR " + PLAN_ID + "=" + COMPLETE, null);
+            RuleMatcher.invalidateTotals();
+        }
+
+        /**
+         * Get totals of a bill period.
+         *
+         * @param cr      {@link ContentResolver}
+         * @param planid  plan's id
+         * @param billday start of bill period
+         * @return {billed amount, cost}; null if unknown
+         */
+        public static float[] getTotals(final ContentResolver cr, final long planid,
+                final long billday) {
+            final Cursor c = cr.query(CONTENT_URI, PROJECTION, "(" + PLAN_ID + "=? AND " + BILLDAY
+                    + "=?) OR " + PLAN_ID + "=" + COMPLETE, new String[]{String.valueOf(planid),
+                    String.valueOf(billday)}, PLAN_ID + " DESC");
+            float[] ret = null;
+            if (c != null && c.moveToFirst()) {
+                if (c.getLong(INDEX_PLAN_ID) == planid) {
+                    ret = new float[]{c.getFloat(INDEX_BILLED_AMOUNT), c.getFloat(INDEX_COST)};
+                } else {
+                    ret = new float[]{0f, 0f};
+                }
+            }
+            if (c != null && !c.isClosed()) {
+                c.close();
+            }
+            return ret;
+        }
+
+        /** Hide constructor. */
+        private PlanTotals() {
+            // nothing here.
+        }
+    }
+
+    /**
+     * Checkpoint of an unfinished {@link RuleMatcher} run: the last log saved. It is written
+     * within the same transaction as the matched logs and {@link PlanTotals} and dropped with
+     * {@link PlanTotals}.
+     *
+     * @author flx
+     */
+    public static final class Checkpoint {
+
+        /** Table name. */
+        public static final String TABLE = "checkpoint";
+
+        /** Index in projection: log id. */
+        public static final int INDEX_LOG_ID = 0;
+        /** Index in projection: log's date. */
+        public static final int INDEX_DATE = 1;
+        /** Index in projection: number of logs saved. */
+        public static final int INDEX_DONE = 2;
+        /** Index in projection: number of logs in run. */
+        public static final int INDEX_COUNT = 3;
+
+        /** ID, there is a single row only. */
+        public static final String ID = "_id";
+        /** Id of last saved log. */
+        public static final String LOG_ID = "_log_id";
+        /** Date of last saved log. */
+        public static final String DATE = "_date";
+        /** Number of logs saved. */
+        public static final String DONE = "_done";
+        /** Number of logs in run. */
+        public static final String COUNT = "_count";
+
+        /** Projection used for query. */
+        public static final String[] PROJECTION = new String[]{LOG_ID, DATE, DONE, COUNT};
+
+        /** Id of the single row. */
+        static final int ROW = 1;
+
+        /** Content {@link Uri}. */
+        public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/checkpoint");
+        /**
+         * The MIME type of {@link #CONTENT_URI} providing a list.
+         */
+        public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.ub0r.checkpoint";
+
+        /**
+         * Create table in {@link SQLiteDatabase}.
+         *
+         * @param db {@link SQLiteDatabase}
+         */
+        public static void onCreate(final SQLiteDatabase db) {
+            Log.i(TAG, "create table: " + TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+            db.execSQL("CREATE TABLE " + TABLE + " (" + ID + " INTEGER PRIMARY KEY ON CONFLICT "
+                    + "REPLACE, " + LOG_ID + " LONG, " + DATE + " LONG, " + DONE + " INTEGER, "
+                    + COUNT + " INTEGER);");
+        }
+
+        /**
+         * Get the checkpoint.
+         *
+         * @param cr {@link ContentResolver}
+         * @return {log id, date, done, count}; null if there is no unfinished run
+         */
+        public static long[] get(final ContentResolver cr) {
+            final Cursor c = cr.query(CONTENT_URI, PROJECTION, null, null, null);
+            long[] ret = null;
+            if (c != null && c.moveToFirst()) {
+                ret = new long[]{c.getLong(INDEX_LOG_ID), c.getLong(INDEX_DATE),
+                        c.getLong(INDEX_DONE), c.getLong(INDEX_COUNT)};
+            }
+            if (c != null && !c.isClosed()) {
+                c.close();
+            }
+            return ret;
+        }
+
+        /** Hide constructor. */
+        private Checkpoint() {
+            // nothing here.
+        }
+    }
+
+    /**
+     * Plans summed up by other plans. Mirrors {@link Plans#MERGED_PLANS} and
+     * {@link Plans#BILLPERIOD_ID} as one row per pair, so that sums can be joined to the plans
+     * they are summed up by.
+     *
+     * @author flx
+     */
+    public static final class PlanMerges {
+
+        /** Table name. */
+        public static final String TABLE = "plan_merges";
+
+        /**
+         * Id of summing plan. Each plan is summing up the logs of itself, all plans merged into
+         * it and for bill periods all plans in this bill period and all plans merged into them.
+         */
+        public static final String PLAN_ID = "_plan_id";
+        /** Id of summed plan. */
+        public static final String MERGED_PLAN_ID = "_merged_plan_id";
+
+        /**
+         * Create table in {@link SQLiteDatabase}.
+         *
+         * @param db {@link SQLiteDatabase}
+         */
+        public static void onCreate(final SQLiteDatabase db) {
+            Log.i(TAG, "create table: " + TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+            db.execSQL("CREATE TABLE " + TABLE + " (" + PLAN_ID + " INTEGER, " + MERGED_PLAN_ID
+                    + " INTEGER, UNIQUE (" + PLAN_ID + ", " + MERGED_PLAN_ID
+                    + ") ON CONFLICT IGNORE);");
+            db.execSQL("CREATE INDEX " + TABLE + "_merged_idx on " + TABLE + " ("
+                    + MERGED_PLAN_ID + ")");
+        }
+
+        /**
+         * Fill the table from {@link Plans#MERGED_PLANS} and {@link Plans#BILLPERIOD_ID}. Call
+         * after adding or removing plans or changing one of them.
+         *
+         * @param db {@link SQLiteDatabase}
+         */
+        static void rebuild(final SQLiteDatabase db) {
+            final Cursor c = db.query(Plans.TABLE, new String[]{Plans.ID, Plans.TYPE,
+                    Plans.BILLPERIOD_ID, Plans.MERGED_PLANS}, null, null, null, null, null);
+            // plan -> plans merged into it, including itself
+            final HashMap<Long, HashSet<Long>> merges = new HashMap<Long, HashSet<Long>>();
+            // bill period -> plans in it
+            final HashMap<Long, ArrayList<Long>> members = new HashMap<Long, ArrayList<Long>>();
+            final HashSet<Long> billperiods = new HashSet<Long>();
+            if (c != null) {
+                while (c.moveToNext()) {
+                    final long pid = c.getLong(0);
+                    final HashSet<Long> merged = new HashSet<Long>();
+                    merged.add(pid);
+                    if (!c.isNull(3)) {
+                        for (String s : c.getString(3).split(",")) {
+                            final long mid = Utils.parseLong(s, -1L);
+                            if (mid >= 0L) {
+                                merged.add(mid);
+                            }
+                        }
+                    }
+                    merges.put(pid, merged);
+                    if (c.getInt(1) == TYPE_BILLPERIOD) {
+                        billperiods.add(pid);
+                    } else if (!c.isNull(2)) {
+                        final long bid = c.getLong(2);
+                        ArrayList<Long> l = members.get(bid);
+                        if (l == null) {
+                            l = new ArrayList<Long>();
+                            members.put(bid, l);
+                        }
+                        l.add(pid);
+                    }
+                }
+                c.close();
+            }
+            db.beginTransaction();
+            try {
+                db.delete(TABLE, null, null);
+                final SQLiteStatement stmt = db.compileStatement("INSERT INTO " + TABLE + " ("
+                        + PLAN_ID + ", " + MERGED_PLAN_ID + ") VALUES (?, ?)");
+                try {
+                    for (Map.Entry<Long, HashSet<Long>> e : merges.entrySet()) {
+                        final long pid = e.getKey();
+                        final HashSet<Long> summed = new HashSet<Long>(e.getValue());
+                        final ArrayList<Long> l = members.get(pid);
+                        if (l != null && billperiods.contains(pid)) {
+                            for (Long mid : l) {
+                                summed.addAll(merges.get(mid));
+                            }
+                        }
+                        for (Long mid : summed) {
+                            stmt.bindLong(1, pid);
+                            stmt.bindLong(2, mid);
+                            stmt.executeInsert();
+                        }
+                    }
+                } finally {
+                    stmt.close();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        /** Hide constructor. */
+        private PlanMerges() {
+            // nothing here.
+        }
+    }
+
+    /**
+     * Sums of matched logs per plan, bill period and type of log. Rows are keyed by the plan a
+     * log is billed in and the start of this plan's bill period at the log's date. They are
+     * updated within the same transaction as the logs, together with {@link PlanDays}.
+     *
+     * @author flx
+     */
+    public static final class PlanSums {
+
+        /** Table name. */
+        public static final String TABLE = "plan_sums";
+
+        /** Plan id. */
+        public static final String PLAN_ID = "_plan_id";
+        /** Start of bill period; 0 for plans without bill period. */
+        public static final String BILLDAY = "_billday";
+        /** Type of logs. */
+        public static final String TYPE = "_type";
+        /** Number of logs. */
+        public static final String COUNT = "_count";
+        /** Billed amount. */
+        public static final String BILLED_AMOUNT = "_billed_amount";
+        /** Cost. */
+        public static final String COST = "_cost";
+        /** Free cost. */
+        public static final String FREE = "_free";
+
+        /** Projection of logs used for summing up. */
+        private static final String[] PROJECTION_LOGS = new String[]{Logs.PLAN_ID, Logs.DATE,
+                Logs.TYPE, Logs.AMOUNT, Logs.BILL_AMOUNT, Logs.COST, Logs.FREE};
+        /** Projection of {@link PlanDays} used for summing up. */
+        private static final String[] PROJECTION_DAYS = new String[]{PlanDays.PLAN_ID,
+                PlanDays.DAY, PlanDays.TYPE, PlanDays.COUNT, PlanDays.BILLED_AMOUNT,
+                PlanDays.COST, PlanDays.FREE};
+
+        /**
+         * Create table in {@link SQLiteDatabase}.
+         *
+         * @param db {@link SQLiteDatabase}
+         */
+        public static void onCreate(final SQLiteDatabase db) {
+            Log.i(TAG, "create table: " + TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+            db.execSQL("CREATE TABLE " + TABLE + " (" + PLAN_ID + " INTEGER, " + BILLDAY
+                    + " LONG, " + TYPE + " INTEGER, " + COUNT + " INTEGER, " + BILLED_AMOUNT
+                    + " FLOAT, " + COST + " FLOAT, " + FREE + " FLOAT, UNIQUE (" + PLAN_ID + ", "
+                    + BILLDAY + ", " + TYPE + ") ON CONFLICT IGNORE);");
+        }
+
+        /**
+         * Check if an update of logs changes their sums.
+         *
+         * @param values {@link ContentValues} of {@link Logs}
+         * @return true, if plan, date, type, amount or billing of logs is changed
+         */
+        static boolean isAffected(final ContentValues values) {
+            return values != null && (values.containsKey(Logs.PLAN_ID)
+                    || values.containsKey(Logs.DATE) || values.containsKey(Logs.TYPE)
+                    || values.containsKey(Logs.AMOUNT) || values.containsKey(Logs.BILL_AMOUNT)
+                    || values.containsKey(Logs.COST) || values.containsKey(Logs.FREE));
+        }
+
+        /**
+         * Add or subtract matched logs to their sums and {@link PlanDays}.
+         *
+         * @param db            {@link SQLiteDatabase}
+         * @param selection     selection of logs
+         * @param selectionArgs selection arguments
+         * @param sign          1 for adding logs, -1 for subtracting them
+         */
+        static void update(final SQLiteDatabase db, final String selection,
+                final String[] selectionArgs, final int sign) {
+            final Cursor c = db.query(Logs.TABLE, PROJECTION_LOGS,
+                    DbUtils.sqlAnd(Logs.PLAN_ID + " >= 0", selection), selectionArgs, null, null,
+                    null);
+            if (c == null) {
+                return;
+            }
+            final Accumulator a = new Accumulator(db);
+            if (c.moveToFirst()) {
+                do {
+                    a.add(c.getLong(0), c.getLong(1), c.getInt(2), c.getLong(3), c.getFloat(4),
+                            c.getFloat(5), c.getFloat(6), sign);
+                } while (c.moveToNext());
+            }
+            c.close();
+            a.apply(db);
+        }
+
+        /**
+         * Sum up {@link PlanDays} into bill periods again. Call after bill periods were changed.
+         * Sums of deleted old logs are kept.
+         *
+         * @param db {@link SQLiteDatabase}
+         */
+        static void rebuild(final SQLiteDatabase db) {
+            Log.d(TAG, "rebuild plan sums");
+            db.beginTransaction();
+            try {
+                db.delete(TABLE, null, null);
+                final Cursor c = db.query(PlanDays.TABLE, PROJECTION_DAYS, null, null, null,
+                        null, null);
+                final Accumulator a = new Accumulator(db);
+                final TimeZone tz = TimeZone.getDefault();
+                if (c != null && c.moveToFirst()) {
+                    do {
+                        a.addPeriod(c.getLong(0), PlanDays.getStart(tz, c.getLong(1)),
+                                c.getInt(2), c.getLong(3),
+                                c.getFloat(4), c.getFloat(5), c.getFloat(6));
+                    } while (c.moveToNext());
+                }
+                if (c != null && !c.isClosed()) {
+                    c.close();
+                }
+                a.apply(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        /**
+         * Sum up all logs again into {@link PlanSums} and {@link PlanDays}. Call after logs
+         * were replaced in bulk. Sums of deleted old logs are lost.
+         *
+         * @param db {@link SQLiteDatabase}
+         */
+        static void rebuildAll(final SQLiteDatabase db) {
+            Log.d(TAG, "rebuild plan sums and days");
+            db.beginTransaction();
+            try {
+                db.delete(TABLE, null, null);
+                db.delete(PlanDays.TABLE, null, null);
+                update(db, null, null, 1);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+
+        /**
+         * Collects changes of sums and days and writes them at once.
+         */
+        static final class Accumulator {
+
+            /** Changes by plan id, bill period and type: {count, billed amount, cost, free}. */
+            private final HashMap<String, double[]> deltas = new HashMap<String, double[]>();
+            /** Changes by plan id, day and type: {count, amount, billed amount, cost, free}. */
+            private final HashMap<String, double[]> days = new HashMap<String, double[]>();
+            /** Bill periods by plan id: {period, start, current start, next start}. */
+            private final HashMap<Long, long[]> periods = new HashMap<Long, long[]>();
+            /** Time zone of days. */
+            private final TimeZone tz = TimeZone.getDefault();
+
+            /**
+             * Default constructor.
+             *
+             * @param db {@link SQLiteDatabase}
+             */
+            Accumulator(final SQLiteDatabase db) {
+                final Cursor c = db.rawQuery("select p." + Plans.ID + ", b." + Plans.BILLPERIOD
+                        + ", b." + Plans.BILLDAY + " from " + Plans.TABLE + " as p join "
+                        + Plans.TABLE + " as b on p." + Plans.BILLPERIOD_ID + "=b." + Plans.ID,
+                        null);
+                if (c == null) {
+                    return;
+                }
+                if (c.moveToFirst()) {
+                    do {
+                        periods.put(c.getLong(0), new long[]{c.getInt(1), c.getLong(2), -1L,
+                                -1L});
+                    } while (c.moveToNext());
+                }
+                c.close();
+            }
+
+            /**
+             * Get start of a plan's bill period.
+             *
+             * @param pid  plan's id
+             * @param date date of log
+             * @return start of bill period; 0 for plans without bill period
+             */
+            private long getBillday(final long pid, final long date) {
+                final long[] p = periods.get(pid);
+                if (p == null) {
+                    return 0L;
+                }
+                if (p[0] == BILLPERIOD_INFINITE) {
+                    return date < p[1] ? 0L : p[1];
+                }
+                if (p[2] < 0L || date < p[2] || date >= p[3]) {
+                    final Calendar now = Calendar.getInstance();
+                    now.setTimeInMillis(date);
+                    final Calendar bd = Plans.getBillDay((int) p[0], p[1], now, false);
+                    final Calendar nbd = Plans.getBillDay((int) p[0], bd, now, true);
+                    if (bd == null || nbd == null) {
+                        return 0L;
+                    }
+                    p[2] = bd.getTimeInMillis();
+                    p[3] = nbd.getTimeInMillis();
+                }
+                return p[2];
+            }
+
+            /**
+             * Get a row of changes.
+             *
+             * @param map  changes
+             * @param k    key
+             * @param size number of columns
+             * @return changes of this key
+             */
+            private static double[] get(final HashMap<String, double[]> map, final String k,
+                    final int size) {
+                double[] d = map.get(k);
+                if (d == null) {
+                    d = new double[size];
+                    map.put(k, d);
+                }
+                return d;
+            }
+
+            /**
+             * Add or subtract a single log.
+             *
+             * @param pid    plan's id
+             * @param date   date of log
+             * @param type   type of log
+             * @param amount amount
+             * @param ba     billed amount
+             * @param cost   cost
+             * @param free   free cost
+             * @param sign   1 for adding the log, -1 for subtracting it
+             */
+            void add(final long pid, final long date, final int type, final long amount,
+                    final float ba, final float cost, final float free, final int sign) {
+                if (pid < 0L) {
+                    return;
+                }
+                addPeriod(pid, date, type, sign, sign * ba, sign * cost, sign * free);
+                final double[] d = get(days, pid + "/" + PlanDays.getDay(tz, date) + "/" + type,
+                        5);
+                d[0] += sign;
+                d[1] += sign * amount;
+                d[2] += sign * ba;
+                d[3] += sign * cost;
+                d[4] += sign * free;
+            }
+
+            /**
+             * Add logs to their bill period only.
+             *
+             * @param pid   plan's id
+             * @param date  date of logs
+             * @param type  type of logs
+             * @param count number of logs
+             * @param ba    billed amount
+             * @param cost  cost
+             * @param free  free cost
+             */
+            void addPeriod(final long pid, final long date, final int type, final long count,
+                    final float ba, final float cost, final float free) {
+                final double[] d = get(deltas, pid + "/" + getBillday(pid, date) + "/" + type,
+                        4);
+                d[0] += count;
+                d[1] += ba;
+                d[2] += cost;
+                d[3] += free;
+            }
+
+            /**
+             * Write changes to a table.
+             *
+             * @param db      {@link SQLiteDatabase}
+             * @param table   table
+             * @param keys    key columns
+             * @param columns value columns
+             * @param changes changes by key
+             */
+            private static void apply(final SQLiteDatabase db, final String table,
+                    final String[] keys, final String[] columns,
+                    final HashMap<String, double[]> changes) {
+                if (changes.isEmpty()) {
+                    return;
+                }
+                final StringBuilder ins = new StringBuilder("INSERT INTO " + table + " (");
+                final StringBuilder upd = new StringBuilder("UPDATE " + table + " SET ");
+                for (int i = 0; i < keys.length; i++) {
+                    ins.append(keys[i]).append(',');
+                }
+                for (int i = 0; i < columns.length; i++) {
+                    ins.append(columns[i]).append(i == columns.length - 1 ? ") VALUES (" : ",");
+                    upd.append(columns[i]).append('=').append(columns[i]).append("+?");
+                    upd.append(i == columns.length - 1 ? " WHERE " : ",");
+                }
+                for (int i = 0; i < keys.length; i++) {
+                    ins.append("?,");
+                    upd.append(keys[i]).append(i == keys.length - 1 ? "=?" : "=? AND ");
+                }
+                for (int i = 0; i < columns.length; i++) {
+                    ins.append(i == columns.length - 1 ? "0)" : "0,");
+                }
+                final SQLiteStatement stmtIns = db.compileStatement(ins.toString());
+                final SQLiteStatement stmtUpd = db.compileStatement(upd.toString());
+                try {
+                    for (String k : changes.keySet()) {
+                        final String[] key = k.split("/");
+                        final double[] d = changes.get(k);
+                        for (int i = 0; i < key.length; i++) {
+                            final long v = Long.parseLong(key[i]);
+                            stmtIns.bindLong(i + 1, v);
+                            stmtUpd.bindLong(d.length + i + 1, v);
+                        }
+                        stmtIns.execute();
+                        stmtUpd.bindLong(1, (long) d[0]);
+                        for (int i = 1; i < d.length; i++) {
+                            stmtUpd.bindDouble(i + 1, d[i]);
+                        }
+                        stmtUpd.execute();
+                    }
+                } finally {
+                    stmtIns.close();
+                    stmtUpd.close();
+                }
+                db.delete(table, columns[0] + "<=0", null);
+                changes.clear();
+            }
+
+            /**
+             * Write all changes. Call within a transaction.
+             *
+             * @param db {@link SQLiteDatabase}
+             */
+            void apply(final SQLiteDatabase db) {
+                apply(db, TABLE, new String[]{PLAN_ID, BILLDAY, TYPE}, new String[]{COUNT,
+                        BILLED_AMOUNT, COST, FREE}, deltas);
+                apply(db, PlanDays.TABLE, new String[]{PlanDays.PLAN_ID, PlanDays.DAY,
+                        PlanDays.TYPE}, new String[]{PlanDays.COUNT, PlanDays.AMOUNT,
+                        PlanDays.BILLED_AMOUNT, PlanDays.COST, PlanDays.FREE}, days);
+            }
+        }
+
+        /** Hide constructor. */
+        private PlanSums() {
+            // nothing here.
+        }
+    }
+
+    /**
+     * Sums of matched logs per plan, day and type of log. Maintained by {@link PlanSums} and
+     * kept when old logs are deleted. A day is the calendar date of the logs in the time zone
+     * they were matched in, see {@link #getDay(TimeZone, long)}. It does not move when the time
+     * zone is changed later on.
+     *
+     * @author flx
+     */
+    public static final class PlanDays {
+
+        /** Table name. */
+        public static final String TABLE = "plan_days";
+
+        /** Plan id. */
+        public static final String PLAN_ID = "_plan_id";
+        /** Day: midnight UTC of the local calendar date. */
+        public static final String DAY = "_day";
+        /** Type of logs. */
+        public static final String TYPE = "_type";
+        /** Number of logs. */
+        public static final String COUNT = "_count";
+        /** Amount. */
+        public static final String AMOUNT = "_amount";
+        /** Billed amount. */
+        public static final String BILLED_AMOUNT = "_billed_amount";
+        /** Cost. */
+        public static final String COST = "_cost";
+        /** Free cost. */
+        public static final String FREE = "_free";
+
+        /**
+         * Create table in {@link SQLiteDatabase}.
+         *
+         * @param db {@link SQLiteDatabase}
+         */
+        public static void onCreate(final SQLiteDatabase db) {
+            Log.i(TAG, "create table: " + TABLE);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE);
+            db.execSQL("CREATE TABLE " + TABLE + " (" + PLAN_ID + " INTEGER, " + DAY + " LONG, "
+                    + TYPE + " INTEGER, " + COUNT + " INTEGER, " + AMOUNT + " LONG, "
+                    + BILLED_AMOUNT + " FLOAT, " + COST + " FLOAT, " + FREE + " FLOAT, UNIQUE ("
+                    + PLAN_ID + ", " + DAY + ", " + TYPE + ") ON CONFLICT IGNORE);");
+        }
+
+        /**
+         * Get the day of a date.
+         *
+         * @param tz   local {@link TimeZone}
+         * @param date date
+         * @return midnight UTC of the calendar date in local time
+         */
+        static long getDay(final TimeZone tz, final long date) {
+            final long d = date + tz.getOffset(date);
+            return d - (d % Utils.DAY_IN_MILLIS + Utils.DAY_IN_MILLIS) % Utils.DAY_IN_MILLIS;
+        }
+
+        /**
+         * Get the start of a day.
+         *
+         * @param tz  local {@link TimeZone}
+         * @param day day as returned by {@link #getDay(TimeZone, long)}
+         * @return first millisecond of this calendar date in local time
+         */
+        static long getStart(final TimeZone tz, final long day) {
+            final Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            utc.setTimeInMillis(day);
+            final Calendar local = Calendar.getInstance(tz);
+            local.clear();
+            local.set(utc.get(Calendar.YEAR), utc.get(Calendar.MONTH),
+                    utc.get(Calendar.DAY_OF_MONTH));
+            return local.getTimeInMillis();
+        }
+
+        /**
+         * Convert days stored as local midnight by database version 41 and 42 into
+         * {@link #getDay(TimeZone, long)}. The current time zone is assumed.
+         *
+         * @param db {@link SQLiteDatabase}
+         */
+        static void convertDays(final SQLiteDatabase db) {
+            Log.d(TAG, "convert plan days");
+            final TimeZone tz = TimeZone.getDefault();
+            final Cursor c = db.query(true, TABLE, new String[]{DAY}, null, null, null, null,
+                    null, null);
+            if (c == null) {
+                return;
+            }
+            final SQLiteStatement stmt = db.compileStatement("UPDATE " + TABLE + " SET " + DAY
+                    + "=? WHERE " + DAY + "=?");
+            try {
+                if (c.moveToFirst()) {
+                    do {
+                        final long d = c.getLong(0);
+                        stmt.bindLong(1, getDay(tz, d));
+                        stmt.bindLong(2, d);
+                        stmt.execute();
+                    } while (c.moveToNext());
+                }
+            } finally {
+                stmt.close();
+                c.close();
+            }
+        }
+
+        /** Hide constructor. */
+        private PlanDays() {
             // nothing here.
         }
     }
@@ -567,17 +1462,17 @@ public final class DataProvider extends ContentProvider {
             public final float cost;
             /** Sum of free cost. */
             public final float free;
-            /** Sum of todays count. */
+            /** Sum of todays count. Calendar day of logs as matched. */
             public final int tdCount;
-            /** Sum of todays billed amount. */
+            /** Sum of todays billed amount. Calendar day of logs as matched. */
             public final float tdBa;
             /** Sum of this bill period's count. */
             public final int bpCount;
             /** Sum of this bill period's billed amount. */
             public final float bpBa;
-            /** Sum of this all time's count. */
+            /** Sum of this all time's count, including the whole day of {@link #now}. */
             public final int atCount;
-            /** Sum of this all time's billed amount. */
+            /** Sum of this all time's billed amount, including the whole day of {@link #now}. */
             public final float atBa;
             /** Has billed amount. */
             public final boolean hasBa;
@@ -911,7 +1806,10 @@ public final class DataProvider extends ContentProvider {
         /** Table name. */
         public static final String TABLE = "plans";
 
-        /** Parameter for query: date. */
+        /**
+         * Parameter for query: date. Today and all-time sums have day granularity: they include
+         * all logs of this date's calendar day, even those later than the date itself.
+         */
         public static final String PARAM_DATE = "date";
         /** Parameter for query: hide zero plans. */
         public static final String PARAM_HIDE_ZERO = "hide_zero";
@@ -978,17 +1876,20 @@ public final class DataProvider extends ContentProvider {
         public static final int INDEX_SUM_BILLDAY = 10;
         /** Index in projection: sum: next bill day. */
         public static final int INDEX_SUM_NEXTBILLDAY = 11;
-        /** Index in projection: sum count for today. */
+        /** Index in projection: sum count for today, read from {@link PlanDays}. */
         public static final int INDEX_SUM_TD_COUNT = 12;
-        /** Index in projection: sum billed amount for today. */
+        /** Index in projection: sum billed amount for today, read from {@link PlanDays}. */
         public static final int INDEX_SUM_TD_BILLED_AMOUNT = 13;
         /** Index in projection: sum count for this bill period. */
         public static final int INDEX_SUM_BP_COUNT = 14;
         /** Index in projection: sum billed amount for this bill period. */
         public static final int INDEX_SUM_BP_BILLED_AMOUNT = 15;
-        /** Index in projection: sum count. */
+        /** Index in projection: sum count up to the end of today, see {@link #PARAM_DATE}. */
         public static final int INDEX_SUM_AT_COUNT = 16;
-        /** Index in projection: sum billed amount. */
+        /**
+         * Index in projection: sum billed amount up to the end of today, see
+         * {@link #PARAM_DATE}.
+         */
         public static final int INDEX_SUM_AT_BILLED_AMOUNT = 17;
         /** Index in projection: sum cost for all plans. */
         public static final int INDEX_SUM_CPP = 18;
@@ -1072,7 +1973,7 @@ public final class DataProvider extends ContentProvider {
         public static final String SUM_BILLDAY = "BILLDAY";
         /** Sum: next bill day. */
         public static final String SUM_NEXTBILLDAY = "NEXTBILLDAY";
-        /** Sum: TODAY. */
+        /** Sum: TODAY, day of {@link PlanDays}. */
         public static final String SUM_TODAY = "TODAY";
         /** Sum: count for this bill period. */
         public static final String SUM_BP_COUNT = "SUM_BP_COUNT";
@@ -1119,67 +2020,25 @@ public final class DataProvider extends ContentProvider {
                 "{" + SUM_NOW + "} AS " + SUM_NOW,
                 "{" + SUM_BILLDAY + "} AS " + SUM_BILLDAY,
                 "{" + SUM_NEXTBILLDAY + "} AS " + SUM_NEXTBILLDAY,
-                "sum(CASE WHEN " + Logs.TABLE + "." + Logs.DATE + " is null or " + Logs.TABLE + "."
-                        + Logs.DATE + "<{" + SUM_TODAY + "} or " + Logs.TABLE + "." + Logs.DATE
-                        + ">{" + SUM_NOW + "} THEN 0 ELSE 1 END) as " + SUM_TD_COUNT,
-                "sum(CASE WHEN " + Logs.TABLE + "." + Logs.DATE + "<{" + SUM_TODAY + "} or "
-                        + Logs.TABLE + "." + Logs.DATE + ">{" + SUM_NOW + "} THEN 0 WHEN " + TABLE
-                        + "." + MERGED_PLANS + " is null or " + TABLE + "." + TYPE + "!="
-                        + TYPE_MIXED + " THEN " + Logs.TABLE + "." + Logs.BILL_AMOUNT + " WHEN  "
-                        + Logs.TABLE + "." + Logs.TYPE + "=" + TYPE_CALL + " THEN " + Logs.TABLE
-                        + "." + Logs.BILL_AMOUNT + "*" + TABLE + "." + MIXED_UNITS_CALL + "/60"
-                        + " WHEN  " + Logs.TABLE + "." + Logs.TYPE + "=" + TYPE_SMS + " THEN "
-                        + Logs.TABLE + "." + Logs.BILL_AMOUNT + "*" + TABLE + "." + MIXED_UNITS_SMS
-                        + " WHEN  " + Logs.TABLE + "." + Logs.TYPE + "=" + TYPE_MMS + " THEN "
-                        + Logs.TABLE + "." + Logs.BILL_AMOUNT + "*" + TABLE + "." + MIXED_UNITS_MMS
-                        + " WHEN  " + Logs.TABLE + "." + Logs.TYPE + "=" + TYPE_DATA + " THEN "
-                        + Logs.TABLE + "." + Logs.BILL_AMOUNT + "*" + TABLE + "."
-                        + MIXED_UNITS_DATA + "/" + CallMeter.BYTE_MB + " ELSE " + Logs.TABLE + "."
-                        + Logs.BILL_AMOUNT + " END) AS " + SUM_TD_BILLED_AMOUNT,
-                "sum(CASE WHEN " + Logs.TABLE + "." + Logs.DATE + " is null or " + Logs.TABLE + "."
-                        + Logs.DATE + "<={" + SUM_BILLDAY + "} or " + Logs.TABLE + "." + Logs.DATE
-                        + ">{" + SUM_NOW + "} THEN 0 ELSE 1 END) as " + SUM_BP_COUNT,
-                "sum(CASE WHEN " + Logs.TABLE + "." + Logs.DATE + "<={" + SUM_BILLDAY + "} or "
-                        + Logs.TABLE + "." + Logs.DATE + ">{" + SUM_NOW + "} THEN 0 WHEN " + TABLE
-                        + "." + MERGED_PLANS + " is null or " + TABLE + "." + TYPE + "!="
-                        + TYPE_MIXED + " THEN " + Logs.TABLE + "." + Logs.BILL_AMOUNT + " WHEN  "
-                        + Logs.TABLE + "." + Logs.TYPE + "=" + TYPE_CALL + " THEN " + Logs.TABLE
-                        + "." + Logs.BILL_AMOUNT + "*" + TABLE + "." + MIXED_UNITS_CALL + "/60"
-                        + " WHEN  " + Logs.TABLE + "." + Logs.TYPE + "=" + TYPE_SMS + " THEN "
-                        + Logs.TABLE + "." + Logs.BILL_AMOUNT + "*" + TABLE + "." + MIXED_UNITS_SMS
-                        + " WHEN  " + Logs.TABLE + "." + Logs.TYPE + "=" + TYPE_MMS + " THEN "
-                        + Logs.TABLE + "." + Logs.BILL_AMOUNT + "*" + TABLE + "." + MIXED_UNITS_MMS
-                        + " WHEN  " + Logs.TABLE + "." + Logs.TYPE + "=" + TYPE_DATA + " THEN "
-                        + Logs.TABLE + "." + Logs.BILL_AMOUNT + "*" + TABLE + "."
-                        + MIXED_UNITS_DATA + "/" + CallMeter.BYTE_MB + " ELSE " + Logs.TABLE + "."
-                        + Logs.BILL_AMOUNT + " END) AS " + SUM_BP_BILLED_AMOUNT,
-                "sum(CASE WHEN " + Logs.TABLE + "." + Logs.DATE + " is null or " + Logs.TABLE + "."
-                        + Logs.DATE + ">{" + SUM_NOW + "} THEN 0 ELSE 1 END) as " + SUM_AT_COUNT,
-                "sum(CASE WHEN " + Logs.TABLE + "." + Logs.DATE + ">{" + SUM_NOW + "} THEN 0 WHEN "
-                        + TABLE + "." + MERGED_PLANS + " is null or " + TABLE + "." + TYPE + "!="
-                        + TYPE_MIXED + " THEN " + Logs.TABLE + "." + Logs.BILL_AMOUNT + " WHEN  "
-                        + Logs.TABLE + "." + Logs.TYPE + "=" + TYPE_CALL + " THEN " + Logs.TABLE
-                        + "." + Logs.BILL_AMOUNT + "*" + TABLE + "." + MIXED_UNITS_CALL + "/60"
-                        + " WHEN  " + Logs.TABLE + "." + Logs.TYPE + "=" + TYPE_SMS + " THEN "
-                        + Logs.TABLE + "." + Logs.BILL_AMOUNT + "*" + TABLE + "." + MIXED_UNITS_SMS
-                        + " WHEN  " + Logs.TABLE + "." + Logs.TYPE + "=" + TYPE_MMS + " THEN "
-                        + Logs.TABLE + "." + Logs.BILL_AMOUNT + "*" + TABLE + "." + MIXED_UNITS_MMS
-                        + " WHEN  " + Logs.TABLE + "." + Logs.TYPE + "=" + TYPE_DATA + " THEN "
-                        + Logs.TABLE + "." + Logs.BILL_AMOUNT + "*" + TABLE + "."
-                        + MIXED_UNITS_DATA + "/" + CallMeter.BYTE_MB + " ELSE " + Logs.TABLE + "."
-                        + Logs.BILL_AMOUNT + " END) AS " + SUM_AT_BILLED_AMOUNT,
+                getDaySum("sum(s." + PlanDays.COUNT + ")", "=", SUM_TODAY) + " AS "
+                        + SUM_TD_COUNT,
+                getDaySum("sum(" + getMixedAmount("s." + PlanDays.BILLED_AMOUNT, "s."
+                        + PlanDays.TYPE) + ")", "=", SUM_TODAY) + " AS " + SUM_TD_BILLED_AMOUNT,
+                getBillPeriodSum("sum(s." + PlanSums.COUNT + ")") + " AS " + SUM_BP_COUNT,
+                getBillPeriodSum("sum(" + getMixedAmount("s." + PlanSums.BILLED_AMOUNT, "s."
+                        + PlanSums.TYPE) + ")") + " AS " + SUM_BP_BILLED_AMOUNT,
+                getDaySum("sum(s." + PlanDays.COUNT + ")", "<=", SUM_TODAY) + " AS "
+                        + SUM_AT_COUNT,
+                getDaySum("sum(" + getMixedAmount("s." + PlanDays.BILLED_AMOUNT, "s."
+                        + PlanDays.TYPE) + ")", "<=", SUM_TODAY) + " AS " + SUM_AT_BILLED_AMOUNT,
                 "(CASE WHEN " + TABLE + "." + TYPE + "=" + TYPE_BILLPERIOD + " THEN (CASE WHEN "
                         + TABLE + "." + COST_PER_PLAN + " is null  THEN 0 ELSE " + TABLE + "."
                         + COST_PER_PLAN + " END) + (select sum(CASE WHEN p." + COST_PER_PLAN
                         + " is null THEN 0 ELSE p." + COST_PER_PLAN + " END) from " + TABLE
                         + " as p where p." + BILLPERIOD_ID + "=" + TABLE + "." + ID + ") ELSE "
                         + TABLE + "." + COST_PER_PLAN + " END) as " + SUM_CPP,
-                "sum(CASE WHEN " + Logs.TABLE + "." + Logs.DATE + "<{" + SUM_BILLDAY + "} or "
-                        + Logs.TABLE + "." + Logs.DATE + ">{" + SUM_NOW + "} THEN 0 ELSE "
-                        + Logs.TABLE + "." + Logs.COST + " END) as " + SUM_COST,
-                "sum(CASE WHEN " + Logs.TABLE + "." + Logs.DATE + "<{" + SUM_BILLDAY + "} or "
-                        + Logs.TABLE + "." + Logs.DATE + ">{" + SUM_NOW + "} THEN 0 ELSE "
-                        + Logs.TABLE + "." + Logs.FREE + " END) as " + SUM_FREE,
+                getBillPeriodSum("sum(s." + PlanSums.COST + ")") + " AS " + SUM_COST,
+                getBillPeriodSum("sum(s." + PlanSums.FREE + ")") + " AS " + SUM_FREE,
                 TABLE + "." + MIXED_UNITS_CALL + " AS " + MIXED_UNITS_CALL,
                 TABLE + "." + MIXED_UNITS_DATA + " AS " + MIXED_UNITS_DATA,
                 TABLE + "." + MIXED_UNITS_MMS + " AS " + MIXED_UNITS_MMS,
@@ -1217,6 +2076,66 @@ public final class DataProvider extends ContentProvider {
          */
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.ub0r.plan";
 
+        /**
+         * Get SQL converting an amount to units of a mixed plan.
+         *
+         * @param amount amount of a log
+         * @param type   type of this log
+         * @return SQL
+         */
+        private static String getMixedAmount(final String amount, final String type) {
+            return "(CASE WHEN " + TABLE + "." + MERGED_PLANS + " is null or " + TABLE + "."
+                    + TYPE + "!=" + TYPE_MIXED + " THEN " + amount + " WHEN " + type + "="
+                    + TYPE_CALL + " THEN " + amount + "*" + TABLE + "." + MIXED_UNITS_CALL
+                    + "/60 WHEN " + type + "=" + TYPE_SMS + " THEN " + amount + "*" + TABLE + "."
+                    + MIXED_UNITS_SMS + " WHEN " + type + "=" + TYPE_MMS + " THEN " + amount + "*"
+                    + TABLE + "." + MIXED_UNITS_MMS + " WHEN " + type + "=" + TYPE_DATA
+                    + " THEN " + amount + "*" + TABLE + "." + MIXED_UNITS_DATA + "/"
+                    + CallMeter.BYTE_MB + " ELSE " + amount + " END)";
+        }
+
+        /**
+         * Get SQL summing up a table of sums for a plan, including all plans summed up by it.
+         * These are looked up in {@link PlanMerges} by its unique index.
+         *
+         * @param sum    aggregate over table as "s"
+         * @param table  {@link PlanSums#TABLE} or {@link PlanDays#TABLE}
+         * @param planId plan id column of table
+         * @param where  selection of rows
+         * @return SQL
+         */
+        private static String getSum(final String sum, final String table, final String planId,
+                final String where) {
+            return "(select ifnull(" + sum + ",0) from " + PlanMerges.TABLE + " as ss join "
+                    + table + " as s on (s." + planId + "=ss." + PlanMerges.MERGED_PLAN_ID
+                    + ") where ss." + PlanMerges.PLAN_ID + "=" + TABLE + "." + ID + " and "
+                    + where + ")";
+        }
+
+        /**
+         * Get SQL summing up {@link PlanSums} of the current bill period for a plan.
+         *
+         * @param sum aggregate over {@link PlanSums} as "s"
+         * @return SQL
+         */
+        private static String getBillPeriodSum(final String sum) {
+            return getSum(sum, PlanSums.TABLE, PlanSums.PLAN_ID, "s." + PlanSums.BILLDAY + ">={"
+                    + SUM_BILLDAY + "} and s." + PlanSums.BILLDAY + "<={" + SUM_NOW + "}");
+        }
+
+        /**
+         * Get SQL summing up {@link PlanDays} for a plan.
+         *
+         * @param sum   aggregate over {@link PlanDays} as "s"
+         * @param op    comparison of days
+         * @param param placeholder to compare days with
+         * @return SQL
+         */
+        private static String getDaySum(final String sum, final String op, final String param) {
+            return getSum(sum, PlanDays.TABLE, PlanDays.PLAN_ID, "s." + PlanDays.DAY + op + "{"
+                    + param + "}");
+        }
+
         /**
          * Create table in {@link SQLiteDatabase}.
          *
@@ -1238,6 +2157,7 @@ public final class DataProvider extends ContentProvider {
                     + MERGED_PLANS + " TEXT" + ");");
             db.execSQL("CREATE INDEX " + TABLE + "_idx on " + TABLE + " (" + ID + "," + ORDER + ","
                     + TYPE + ")");
+            PlanMerges.onCreate(db);
         }
 
         /**
@@ -1301,8 +2221,10 @@ public final class DataProvider extends ContentProvider {
             if (id < 0) {
                 return -1;
             }
-            final Cursor cursor = cr.query(CONTENT_URI, PROJECTION_NAME,
-                    DataProvider.Plans.MERGED_PLANS + " LIKE '%," + id + ",%'", null, null);
+            final Cursor cursor = cr.query(CONTENT_URI, PROJECTION_NAME, ID + "!=" + id + " and "
+                    + TYPE + "!=" + TYPE_BILLPERIOD + " and " + ID + " in (select "
+                    + PlanMerges.PLAN_ID + " from " + PlanMerges.TABLE + " where "
+                    + PlanMerges.MERGED_PLAN_ID + "=" + id + ")", null, null);
             int ret = -1;
             if (cursor.moveToFirst()) {
                 ret = cursor.getInt(0);
@@ -1739,7 +2661,7 @@ public final class DataProvider extends ContentProvider {
         public static final int WHAT_DATA = 3;
 
         /** Table name. */
-        private static final String TABLE = "rules";
+        static final String TABLE = "rules";
 
         /** Index in projection: id. */
         public static final int INDEX_ID = 0;
@@ -1916,7 +2838,7 @@ public final class DataProvider extends ContentProvider {
     public static final class Numbers {
 
         /** Table name. */
-        private static final String TABLE = "numbers";
+        static final String TABLE = "numbers";
 
         /** Index in projection: ID. */
         public static final int INDEX_ID = 0;
@@ -2094,7 +3016,7 @@ public final class DataProvider extends ContentProvider {
     public static final class Hours {
 
         /** Table name. */
-        private static final String TABLE = "hours";
+        static final String TABLE = "hours";
 
         /** Index in projection: ID. */
         public static final int INDEX_ID = 0;
@@ -2326,6 +3248,10 @@ public final class DataProvider extends ContentProvider {
     private static final int PLANS_SUM = 21;
     /** Internal id: single plan outer joined with its logs. */
     private static final int PLANS_SUM_ID = 22;
+    /** Internal id: plan totals. */
+    private static final int PLAN_TOTALS = 23;
+    /** Internal id: checkpoint. */
+    private static final int CHECKPOINT = 24;
 
     /** {@link UriMatcher}. */
     private static final UriMatcher URI_MATCHER;
@@ -2354,6 +3280,8 @@ public final class DataProvider extends ContentProvider {
         URI_MATCHER.addURI(AUTHORITY, "hours/groups/#", HOURS_GROUP_ID);
         URI_MATCHER.addURI(AUTHORITY, "websms", WEBSMS);
         URI_MATCHER.addURI(AUTHORITY, "sipcall", SIPCALL);
+        URI_MATCHER.addURI(AUTHORITY, "plantotals", PLAN_TOTALS);
+        URI_MATCHER.addURI(AUTHORITY, "checkpoint", CHECKPOINT);
     }
 
     /**
@@ -2372,6 +3300,35 @@ public final class DataProvider extends ContentProvider {
         DatabaseHelper(final Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             ctx = context;
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                enableWriteAheadLogging();
+            }
+        }
+
+        /**
+         * Enable write-ahead logging before the database is opened.
+         */
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+        private void enableWriteAheadLogging() {
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        /**
+         * Enable write-ahead logging on API 11-15. Readers do not wait for the writer anymore.
+         * Older APIs keep the rollback journal, writers keep their transactions short there, see
+         * {@link DataProvider#isWriteAheadLogging()}.
+         *
+         * @param db {@link SQLiteDatabase}
+         */
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        @Override
+        public void onOpen(final SQLiteDatabase db) {
+            super.onOpen(db);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                    && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                    && !db.isReadOnly()) {
+                db.enableWriteAheadLogging();
+            }
         }
 
         /**
@@ -2386,6 +3343,10 @@ public final class DataProvider extends ContentProvider {
             Logs.onCreate(db);
             WebSMS.onCreate(db);
             SipCall.onCreate(db);
+            PlanTotals.onCreate(db);
+            PlanTotals.reset(db);
+            PlanSums.onCreate(db);
+            PlanDays.onCreate(db);
             Plans.onCreate(db);
             Rules.onCreate(db);
             Numbers.onCreate(db);
@@ -2448,9 +3409,48 @@ public final class DataProvider extends ContentProvider {
                             throw e;
                         }
                     }
+                case 35:
+                    PlanTotals.onCreate(db);
+                    PlanTotals.reset(db);
+                case 36:
+                    try {
+                        db.execSQL("ALTER TABLE " + Logs.TABLE + " ADD COLUMN "
+                                + Logs.REMOTE_NORMALIZED + " TEXT");
+                    } catch (SQLiteException e) {
+                        if (e.getMessage().contains("duplicate column name:")) {
+                            Log.i(TAG, "ignore existing column", e);
+                        } else {
+                            Log.e(TAG, "error adding column", e);
+                            throw e;
+                        }
+                    }
+                    Logs.normalizeRemotes(this.ctx, db, false);
+                case 37:
+                    Checkpoint.onCreate(db);
+                case 38:
+                    PlanMerges.onCreate(db);
+                case 39:
+                    PlanSums.onCreate(db);
+                case 40:
+                    PlanDays.onCreate(db);
+                    PlanSums.rebuildAll(db);
+                case 41:
+                    Logs.createIndexes(db);
+                case 42:
+                    if (oldVersion > 40) {
+                        // days were rebuilt by case 40 otherwise
+                        PlanDays.convertDays(db);
+                    }
+                case 43:
+                    // plans summed up by bill periods and plans themselves
+                    PlanMerges.rebuild(db);
+                case 44:
+                    Logs.createIndexes(db);
                     break;
                 default:
                     try {
+                        PlanSums.onCreate(db);
+                        PlanDays.onCreate(db);
                         Plans.onUpgrade(this.ctx, db);
                         Rules.onUpgrade(this.ctx, db);
                         Numbers.onUpgrade(this.ctx, db);
@@ -2460,6 +3460,10 @@ public final class DataProvider extends ContentProvider {
                         WebSMS.onUpgrade(this.ctx, db);
                         SipCall.onUpgrade(this.ctx, db);
                         Logs.onUpgrade(this.ctx, db);
+                        Logs.normalizeRemotes(this.ctx, db, false);
+                        PlanTotals.onCreate(db);
+                        PlanTotals.reset(db);
+                        PlanSums.rebuildAll(db);
                     } catch (IOException e) {
                         Log.e(TAG, "IOException on DB Upgrade!", e);
                         throw new IllegalStateException("IOException on DB Upgrade!", e);
@@ -2483,6 +3487,9 @@ public final class DataProvider extends ContentProvider {
     /** {@link DatabaseHelper}. */
     private DatabaseHelper mOpenHelper;
 
+    /** Running {@link DataProvider}, set in onCreate(). */
+    private static DataProvider instance = null;
+
     /** {@link SharedPreferences}. */
     private SharedPreferences mSharedPreferences;
 
@@ -2501,12 +3508,15 @@ public final class DataProvider extends ContentProvider {
         cv.put(DataProvider.Logs.PLAN_ID, DataProvider.NO_ID);
         cv.put(DataProvider.Logs.RULE_ID, DataProvider.NO_ID);
         // reset all but manually set plans
-        db.update(DataProvider.Logs.TABLE, cv, DataProvider.Logs.RULE_ID + " is null or NOT ("
+        final String where = DataProvider.Logs.RULE_ID + " is null or NOT ("
                 + DataProvider.Logs.RULE_ID + " = " + DataProvider.NOT_FOUND + " AND "
-                + DataProvider.Logs.PLAN_ID + " != " + DataProvider.NOT_FOUND + ")", null);
+                + DataProvider.Logs.PLAN_ID + " != " + DataProvider.NOT_FOUND + ")";
+        PlanSums.update(db, where, null, -1);
+        db.update(DataProvider.Logs.TABLE, cv, where, null);
         cv.clear();
         cv.put(DataProvider.Plans.NEXT_ALERT, 0);
         db.update(DataProvider.Plans.TABLE, cv, null, null);
+        PlanTotals.reset(db);
     }
 
     /**
@@ -2610,7 +3620,7 @@ public final class DataProvider extends ContentProvider {
         sb.append("  <country>" + encodeString(country) + "</country>\n");
         sb.append("  <provider>" + encodeString(provider) + "</provider>\n");
         sb.append("  <title>" + encodeString(title) + "</title>\n");
-        final SQLiteDatabase db = new DatabaseHelper(context).getReadableDatabase();
+        final SQLiteDatabase db = getDatabase(context);
         sb.append("  <plans>\n");
         backupRuleSetSub(sb, db, Plans.TABLE, Plans.PROJECTION, null, null, null);
         sb.append("  </plans>\n");
@@ -2624,7 +3634,7 @@ public final class DataProvider extends ContentProvider {
         backupRuleSetSub(sb, db, NumbersGroup.TABLE, NumbersGroup.PROJECTION, null, null, null);
         sb.append("  </numbersgroups>\n");
         sb.append("</ruleset>\n");
-        db.close();
+        releaseDatabase(db);
         return sb.toString();
     }
 
@@ -2640,7 +3650,7 @@ public final class DataProvider extends ContentProvider {
         sb.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
         sb.append("<logs version=\"" + EXPORT_VERSION + "\">\n");
         sb.append("  <title>" + encodeString(title) + "</title>\n");
-        final SQLiteDatabase db = new DatabaseHelper(context).getReadableDatabase();
+        final SQLiteDatabase db = getDatabase(context);
         sb.append("  <logs>\n");
         backupRuleSetSub(sb, db, Logs.TABLE, Logs.PROJECTION, null, null, null);
         sb.append("  </logs>\n");
@@ -2651,7 +3661,7 @@ public final class DataProvider extends ContentProvider {
         backupRuleSetSub(sb, db, SipCall.TABLE, SipCall.PROJECTION, null, null, null);
         sb.append("  </sipcalls>\n");
         sb.append("</logs>\n");
-        db.close();
+        releaseDatabase(db);
         return sb.toString();
     }
 
@@ -2667,12 +3677,12 @@ public final class DataProvider extends ContentProvider {
         sb.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
         sb.append("<numbersgroups version=\"" + EXPORT_VERSION + "\">\n");
         sb.append("  <title>" + encodeString(title) + "</title>\n");
-        final SQLiteDatabase db = new DatabaseHelper(context).getReadableDatabase();
+        final SQLiteDatabase db = getDatabase(context);
         sb.append("  <numbersgroups>\n");
         backupRuleSetSub(sb, db, NumbersGroup.TABLE, NumbersGroup.PROJECTION, null, null, null);
         sb.append("  </numbersgroups>\n");
         sb.append("</numbersgroups>\n");
-        db.close();
+        releaseDatabase(db);
         return sb.toString();
     }
 
@@ -2688,13 +3698,12 @@ public final class DataProvider extends ContentProvider {
         sb.append("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
         sb.append("<hoursgroups version=\"" + EXPORT_VERSION + "\">\n");
         sb.append("  <title>" + encodeString(title) + "</title>\n");
-        final SQLiteDatabase db = new DatabaseHelper(context).getReadableDatabase();
+        final SQLiteDatabase db = getDatabase(context);
         sb.append("  <hoursgroups>\n");
         backupRuleSetSub(sb, db, HoursGroup.TABLE, HoursGroup.PROJECTION, null, null, null);
         sb.append("  </hoursgroups>\n");
         sb.append("</hoursgroups>\n");
-        db.close();
-        db.close();
+        releaseDatabase(db);
         return sb.toString();
     }
 
@@ -2812,17 +3821,17 @@ public final class DataProvider extends ContentProvider {
     }
 
     /**
-     * Import data from XML into {@link SQLiteDatabase}.
+     * Parse a rule set from XML without touching any {@link SQLiteDatabase}.
      *
      * @param context {@link Context}
-     * @param db      {@link SQLiteDatabase}
      * @param xml     XML
-     * @return true, if import was successful
+     * @return {@link ContentValues} by table name
+     * @throws XmlPullParserException XmlPullParserException
+     * @throws IOException            IOException
      */
-    private static boolean importXml(final Context context, final SQLiteDatabase db,
-            final String xml) {
-        Log.d(TAG, "importXml(db, #" + xml.length() + ")");
-        boolean ret = true;
+    static HashMap<String, ArrayList<ContentValues>> parseRuleSet(final Context context,
+            final String xml) throws XmlPullParserException, IOException {
+        Log.d(TAG, "parseRuleSet(#" + xml.length() + ")");
         XmlPullParser parser = Xml.newPullParser();
         String version = null;
         String country = null;
@@ -2830,71 +3839,87 @@ public final class DataProvider extends ContentProvider {
         String title = null;
         HashMap<String, ArrayList<ContentValues>> lists
                 = new HashMap<String, ArrayList<ContentValues>>();
-        try {
-            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
-            parser.setInput(new StringReader(xml));
-            parser.nextTag();
-            parser.require(XmlPullParser.START_TAG, null, null);
-            version = parser.getAttributeValue(null, "version");
-            Log.d(TAG, "xml version: " + version);
-            String base = parser.getName();
-            Log.d(TAG, "xml base element: " + base);
-            while (parser.next() != XmlPullParser.END_TAG || parser.getName() != base) {
-                if (parser.getEventType() != XmlPullParser.START_TAG) {
-                    continue;
-                }
-                String name = parser.getName();
-                ArrayList<ContentValues> list = null;
-                if (name.equals("country")) {
-                    parser.next();
-                    country = decodeString(parser.getText());
-                    Log.d(TAG, "xml country: " + country);
-                    parser.next();
-                } else if (name.equals("provider")) {
-                    parser.next();
-                    provider = decodeString(parser.getText());
-                    Log.d(TAG, "xml provider: " + provider);
-                    parser.next();
-                } else if (name.equals("title")) {
-                    parser.next();
-                    title = decodeString(parser.getText());
-                    Log.d(TAG, "xml title: " + title);
-                    parser.next();
-                } else if (name.equals("plans")) {
-                    list = new ArrayList<ContentValues>();
-                    lists.put(DataProvider.Plans.TABLE, list);
-                    parser.next();
-                } else if (name.equals("rules")) {
-                    list = new ArrayList<ContentValues>();
-                    lists.put(DataProvider.Rules.TABLE, list);
-                    parser.next();
-                } else if (name.equals("hoursgroups")) {
-                    list = new ArrayList<ContentValues>();
-                    lists.put(DataProvider.HoursGroup.TABLE, list);
-                    parser.next();
-                } else if (name.equals("numbersgroups")) {
-                    list = new ArrayList<ContentValues>();
-                    lists.put(DataProvider.NumbersGroup.TABLE, list);
-                    parser.next();
-                } else if (name.equals("logs")) {
-                    list = new ArrayList<ContentValues>();
-                    lists.put(DataProvider.Logs.TABLE, list);
-                    parser.next();
-                } else if (name.equals("websmss")) {
-                    list = new ArrayList<ContentValues>();
-                    lists.put(DataProvider.WebSMS.TABLE, list);
-                    parser.next();
-                } else if (name.equals("sipcalls")) {
-                    list = new ArrayList<ContentValues>();
-                    lists.put(DataProvider.SipCall.TABLE, list);
-                    parser.next();
-                } else {
-                    parser.next();
-                }
-                if (list != null) {
-                    parseValues(context, parser, lists, name, list);
-                }
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, false);
+        parser.setInput(new StringReader(xml));
+        parser.nextTag();
+        parser.require(XmlPullParser.START_TAG, null, null);
+        version = parser.getAttributeValue(null, "version");
+        Log.d(TAG, "xml version: " + version);
+        String base = parser.getName();
+        Log.d(TAG, "xml base element: " + base);
+        while (parser.next() != XmlPullParser.END_TAG || parser.getName() != base) {
+            if (parser.getEventType() != XmlPullParser.START_TAG) {
+                continue;
             }
+            String name = parser.getName();
+            ArrayList<ContentValues> list = null;
+            if (name.equals("country")) {
+                parser.next();
+                country = decodeString(parser.getText());
+                Log.d(TAG, "xml country: " + country);
+                parser.next();
+            } else if (name.equals("provider")) {
+                parser.next();
+                provider = decodeString(parser.getText());
+                Log.d(TAG, "xml provider: " + provider);
+                parser.next();
+            } else if (name.equals("title")) {
+                parser.next();
+                title = decodeString(parser.getText());
+                Log.d(TAG, "xml title: " + title);
+                parser.next();
+            } else if (name.equals("plans")) {
+                list = new ArrayList<ContentValues>();
+                lists.put(DataProvider.Plans.TABLE, list);
+                parser.next();
+            } else if (name.equals("rules")) {
+                list = new ArrayList<ContentValues>();
+                lists.put(DataProvider.Rules.TABLE, list);
+                parser.next();
+            } else if (name.equals("hoursgroups")) {
+                list = new ArrayList<ContentValues>();
+                lists.put(DataProvider.HoursGroup.TABLE, list);
+                parser.next();
+            } else if (name.equals("numbersgroups")) {
+                list = new ArrayList<ContentValues>();
+                lists.put(DataProvider.NumbersGroup.TABLE, list);
+                parser.next();
+            } else if (name.equals("logs")) {
+                list = new ArrayList<ContentValues>();
+                lists.put(DataProvider.Logs.TABLE, list);
+                parser.next();
+            } else if (name.equals("websmss")) {
+                list = new ArrayList<ContentValues>();
+                lists.put(DataProvider.WebSMS.TABLE, list);
+                parser.next();
+            } else if (name.equals("sipcalls")) {
+                list = new ArrayList<ContentValues>();
+                lists.put(DataProvider.SipCall.TABLE, list);
+                parser.next();
+            } else {
+                parser.next();
+            }
+            if (list != null) {
+                parseValues(context, parser, lists, name, list);
+            }
+        }
+        return lists;
+    }
+
+    /**
+     * Import data from XML into {@link SQLiteDatabase}.
+     *
+     * @param context {@link Context}
+     * @param db      {@link SQLiteDatabase}
+     * @param xml     XML
+     * @return true, if import was successful
+     */
+    private static boolean importXml(final Context context, final SQLiteDatabase db,
+            final String xml) {
+        Log.d(TAG, "importXml(db, #" + xml.length() + ")");
+        boolean ret = true;
+        try {
+            final HashMap<String, ArrayList<ContentValues>> lists = parseRuleSet(context, xml);
             // reload lists
             for (String table : lists.keySet()) {
                 ArrayList<ContentValues> list = lists.get(table);
@@ -2903,6 +3928,10 @@ public final class DataProvider extends ContentProvider {
                     reload(db, table, list);
                 }
             }
+            if (lists.containsKey(Plans.TABLE)) {
+                // bill periods may have changed
+                PlanSums.rebuild(db);
+            }
         } catch (Exception e) {
             Log.e(TAG, "error parsing xml", e);
             ret = false;
@@ -2920,6 +3949,12 @@ public final class DataProvider extends ContentProvider {
             // reload cvs into table
             db.delete(table, null, null);
             reload(db, table, values.toArray(new ContentValues[values.size()]));
+            if (Logs.TABLE.equals(table)) {
+                PlanTotals.reset(db);
+                PlanSums.rebuildAll(db);
+            } else if (Plans.TABLE.equals(table)) {
+                PlanSums.rebuild(db);
+            }
         }
         values.clear();
     }
@@ -2977,6 +4012,8 @@ public final class DataProvider extends ContentProvider {
         if (table != null && table.length() > 0) {
             importTable(db, table, cvs);
         }
+        // old exports come without normalized remote part
+        Logs.normalizeRemotes(context, db, false);
     }
 
     /**
@@ -2991,7 +4028,7 @@ public final class DataProvider extends ContentProvider {
             return false;
         }
         boolean ret = false;
-        final SQLiteDatabase db = new DatabaseHelper(context).getWritableDatabase();
+        final SQLiteDatabase db = getDatabase(context);
         if (ruleSet.trim().startsWith("<")) {
             ret = importXml(context, db, ruleSet);
             Preferences.setDefaultPlan(context, false);
@@ -3007,10 +4044,10 @@ public final class DataProvider extends ContentProvider {
                 importData(context, db, lines);
                 Preferences.setDefaultPlan(context, false);
                 RuleMatcher.unmatch(context);
-                return true;
+                ret = true;
             }
         }
-        db.close();
+        releaseDatabase(db);
         return ret;
     }
 
@@ -3222,6 +4259,7 @@ public final class DataProvider extends ContentProvider {
             db.delete(Plans.TABLE, Plans.ID + "=?", getIdMapping(30));
             db.delete(Rules.TABLE, Rules.PLAN_ID + "=?", getIdMapping(30));
         }
+        PlanMerges.rebuild(db);
 
         Preferences.setDefaultPlan(context, true);
     }
@@ -3361,6 +4399,9 @@ public final class DataProvider extends ContentProvider {
                 Log.d(TAG, "reload: " + table + " insert: " + cv);
                 db.insert(table, null, cv);
             }
+            if (Plans.TABLE.equals(table)) {
+                PlanMerges.rebuild(db);
+            }
             db.setTransactionSuccessful();
         } catch (ClassNotFoundException e) {
             Log.e(TAG, "error reloading row: " + table, e);
@@ -3390,6 +4431,9 @@ public final class DataProvider extends ContentProvider {
                 Log.d(TAG, "reload: " + table + " insert: " + cv);
                 db.insert(table, null, cv);
             }
+            if (Plans.TABLE.equals(table)) {
+                PlanMerges.rebuild(db);
+            }
             db.setTransactionSuccessful();
         } catch (SQLException e) {
             Log.e(TAG, "error reloading row: " + table, e);
@@ -3443,17 +4487,27 @@ public final class DataProvider extends ContentProvider {
         String w;
         switch (URI_MATCHER.match(uri)) {
             case LOGS:
-                ret = db.delete(Logs.TABLE, selection, selectionArgs);
+                ret = deleteLogs(db, selection, selectionArgs, Utils.parseBoolean(
+                        uri.getQueryParameter(Logs.PARAM_KEEP_SUMS), false));
                 break;
             case LOGS_ID:
-                ret = db.delete(Logs.TABLE,
+                ret = deleteLogs(db,
                         DbUtils.sqlAnd(Logs.ID + "=" + ContentUris.parseId(uri), selection),
-                        selectionArgs);
+                        selectionArgs, false);
+                break;
+            case PLAN_TOTALS:
+                ret = db.delete(PlanTotals.TABLE, selection, selectionArgs);
+                break;
+            case CHECKPOINT:
+                ret = db.delete(Checkpoint.TABLE, selection, selectionArgs);
                 break;
             case PLANS_ID:
                 ret = db.delete(Plans.TABLE,
                         DbUtils.sqlAnd(Plans.ID + "=" + ContentUris.parseId(uri), selection),
                         selectionArgs);
+                if (ret > 0) {
+                    PlanMerges.rebuild(db);
+                }
                 break;
             case RULES_ID:
                 ret = db.delete(Rules.TABLE,
@@ -3528,6 +4582,10 @@ public final class DataProvider extends ContentProvider {
                 return WebSMS.CONTENT_TYPE;
             case SIPCALL:
                 return SipCall.CONTENT_TYPE;
+            case PLAN_TOTALS:
+                return PlanTotals.CONTENT_TYPE;
+            case CHECKPOINT:
+                return Checkpoint.CONTENT_TYPE;
             case PLANS:
             case PLANS_SUM:
                 return Plans.CONTENT_TYPE;
@@ -3561,6 +4619,11 @@ public final class DataProvider extends ContentProvider {
         }
     }
 
+    /**
+     * {@inheritDoc} All operations are applied in a single transaction, which is not yielded:
+     * {@link RuleMatcher} saves logs, {@link PlanTotals} and {@link Checkpoint} in one batch.
+     * Readers get in between two batches only.
+     */
     @Override
     public ContentProviderResult[] applyBatch(final ArrayList<ContentProviderOperation> operations)
             throws OperationApplicationException {
@@ -3606,15 +4669,118 @@ public final class DataProvider extends ContentProvider {
         return ret;
     }
 
+    /**
+     * Check if a new log is assigned to a plan already.
+     *
+     * @param values {@link ContentValues} of {@link Logs}
+     * @return true, if the log is assigned to a plan
+     */
+    private static boolean isMatched(final ContentValues values) {
+        final Long pid = values.getAsLong(Logs.PLAN_ID);
+        return pid != null && pid >= 0L;
+    }
+
+    /**
+     * Check if an update of logs invalidates {@link PlanTotals}.
+     *
+     * @param values {@link ContentValues} of {@link Logs}
+     * @return true, if logs are unmatched or date or amount is changed
+     */
+    private static boolean isUnmatching(final ContentValues values) {
+        if (values == null) {
+            return false;
+        }
+        final Long pid = values.getAsLong(Logs.PLAN_ID);
+        return (pid != null && pid == NO_ID) || values.containsKey(Logs.AMOUNT)
+                || values.containsKey(Logs.DATE);
+    }
+
+    /**
+     * Delete logs and update {@link PlanSums}, {@link PlanDays} and {@link PlanTotals}.
+     *
+     * @param db            {@link SQLiteDatabase}
+     * @param selection     selection
+     * @param selectionArgs selection arguments
+     * @param keepSums      keep the deleted logs in {@link PlanSums} and {@link PlanDays}
+     * @return number of deleted logs
+     */
+    private static int deleteLogs(final SQLiteDatabase db, final String selection,
+            final String[] selectionArgs, final boolean keepSums) {
+        int ret;
+        db.beginTransaction();
+        try {
+            if (keepSums) {
+                Log.d(TAG, "keep sums of deleted logs");
+            } else if (selection == null) {
+                db.delete(PlanSums.TABLE, null, null);
+                db.delete(PlanDays.TABLE, null, null);
+            } else {
+                PlanSums.update(db, selection, selectionArgs, -1);
+            }
+            ret = db.delete(Logs.TABLE, selection, selectionArgs);
+            if (ret > 0) {
+                PlanTotals.reset(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return ret;
+    }
+
+    /**
+     * Update logs and {@link PlanSums} and {@link PlanTotals}. The selection must select the
+     * same logs after the update, unless they are unmatched.
+     *
+     * @param db            {@link SQLiteDatabase}
+     * @param values        {@link ContentValues}
+     * @param selection     selection
+     * @param selectionArgs selection arguments
+     * @return number of updated logs
+     */
+    private static int updateLogs(final SQLiteDatabase db, final ContentValues values,
+            final String selection, final String[] selectionArgs) {
+        if (!PlanSums.isAffected(values)) {
+            return db.update(Logs.TABLE, values, selection, selectionArgs);
+        }
+        int ret;
+        db.beginTransaction();
+        try {
+            PlanSums.update(db, selection, selectionArgs, -1);
+            ret = db.update(Logs.TABLE, values, selection, selectionArgs);
+            final Long pid = values.getAsLong(Logs.PLAN_ID);
+            if (ret > 0 && (pid == null || pid >= 0L)) {
+                PlanSums.update(db, selection, selectionArgs, 1);
+            }
+            if (ret > 0 && isUnmatching(values)) {
+                PlanTotals.reset(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return ret;
+    }
+
     @Override
     public Uri insert(final Uri uri, final ContentValues values) {
-        Log.d(TAG, "insert(" + uri + "," + values + ")");
         waitForBackup();
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         long ret = -1;
-        switch (URI_MATCHER.match(uri)) {
+        final int uid = URI_MATCHER.match(uri);
+        switch (uid) {
             case LOGS:
                 ret = db.insert(Logs.TABLE, null, values);
+                if (ret >= 0 && isMatched(values)) {
+                    PlanSums.update(db, Logs.ID + "=" + ret, null, 1);
+                    PlanTotals.reset(db);
+                }
+                break;
+            case PLAN_TOTALS:
+                ret = db.insert(PlanTotals.TABLE, null, values);
+                break;
+            case CHECKPOINT:
+                ret = db.insert(Checkpoint.TABLE, null, values);
                 break;
             case WEBSMS:
                 ret = db.insert(WebSMS.TABLE, null, values);
@@ -3634,6 +4800,9 @@ public final class DataProvider extends ContentProvider {
                     }
                 }
                 ret = db.insert(Plans.TABLE, null, values);
+                if (ret >= 0) {
+                    PlanMerges.rebuild(db);
+                }
                 break;
             case RULES:
                 if (!values.containsKey(Rules.ORDER)) {
@@ -3663,14 +4832,12 @@ public final class DataProvider extends ContentProvider {
             default:
                 throw new IllegalArgumentException("Unknown Uri " + uri);
         }
+        Trace.event(Trace.INSERT, uid, ret, 0L);
         if (ret < 0) {
-            Log.d(TAG, "insert(): null");
             return null;
         } else {
             getContext().getContentResolver().notifyChange(uri, null);
-            final Uri u = ContentUris.withAppendedId(uri, ret);
-            Log.d(TAG, "insert(): " + u);
-            return u;
+            return ContentUris.withAppendedId(uri, ret);
         }
     }
 
@@ -3678,16 +4845,98 @@ public final class DataProvider extends ContentProvider {
     public boolean onCreate() {
         mOpenHelper = new DatabaseHelper(this.getContext());
         mSharedPreferences = PreferenceManager.getDefaultSharedPreferences(this.getContext());
+        instance = this;
         return true;
     }
 
+    /**
+     * Get the {@link SQLiteDatabase} of the running {@link DataProvider}, so that all writes in
+     * this process share its single writer connection. Release it with releaseDatabase().
+     *
+     * @param context {@link Context}
+     * @return {@link SQLiteDatabase}
+     */
+    private static SQLiteDatabase getDatabase(final Context context) {
+        final SQLiteDatabase db = getWritableDatabase();
+        if (db != null) {
+            return db;
+        }
+        return new DatabaseHelper(context).getWritableDatabase();
+    }
+
+    /**
+     * Release a {@link SQLiteDatabase} got from getDatabase(). It is closed only if it is not
+     * the one of the running {@link DataProvider}, which is shared with its readers and writers.
+     *
+     * @param db {@link SQLiteDatabase}
+     */
+    private static void releaseDatabase(final SQLiteDatabase db) {
+        final DataProvider p = instance;
+        if (p == null || p.mOpenHelper == null || p.mOpenHelper.getWritableDatabase() != db) {
+            db.close();
+        }
+    }
+
+    /**
+     * Check whether readers may run while a writer's transaction is open. Write-ahead logging is
+     * enabled by {@link DatabaseHelper} on API 11 and later. Readers wait for the writer's
+     * transaction with the rollback journal used before.
+     *
+     * @return true, if write-ahead logging is used
+     */
+    static boolean isWriteAheadLogging() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * Get the writable {@link SQLiteDatabase} of the running {@link DataProvider}. This works
+     * only inside the process running the {@link DataProvider}. Callers need to notify about
+     * changes on their own.
+     *
+     * @return {@link SQLiteDatabase}; null if there is no {@link DataProvider} in this process
+     */
+    static SQLiteDatabase getWritableDatabase() {
+        final DataProvider p = instance;
+        if (p == null || p.mOpenHelper == null) {
+            return null;
+        }
+        p.waitForBackup();
+        return p.mOpenHelper.getWritableDatabase();
+    }
+
     @Override
     public Cursor query(final Uri uri, final String[] projection, final String selection,
             final String[] selectionArgs, final String sortOrder) {
-        Log.d(TAG, "query(" + uri + "," + selection + ")");
         doBackup(this.getContext());
         long ct = SystemClock.elapsedRealtime();
         final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        // Run the query
+        final Cursor c = db.rawQuery(buildQuery(db, uri, projection, selection, sortOrder),
+                selectionArgs);
+        if (Trace.isEnabled()) {
+            Trace.event(Trace.QUERY, URI_MATCHER.match(uri), SystemClock.elapsedRealtime() - ct,
+                    0L);
+        }
+
+        // Tell the cursor what uri to watch, so it knows when its source data
+        // changes
+        c.setNotificationUri(this.getContext().getContentResolver(), uri);
+        return c;
+    }
+
+    /**
+     * Build the SQL run by query().
+     *
+     * @param db         {@link SQLiteDatabase}
+     * @param uri        {@link Uri}
+     * @param projection projection
+     * @param selection  selection
+     * @param sortOrder  sort order
+     * @return SQL
+     */
+    @SuppressWarnings("deprecation")
+    static String buildQuery(final SQLiteDatabase db, final Uri uri, final String[] projection,
+            final String selection, final String sortOrder) {
         SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         final int uid = URI_MATCHER.match(uri);
         String groupBy = null;
@@ -3702,8 +4951,6 @@ public final class DataProvider extends ContentProvider {
         String[] proj = null;
         final int l = projection.length;
 
-        Cursor c = null;
-
         switch (uid) {
             case LOGS_ID:
                 qb.appendWhere(Logs.ID + "=" + ContentUris.parseId(uri));
@@ -3727,6 +4974,12 @@ public final class DataProvider extends ContentProvider {
             case SIPCALL:
                 qb.setTables(SipCall.TABLE);
                 break;
+            case PLAN_TOTALS:
+                qb.setTables(PlanTotals.TABLE);
+                break;
+            case CHECKPOINT:
+                qb.setTables(Checkpoint.TABLE);
+                break;
             case PLANS_ID:
                 qb.appendWhere(Plans.ID + "=" + ContentUris.parseId(uri));
             case PLANS:
@@ -3754,15 +5007,10 @@ public final class DataProvider extends ContentProvider {
                 }
                 final Calendar now = Calendar.getInstance();
                 now.setTimeInMillis(date);
-                final Calendar today = (Calendar) now.clone();
-                today.set(Calendar.MILLISECOND, 0);
-                today.set(Calendar.SECOND, 0);
-                today.set(Calendar.MINUTE, 0);
-                today.set(Calendar.HOUR_OF_DAY, 0);
+                // day of PlanDays, independent of the time zone the logs were matched in
+                final long today = PlanDays.getDay(TimeZone.getDefault(), date);
                 String billps;
                 String nbillps;
-                long lowBp = -1L;
-                long highBp = -1L;
                 Cursor cursor = db.query(Plans.TABLE, new String[]{Plans.ID, Plans.BILLPERIOD,
                         Plans.BILLDAY}, Plans.WHERE_BILLPERIODS, null, null, null, null);
                 if (cursor.moveToFirst()) {
@@ -3776,13 +5024,6 @@ public final class DataProvider extends ContentProvider {
                         final long pid = cursor.getLong(0);
                         final long lbtime = bd.getTimeInMillis();
                         final long hbtime = nbd.getTimeInMillis();
-                        if (hideAllTime && period != BILLPERIOD_INFINITE
-                                && (lowBp < 0L || lowBp > lbtime)) {
-                            lowBp = lbtime;
-                        }
-                        if (period != BILLPERIOD_INFINITE && (highBp < 0L || highBp < hbtime)) {
-                            highBp = hbtime;
-                        }
                         billps += " WHEN " + Plans.TABLE + "." + Plans.ID + "=" + pid + " or "
                                 + Plans.TABLE + "." + Plans.BILLPERIOD_ID + "=" + pid + " THEN "
                                 + lbtime;
@@ -3798,33 +5039,8 @@ public final class DataProvider extends ContentProvider {
                 }
                 cursor.close();
                 cursor = null;
-                String logDate = "";
-                if (lowBp > 0L) {
-                    logDate = Logs.TABLE + "." + Logs.DATE + ">" + lowBp + " and ";
-                }
-                if (highBp > 0L) {
-                    logDate += Logs.TABLE + "." + Logs.DATE + "<" + highBp + " and ";
-                }
-
-                qb.setTables(
-                        Plans.TABLE + " left outer join " + Logs.TABLE + " on (" + logDate + "("
-                                + Logs.TABLE + "." + Logs.PLAN_ID + "=" + Plans.TABLE + "."
-                                + Plans.ID + " or "
-                                + Plans.TABLE + "." + Plans.MERGED_PLANS + " like '%,'||"
-                                + Logs.TABLE + "."
-                                + Logs.PLAN_ID + "||',%' or (" + Plans.TABLE + "." + Plans.TYPE
-                                + "="
-                                + TYPE_BILLPERIOD + " and (" + Logs.TABLE + "." + Logs.PLAN_ID
-                                + " in (select "
-                                + Plans.ID + " from " + Plans.TABLE + " as p where p."
-                                + Plans.BILLPERIOD_ID
-                                + "=" + Plans.TABLE + "." + Plans.ID + ") or 1 in (select 1 from "
-                                + Plans.TABLE + " as pp where pp." + Plans.MERGED_PLANS
-                                + " like '%,'||"
-                                + Logs.TABLE + "." + Logs.PLAN_ID + "||'%,'" + " and pp."
-                                + Plans.BILLPERIOD_ID
-                                + "=" + Plans.TABLE + "." + Plans.ID + ")))))");
-                logDate = null;
+                // all sums are read from PlanSums and PlanDays, see PROJECTION_SUM
+                qb.setTables(Plans.TABLE);
                 groupBy = Plans.TABLE + "." + Plans.ID;
                 if (hideZero || hideNoCost) {
                     having = Plans.TYPE + " in(" + TYPE_BILLPERIOD + "," + TYPE_SPACING + ","
@@ -3861,11 +5077,10 @@ public final class DataProvider extends ContentProvider {
                                 .replace("{" + Plans.SUM_NOW + "}", String.valueOf(date))
                                 .//
                                         replace("{" + Plans.SUM_TODAY + "}",
-                                        String.valueOf(today.getTimeInMillis()));
+                                        String.valueOf(today));
                     } else {
                         proj[i] = projection[i];
                     }
-                    Log.d(TAG, "proj[" + i + "]: " + proj[i]);
                 }
                 if (projection == Plans.PROJECTION_SUM) {
                     if (hideToday) {
@@ -3923,42 +5138,67 @@ public final class DataProvider extends ContentProvider {
         if (proj == null) {
             proj = projection;
         }
-        // Run the query
-        Log.d(TAG, "qb.query() start: " + selection, ct);
-        c = qb.query(db, proj, selection, selectionArgs, groupBy, having, orderBy);
-        Log.d(TAG, "qb.query() end: " + selection, ct);
+        return qb.buildQuery(proj, selection, null, groupBy, having, orderBy, null);
+    }
 
-        // Tell the cursor what uri to watch, so it knows when its source data
-        // changes
-        c.setNotificationUri(this.getContext().getContentResolver(), uri);
-        Log.d(TAG, "query(" + uri + "," + selection + "): " + c.getCount(), ct);
-        return c;
+    /**
+     * Check if an update of plans changes {@link PlanMerges}.
+     *
+     * @param values {@link ContentValues} of {@link Plans}
+     * @return true, if merged plans, bill period or type is changed
+     */
+    private static boolean isChangingMerges(final ContentValues values) {
+        return values.containsKey(Plans.MERGED_PLANS) || values.containsKey(Plans.BILLPERIOD_ID)
+                || values.containsKey(Plans.TYPE);
+    }
+
+    /**
+     * Check if an update of plans moves logs to other bill periods.
+     *
+     * @param values {@link ContentValues} of {@link Plans}
+     * @return true, if bill period or bill day is changed
+     */
+    private static boolean isChangingBillPeriod(final ContentValues values) {
+        return values.containsKey(Plans.BILLPERIOD) || values.containsKey(Plans.BILLDAY)
+                || values.containsKey(Plans.BILLPERIOD_ID);
     }
 
     @Override
     public int update(final Uri uri, final ContentValues values, final String selection,
             final String[] selectionArgs) {
-        Log.d(TAG, "update(" + uri + "," + selection + "," + values + ")");
         waitForBackup();
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         long i;
         int ret = 0;
-        switch (URI_MATCHER.match(uri)) {
+        final int uid = URI_MATCHER.match(uri);
+        switch (uid) {
             case LOGS:
-                ret = db.update(Logs.TABLE, values, selection, selectionArgs);
+                ret = updateLogs(db, values, selection, selectionArgs);
                 break;
             case LOGS_ID:
-                ret = db.update(Logs.TABLE, values,
+                ret = updateLogs(db, values,
                         DbUtils.sqlAnd(Logs.ID + "=" + ContentUris.parseId(uri), selection),
                         selectionArgs);
                 break;
             case PLANS:
                 ret = db.update(Plans.TABLE, values, selection, selectionArgs);
+                if (ret > 0 && isChangingMerges(values)) {
+                    PlanMerges.rebuild(db);
+                }
+                if (ret > 0 && isChangingBillPeriod(values)) {
+                    PlanSums.rebuild(db);
+                }
                 break;
             case PLANS_ID:
                 ret = db.update(Plans.TABLE, values,
                         DbUtils.sqlAnd(Plans.ID + "=" + ContentUris.parseId(uri), selection),
                         selectionArgs);
+                if (ret > 0 && isChangingMerges(values)) {
+                    PlanMerges.rebuild(db);
+                }
+                if (ret > 0 && isChangingBillPeriod(values)) {
+                    PlanSums.rebuild(db);
+                }
                 break;
             case RULES_ID:
                 ret = db.update(Rules.TABLE, values,
@@ -4006,7 +5246,7 @@ public final class DataProvider extends ContentProvider {
         if (ret > 0) {
             getContext().getContentResolver().notifyChange(uri, null);
         }
-        Log.d(TAG, "update(): " + ret);
+        Trace.event(Trace.UPDATE, uid, ret, 0L);
         return ret;
     }
 
@@ -4036,6 +5276,19 @@ public final class DataProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Write all changes from the write-ahead log back to the database file.
+     *
+     * @param db {@link SQLiteDatabase}
+     */
+    private static void checkpoint(final SQLiteDatabase db) {
+        final Cursor c = db.rawQuery("PRAGMA wal_checkpoint(FULL)", null);
+        if (c != null) {
+            c.moveToFirst();
+            c.close();
+        }
+    }
+
     /**
      * Backup {@link SQLiteDatabase} on file system level.
      *
@@ -4065,6 +5318,7 @@ public final class DataProvider extends ContentProvider {
                 final String path = db.getPath();
                 mInBackup = true;
                 try {
+                    checkpoint(db);
                     Log.d(TAG, "cp " + path + " " + path + ".bak");
                     Utils.copyFile(path, path + ".bak");
                     mSharedPreferences.edit()
@@ -4096,6 +5350,9 @@ public final class DataProvider extends ContentProvider {
         if (bak.exists()) {
             try {
                 db.close();
+                // drop write-ahead log of the broken database
+                new File(path + "-wal").delete();
+                new File(path + "-shm").delete();
                 Utils.copyFile(bak.getAbsolutePath(), path);
                 ret = true;
                 Log.w(TAG, "backup restored");
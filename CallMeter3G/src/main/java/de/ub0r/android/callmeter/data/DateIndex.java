@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+
+import de.ub0r.android.lib.Log;
+
+/**
+ * In memory index of {@link DataProvider.WebSMS} or {@link DataProvider.SipCall} rows sorted by
+ * date.
+ *
+ * @author flx
+ */
+final class DateIndex {
+
+    /** Tag for output. */
+    private static final String TAG = "di";
+
+    /** Sorted dates. */
+    private final long[] dates;
+    /** Connector/provider names in lower case, same order as dates. */
+    private final String[] names;
+
+    /**
+     * Load an index.
+     *
+     * @param cr         {@link ContentResolver}
+     * @param uri        {@link Uri} of table
+     * @param projection projection: id, name, date
+     * @param date       date column
+     * @param indexName  index of name in projection
+     * @param indexDate  index of date in projection
+     */
+    DateIndex(final ContentResolver cr, final Uri uri, final String[] projection,
+            final String date, final int indexName, final int indexDate) {
+        final Cursor c = cr.query(uri, projection, null, null, date + " ASC");
+        if (c != null && c.moveToFirst()) {
+            final int l = c.getCount();
+            dates = new long[l];
+            names = new String[l];
+            int i = 0;
+            do {
+                dates[i] = c.getLong(indexDate);
+                final String s = c.getString(indexName);
+                names[i] = s == null ? null : s.toLowerCase();
+                ++i;
+            } while (c.moveToNext() && i < l);
+        } else {
+            dates = new long[0];
+            names = new String[0];
+        }
+        if (c != null && !c.isClosed()) {
+            c.close();
+        }
+        Log.d(TAG, "loaded " + uri + ": " + dates.length);
+    }
+
+    /**
+     * Find first entry for a date.
+     *
+     * @param date date
+     * @return index of first entry, -1 if there is none
+     */
+    private int find(final long date) {
+        int low = 0;
+        int high = dates.length - 1;
+        int ret = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final long d = dates[mid];
+            if (d < date) {
+                low = mid + 1;
+            } else {
+                if (d == date) {
+                    ret = mid;
+                }
+                high = mid - 1;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Check for an entry.
+     *
+     * @param date date
+     * @return true, if there is any entry for this date
+     */
+    boolean contains(final long date) {
+        return find(date) >= 0;
+    }
+
+    /**
+     * Check for an entry.
+     *
+     * @param date date
+     * @param name part of name in lower case, like "%name%"
+     * @return true, if there is any entry for this date with matching name
+     */
+    boolean contains(final long date, final String name) {
+        if (name == null || name.length() == 0) {
+            return contains(date);
+        }
+        final int l = dates.length;
+        for (int i = find(date); i >= 0 && i < l && dates[i] == date; i++) {
+            final String s = names[i];
+            if (s != null && s.contains(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,421 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.RemoteException;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+
+import de.ub0r.android.lib.Log;
+
+/**
+ * Writes results of {@link RuleMatcher} back to {@link DataProvider.Logs},
+ * {@link DataProvider.PlanSums}, {@link DataProvider.PlanTotals} and
+ * {@link DataProvider.Checkpoint}.
+ *
+ * @author flx
+ */
+abstract class LogResultWriter {
+
+    /** Tag for output. */
+    private static final String TAG = "lrw";
+
+    /** Where clause for a single log. */
+    private static final String WHERE = DataProvider.Logs.ID + " = ?";
+
+    /** {@link ContentResolver}. */
+    protected final ContentResolver cr;
+    /** Number of rows written since last flush(). */
+    protected int pending = 0;
+
+    /**
+     * Default constructor.
+     *
+     * @param cr0 {@link ContentResolver}
+     */
+    protected LogResultWriter(final ContentResolver cr0) {
+        cr = cr0;
+    }
+
+    /**
+     * Get a {@link LogResultWriter}. Writes directly to {@link SQLiteDatabase} if the
+     * {@link DataProvider} runs in this process.
+     *
+     * @param cr {@link ContentResolver}
+     * @return {@link LogResultWriter}
+     */
+    static LogResultWriter getInstance(final ContentResolver cr) {
+        final SQLiteDatabase db = DataProvider.getWritableDatabase();
+        if (db == null) {
+            return new BatchWriter(cr);
+        } else {
+            return new StatementWriter(cr, db);
+        }
+    }
+
+    /**
+     * Save a matched log.
+     *
+     * @param log  {@link Cursor} pointing to the log as it is saved now
+     * @param pid  plan's id
+     * @param rid  rule's id
+     * @param ba   billed amount
+     * @param cost cost
+     * @param free free cost
+     */
+    abstract void write(final Cursor log, final long pid, final long rid, final float ba,
+            final float cost, final float free);
+
+    /**
+     * Save a log, which did not match any rule.
+     *
+     * @param log {@link Cursor} pointing to the log as it is saved now
+     */
+    abstract void writeNotFound(final Cursor log);
+
+    /**
+     * Save totals of a plan's bill period.
+     *
+     * @param pid     plan's id
+     * @param billday start of bill period
+     * @param ba      billed amount
+     * @param cost    cost
+     */
+    abstract void writeTotals(final long pid, final long billday, final float ba,
+            final float cost);
+
+    /**
+     * Save the checkpoint of the running match. It is committed together with pending logs.
+     *
+     * @param lid   id of last log written
+     * @param date  date of last log written
+     * @param done  number of logs matched in this run
+     * @param count number of logs in this run
+     */
+    abstract void writeCheckpoint(final long lid, final long date, final int done,
+            final int count);
+
+    /**
+     * @return number of rows written since last flush()
+     */
+    int size() {
+        return pending;
+    }
+
+    /**
+     * Save all pending logs.
+     *
+     * @throws OperationApplicationException OperationApplicationException
+     * @throws RemoteException               RemoteException
+     */
+    final void flush() throws OperationApplicationException, RemoteException {
+        if (pending == 0) {
+            return;
+        }
+        final long ct = SystemClock.elapsedRealtime();
+        doFlush();
+        Log.d(TAG, "flush(): " + pending, ct);
+        pending = 0;
+    }
+
+    /**
+     * Save all pending logs.
+     *
+     * @throws OperationApplicationException OperationApplicationException
+     * @throws RemoteException               RemoteException
+     */
+    protected abstract void doFlush() throws OperationApplicationException, RemoteException;
+
+    /**
+     * Abort writing. Pending logs are dropped.
+     */
+    void abort() {
+        pending = 0;
+    }
+
+    /**
+     * Writes logs with {@link ContentProviderOperation}s via
+     * {@link ContentResolver#applyBatch(String, ArrayList)}. {@link DataProvider.PlanSums} are
+     * updated by the {@link DataProvider}.
+     */
+    static final class BatchWriter extends LogResultWriter {
+
+        /** Pending operations. */
+        private final ArrayList<ContentProviderOperation> ops
+                = new ArrayList<ContentProviderOperation>();
+
+        /**
+         * Default constructor.
+         *
+         * @param cr0 {@link ContentResolver}
+         */
+        BatchWriter(final ContentResolver cr0) {
+            super(cr0);
+        }
+
+        @Override
+        void write(final Cursor log, final long pid, final long rid, final float ba,
+                final float cost, final float free) {
+            final long lid = log.getLong(DataProvider.Logs.INDEX_ID);
+            ops.add(ContentProviderOperation.newUpdate(DataProvider.Logs.CONTENT_URI) // .
+                    .withValue(DataProvider.Logs.PLAN_ID, pid) // .
+                    .withValue(DataProvider.Logs.RULE_ID, rid) // .
+                    .withValue(DataProvider.Logs.BILL_AMOUNT, ba) // .
+                    .withValue(DataProvider.Logs.COST, cost) // .
+                    .withValue(DataProvider.Logs.FREE, free) // .
+                    .withSelection(WHERE, new String[]{String.valueOf(lid)}).build());
+            ++pending;
+        }
+
+        @Override
+        void writeNotFound(final Cursor log) {
+            final long lid = log.getLong(DataProvider.Logs.INDEX_ID);
+            ops.add(ContentProviderOperation.newUpdate(DataProvider.Logs.CONTENT_URI) // .
+                    .withValue(DataProvider.Logs.PLAN_ID, DataProvider.NOT_FOUND) // .
+                    .withValue(DataProvider.Logs.RULE_ID, DataProvider.NOT_FOUND) // .
+                    .withSelection(WHERE, new String[]{String.valueOf(lid)}).build());
+            ++pending;
+        }
+
+        @Override
+        void writeTotals(final long pid, final long billday, final float ba, final float cost) {
+            ops.add(ContentProviderOperation.newInsert(DataProvider.PlanTotals.CONTENT_URI) // .
+                    .withValue(DataProvider.PlanTotals.PLAN_ID, pid) // .
+                    .withValue(DataProvider.PlanTotals.BILLDAY, billday) // .
+                    .withValue(DataProvider.PlanTotals.BILLED_AMOUNT, ba) // .
+                    .withValue(DataProvider.PlanTotals.COST, cost).build());
+            ++pending;
+        }
+
+        @Override
+        void writeCheckpoint(final long lid, final long date, final int done,
+                final int count) {
+            ops.add(ContentProviderOperation.newInsert(DataProvider.Checkpoint.CONTENT_URI) // .
+                    .withValue(DataProvider.Checkpoint.ID, DataProvider.Checkpoint.ROW) // .
+                    .withValue(DataProvider.Checkpoint.LOG_ID, lid) // .
+                    .withValue(DataProvider.Checkpoint.DATE, date) // .
+                    .withValue(DataProvider.Checkpoint.DONE, done) // .
+                    .withValue(DataProvider.Checkpoint.COUNT, count).build());
+            ++pending;
+        }
+
+        @Override
+        protected void doFlush() throws OperationApplicationException, RemoteException {
+            cr.applyBatch(DataProvider.AUTHORITY, ops);
+            ops.clear();
+        }
+
+        @Override
+        void abort() {
+            super.abort();
+            ops.clear();
+        }
+    }
+
+    /**
+     * Writes logs with reused {@link SQLiteStatement}s in a single transaction per flush().
+     * Sends a single notification per flush(). The transaction is never yielded, as changes of
+     * {@link DataProvider.PlanSums} are held back until flush(): logs, sums, totals and
+     * checkpoint are committed or dropped together. Readers do not wait for it with
+     * write-ahead logging, batches are kept short by {@link RuleMatcher}.
+     */
+    static final class StatementWriter extends LogResultWriter {
+
+        /** {@link SQLiteDatabase}. */
+        private final SQLiteDatabase db;
+        /** Statement for matched logs. */
+        private SQLiteStatement stmtMatched = null;
+        /** Statement for not matched logs. */
+        private SQLiteStatement stmtNotFound = null;
+        /** Statement for totals. */
+        private SQLiteStatement stmtTotals = null;
+        /** Statement for checkpoint. */
+        private SQLiteStatement stmtCheckpoint = null;
+        /** Changes of {@link DataProvider.PlanSums}. */
+        private DataProvider.PlanSums.Accumulator sums = null;
+
+        /**
+         * Default constructor.
+         *
+         * @param cr0 {@link ContentResolver}
+         * @param db0 {@link SQLiteDatabase}
+         */
+        StatementWriter(final ContentResolver cr0, final SQLiteDatabase db0) {
+            super(cr0);
+            db = db0;
+        }
+
+        /**
+         * Start a transaction if none is running.
+         */
+        private void begin() {
+            if (pending == 0) {
+                db.beginTransaction();
+            }
+            if (stmtMatched == null) {
+                stmtMatched = db.compileStatement("UPDATE " + DataProvider.Logs.TABLE + " SET "
+                        + DataProvider.Logs.PLAN_ID + "=?," + DataProvider.Logs.RULE_ID + "=?,"
+                        + DataProvider.Logs.BILL_AMOUNT + "=?," + DataProvider.Logs.COST + "=?,"
+                        + DataProvider.Logs.FREE + "=? WHERE " + WHERE);
+                stmtNotFound = db.compileStatement("UPDATE " + DataProvider.Logs.TABLE + " SET "
+                        + DataProvider.Logs.PLAN_ID + "=" + DataProvider.NOT_FOUND + ","
+                        + DataProvider.Logs.RULE_ID + "=" + DataProvider.NOT_FOUND + " WHERE "
+                        + WHERE);
+                stmtTotals = db.compileStatement("INSERT INTO " + DataProvider.PlanTotals.TABLE
+                        + " (" + DataProvider.PlanTotals.PLAN_ID + ","
+                        + DataProvider.PlanTotals.BILLDAY + ","
+                        + DataProvider.PlanTotals.BILLED_AMOUNT + ","
+                        + DataProvider.PlanTotals.COST + ") VALUES (?,?,?,?)");
+                stmtCheckpoint = db.compileStatement("INSERT INTO "
+                        + DataProvider.Checkpoint.TABLE + " (" + DataProvider.Checkpoint.ID + ","
+                        + DataProvider.Checkpoint.LOG_ID + "," + DataProvider.Checkpoint.DATE
+                        + "," + DataProvider.Checkpoint.DONE + ","
+                        + DataProvider.Checkpoint.COUNT + ") VALUES ("
+                        + DataProvider.Checkpoint.ROW + ",?,?,?,?)");
+            }
+            if (sums == null) {
+                sums = new DataProvider.PlanSums.Accumulator(db);
+            }
+        }
+
+        /**
+         * Subtract a log from {@link DataProvider.PlanSums} and {@link DataProvider.PlanDays}
+         * as it is saved now.
+         *
+         * @param log {@link Cursor} pointing to the log
+         */
+        private void subtract(final Cursor log) {
+            if (log.isNull(DataProvider.Logs.INDEX_PLAN_ID)) {
+                return;
+            }
+            sums.add(log.getLong(DataProvider.Logs.INDEX_PLAN_ID),
+                    log.getLong(DataProvider.Logs.INDEX_DATE),
+                    log.getInt(DataProvider.Logs.INDEX_TYPE),
+                    log.getLong(DataProvider.Logs.INDEX_AMOUNT),
+                    log.getFloat(DataProvider.Logs.INDEX_BILL_AMOUNT),
+                    log.getFloat(DataProvider.Logs.INDEX_COST),
+                    log.getFloat(DataProvider.Logs.INDEX_FREE), -1);
+        }
+
+        @Override
+        void write(final Cursor log, final long pid, final long rid, final float ba,
+                final float cost, final float free) {
+            begin();
+            final long lid = log.getLong(DataProvider.Logs.INDEX_ID);
+            subtract(log);
+            sums.add(pid, log.getLong(DataProvider.Logs.INDEX_DATE),
+                    log.getInt(DataProvider.Logs.INDEX_TYPE),
+                    log.getLong(DataProvider.Logs.INDEX_AMOUNT), ba, cost, free, 1);
+            final SQLiteStatement s = stmtMatched;
+            s.bindLong(1, pid);
+            s.bindLong(2, rid);
+            s.bindDouble(3, ba);
+            s.bindDouble(4, cost);
+            s.bindDouble(5, free);
+            s.bindLong(6, lid);
+            s.execute();
+            ++pending;
+        }
+
+        @Override
+        void writeNotFound(final Cursor log) {
+            begin();
+            subtract(log);
+            stmtNotFound.bindLong(1, log.getLong(DataProvider.Logs.INDEX_ID));
+            stmtNotFound.execute();
+            ++pending;
+        }
+
+        @Override
+        void writeTotals(final long pid, final long billday, final float ba, final float cost) {
+            begin();
+            final SQLiteStatement s = stmtTotals;
+            s.bindLong(1, pid);
+            s.bindLong(2, billday);
+            s.bindDouble(3, ba);
+            s.bindDouble(4, cost);
+            s.executeInsert();
+            ++pending;
+        }
+
+        @Override
+        void writeCheckpoint(final long lid, final long date, final int done,
+                final int count) {
+            begin();
+            final SQLiteStatement s = stmtCheckpoint;
+            s.bindLong(1, lid);
+            s.bindLong(2, date);
+            s.bindLong(3, done);
+            s.bindLong(4, count);
+            s.executeInsert();
+            ++pending;
+        }
+
+        @Override
+        protected void doFlush() {
+            try {
+                sums.apply(db);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                close();
+            }
+            cr.notifyChange(DataProvider.Logs.CONTENT_URI, null);
+        }
+
+        @Override
+        void abort() {
+            if (pending > 0) {
+                db.endTransaction();
+            }
+            close();
+            super.abort();
+        }
+
+        /**
+         * Release compiled statements.
+         */
+        private void close() {
+            sums = null;
+            if (stmtMatched != null) {
+                stmtMatched.close();
+                stmtMatched = null;
+            }
+            if (stmtNotFound != null) {
+                stmtNotFound.close();
+                stmtNotFound = null;
+            }
+            if (stmtTotals != null) {
+                stmtTotals.close();
+                stmtTotals = null;
+            }
+            if (stmtCheckpoint != null) {
+                stmtCheckpoint.close();
+                stmtCheckpoint = null;
+            }
+        }
+    }
+}
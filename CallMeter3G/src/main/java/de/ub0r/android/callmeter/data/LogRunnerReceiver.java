@@ -136,6 +136,7 @@ public final class LogRunnerReceiver extends BroadcastReceiver {
         cv.put(DataProvider.WebSMS.CONNECTOR, connector);
         cv.put(DataProvider.WebSMS.DATE, date);
         cr.insert(DataProvider.WebSMS.CONTENT_URI, cv);
+        RuleMatcher.invalidateWebSMS();
     }
 
     /**
@@ -162,6 +163,7 @@ public final class LogRunnerReceiver extends BroadcastReceiver {
         cv.put(DataProvider.SipCall.PROVIDER, provider);
         cv.put(DataProvider.SipCall.DATE, date);
         cr.insert(DataProvider.SipCall.CONTENT_URI, cv);
+        RuleMatcher.invalidateSipCall();
     }
 
     /**
@@ -116,6 +116,10 @@ public final class LogRunnerService extends IntentService {
     private static String mynumber = null;
     /** Split messages at 160chars. */
     private static boolean splitAt160 = false;
+    /** Strip leading zeros from remote numbers. */
+    private static boolean stripLeadingZeros = false;
+    /** International number prefix. */
+    private static String intPrefix = "";
 
     /** Ignore logs before. */
     private static long dateStart = 0L;
@@ -472,6 +476,18 @@ public final class LogRunnerService extends IntentService {
         return check;
     }
 
+    /**
+     * Put remote part and its normalized form into a log.
+     *
+     * @param cv     {@link ContentValues}
+     * @param remote remote part
+     */
+    private static void putRemote(final ContentValues cv, final String remote) {
+        cv.put(DataProvider.Logs.REMOTE, remote);
+        cv.put(DataProvider.Logs.REMOTE_NORMALIZED,
+                RuleMatcher.normalizeRemote(remote, stripLeadingZeros, intPrefix));
+    }
+
     /**
      * Run logs: calls.
      *
@@ -535,9 +551,9 @@ public final class LogRunnerService extends IntentService {
                 cv.put(DataProvider.Logs.RULE_ID, DataProvider.NO_ID);
                 cv.put(DataProvider.Logs.TYPE, DataProvider.TYPE_CALL);
                 cv.put(DataProvider.Logs.DATE, l);
-                cv.put(DataProvider.Logs.REMOTE,
-                        DataProvider.Logs.cleanNumber(cursor.getString(idNumber), false));
+                putRemote(cv, DataProvider.Logs.cleanNumber(cursor.getString(idNumber), false));
                 cv.put(DataProvider.Logs.AMOUNT, d);
+                Trace.event(Trace.INGEST, DataProvider.TYPE_CALL, l, d);
                 if (roaming) {
                     cv.put(DataProvider.Logs.ROAMED, 1);
                 }
@@ -614,14 +630,12 @@ public final class LogRunnerService extends IntentService {
                 cv.put(DataProvider.Logs.PLAN_ID, DataProvider.NO_ID);
                 cv.put(DataProvider.Logs.RULE_ID, DataProvider.NO_ID);
                 cv.put(DataProvider.Logs.TYPE, DataProvider.TYPE_SMS);
-                cv.put(DataProvider.Logs.DATE, cursor.getLong(idDate));
-                Log.d(TAG, "date: " + cursor.getLong(idDate));
-                cv.put(DataProvider.Logs.REMOTE,
-                        DataProvider.Logs.cleanNumber(cursor.getString(idAddress), false));
+                final long date = cursor.getLong(idDate);
+                cv.put(DataProvider.Logs.DATE, date);
+                putRemote(cv, DataProvider.Logs.cleanNumber(cursor.getString(idAddress), false));
                 final String body = cursor.getString(idBody);
                 int l = 1;
                 if (!TextUtils.isEmpty(body)) {
-                    Log.d(TAG, "body: " + body.replaceAll("[a-z]", "x").replaceAll("[A-Z]", "X"));
                     if (splitAt160) {
                         l = ((body.length() - 1) / SMS_LENGTH) + 1;
                     } else {
@@ -630,10 +644,10 @@ public final class LogRunnerService extends IntentService {
                         } catch (NullPointerException e) {
                             Log.e(TAG, "error getting length for message: " + body, e);
                         }
-                        Log.d(TAG, "body length: " + l);
                     }
                 }
                 cv.put(DataProvider.Logs.AMOUNT, l);
+                Trace.event(Trace.INGEST, DataProvider.TYPE_SMS, date, l);
                 if (roaming) {
                     cv.put(DataProvider.Logs.ROAMED, 1);
                 }
@@ -702,8 +716,6 @@ public final class LogRunnerService extends IntentService {
                 final ContentValues cv = new ContentValues();
                 final int t = cursor.getInt(idType);
                 final long d = cursor.getLong(idDate);
-                Log.d(TAG, "mms date: " + d);
-                Log.d(TAG, "mms type: " + t);
                 if (t == MMS_IN) {
                     cv.put(DataProvider.Logs.DIRECTION, DataProvider.DIRECTION_IN);
                 } else if (t == MMS_OUT) {
@@ -712,7 +724,6 @@ public final class LogRunnerService extends IntentService {
                     continue;
                 }
                 final int tid = cursor.getInt(idThId);
-                Log.d(TAG, "thread_id: " + tid);
                 if (tid >= 0L) {
                     String n = THREAD_TO_NUMBER.get(tid);
                     if (n == null) {
@@ -729,7 +740,7 @@ public final class LogRunnerService extends IntentService {
                         c.close();
                     }
                     if (n != null) {
-                        cv.put(DataProvider.Logs.REMOTE, n);
+                        putRemote(cv, n);
                     }
                 }
 
@@ -738,6 +749,7 @@ public final class LogRunnerService extends IntentService {
                 cv.put(DataProvider.Logs.TYPE, DataProvider.TYPE_MMS);
                 cv.put(DataProvider.Logs.DATE, fixDate(d));
                 cv.put(DataProvider.Logs.AMOUNT, 1);
+                Trace.event(Trace.INGEST, DataProvider.TYPE_MMS, d, 1L);
                 if (roaming) {
                     cv.put(DataProvider.Logs.ROAMED, 1);
                 }
@@ -763,15 +775,16 @@ public final class LogRunnerService extends IntentService {
     }
 
     /**
-     * Delete old logs to make this app fast.
+     * Delete old logs to make this app fast. Their sums are kept for all time stats.
      *
      * @param cr {@link ContentResolver}
      */
     private static void deleteOldLogs(final ContentResolver cr) {
         Log.d(TAG, "delete old logs: date < " + deleteBefore);
         try {
-            final int ret = cr.delete(DataProvider.Logs.CONTENT_URI, DataProvider.Logs.DATE
-                    + " < ?", new String[]{String.valueOf(deleteBefore)});
+            final int ret = cr.delete(DataProvider.Logs.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(DataProvider.Logs.PARAM_KEEP_SUMS, "true").build(),
+                    DataProvider.Logs.DATE + " < ?", new String[]{String.valueOf(deleteBefore)});
             Log.i(TAG, "deleted old logs from internal database: " + ret);
         } catch (IllegalStateException e) {
             Log.e(TAG, "WTF?", e);
@@ -813,6 +826,8 @@ public final class LogRunnerService extends IntentService {
         dateStart = p.getLong(Preferences.PREFS_DATE_BEGIN, DatePreference.DEFAULT_VALUE);
         deleteBefore = Preferences.getDeleteLogsBefore(p);
         splitAt160 = p.getBoolean(Preferences.PREFS_SPLIT_SMS_AT_160, false);
+        stripLeadingZeros = p.getBoolean(Preferences.PREFS_STRIP_LEADING_ZEROS, false);
+        intPrefix = p.getString(Preferences.PREFS_INT_PREFIX, "");
         final boolean showCallInfo = p.getBoolean(Preferences.PREFS_SHOWCALLINFO, false);
         final boolean askForPlan = p.getBoolean(Preferences.PREFS_ASK_FOR_PLAN, false);
         final String delimiter = p.getString(Preferences.PREFS_DELIMITER, " | ");
@@ -888,7 +903,7 @@ public final class LogRunnerService extends IntentService {
                 && a.equals(TelephonyManager.ACTION_PHONE_STATE_CHANGED)) {
             final Cursor c = cr.query(DataProvider.Logs.CONTENT_URI, DataProvider.Logs.PROJECTION,
                     DataProvider.Logs.TYPE + " = " + DataProvider.TYPE_CALL, null,
-                    DataProvider.Logs.DATE + " DESC");
+                    DataProvider.Logs.DATE + " DESC LIMIT 1");
             if (c != null && c.moveToFirst()) {
                 final long id = c.getLong(DataProvider.Logs.INDEX_ID);
                 final long date = c.getLong(DataProvider.Logs.INDEX_DATE);
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+/**
+ * Trie of number patterns. Used as forward trie for prefixes, as reversed trie for suffixes and
+ * as Aho-Corasick automaton for infixes. Nodes are kept in primitive arrays, matching does not
+ * allocate.
+ *
+ * @author flx
+ */
+final class PatternTrie {
+
+    /** Initial number of nodes. */
+    private static final int INITIAL_CAPACITY = 16;
+    /** Id of root node. */
+    private static final int ROOT = 0;
+    /** No node. */
+    private static final int NONE = -1;
+
+    /** Label of node. */
+    private char[] label;
+    /** First child of node. */
+    private int[] child;
+    /** Next sibling of node. */
+    private int[] sibling;
+    /** Failure link of node, set by compile(). */
+    private int[] fail;
+    /** Some pattern ends at this node. */
+    private boolean[] terminal;
+    /** Number of nodes. */
+    private int size;
+    /** Patterns are added reversed. */
+    private final boolean reversed;
+    /** Failure links are set. */
+    private boolean compiled = false;
+
+    /**
+     * Default Constructor.
+     *
+     * @param reverse add patterns reversed
+     */
+    PatternTrie(final boolean reverse) {
+        reversed = reverse;
+        label = new char[INITIAL_CAPACITY];
+        child = new int[INITIAL_CAPACITY];
+        sibling = new int[INITIAL_CAPACITY];
+        fail = new int[INITIAL_CAPACITY];
+        terminal = new boolean[INITIAL_CAPACITY];
+        size = 0;
+        newNode('\0');
+    }
+
+    /**
+     * @return true, if no pattern was added
+     */
+    boolean isEmpty() {
+        return size == 1 && !terminal[ROOT];
+    }
+
+    /**
+     * Add a pattern.
+     *
+     * @param p     pattern
+     * @param start first char of pattern, inclusive
+     * @param end   last char of pattern, exclusive
+     */
+    void add(final String p, final int start, final int end) {
+        compiled = false;
+        int n = ROOT;
+        if (reversed) {
+            for (int i = end - 1; i >= start; i--) {
+                n = getOrAddChild(n, p.charAt(i));
+            }
+        } else {
+            for (int i = start; i < end; i++) {
+                n = getOrAddChild(n, p.charAt(i));
+            }
+        }
+        terminal[n] = true;
+    }
+
+    /**
+     * Set the failure links. Needs to be called before matchInfix().
+     */
+    void compile() {
+        final int[] queue = new int[size];
+        int head = 0;
+        int tail = 0;
+        fail[ROOT] = ROOT;
+        for (int c = child[ROOT]; c != NONE; c = sibling[c]) {
+            fail[c] = ROOT;
+            queue[tail++] = c;
+        }
+        while (head < tail) {
+            final int u = queue[head++];
+            for (int v = child[u]; v != NONE; v = sibling[v]) {
+                final char c = label[v];
+                int f = fail[u];
+                while (f != ROOT && getChild(f, c) == NONE) {
+                    f = fail[f];
+                }
+                final int g = getChild(f, c);
+                fail[v] = g == NONE ? ROOT : g;
+                terminal[v] |= terminal[fail[v]];
+                queue[tail++] = v;
+            }
+        }
+        compiled = true;
+    }
+
+    /**
+     * Check if any pattern is a prefix of s. Patterns were added with reverse=false.
+     *
+     * @param s {@link String}
+     * @return true if some pattern matches
+     */
+    boolean matchPrefix(final String s) {
+        final int l = s.length();
+        int n = ROOT;
+        for (int i = 0; i < l; i++) {
+            n = getChild(n, s.charAt(i));
+            if (n == NONE) {
+                return false;
+            }
+            if (terminal[n]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if any pattern is a suffix of s. Patterns were added with reverse=true.
+     *
+     * @param s {@link String}
+     * @return true if some pattern matches
+     */
+    boolean matchSuffix(final String s) {
+        int n = ROOT;
+        for (int i = s.length() - 1; i >= 0; i--) {
+            n = getChild(n, s.charAt(i));
+            if (n == NONE) {
+                return false;
+            }
+            if (terminal[n]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if any pattern is contained in s. Patterns were added with reverse=false.
+     *
+     * @param s {@link String}
+     * @return true if some pattern matches
+     */
+    boolean matchInfix(final String s) {
+        if (!compiled) {
+            compile();
+        }
+        final int l = s.length();
+        int n = ROOT;
+        for (int i = 0; i < l; i++) {
+            final char c = s.charAt(i);
+            int nx = getChild(n, c);
+            while (nx == NONE && n != ROOT) {
+                n = fail[n];
+                nx = getChild(n, c);
+            }
+            n = nx == NONE ? ROOT : nx;
+            if (terminal[n]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get child of a node.
+     *
+     * @param n node
+     * @param c label
+     * @return child or NONE
+     */
+    private int getChild(final int n, final char c) {
+        for (int i = child[n]; i != NONE; i = sibling[i]) {
+            if (label[i] == c) {
+                return i;
+            }
+        }
+        return NONE;
+    }
+
+    /**
+     * Get child of a node, create it if it does not exist.
+     *
+     * @param n node
+     * @param c label
+     * @return child
+     */
+    private int getOrAddChild(final int n, final char c) {
+        int ret = getChild(n, c);
+        if (ret == NONE) {
+            ret = newNode(c);
+            sibling[ret] = child[n];
+            child[n] = ret;
+        }
+        return ret;
+    }
+
+    /**
+     * Create a new node.
+     *
+     * @param c label
+     * @return new node
+     */
+    private int newNode(final char c) {
+        if (size == label.length) {
+            final int l = size * 2;
+            final char[] label0 = new char[l];
+            System.arraycopy(label, 0, label0, 0, size);
+            label = label0;
+            child = grow(child, l);
+            sibling = grow(sibling, l);
+            fail = grow(fail, l);
+            final boolean[] terminal0 = new boolean[l];
+            System.arraycopy(terminal, 0, terminal0, 0, size);
+            terminal = terminal0;
+        }
+        final int ret = size++;
+        label[ret] = c;
+        child[ret] = NONE;
+        sibling[ret] = NONE;
+        fail[ret] = ROOT;
+        terminal[ret] = false;
+        return ret;
+    }
+
+    /**
+     * Grow an array.
+     *
+     * @param a array
+     * @param l new length
+     * @return new array
+     */
+    private static int[] grow(final int[] a, final int l) {
+        final int[] ret = new int[l];
+        System.arraycopy(a, 0, ret, 0, a.length);
+        return ret;
+    }
+}
@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+
+import de.ub0r.android.lib.Log;
+import de.ub0r.android.lib.Utils;
+
+/**
+ * Set of logs, which may be matched differently after editing some rules, plans or groups.
+ * Tracks dependencies rule -> plan, rule -> hour/number groups and plan -> parent/merged plans.
+ * Logs matched by an edited rule or by any rule after it are affected. Logs of affected plans are
+ * affected from the bill period of the first affected log onward.
+ *
+ * @author flx
+ */
+final class RematchScope {
+
+    /** Tag for output. */
+    private static final String TAG = "rs";
+
+    /** Logs' columns prefixed with table name. */
+    private static final String LOGS_PLAN_ID = DataProvider.Logs.TABLE + "."
+            + DataProvider.Logs.PLAN_ID;
+    /** Logs' columns prefixed with table name. */
+    private static final String LOGS_RULE_ID = DataProvider.Logs.TABLE + "."
+            + DataProvider.Logs.RULE_ID;
+    /** Logs' columns prefixed with table name. */
+    private static final String LOGS_TYPE = DataProvider.Logs.TABLE + "."
+            + DataProvider.Logs.TYPE;
+    /** Logs' columns prefixed with table name. */
+    private static final String LOGS_DATE = DataProvider.Logs.TABLE + "."
+            + DataProvider.Logs.DATE;
+
+    /** Projection for plans losing logs, query on {@link DataProvider.Logs#SUM_URI}. */
+    static final String[] PROJECTION_LOGS_PLANS = new String[]{LOGS_PLAN_ID};
+    /** Projection for the first affected log. */
+    static final String[] PROJECTION_LOGS_MIN_DATE = new String[]{"min(" + LOGS_DATE + ")"};
+
+    /** Projection for rules. */
+    private static final String[] PROJECTION_RULES = new String[]{DataProvider.Rules.ID,
+            DataProvider.Rules.ORDER, DataProvider.Rules.WHAT, DataProvider.Rules.PLAN_ID,
+            DataProvider.Rules.LIMIT_NOT_REACHED, DataProvider.Rules.INHOURS_ID,
+            DataProvider.Rules.EXHOURS_ID, DataProvider.Rules.INNUMBERS_ID,
+            DataProvider.Rules.EXNUMBERS_ID};
+    /** Projection for plans. */
+    private static final String[] PROJECTION_PLANS = new String[]{DataProvider.Plans.ID,
+            DataProvider.Plans.BILLPERIOD, DataProvider.Plans.BILLDAY,
+            DataProvider.Plans.BILLPERIOD_ID, DataProvider.Plans.MERGED_PLANS};
+
+    /**
+     * A rule's dependencies.
+     */
+    private static final class RuleInfo {
+
+        /** Id. */
+        private long id;
+        /** Order. */
+        private int order;
+        /** Type of logs. */
+        private int type;
+        /** Plan. */
+        private long plan;
+        /** Rule depends on plan's limit. */
+        private boolean limit;
+        /** Hour groups, like ",1,2,". */
+        private String hours;
+        /** Number groups, like ",1,2,". */
+        private String numbers;
+    }
+
+    /**
+     * A plan's dependencies.
+     */
+    private static final class PlanInfo {
+
+        /** Id. */
+        private long id;
+        /** Bill period, if this plan is a bill period. */
+        private int billperiod;
+        /** First bill day, if this plan is a bill period. */
+        private long billday;
+        /** Bill period's plan. */
+        private long billperiodId;
+        /** Plans merged into this plan. */
+        private String merged;
+        /** Plan this plan is merged into. */
+        private long parent = DataProvider.NO_ID;
+    }
+
+    /** All rules. */
+    private final ArrayList<RuleInfo> rules = new ArrayList<RuleInfo>();
+    /** All plans. */
+    private final ArrayList<PlanInfo> plans = new ArrayList<PlanInfo>();
+    /** Order of first affected rule. */
+    private int first = Integer.MAX_VALUE;
+    /** Types of logs affected by rules. */
+    private final HashSet<Integer> types = new HashSet<Integer>();
+    /** Rules affect logs of any type. */
+    private boolean allTypes = false;
+    /** Plans with all logs affected. */
+    private final HashSet<Long> allDates = new HashSet<Long>();
+    /** Scope could not be limited. */
+    private boolean full = false;
+
+    /**
+     * Load rules and plans.
+     *
+     * @param cr {@link ContentResolver}
+     */
+    RematchScope(final ContentResolver cr) {
+        Cursor c = cr.query(DataProvider.Rules.CONTENT_URI, PROJECTION_RULES, null, null,
+                DataProvider.Rules.ORDER);
+        if (c != null && c.moveToFirst()) {
+            do {
+                final RuleInfo r = new RuleInfo();
+                r.id = c.getLong(0);
+                r.order = c.getInt(1);
+                r.type = DataProvider.what2type(c.getInt(2));
+                r.plan = c.getLong(3);
+                r.limit = c.getInt(4) > 0;
+                r.hours = "," + c.getString(5) + "," + c.getString(6) + ",";
+                r.numbers = "," + c.getString(7) + "," + c.getString(8) + ",";
+                rules.add(r);
+            } while (c.moveToNext());
+        }
+        if (c != null && !c.isClosed()) {
+            c.close();
+        }
+        c = cr.query(DataProvider.Plans.CONTENT_URI, PROJECTION_PLANS, null, null, null);
+        if (c != null && c.moveToFirst()) {
+            do {
+                final PlanInfo p = new PlanInfo();
+                p.id = c.getLong(0);
+                p.billperiod = c.getInt(1);
+                p.billday = c.getLong(2);
+                p.billperiodId = c.isNull(3) ? DataProvider.NO_ID : c.getLong(3);
+                p.merged = c.getString(4);
+                plans.add(p);
+            } while (c.moveToNext());
+        }
+        if (c != null && !c.isClosed()) {
+            c.close();
+        }
+        for (PlanInfo p : plans) {
+            if (p.merged == null) {
+                continue;
+            }
+            for (String s : p.merged.split(",")) {
+                final PlanInfo m = getPlan(Utils.parseLong(s, DataProvider.NO_ID));
+                if (m != null) {
+                    m.parent = p.id;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param id rule's id
+     * @return {@link RuleInfo} or null
+     */
+    private RuleInfo getRule(final long id) {
+        for (RuleInfo r : rules) {
+            if (r.id == id) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param id plan's id
+     * @return {@link PlanInfo} or null
+     */
+    private PlanInfo getPlan(final long id) {
+        for (PlanInfo p : plans) {
+            if (p.id == id) {
+                return p;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Add an edited rule. Call before deleting the rule.
+     *
+     * @param rid         rule's id
+     * @param typeChanged rule's type was changed
+     */
+    void addRule(final long rid, final boolean typeChanged) {
+        final RuleInfo r = getRule(rid);
+        if (r == null) {
+            Log.w(TAG, "unknown rule: " + rid);
+            full = true;
+            return;
+        }
+        first = Math.min(first, r.order);
+        types.add(r.type);
+        allTypes |= typeChanged;
+    }
+
+    /**
+     * Add an edited hour group.
+     *
+     * @param gid group's id
+     */
+    void addHoursGroup(final long gid) {
+        final String s = "," + gid + ",";
+        for (RuleInfo r : rules) {
+            if (r.hours.contains(s)) {
+                addRule(r.id, false);
+            }
+        }
+    }
+
+    /**
+     * Add an edited number group.
+     *
+     * @param gid group's id
+     */
+    void addNumbersGroup(final long gid) {
+        final String s = "," + gid + ",";
+        for (RuleInfo r : rules) {
+            if (r.numbers.contains(s)) {
+                addRule(r.id, false);
+            }
+        }
+    }
+
+    /**
+     * Add an edited plan. Call before deleting the plan.
+     *
+     * @param pid     plan's id
+     * @param deleted plan is about to be deleted
+     */
+    void addPlan(final long pid, final boolean deleted) {
+        if (getPlan(pid) == null) {
+            Log.w(TAG, "unknown plan: " + pid);
+            full = true;
+            return;
+        }
+        allDates.add(pid);
+        for (PlanInfo p : plans) {
+            if (p.billperiodId == pid) {
+                allDates.add(p.id);
+            }
+        }
+        if (deleted) {
+            for (RuleInfo r : rules) {
+                if (r.plan == pid) {
+                    addRule(r.id, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true, if scope could not be limited and all logs need to be unmatched
+     */
+    boolean isFull() {
+        return full;
+    }
+
+    /**
+     * @param r {@link RuleInfo}
+     * @return true, if logs matched by this rule are affected
+     */
+    private boolean isAffected(final RuleInfo r) {
+        return r.order >= first && (allTypes || types.contains(r.type));
+    }
+
+    /**
+     * Add parents and merged plans until the set is closed.
+     *
+     * @param set set of plans
+     */
+    private void addFamily(final HashSet<Long> set) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (PlanInfo p : plans) {
+                if (p.parent < 0) {
+                    continue;
+                }
+                if (set.contains(p.id)) {
+                    changed |= set.add(p.parent);
+                } else if (set.contains(p.parent)) {
+                    changed |= set.add(p.id);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return WHERE clause selecting logs matched by affected rules, null if there is none
+     */
+    String getRulesWhere() {
+        if (first == Integer.MAX_VALUE) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder();
+        for (RuleInfo r : rules) {
+            if (isAffected(r)) {
+                if (sb.length() > 0) {
+                    sb.append(",");
+                }
+                sb.append(r.id);
+            }
+        }
+        String ret = LOGS_PLAN_ID + " = " + DataProvider.NOT_FOUND + " OR " + LOGS_RULE_ID
+                + " is null";
+        if (sb.length() > 0) {
+            ret = LOGS_RULE_ID + " in (" + sb + ") OR " + ret;
+        }
+        ret = "(" + ret + ")";
+        if (!allTypes) {
+            final StringBuilder tb = new StringBuilder();
+            for (Integer t : types) {
+                if (tb.length() > 0) {
+                    tb.append(",");
+                }
+                tb.append(t);
+            }
+            ret += " AND " + LOGS_TYPE + " in (" + tb + ")";
+        }
+        return ret;
+    }
+
+    /**
+     * Get the start of a plan's bill period.
+     *
+     * @param pid  plan's id
+     * @param date date within the bill period
+     * @return start of bill period, -1 if there is no limited bill period
+     */
+    private long getBillday(final long pid, final long date) {
+        final PlanInfo p = getPlan(pid);
+        if (p == null) {
+            return -1L;
+        }
+        final PlanInfo bp = getPlan(p.billperiodId);
+        if (bp == null || bp.billperiod == DataProvider.BILLPERIOD_INFINITE) {
+            return -1L;
+        }
+        final Calendar c = DataProvider.Plans.getBillDay(bp.billperiod, bp.billday, date, false);
+        if (c == null) {
+            return -1L;
+        }
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * Get WHERE clause selecting all affected logs. Does not select manually matched logs.
+     *
+     * @param affected   affected plans
+     * @param minDate    date of first log matched by affected rules, Long.MAX_VALUE if none
+     * @param rulesWhere WHERE clause selecting logs matched by affected rules, may be null
+     * @return WHERE clause, null if no log is affected
+     */
+    String getWhere(final HashSet<Long> affected, final long minDate, final String rulesWhere) {
+        final StringBuilder sb = new StringBuilder();
+        final StringBuilder all = new StringBuilder();
+        for (Long pid : affected) {
+            final long bd = minDate == Long.MAX_VALUE || allDates.contains(pid) ? -1L
+                    : getBillday(pid, minDate);
+            if (bd < 0L && !allDates.contains(pid) && minDate == Long.MAX_VALUE) {
+                // no log is moved from or to this plan
+                continue;
+            }
+            if (bd < 0L) {
+                if (all.length() > 0) {
+                    all.append(",");
+                }
+                all.append(pid);
+            } else {
+                sb.append(" OR (").append(LOGS_PLAN_ID).append(" = ").append(pid).append(" AND ")
+                        .append(LOGS_DATE).append(" >= ").append(bd).append(")");
+            }
+        }
+        if (all.length() > 0) {
+            sb.append(" OR ").append(LOGS_PLAN_ID).append(" in (").append(all).append(")");
+        }
+        if (rulesWhere != null) {
+            sb.append(" OR (").append(rulesWhere).append(")");
+        }
+        if (sb.length() == 0) {
+            return null;
+        }
+        return "(" + sb.substring(" OR ".length()) + ") AND (" + LOGS_RULE_ID
+                + " is null or NOT (" + LOGS_RULE_ID + " = " + DataProvider.NOT_FOUND + " AND "
+                + LOGS_PLAN_ID + " != " + DataProvider.NOT_FOUND + "))";
+    }
+
+    /**
+     * Unmatch all affected logs. Does not touch manually matched logs.
+     *
+     * @param cr {@link ContentResolver}
+     * @return number of unmatched logs
+     */
+    int unmatch(final ContentResolver cr) {
+        final long ct = SystemClock.elapsedRealtime();
+        addFamily(allDates);
+        final HashSet<Long> affected = new HashSet<Long>(allDates);
+        long minDate = Long.MAX_VALUE;
+        String rulesWhere = null;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            rulesWhere = getRulesWhere();
+            if (rulesWhere != null) {
+                // plans losing logs
+                Cursor c = cr.query(DataProvider.Logs.SUM_URI, PROJECTION_LOGS_PLANS, rulesWhere,
+                        null, null);
+                if (c != null && c.moveToFirst()) {
+                    do {
+                        affected.add(c.getLong(0));
+                    } while (c.moveToNext());
+                }
+                if (c != null && !c.isClosed()) {
+                    c.close();
+                }
+                c = cr.query(DataProvider.Logs.CONTENT_URI, PROJECTION_LOGS_MIN_DATE, rulesWhere,
+                        null, null);
+                if (c != null && c.moveToFirst() && !c.isNull(0)) {
+                    minDate = Math.min(minDate, c.getLong(0));
+                }
+                if (c != null && !c.isClosed()) {
+                    c.close();
+                }
+                // plans gaining logs
+                for (RuleInfo r : rules) {
+                    if (isAffected(r)) {
+                        affected.add(r.plan);
+                    }
+                }
+            }
+            addFamily(affected);
+            // rules checking the limit of affected plans
+            for (RuleInfo r : rules) {
+                if (r.limit && affected.contains(r.plan) && !isAffected(r)) {
+                    first = Math.min(first, r.order);
+                    types.add(r.type);
+                    changed = true;
+                }
+            }
+        }
+
+        final String where = getWhere(affected, minDate, rulesWhere);
+        if (where == null) {
+            Log.d(TAG, "unmatch(): nothing to do", ct);
+            return 0;
+        }
+        Log.d(TAG, "unmatch(): " + where);
+        final ContentValues cv = new ContentValues();
+        cv.put(DataProvider.Logs.PLAN_ID, DataProvider.NO_ID);
+        cv.put(DataProvider.Logs.RULE_ID, DataProvider.NO_ID);
+        final int ret = cr.update(DataProvider.Logs.CONTENT_URI, cv, where, null);
+
+        if (!affected.isEmpty()) {
+            final StringBuilder pb = new StringBuilder();
+            for (Long pid : affected) {
+                if (pb.length() > 0) {
+                    pb.append(",");
+                }
+                pb.append(pid);
+            }
+            cv.clear();
+            cv.put(DataProvider.Plans.NEXT_ALERT, 0);
+            cr.update(DataProvider.Plans.CONTENT_URI, cv, DataProvider.Plans.ID + " in (" + pb
+                    + ")", null);
+        }
+        Log.d(TAG, "unmatch(): " + ret + " logs, " + affected.size() + " plans", ct);
+        return ret;
+    }
+}
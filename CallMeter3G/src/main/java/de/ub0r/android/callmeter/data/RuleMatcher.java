@@ -20,27 +20,38 @@ package de.ub0r.android.callmeter.data;
 
 import android.app.NotificationManager;
 import android.app.PendingIntent;
-import android.content.ContentProviderOperation;
 import android.content.ContentResolver;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.OperationApplicationException;
 import android.content.SharedPreferences;
 import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.RemoteException;
 import android.preference.PreferenceManager;
 import android.support.v4.app.NotificationCompat;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import java.util.ArrayList;
 import java.util.Calendar;
-import java.util.HashSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import de.ub0r.android.callmeter.CallMeter;
 import de.ub0r.android.callmeter.R;
@@ -59,141 +70,318 @@ public final class RuleMatcher {
     /** Tag for output. */
     private static final String TAG = "rm";
 
-    /** Steps for updating the GUI. */
+    /** Steps for saving logs in low priority mode. */
     private static final int PROGRESS_STEPS = 25;
-    /** Strip leading zeros. */
-    private static boolean stripLeadingZeros = false;
-    /** International number prefix. */
-    private static String intPrefix = "";
-    /** Concat prefix and number without leading zeros at number. */
-    private static boolean zeroPrefix = true;
+    /** Minimal time between two progress updates. */
+    private static final long PROGRESS_MILLIS = 250L;
+    /**
+     * Maximal time between saving two batches of logs with write-ahead logging. A batch is
+     * written in one transaction, which is not yielded: other writers get in between two batches
+     * only.
+     */
+    private static final long BATCH_MILLIS = 1000L;
+    /** Maximal number of logs saved in one batch, see {@link #BATCH_MILLIS}. */
+    private static final int BATCH_SIZE = 500;
+    /**
+     * Maximal time between saving two batches of logs without write-ahead logging. Readers wait
+     * for the writer's transaction then, see {@link DataProvider#isWriteAheadLogging()}.
+     */
+    private static final long BATCH_MILLIS_JOURNAL = 200L;
+    /** Maximal number of logs saved in one batch, see {@link #BATCH_MILLIS_JOURNAL}. */
+    private static final int BATCH_SIZE_JOURNAL = 100;
+    /** Number of logs handed to a thread at once in parallel mode. */
+    private static final int CHUNK_SIZE = 250;
+    /** Maximal number of threads in parallel mode. */
+    private static final int MAX_THREADS = 8;
+    /** Maximal number of log signatures kept in memo. */
+    private static final int MEMO_SIZE = 512;
 
     /**
      * A single Rule.
      *
      * @author flx
      */
-    private static class Rule {
+    static class Rule {
 
         /**
-         * Get the {@link NumbersGroup}.
-         *
-         * @param cr   {@link ContentResolver}
-         * @param gids ids of group
-         * @return {@link NumbersGroup}s
+         * All {@link NumbersGroup}s and {@link HoursGroup}s, loaded with a single query per
+         * table. Each group is shared by all {@link Rule}s referring to it.
          */
-        static NumbersGroup[] getNumberGroups(final ContentResolver cr, final String gids) {
-            if (gids == null) {
-                return null;
+        static final class Groups {
+
+            /** {@link NumbersGroup}s by id. */
+            private final SparseArray<NumbersGroup> numbers = new SparseArray<NumbersGroup>();
+            /** {@link HoursGroup}s by id. */
+            private final SparseArray<HoursGroup> hours = new SparseArray<HoursGroup>();
+
+            /**
+             * Load all groups.
+             *
+             * @param cr      {@link ContentResolver}
+             * @param strip   strip leading zeros
+             * @param iPrefix international number prefix
+             */
+            Groups(final ContentResolver cr, final boolean strip, final String iPrefix) {
+                this(cr.query(DataProvider.Numbers.CONTENT_URI, DataProvider.Numbers.PROJECTION,
+                        null, null, DataProvider.Numbers.ID), cr.query(
+                        DataProvider.Hours.CONTENT_URI, DataProvider.Hours.PROJECTION, null, null,
+                        null), strip, iPrefix);
             }
-            final String[] split = gids.split(",");
-            ArrayList<NumbersGroup> list = new ArrayList<NumbersGroup>();
-            for (String s : split) {
-                if (s == null || s.length() == 0 || s.equals("-1")) {
-                    continue;
+
+            /**
+             * Load all groups from {@link Cursor}s. Both {@link Cursor}s are closed.
+             *
+             * @param numbersCursor {@link Cursor} of {@link DataProvider.Numbers}
+             * @param hoursCursor   {@link Cursor} of {@link DataProvider.Hours}
+             * @param strip         strip leading zeros
+             * @param iPrefix       international number prefix
+             */
+            Groups(final Cursor numbersCursor, final Cursor hoursCursor, final boolean strip,
+                    final String iPrefix) {
+                Cursor cursor = numbersCursor;
+                if (cursor != null && cursor.moveToFirst()) {
+                    do {
+                        final int gid = cursor.getInt(DataProvider.Numbers.INDEX_GID);
+                        NumbersGroup g = numbers.get(gid);
+                        if (g == null) {
+                            g = new NumbersGroup(strip, iPrefix);
+                            numbers.put(gid, g);
+                        }
+                        g.add(cursor.getString(DataProvider.Numbers.INDEX_NUMBER));
+                    } while (cursor.moveToNext());
                 }
-                final NumbersGroup ng = new NumbersGroup(cr, Utils.parseLong(s, -1L));
-                if (ng != null && ng.numbers.size() > 0) {
-                    list.add(ng);
+                if (cursor != null && !cursor.isClosed()) {
+                    cursor.close();
+                }
+                final int l = numbers.size();
+                for (int i = 0; i < l; i++) {
+                    numbers.valueAt(i).compile();
+                }
+
+                cursor = hoursCursor;
+                if (cursor != null && cursor.moveToFirst()) {
+                    do {
+                        final int gid = cursor.getInt(DataProvider.Hours.INDEX_HOURS_ID);
+                        HoursGroup g = hours.get(gid);
+                        if (g == null) {
+                            g = new HoursGroup();
+                            hours.put(gid, g);
+                        }
+                        g.add(cursor.getInt(DataProvider.Hours.INDEX_DAY),
+                                cursor.getInt(DataProvider.Hours.INDEX_HOUR));
+                    } while (cursor.moveToNext());
+                }
+                if (cursor != null && !cursor.isClosed()) {
+                    cursor.close();
                 }
             }
-            if (list.size() == 0) {
-                return null;
-            }
-            return list.toArray(new NumbersGroup[]{});
-        }
 
-        /**
-         * Get the {@link HoursGroup}.
-         *
-         * @param cr   {@link ContentResolver}
-         * @param gids id of group
-         * @return {@link HoursGroup}s
-         */
-        static HoursGroup[] getHourGroups(final ContentResolver cr, final String gids) {
-            if (gids == null) {
-                return null;
+            /**
+             * @return number of loaded groups
+             */
+            int size() {
+                return numbers.size() + hours.size();
             }
-            final String[] split = gids.split(",");
-            ArrayList<HoursGroup> list = new ArrayList<HoursGroup>();
-            for (String s : split) {
-                if (s == null || s.length() == 0 || s.equals("-1")) {
-                    continue;
+
+            /**
+             * Get the {@link NumbersGroup}.
+             *
+             * @param gids ids of group
+             * @return {@link NumbersGroup}s
+             */
+            NumbersGroup[] getNumberGroups(final String gids) {
+                if (gids == null) {
+                    return null;
                 }
-                final HoursGroup ng = new HoursGroup(cr, Utils.parseLong(s, -1L));
-                if (ng != null && ng.hours.size() > 0) {
-                    list.add(ng);
+                final String[] split = gids.split(",");
+                ArrayList<NumbersGroup> list = new ArrayList<NumbersGroup>();
+                for (String s : split) {
+                    if (s == null || s.length() == 0 || s.equals("-1")) {
+                        continue;
+                    }
+                    final NumbersGroup ng = numbers.get(Utils.parseInt(s, -1));
+                    if (ng != null && ng.numbers.size() > 0) {
+                        list.add(ng);
+                    }
+                }
+                if (list.size() == 0) {
+                    return null;
                 }
+                return list.toArray(new NumbersGroup[]{});
             }
-            if (list.size() == 0) {
-                return null;
+
+            /**
+             * Get the {@link HoursGroup}.
+             *
+             * @param gids id of group
+             * @return {@link HoursGroup}s
+             */
+            HoursGroup[] getHourGroups(final String gids) {
+                if (gids == null) {
+                    return null;
+                }
+                final String[] split = gids.split(",");
+                ArrayList<HoursGroup> list = new ArrayList<HoursGroup>();
+                for (String s : split) {
+                    if (s == null || s.length() == 0 || s.equals("-1")) {
+                        continue;
+                    }
+                    final HoursGroup ng = hours.get(Utils.parseInt(s, -1));
+                    if (ng != null && ng.hasHours()) {
+                        list.add(ng);
+                    }
+                }
+                if (list.size() == 0) {
+                    return null;
+                }
+                return list.toArray(new HoursGroup[]{});
             }
-            return list.toArray(new HoursGroup[]{});
         }
 
         /** Group of numbers. */
         private static final class NumbersGroup {
 
+            /** Minimal number of matching digits for PhoneNumberUtils.compare(). */
+            private static final int MIN_MATCH = 7;
+            /** Wild char for PhoneNumberUtils.compare(). */
+            private static final char WILD = 'N';
+
+            /** Strip leading zeros. */
+            private final boolean stripLeadingZeros;
+            /** International number prefix. */
+            private final String intPrefix;
+            /** Concat prefix and number without leading zeros at number. */
+            private final boolean zeroPrefix;
             /** List of numbers. */
             private final ArrayList<String> numbers = new ArrayList<String>();
 
+            /** Patterns: prefix%. */
+            private final PatternTrie prefixes = new PatternTrie(false);
+            /** Patterns: %suffix. */
+            private final PatternTrie suffixes = new PatternTrie(true);
+            /** Patterns: %infix%. */
+            private final PatternTrie infixes = new PatternTrie(false);
+            /** Exact numbers by getKey(). */
+            private final SparseArray<ArrayList<String>> exact = new SparseArray<ArrayList<String>>();
+            /** Exact numbers without key. Checked for every log. */
+            private final ArrayList<String> exactNoKey = new ArrayList<String>();
+            /** All exact numbers. Checked for logs without key. */
+            private final ArrayList<String> exactAll = new ArrayList<String>();
+
             /**
-             * Default Constructor.
+             * Default constructor.
              *
-             * @param cr    {@link ContentResolver}
-             * @param what0 argument
+             * @param strip   strip leading zeros
+             * @param iPrefix international number prefix
              */
-            private NumbersGroup(final ContentResolver cr, final long what0) {
-                final Cursor cursor = cr.query(
-                        ContentUris.withAppendedId(DataProvider.Numbers.GROUP_URI, what0),
-                        DataProvider.Numbers.PROJECTION, null, null, null);
-                if (cursor != null && cursor.moveToFirst()) {
-                    final boolean doPrefix = intPrefix.length() > 1;
-                    do {
-                        String s = cursor.getString(DataProvider.Numbers.INDEX_NUMBER);
-                        if (s == null || s.length() == 0) {
-                            continue;
-                        }
-                        if (stripLeadingZeros) {
-                            s = s.replaceFirst("^00*", "");
+            NumbersGroup(final boolean strip, final String iPrefix) {
+                stripLeadingZeros = strip;
+                intPrefix = iPrefix == null ? "" : iPrefix;
+                zeroPrefix = !intPrefix.equals("+44") && !intPrefix.equals("+49");
+            }
+
+            /**
+             * Add a number. Call compile() after adding all numbers.
+             *
+             * @param number number as saved in {@link DataProvider.Numbers}
+             */
+            private void add(final String number) {
+                if (number == null || number.length() == 0) {
+                    return;
+                }
+                String s = number;
+                if (stripLeadingZeros) {
+                    s = stripLeadingZeros(s);
+                }
+                if (intPrefix.length() > 1 && !s.startsWith("%")) {
+                    s = national2international(intPrefix, zeroPrefix, s);
+                }
+                numbers.add(s);
+            }
+
+            /**
+             * Sort numbers into tries and hashes. Matching stopped at the first invalid number,
+             * so do compiling.
+             */
+            private void compile() {
+                final int l = numbers.size();
+                for (int i = 0; i < l; i++) {
+                    final String n = numbers.get(i);
+                    final int nl = n.length();
+                    if (nl <= 1) {
+                        break;
+                    }
+                    if (n.charAt(0) == '%') {
+                        if (n.charAt(nl - 1) == '%') {
+                            if (nl == 2) {
+                                break;
+                            }
+                            infixes.add(n, 1, nl - 1);
+                        } else {
+                            suffixes.add(n, 1, nl);
                         }
-                        if (doPrefix && !s.startsWith("%")) {
-                            s = national2international(intPrefix, zeroPrefix, s);
+                    } else if (n.charAt(nl - 1) == '%') {
+                        prefixes.add(n, 0, nl - 1);
+                    } else {
+                        exactAll.add(n);
+                        final int k = getKey(n);
+                        if (k < 0) {
+                            exactNoKey.add(n);
+                        } else {
+                            ArrayList<String> list = exact.get(k);
+                            if (list == null) {
+                                list = new ArrayList<String>(1);
+                                exact.put(k, list);
+                            }
+                            list.add(n);
                         }
-                        numbers.add(s);
-                    } while (cursor.moveToNext());
-                }
-                if (cursor != null && !cursor.isClosed()) {
-                    cursor.close();
+                    }
                 }
+                infixes.compile();
             }
 
             /**
-             * Convert national number to international. Old format internationals were converted to
-             * new format.
+             * Get key for hashing exact numbers. If PhoneNumberUtils.compare(a, b) is true,
+             * getKey(a) == getKey(b): compare() matches at least the last MIN_MATCH dialable
+             * chars or all dialable chars.
              *
-             * @param iPrefix default prefix
-             * @param zPrefix concat prefix and number without leading zeros at number
-             * @param number  national number
-             * @return international number
+             * @param number number
+             * @return last MIN_MATCH dialable chars of number as int; -1 if the number has a wild
+             * char
              */
-            private static String national2international(final String iPrefix,
-                    final boolean zPrefix, final String number) {
-                if (number.startsWith("00800") || number.startsWith("000800")) {
-                    return number;
-                } else if (number.startsWith("+")) {
-                    return number;
-                } else if (number.startsWith("00")) {
-                    return "+" + number.substring(2);
-                } else if (number.startsWith("0")) {
-                    return iPrefix + number.substring(1);
-                } else if (iPrefix.length() > 1 && number.startsWith(iPrefix.substring(1))) {
-                    return "+" + number;
-                } else if (zPrefix) {
-                    return iPrefix + number;
-                } else {
-                    return number;
+            private static int getKey(final String number) {
+                // ignore post dial part
+                int end = number.length();
+                final int pi = number.indexOf(',');
+                final int wi = number.indexOf(';');
+                if (pi >= 0 && pi < end) {
+                    end = pi;
                 }
+                if (wi >= 0 && wi < end) {
+                    end = wi;
+                }
+                int ret = 0;
+                int matched = 0;
+                for (int i = end - 1; i >= 0 && matched < MIN_MATCH; i--) {
+                    final char c = number.charAt(i);
+                    final int code;
+                    if (c >= '0' && c <= '9') {
+                        code = c - '0' + 1;
+                    } else if (c == '*') {
+                        code = 11;
+                    } else if (c == '#') {
+                        code = 12;
+                    } else if (c == '+') {
+                        code = 13;
+                    } else if (c == WILD) {
+                        return -1;
+                    } else {
+                        continue;
+                    }
+                    ret = (ret << 4) | code;
+                    ++matched;
+                }
+                return ret;
             }
 
             /**
@@ -203,53 +391,50 @@ public final class RuleMatcher {
              * @return true if log matches
              */
             boolean match(final Cursor log) {
-                String number = log.getString(DataProvider.Logs.INDEX_REMOTE);
+                String number = log.getString(DataProvider.Logs.INDEX_REMOTE_NORMALIZED);
                 if (number == null) {
+                    // not normalized yet
+                    number = normalizeRemote(log.getString(DataProvider.Logs.INDEX_REMOTE),
+                            stripLeadingZeros, intPrefix);
+                    if (number == null) {
+                        return false;
+                    }
+                }
+                if (number.length() == 0) {
                     return false;
                 }
-                int numl = number.length();
-                if (numl == 0) {
+                if (!prefixes.isEmpty() && prefixes.matchPrefix(number)) {
+                    return true;
+                }
+                if (!suffixes.isEmpty() && suffixes.matchSuffix(number)) {
+                    return true;
+                }
+                if (!infixes.isEmpty() && infixes.matchInfix(number)) {
+                    return true;
+                }
+                if (exactAll.isEmpty()) {
                     return false;
                 }
-                if (numl > 1) {
-                    if (stripLeadingZeros) {
-                        number = number.replaceFirst("^00*", "");
-                        numl = number.length();
-                    }
-                    if (intPrefix.length() > 1) {
-                        number = national2international(intPrefix, zeroPrefix, number);
-                        numl = number.length();
-                    }
+                final int k = getKey(number);
+                if (k < 0) {
+                    return matchExact(exactAll, number);
                 }
-                final int l = numbers.size();
-                for (int i = 0; i < l; i++) {
-                    String n = numbers.get(i);
-                    if (n == null) {
-                        return false;
-                    }
-                    int nl = n.length();
-                    if (nl <= 1) {
-                        return false;
-                    }
+                final ArrayList<String> list = exact.get(k);
+                return (list != null && matchExact(list, number))
+                        || matchExact(exactNoKey, number);
+            }
 
-                    if (n.startsWith("%")) {
-                        if (n.endsWith("%")) {
-                            if (nl == 2) {
-                                return false;
-                            }
-                            if (number.contains(n.substring(1, nl - 1))) {
-                                return true;
-                            }
-                        } else {
-                            if (number.endsWith(n.substring(1))) {
-                                return true;
-                            }
-                        }
-                    } else if (n.endsWith("%")) {
-                        if (number.startsWith(n.substring(0, nl - 1))) {
-                            return true;
-                        }
-                    } else if (PhoneNumberUtils.compare(number, n)) {
+            /**
+             * Match a number against a list of exact numbers.
+             *
+             * @param list   list of numbers
+             * @param number number
+             * @return true if number matches
+             */
+            private static boolean matchExact(final ArrayList<String> list, final String number) {
+                final int l = list.size();
+                for (int i = 0; i < l; i++) {
+                    if (PhoneNumberUtils.compare(number, list.get(i))) {
                         return true;
                     }
                 }
@@ -258,10 +443,20 @@ public final class RuleMatcher {
         }
 
         /** Group of hours. */
-        private static final class HoursGroup {
-
-            /** List of hours. */
-            private final SparseArray<HashSet<Integer>> hours = new SparseArray<HashSet<Integer>>();
+        static final class HoursGroup {
+
+            /** Hours per day. */
+            private static final int HOURS_DAY = 24;
+            /** Days per week. */
+            private static final int DAYS_WEEK = 7;
+            /** Hours per week. */
+            private static final int HOURS_WEEK = HOURS_DAY * DAYS_WEEK;
+            /** Milliseconds per hour. */
+            private static final long MILLIS_HOUR = 60L * 60L * 1000L;
+            /** Milliseconds per day. */
+            private static final long MILLIS_DAY = HOURS_DAY * MILLIS_HOUR;
+            /** Day of week of 1970-01-01, sunday = 0. */
+            private static final int EPOCH_DAY_OF_WEEK = 4;
 
             /** Entry for monday - sunday. */
             private static final int ALL_WEEK = 0;
@@ -282,61 +477,81 @@ public final class RuleMatcher {
             /** Entry for monday - friday. */
             private static final int MON_FRI = 8;
 
+            /** Hours of week as bit mask. Bit d * 24 + h is set for day d (sunday = 0), hour h. */
+            private final long[] mask = new long[(HOURS_WEEK + 63) / 64];
+            /** Group has any hours. */
+            private boolean hasHours = false;
+
             /**
-             * Default Constructor.
+             * Add an entry to the bit mask.
              *
-             * @param cr    {@link ContentResolver}
-             * @param what0 argument
+             * @param k day entry: ALL_WEEK, MON_FRI or day of week
+             * @param v hour of day + 1, 0 for all day
              */
-            private HoursGroup(final ContentResolver cr, final long what0) {
-                final Cursor cursor = cr.query(
-                        ContentUris.withAppendedId(DataProvider.Hours.GROUP_URI, what0),
-                        DataProvider.Hours.PROJECTION, null, null, null);
-                if (cursor != null && cursor.moveToFirst()) {
-                    do {
-                        final int d = cursor.getInt(DataProvider.Hours.INDEX_DAY);
-                        final int h = cursor.getInt(DataProvider.Hours.INDEX_HOUR);
-                        HashSet<Integer> hs = hours.get(d);
-                        if (hs == null) {
-                            hs = new HashSet<Integer>();
-                            hs.add(h);
-                            hours.put(d, hs);
+            private void add(final int k, final int v) {
+                hasHours = true;
+                if (v < 0 || v > HOURS_DAY) {
+                    return;
+                }
+                for (int d = 0; d < DAYS_WEEK; d++) {
+                    if (k == ALL_WEEK || (k == MON_FRI && d < SAT && d >= MON) || k % SUN == d) {
+                        if (v == 0) {
+                            for (int h = 0; h < HOURS_DAY; h++) {
+                                set(d * HOURS_DAY + h);
+                            }
                         } else {
-                            hs.add(h);
+                            set(d * HOURS_DAY + v - 1);
                         }
-                    } while (cursor.moveToNext());
-                }
-                if (cursor != null && !cursor.isClosed()) {
-                    cursor.close();
+                    }
                 }
             }
 
-            /** Internal var for match(). */
-            private static final Calendar CAL = Calendar.getInstance();
+            /**
+             * Set a bit.
+             *
+             * @param i hour of week
+             */
+            private void set(final int i) {
+                mask[i >> 6] |= 1L << (i & 63);
+            }
+
+            /**
+             * @return true, if any hours were loaded
+             */
+            boolean hasHours() {
+                return hasHours;
+            }
+
+            /**
+             * Get hour of week for a date in local time.
+             *
+             * @param date date
+             * @param tz   {@link TimeZone}
+             * @return day of week (sunday = 0) * 24 + hour of day
+             */
+            static int getHourOfWeek(final long date, final TimeZone tz) {
+                final long local = date + tz.getOffset(date);
+                long days = local / MILLIS_DAY;
+                long millis = local % MILLIS_DAY;
+                if (millis < 0) {
+                    --days;
+                    millis += MILLIS_DAY;
+                }
+                int d = (int) ((days + EPOCH_DAY_OF_WEEK) % DAYS_WEEK);
+                if (d < 0) {
+                    d += DAYS_WEEK;
+                }
+                return d * HOURS_DAY + (int) (millis / MILLIS_HOUR);
+            }
 
             /**
              * Match a given log.
              *
-             * @param log {@link Cursor} representing log
+             * @param hourOfWeek log's hour of week, see getHourOfWeek()
              * @return true if log matches
              */
-            boolean match(final Cursor log) {
-                long date = log.getLong(DataProvider.Logs.INDEX_DATE);
-                CAL.setTimeInMillis(date);
-                final int d = (CAL.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY) % SUN;
-                final int h = CAL.get(Calendar.HOUR_OF_DAY) + 1;
-                int l = hours.size();
-                for (int i = 0; i < l; i++) {
-                    int k = hours.keyAt(i);
-                    if (k == ALL_WEEK || (k == MON_FRI && d < SAT && d >= MON) || k % SUN == d) {
-                        for (int v : hours.get(k)) {
-                            if (v == 0 || v == h) {
-                                return true;
-                            }
-                        }
-                    }
-                }
-                return false;
+            boolean match(final int hourOfWeek) {
+                return (mask[hourOfWeek >> 6] & (1L << (hourOfWeek & 63))) != 0L;
             }
         }
 
@@ -360,7 +575,7 @@ public final class RuleMatcher {
         private final boolean limitNotReached;
         /** Match only websms. */
         private final int iswebsms;
-        /** Match only specific websms connector. */
+        /** Match only specific websms connector, lower case. */
         private final String iswebsmsConnector;
         /** Match only sipcalls. */
         private final int issipcall;
@@ -368,11 +583,11 @@ public final class RuleMatcher {
         /**
          * Load a {@link Rule}.
          *
-         * @param cr              {@link ContentResolver}
+         * @param groups          all {@link Groups}
          * @param overwritePlanId overwrite plan id
          * @param cursor          {@link Cursor}
          */
-        Rule(final ContentResolver cr, final Cursor cursor, final int overwritePlanId) {
+        Rule(final Groups groups, final Cursor cursor, final int overwritePlanId) {
             id = cursor.getInt(DataProvider.Rules.INDEX_ID);
             if (overwritePlanId >= 0) {
                 planId = overwritePlanId;
@@ -388,11 +603,11 @@ public final class RuleMatcher {
                 myNumber = s;
             }
             roamed = cursor.getInt(DataProvider.Rules.INDEX_ROAMED);
-            inhours = getHourGroups(cr, cursor.getString(DataProvider.Rules.INDEX_INHOURS_ID));
-            exhours = getHourGroups(cr, cursor.getString(DataProvider.Rules.INDEX_EXHOURS_ID));
-            innumbers = getNumberGroups(cr,
+            inhours = groups.getHourGroups(cursor.getString(DataProvider.Rules.INDEX_INHOURS_ID));
+            exhours = groups.getHourGroups(cursor.getString(DataProvider.Rules.INDEX_EXHOURS_ID));
+            innumbers = groups.getNumberGroups(
                     cursor.getString(DataProvider.Rules.INDEX_INNUMBERS_ID));
-            exnumbers = getNumberGroups(cr,
+            exnumbers = groups.getNumberGroups(
                     cursor.getString(DataProvider.Rules.INDEX_EXNUMBERS_ID));
             limitNotReached = cursor.getInt(DataProvider.Rules.INDEX_LIMIT_NOT_REACHED) > 0;
             if (cursor.isNull(DataProvider.Rules.INDEX_IS_WEBSMS)) {
@@ -407,10 +622,9 @@ public final class RuleMatcher {
             }
             s = cursor.getString(DataProvider.Rules.INDEX_IS_WEBSMS_CONNETOR);
             if (TextUtils.isEmpty(s)) {
-                iswebsmsConnector = "";
+                iswebsmsConnector = null;
             } else {
-                iswebsmsConnector = " AND " + DataProvider.WebSMS.CONNECTOR + " LIKE '%"
-                        + s.toLowerCase() + "%'";
+                iswebsmsConnector = s.toLowerCase();
             }
             if (cursor.isNull(DataProvider.Rules.INDEX_IS_SIPCALL)) {
                 issipcall = DataProvider.Rules.NO_MATTER;
@@ -438,138 +652,194 @@ public final class RuleMatcher {
             return planId;
         }
 
-        /** Internal var for match(). */
-        private static final String[] S1 = new String[1];
-
         /**
-         * Math a log.
+         * Check the static part of this {@link Rule}: roaming, direction and type. The result
+         * only depends on the given values, not on the log itself.
          *
-         * @param cr  {@link ContentResolver}
-         * @param log {@link Cursor} representing the log.
-         * @return matched?
+         * @param t        type of log
+         * @param dir      direction of log
+         * @param isRoamed roamed state of log
+         * @return true, if a log with this values may be matched by this {@link Rule}
          */
-        boolean match(final ContentResolver cr, final Cursor log) {
-            Log.d(TAG, "match()");
-            Log.d(TAG, "what: " + what);
-            final int t = log.getInt(DataProvider.Logs.INDEX_TYPE);
-            Log.d(TAG, "type: " + t);
+        boolean isCandidate(final int t, final int dir, final int isRoamed) {
             boolean ret = false;
-
             if (this.roamed == 0 || roamed == 1) {
                 // rule.roamed=0: yes
                 // rule.roamed=1: no
                 // log.roamed=0: not roamed
                 // log.roamed=1: roamed
-                ret = log.getInt(DataProvider.Logs.INDEX_ROAMED) != roamed;
-                Log.d(TAG, "ret after romaing: " + ret);
+                ret = isRoamed != roamed;
                 if (!ret) {
                     return false;
                 }
             }
-
             if (this.direction >= 0 && direction != DataProvider.Rules.NO_MATTER) {
-                ret = log.getInt(DataProvider.Logs.INDEX_DIRECTION) == direction;
-                Log.d(TAG, "ret after direction: " + ret);
+                ret = dir == direction;
                 if (!ret) {
                     return false;
                 }
             }
+            switch (this.what) {
+                case DataProvider.Rules.WHAT_CALL:
+                    return t == DataProvider.TYPE_CALL;
+                case DataProvider.Rules.WHAT_DATA:
+                    return t == DataProvider.TYPE_DATA;
+                case DataProvider.Rules.WHAT_MMS:
+                    return t == DataProvider.TYPE_MMS;
+                case DataProvider.Rules.WHAT_SMS:
+                    return t == DataProvider.TYPE_SMS;
+                default:
+                    return ret;
+            }
+        }
+
+        /**
+         * Check if this {@link Rule} is bound to my own number.
+         *
+         * @param myNumber0 my own number of the log
+         * @return true, if the log is not filtered by my own number
+         */
+        boolean isCandidate(final String myNumber0) {
+            // FIXME: do equals?
+            return myNumber == null || myNumber.equals(myNumber0);
+        }
+
+        /**
+         * Check type, direction and roamed state of a log.
+         *
+         * @param log {@link Cursor} representing the log.
+         * @return true, if the log may match
+         */
+        boolean matchType(final Cursor log) {
+            final int isRoamed = log.getInt(DataProvider.Logs.INDEX_ROAMED);
+            if ((roamed == 0 || roamed == 1) && isRoamed == roamed) {
+                return step(Trace.STEP_ROAMED, false);
+            }
+            final int dir = log.getInt(DataProvider.Logs.INDEX_DIRECTION);
+            if (direction >= 0 && direction != DataProvider.Rules.NO_MATTER && dir != direction) {
+                return step(Trace.STEP_DIRECTION, false);
+            }
+            return step(Trace.STEP_TYPE,
+                    isCandidate(log.getInt(DataProvider.Logs.INDEX_TYPE), dir, isRoamed));
+        }
+
+        /**
+         * Trace and profile a step of matching a log.
+         *
+         * @param step step
+         * @param ret  result of step
+         * @return ret
+         */
+        private boolean step(final int step, final boolean ret) {
+            if (Trace.isEnabled()) {
+                Trace.event(Trace.MATCH_STEP, id, step, ret ? 1L : 0L);
+            }
+            if (!ret && RuleProfiler.isEnabled()) {
+                RuleProfiler.rejected(id, step);
+            }
+            return ret;
+        }
+
+        /**
+         * Check the limit of this {@link Rule}'s {@link Plan}. Depends on all logs matched
+         * before.
+         *
+         * @param ps  {@link Plan}s by id
+         * @param log {@link Cursor} representing the log.
+         * @return true, if the limit does not matter or is not reached yet
+         */
+        boolean matchLimit(final SparseArray<Plan> ps, final Cursor log) {
+            if (!this.limitNotReached) {
+                return true;
+            }
+            boolean ret = true;
+            final Plan p = ps.get(this.planId);
+            if (p != null) {
+                p.checkBillday(log);
+                ret = p.getRemainingLimit() > 0f;
+            }
+            if (!ret) {
+                Trace.event(Trace.MATCH_LIMIT, id, planId, 0L);
+                if (RuleProfiler.isEnabled()) {
+                    RuleProfiler.rejected(id, Trace.STEP_LIMIT);
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * @return true, if matchLimit() may return false
+         */
+        boolean hasLimit() {
+            return limitNotReached;
+        }
+
+        /**
+         * @return true, if matchStatic() depends on {@link DataProvider.WebSMS} or
+         *         {@link DataProvider.SipCall}, i.e. on the log's date
+         */
+        boolean dependsOnDate() {
+            switch (what) {
+                case DataProvider.Rules.WHAT_CALL:
+                    return issipcall != DataProvider.Rules.NO_MATTER;
+                case DataProvider.Rules.WHAT_SMS:
+                    return iswebsms != DataProvider.Rules.NO_MATTER;
+                default:
+                    return false;
+            }
+        }
 
+        /**
+         * Math a log, which already passed isCandidate(). The limit is not checked. Does not
+         * depend on other logs and may run in parallel.
+         *
+         * @param cr            {@link ContentResolver}
+         * @param log           {@link Cursor} representing the log.
+         * @param hourOfWeek    log's hour of week
+         * @param checkMyNumber check my own number of the log
+         * @return matched?
+         */
+        boolean matchStatic(final ContentResolver cr, final Cursor log, final int hourOfWeek,
+                final boolean checkMyNumber) {
+            boolean ret = true;
             switch (this.what) {
                 case DataProvider.Rules.WHAT_CALL:
-                    ret = (t == DataProvider.TYPE_CALL);
-                    if (ret && issipcall != DataProvider.Rules.NO_MATTER) {
+                    if (issipcall != DataProvider.Rules.NO_MATTER) {
                         final long d = log.getLong(DataProvider.Logs.INDEX_DATE);
-                        Log.d(TAG, "match sipcall: " + issipcall);
-                        S1[0] = String.valueOf(d);
+                        final boolean found = getSipCallIndex(cr).contains(d);
                         if (this.issipcall == 1) {
                             // match no sipcall
-                            final Cursor c = cr.query(DataProvider.SipCall.CONTENT_URI,
-                                    DataProvider.SipCall.PROJECTION,
-                                    DataProvider.SipCall.DATE + " = ?", S1, null);
-                            if (c != null && c.getCount() > 0) {
-                                ret = false;
-                            }
-                            if (c != null && !c.isClosed()) {
-                                c.close();
-                            }
+                            ret = !found;
                         } else {
                             // match only sipcall
-                            final Cursor c = cr.query(DataProvider.SipCall.CONTENT_URI,
-                                    DataProvider.SipCall.PROJECTION,
-                                    DataProvider.SipCall.DATE + " = ?", S1, null);
-                            ret = c != null && c.getCount() > 0;
-                            if (c != null && !c.isClosed()) {
-                                c.close();
-                            }
+                            ret = found;
                         }
-                        Log.d(TAG, "match sipcall: " + issipcall + "; " + ret);
                     }
                     break;
-                case DataProvider.Rules.WHAT_DATA:
-                    ret = (t == DataProvider.TYPE_DATA);
-                    break;
-                case DataProvider.Rules.WHAT_MMS:
-                    ret = (t == DataProvider.TYPE_MMS);
-                    break;
                 case DataProvider.Rules.WHAT_SMS:
-                    ret = (t == DataProvider.TYPE_SMS);
-                    if (ret && iswebsms != DataProvider.Rules.NO_MATTER) {
+                    if (iswebsms != DataProvider.Rules.NO_MATTER) {
                         final long d = log.getLong(DataProvider.Logs.INDEX_DATE);
-                        Log.d(TAG, "match websms: " + iswebsms);
-                        S1[0] = String.valueOf(d);
+                        final DateIndex index = getWebSMSIndex(cr);
                         if (this.iswebsms == 1) {
                             // match no websms
-                            final Cursor c = cr.query(DataProvider.WebSMS.CONTENT_URI,
-                                    DataProvider.WebSMS.PROJECTION,
-                                    DataProvider.WebSMS.DATE + " = ?",
-                                    S1, null);
-                            if (c != null && c.getCount() > 0) {
-                                ret = false;
-                            }
-                            if (c != null && !c.isClosed()) {
-                                c.close();
-                            }
+                            ret = !index.contains(d);
                         } else {
                             // match only websms
-                            final Cursor c = cr.query(DataProvider.WebSMS.CONTENT_URI,
-                                    DataProvider.WebSMS.PROJECTION,
-                                    DataProvider.WebSMS.DATE + " = ? "
-                                            + iswebsmsConnector, S1, null);
-                            ret = c != null && c.getCount() > 0;
-                            if (c != null && !c.isClosed()) {
-                                c.close();
-                            }
+                            ret = index.contains(d, iswebsmsConnector);
                         }
-                        Log.d(TAG, "match websms: " + iswebsms + "; " + ret);
                     }
                     break;
                 default:
                     break;
             }
-            Log.d(TAG, "ret after type: " + ret);
-            if (!ret) {
-                return false;
-            }
-            if (this.limitNotReached) {
-                final Plan p = plans.get(this.planId);
-                if (p != null) {
-                    p.checkBillday(log);
-                    ret = p.getRemainingLimit() > 0f;
-                }
-                if (!ret) {
-                    Log.d(TAG, "limit reached: " + planId);
-                }
-            }
-            Log.d(TAG, "ret after limit: " + ret);
+            step(Trace.STEP_WEBSMS_SIPCALL, ret);
             if (!ret) {
                 return false;
             }
 
-            if (this.myNumber != null) {
-                // FIXME: do equals?
-                ret = myNumber.equals(log.getString(DataProvider.Logs.INDEX_MYNUMBER));
-                Log.d(TAG, "ret after mynumber: " + ret);
+            if (checkMyNumber && this.myNumber != null) {
+                ret = isCandidate(log.getString(DataProvider.Logs.INDEX_MYNUMBER));
+                step(Trace.STEP_MYNUMBER, ret);
                 if (!ret) {
                     return false;
                 }
@@ -579,26 +849,26 @@ public final class RuleMatcher {
                 final int l = inhours.length;
                 ret = false;
                 for (int i = 0; i < l; i++) {
-                    ret |= inhours[i].match(log);
+                    ret |= inhours[i].match(hourOfWeek);
                     if (ret) {
                         break;
                     }
                 }
             }
-            Log.d(TAG, "ret after inhours: " + ret);
+            step(Trace.STEP_INHOURS, ret);
             if (!ret) {
                 return false;
             }
             if (this.exhours != null) {
                 final int l = exhours.length;
                 for (int i = 0; i < l; i++) {
-                    ret = !this.exhours[i].match(log);
+                    ret = !this.exhours[i].match(hourOfWeek);
                     if (!ret) {
                         break;
                     }
                 }
             }
-            Log.d(TAG, "ret after exhours: " + ret);
+            step(Trace.STEP_EXHOURS, ret);
             if (!ret) {
                 return false;
             }
@@ -612,7 +882,7 @@ public final class RuleMatcher {
                     }
                 }
             }
-            Log.d(TAG, "ret after innumbers: " + ret);
+            step(Trace.STEP_INNUMBERS, ret);
             if (!ret) {
                 return false;
             }
@@ -625,7 +895,7 @@ public final class RuleMatcher {
                     }
                 }
             }
-            Log.d(TAG, "ret after exnumbers: " + ret);
+            step(Trace.STEP_EXNUMBERS, ret);
             return ret;
         }
     }
@@ -635,38 +905,47 @@ public final class RuleMatcher {
      *
      * @author flx
      */
-    private static class Plan {
+    static class Plan {
+
+        /**
+         * Totals of a single bill period.
+         */
+        private static final class Totals {
+            /** Start of bill period. */
+            private final long billday;
+            /** Amount billed. */
+            private final float billedAmount;
+            /** Cost billed. */
+            private final float billedCost;
+            /** Not yet saved. */
+            private boolean dirty;
+
+            /**
+             * Default constructor.
+             *
+             * @param bd    start of bill period
+             * @param ba    billed amount
+             * @param bc    billed cost
+             * @param dirty not yet saved
+             */
+            Totals(final long bd, final float ba, final float bc, final boolean dirty) {
+                billday = bd;
+                billedAmount = ba;
+                billedCost = bc;
+                this.dirty = dirty;
+            }
+        }
 
         /** Id. */
         private final int id;
         /** Name of plan. */
         private final String name;
-        /** Type of log. */
-        private final int type;
-        /** Type of limit. */
-        private final int limitType;
-        /** Limit. */
-        private final long limit;
-        /** Billmode. */
-        private final int billModeFirstLength, billModeNextLength;
+        /** Prices and totals of current bill period. */
+        private final Tariff tariff = new Tariff();
         /** Billday. */
         private final Calendar billday;
         /** Billperiod. */
         private final int billperiod;
-        /** Cost per item. */
-        private final float costPerItem;
-        /** Cost per amount. */
-        private final float costPerAmount1, costPerAmount2;
-        /** Cost per item in limit. */
-        private final float costPerItemInLimit;
-        /** Cost per amount in limit. */
-        private final float costPerAmountInLimit1, costPerAmountInLimit2;
-        /** Units for mixed plans. */
-        private final int upc, ups, upm, upd;
-        /** Strip first x seconds. */
-        private final int stripSeconds;
-        /** Strip everything but first x seconds. */
-        private final int stripPast;
         /** Parent plan id. */
         private final int ppid;
         /** PArent plan. Set in RuleMatcher.load(). */
@@ -678,10 +957,14 @@ public final class RuleMatcher {
         private Calendar currentBillday = null;
         /** Time of nextBillday. */
         private long nextBillday = -1L;
-        /** Amount billed this period. */
-        private float billedAmount = 0f;
-        /** Cost billed this period. */
-        private float billedCost = 0f;
+        /** Totals of this period changed since last saveTotals(). */
+        private boolean dirty = false;
+        /** Totals of other bill periods seen by this plan, keyed by start of period. */
+        private final HashMap<Long, Totals> periods = new HashMap<Long, Totals>();
+        /** Generation of {@link DataProvider.PlanTotals} the totals are based on. */
+        private int generation = totalsGeneration;
+        /** All logs of this plan are billed again, totals start from zero. */
+        private boolean rerating = false;
 
         /** {@link ContentResolver}. */
         private final ContentResolver cResolver;
@@ -689,58 +972,52 @@ public final class RuleMatcher {
         /**
          * Load a {@link Plan}.
          *
-         * @param cr     {@link ContentResolver}
-         * @param cursor {@link Cursor}
+         * @param cr          {@link ContentResolver}; null for a {@link Plan} not backed by
+         *                    {@link DataProvider.PlanTotals}, which totals start from zero
+         * @param cursor      {@link Cursor}
+         * @param billPeriods bill period plans by id, each holding {billperiod, billday}
+         * @param parents     parent's id by merged plan's id
          */
-        Plan(final ContentResolver cr, final Cursor cursor) {
+        Plan(final ContentResolver cr, final Cursor cursor, final SparseArray<long[]> billPeriods,
+                final SparseIntArray parents) {
             cResolver = cr;
+            final Tariff t = tariff;
             id = cursor.getInt(DataProvider.Plans.INDEX_ID);
             name = cursor.getString(DataProvider.Plans.INDEX_NAME);
-            type = cursor.getInt(DataProvider.Plans.INDEX_TYPE);
-            limitType = cursor.getInt(DataProvider.Plans.INDEX_LIMIT_TYPE);
-            final long l = DataProvider.Plans.getLimit(this.type, limitType,
+            t.type = cursor.getInt(DataProvider.Plans.INDEX_TYPE);
+            t.limitType = cursor.getInt(DataProvider.Plans.INDEX_LIMIT_TYPE);
+            final long l = DataProvider.Plans.getLimit(t.type, t.limitType,
                     cursor.getFloat(DataProvider.Plans.INDEX_LIMIT));
-            if (this.limitType == DataProvider.LIMIT_TYPE_UNITS
-                    && type == DataProvider.TYPE_DATA) {
+            if (t.limitType == DataProvider.LIMIT_TYPE_UNITS && t.type == DataProvider.TYPE_DATA) {
                 // normality amount is saved as kB, here it is B
-                limit = l * CallMeter.BYTE_KB;
+                t.limit = l * CallMeter.BYTE_KB;
             } else {
-                limit = l;
+                t.limit = l;
             }
 
-            costPerItem = cursor.getFloat(DataProvider.Plans.INDEX_COST_PER_ITEM);
-            costPerAmount1 = cursor.getFloat(DataProvider.Plans.INDEX_COST_PER_AMOUNT1);
-            costPerAmount2 = cursor.getFloat(DataProvider.Plans.INDEX_COST_PER_AMOUNT2);
-            costPerItemInLimit = cursor
+            t.costPerItem = cursor.getFloat(DataProvider.Plans.INDEX_COST_PER_ITEM);
+            t.costPerAmount1 = cursor.getFloat(DataProvider.Plans.INDEX_COST_PER_AMOUNT1);
+            t.costPerAmount2 = cursor.getFloat(DataProvider.Plans.INDEX_COST_PER_AMOUNT2);
+            t.costPerItemInLimit = cursor
                     .getFloat(DataProvider.Plans.INDEX_COST_PER_ITEM_IN_LIMIT);
-            costPerAmountInLimit1 = cursor
+            t.costPerAmountInLimit1 = cursor
                     .getFloat(DataProvider.Plans.INDEX_COST_PER_AMOUNT_IN_LIMIT1);
-            costPerAmountInLimit2 = cursor
+            t.costPerAmountInLimit2 = cursor
                     .getFloat(DataProvider.Plans.INDEX_COST_PER_AMOUNT_IN_LIMIT2);
-            upc = cursor.getInt(DataProvider.Plans.INDEX_MIXED_UNITS_CALL);
-            ups = cursor.getInt(DataProvider.Plans.INDEX_MIXED_UNITS_SMS);
-            upm = cursor.getInt(DataProvider.Plans.INDEX_MIXED_UNITS_MMS);
-            upd = cursor.getInt(DataProvider.Plans.INDEX_MIXED_UNITS_DATA);
+            t.upc = cursor.getInt(DataProvider.Plans.INDEX_MIXED_UNITS_CALL);
+            t.ups = cursor.getInt(DataProvider.Plans.INDEX_MIXED_UNITS_SMS);
+            t.upm = cursor.getInt(DataProvider.Plans.INDEX_MIXED_UNITS_MMS);
+            t.upd = cursor.getInt(DataProvider.Plans.INDEX_MIXED_UNITS_DATA);
             nextAlert = cursor.getLong(DataProvider.Plans.INDEX_NEXT_ALERT);
-            stripSeconds = cursor.getInt(DataProvider.Plans.INDEX_STRIP_SECONDS);
-            stripPast = cursor.getInt(DataProvider.Plans.INDEX_STRIP_PAST);
+            t.stripSeconds = cursor.getInt(DataProvider.Plans.INDEX_STRIP_SECONDS);
+            t.stripPast = cursor.getInt(DataProvider.Plans.INDEX_STRIP_PAST);
 
             final long bp = cursor.getLong(DataProvider.Plans.INDEX_BILLPERIOD_ID);
-            if (bp >= 0) {
-                final Cursor c = cr.query(
-                        ContentUris.withAppendedId(DataProvider.Plans.CONTENT_URI, bp),
-                        DataProvider.Plans.PROJECTION, null, null, null);
-                if (c != null && c.moveToFirst()) {
-                    billday = Calendar.getInstance();
-                    billday.setTimeInMillis(c.getLong(DataProvider.Plans.INDEX_BILLDAY));
-                    billperiod = c.getInt(DataProvider.Plans.INDEX_BILLPERIOD);
-                } else {
-                    billperiod = DataProvider.BILLPERIOD_INFINITE;
-                    billday = null;
-                }
-                if (c != null && !c.isClosed()) {
-                    c.close();
-                }
+            final long[] bpInfo = bp >= 0 ? billPeriods.get((int) bp) : null;
+            if (bpInfo != null) {
+                billperiod = (int) bpInfo[0];
+                billday = Calendar.getInstance();
+                billday.setTimeInMillis(bpInfo[1]);
             } else {
                 billperiod = DataProvider.BILLPERIOD_INFINITE;
                 billday = null;
@@ -748,13 +1025,13 @@ public final class RuleMatcher {
             final String billmode = cursor.getString(DataProvider.Plans.INDEX_BILLMODE);
             if (billmode != null && billmode.contains("/")) {
                 String[] billmodes = billmode.split("/");
-                billModeFirstLength = Utils.parseInt(billmodes[0], 1);
-                billModeNextLength = Utils.parseInt(billmodes[1], 1);
+                t.billModeFirstLength = Utils.parseInt(billmodes[0], 1);
+                t.billModeNextLength = Utils.parseInt(billmodes[1], 1);
             } else {
-                billModeFirstLength = 1;
-                billModeNextLength = 1;
+                t.billModeFirstLength = 1;
+                t.billModeNextLength = 1;
             }
-            ppid = DataProvider.Plans.getParent(cr, id);
+            ppid = parents.get(id, -1);
         }
 
         /**
@@ -767,24 +1044,13 @@ public final class RuleMatcher {
         }
 
         /**
-         * Get upc/upd/upm/ups according to log type.
+         * Set parent plan.
          *
-         * @param logType log type
-         * @return units per *
+         * @param p parent {@link Plan}
          */
-        int getUP(final int logType) {
-            switch (logType) {
-                case DataProvider.TYPE_CALL:
-                    return upc;
-                case DataProvider.TYPE_DATA:
-                    return upd;
-                case DataProvider.TYPE_MMS:
-                    return upm;
-                case DataProvider.TYPE_SMS:
-                    return ups;
-                default:
-                    return 0;
-            }
+        void setParent(final Plan p) {
+            parent = p;
+            tariff.parent = p == null ? null : p.tariff;
         }
 
         /**
@@ -798,10 +1064,18 @@ public final class RuleMatcher {
                 return;
             }
 
+            // drop cached totals, if logs were changed from outside
+            dropStaleTotals();
+
             // check whether date is in current bill period
             final long d = log.getLong(DataProvider.Logs.INDEX_DATE);
             if (this.currentBillday == null || nextBillday < d
                     || d < currentBillday.getTimeInMillis()) {
+                if (this.currentBillday != null) {
+                    final long bd = currentBillday.getTimeInMillis();
+                    periods.put(bd, new Totals(bd, tariff.billedAmount, tariff.billedCost, dirty));
+                    dirty = false;
+                }
                 final Calendar now = Calendar.getInstance();
                 now.setTimeInMillis(d);
                 currentBillday = DataProvider.Plans.getBillDay(this.billperiod, billday,
@@ -815,17 +1089,7 @@ public final class RuleMatcher {
                     return;
                 }
                 nextBillday = nbd.getTimeInMillis();
-
-                // load old stats
-                final DataProvider.Plans.Plan plan = DataProvider.Plans.Plan.getPlan(
-                        cResolver, id, now, false, false);
-                if (plan == null) {
-                    billedAmount = 0f;
-                    billedCost = 0f;
-                } else {
-                    billedAmount = plan.bpBa;
-                    billedCost = plan.cost;
-                }
+                loadTotals(currentBillday.getTimeInMillis());
             }
             if (this.parent != null) {
                 parent.checkBillday(log);
@@ -833,53 +1097,93 @@ public final class RuleMatcher {
         }
 
         /**
-         * @return remaining limit before it is reached.
+         * Drop cached totals, if {@link DataProvider.PlanTotals} were reset since they were
+         * loaded. They are loaded again with the next log.
+         *
+         * @return true, if totals were dropped
          */
-        float getRemainingLimit() {
-            Log.d(TAG, "getRemainingLimit(): " + id);
-            if (this.parent != null && limitType == DataProvider.LIMIT_TYPE_NONE) {
-                Log.d(TAG, "check parent");
-                return parent.getRemainingLimit();
-            } else {
-                Log.d(TAG, "ltype: " + limitType);
-                switch (this.limitType) {
-                    case DataProvider.LIMIT_TYPE_COST:
-                        Log.d(TAG, "bc<lt " + billedCost * CallMeter.HUNDRET + "<" + limit);
-                        return limit - billedCost * CallMeter.HUNDRET;
-                    case DataProvider.LIMIT_TYPE_UNITS:
-                        Log.d(TAG, "ba<lt " + billedAmount + "<" + limit);
-                        return limit - billedAmount;
-                    default:
-                        return 0;
-                }
+        private boolean dropStaleTotals() {
+            final int g = totalsGeneration;
+            if (generation == g || cResolver == null) {
+                return false;
             }
+            generation = g;
+            currentBillday = null;
+            periods.clear();
+            dirty = false;
+            return true;
         }
 
         /**
-         * Round up time with bill mode in mind.
+         * Load totals of the current bill period. Totals are taken from this run, from
+         * {@link DataProvider.PlanTotals} or from summing up all logs, in that order.
          *
-         * @param time time
-         * @return rounded time
+         * @param bd start of current bill period
          */
-        private long roundTime(final long time) {
-            // 0 => 0
-            if (time <= 0) {
-                return 0;
+        private void loadTotals(final long bd) {
+            final Tariff t = tariff;
+            final Totals old = periods.remove(bd);
+            if (old != null) {
+                t.billedAmount = old.billedAmount;
+                t.billedCost = old.billedCost;
+                dirty = old.dirty;
+                return;
+            }
+            if (rerating || cResolver == null) {
+                t.billedAmount = 0f;
+                t.billedCost = 0f;
+                dirty = true;
+                return;
+            }
+            final float[] saved = DataProvider.PlanTotals.getTotals(cResolver, id, bd);
+            if (saved != null) {
+                t.billedAmount = saved[0];
+                t.billedCost = saved[1];
+                dirty = false;
+                return;
             }
-            final long fl = billModeFirstLength;
-            final long nl = billModeNextLength;
-            // !0 ..
-            if (time <= fl) { // round first slot
-                return fl;
+            // load old stats of the whole bill period
+            final DataProvider.Plans.Plan plan = DataProvider.Plans.Plan.getPlan(
+                    cResolver, id, nextBillday - 1L, false, false);
+            if (plan == null) {
+                t.billedAmount = 0f;
+                t.billedCost = 0f;
+            } else {
+                t.billedAmount = plan.bpBa;
+                t.billedCost = plan.cost;
             }
-            if (nl == 0) {
-                return fl;
+            dirty = true;
+        }
+
+        /**
+         * Save all changed totals. Stale totals are dropped instead.
+         *
+         * @param writer {@link LogResultWriter}
+         */
+        void saveTotals(final LogResultWriter writer) {
+            if (dropStaleTotals()) {
+                return;
+            }
+            if (!periods.isEmpty()) {
+                for (Totals t : periods.values()) {
+                    if (t.dirty) {
+                        writer.writeTotals(id, t.billday, t.billedAmount, t.billedCost);
+                        t.dirty = false;
+                    }
+                }
             }
-            if (time % nl == 0 || nl == 1) {
-                return time;
+            if (dirty && currentBillday != null) {
+                writer.writeTotals(id, currentBillday.getTimeInMillis(), tariff.billedAmount,
+                        tariff.billedCost);
+                dirty = false;
             }
-            // round up to next full slot
-            return ((time / nl) + 1) * nl;
+        }
+
+        /**
+         * @return remaining limit before it is reached.
+         */
+        float getRemainingLimit() {
+            return tariff.getRemainingLimit();
         }
 
         /**
@@ -890,28 +1194,10 @@ public final class RuleMatcher {
          * @param t      type of log
          */
         void updatePlan(final float amount, final float cost, final int t) {
-            billedAmount += amount;
-            billedCost += cost;
-            final Plan pp = parent;
-            if (pp != null) {
-                if (this.type != DataProvider.TYPE_MIXED && pp.type == DataProvider.TYPE_MIXED) {
-                    switch (t) {
-                        case DataProvider.TYPE_CALL:
-                            pp.billedAmount += amount * pp.upc / CallMeter.SECONDS_MINUTE;
-                            break;
-                        case DataProvider.TYPE_MMS:
-                            pp.billedAmount += amount * pp.upm;
-                            break;
-                        case DataProvider.TYPE_SMS:
-                            pp.billedAmount += amount * pp.ups;
-                            break;
-                        default:
-                            break;
-                    }
-                } else {
-                    pp.billedAmount += amount;
-                }
-                parent.billedCost += cost;
+            tariff.update(amount, cost, t);
+            dirty = true;
+            if (parent != null) {
+                parent.dirty = true;
             }
         }
 
@@ -922,45 +1208,17 @@ public final class RuleMatcher {
          * @return billed amount.
          */
         float getBilledAmount(final Cursor log) {
-            long amount = log.getLong(DataProvider.Logs.INDEX_AMOUNT);
-            final int t = log.getInt(DataProvider.Logs.INDEX_TYPE);
-            float ret = 0f;
-            switch (t) {
-                case DataProvider.TYPE_CALL:
-                    ret = roundTime(amount);
-                    if (this.stripSeconds > 0) {
-                        ret -= stripSeconds;
-                        if (ret < 0f) {
-                            ret = 0f;
-                        }
-                    }
-                    if (this.stripPast > 0 && ret > stripPast) {
-                        ret = stripPast;
-                    }
-                    break;
-                default:
-                    ret = amount;
-                    break;
-            }
+            return tariff.getBilledAmount(log.getInt(DataProvider.Logs.INDEX_TYPE),
+                    log.getLong(DataProvider.Logs.INDEX_AMOUNT));
+        }
 
-            if (this.type == DataProvider.TYPE_MIXED) {
-                switch (t) {
-                    case DataProvider.TYPE_CALL:
-                        ret = ret * upc / CallMeter.SECONDS_MINUTE;
-                        break;
-                    case DataProvider.TYPE_SMS:
-                        ret = ret * ups;
-                        break;
-                    case DataProvider.TYPE_MMS:
-                        ret = ret * upm;
-                        break;
-                    case DataProvider.TYPE_DATA:
-                        ret = ret * upd / CallMeter.BYTE_MB;
-                    default:
-                        break;
-                }
-            }
-            return ret;
+        /**
+         * Get SQL expressions billing a log.
+         *
+         * @return {billed amount, cost} expressions; null if billing depends on other logs
+         */
+        String[] getRatingSql() {
+            return tariff.getRatingSql();
         }
 
         /**
@@ -971,95 +1229,7 @@ public final class RuleMatcher {
          * @return cost
          */
         float getCost(final Cursor log, final float bAmount) {
-            final int t = log.getInt(DataProvider.Logs.INDEX_TYPE);
-            final int pt = type;
-
-            float ret = 0f;
-            float as0; // split amount: before limit
-            float as1; // split amount: after limit
-            Plan p;
-            float f = 1; // factor for mixed plans with limits merging this plan
-            if (this.parent != null && limitType == DataProvider.LIMIT_TYPE_NONE) {
-                p = parent;
-                if (pt != DataProvider.TYPE_MIXED && p.type == DataProvider.TYPE_MIXED) {
-                    f = 1f / p.getUP(t);
-                    switch (t) {
-                        case DataProvider.TYPE_CALL:
-                            f *= CallMeter.SECONDS_MINUTE;
-                            break;
-                        case DataProvider.TYPE_DATA:
-                            f *= CallMeter.BYTE_MB;
-                            break;
-                        default:
-                            // nothing to do
-                            break;
-                    }
-                }
-            } else {
-                p = this;
-            }
-            // split amount at limit
-            float remaining = p.getRemainingLimit() * f;
-            if (p.limitType == DataProvider.LIMIT_TYPE_NONE || remaining <= 0f) {
-                as0 = 0;
-                as1 = bAmount;
-            } else if (p.limitType == DataProvider.LIMIT_TYPE_UNITS && remaining < bAmount) {
-                as0 = remaining;
-                as1 = bAmount - remaining;
-            } else { // TODO: fix for LIMIT_TYPE_COST
-                as0 = bAmount;
-                as1 = 0;
-            }
-
-            if (t == DataProvider.TYPE_SMS || pt == DataProvider.TYPE_MIXED) {
-                ret += as0 * costPerItemInLimit + as1 * costPerItem;
-            } else {
-                ret += as0 > 0f ? costPerItemInLimit : costPerItem;
-            }
-
-            switch (t) {
-                case DataProvider.TYPE_CALL:
-                    if (bAmount <= billModeFirstLength) {
-                        // bAmount is most likely < remaining
-                        ret += (as0 * costPerAmountInLimit1 + as1 * costPerAmount1)
-                                / CallMeter.SECONDS_MINUTE;
-                    } else if (as0 == 0f) {
-                        ret += costPerAmount1 * billModeFirstLength
-                                / CallMeter.SECONDS_MINUTE;
-                        ret += costPerAmount2 * (bAmount - billModeFirstLength)
-                                / CallMeter.SECONDS_MINUTE;
-                    } else if (as1 == 0f) {
-                        ret += costPerAmountInLimit1 * billModeFirstLength
-                                / CallMeter.SECONDS_MINUTE;
-                        ret += costPerAmountInLimit2 * (bAmount - billModeFirstLength)
-                                / CallMeter.SECONDS_MINUTE;
-                    } else if (as0 == billModeFirstLength) {
-                        ret += costPerAmountInLimit1 * billModeFirstLength
-                                / CallMeter.SECONDS_MINUTE;
-                        ret += costPerAmount2 * (bAmount - billModeFirstLength)
-                                / CallMeter.SECONDS_MINUTE;
-                    } else if (as0 > billModeFirstLength) {
-                        ret += costPerAmountInLimit1 * billModeFirstLength
-                                / CallMeter.SECONDS_MINUTE;
-                        ret += (as0 - billModeFirstLength) * costPerAmountInLimit2
-                                / CallMeter.SECONDS_MINUTE;
-                        ret += as1 * costPerAmount2 / CallMeter.SECONDS_MINUTE;
-                    } else { // as0 < billModeFirstLength && as0 > 0 && as1 > 0
-                        ret += as0 * costPerAmountInLimit1 / CallMeter.SECONDS_MINUTE;
-                        ret += (this.billModeFirstLength - as0) * costPerAmount1
-                                / CallMeter.SECONDS_MINUTE;
-                        ret += costPerAmount2 * (bAmount - billModeFirstLength)
-                                / CallMeter.SECONDS_MINUTE;
-                    }
-                    break;
-                case DataProvider.TYPE_DATA:
-                    ret += (as0 * costPerAmountInLimit1 + as1 * costPerAmount1)
-                            / CallMeter.BYTE_MB;
-                    break;
-                default:
-                    break;
-            }
-            return ret;
+            return tariff.getCost(log.getInt(DataProvider.Logs.INDEX_TYPE), bAmount);
         }
 
         /**
@@ -1070,99 +1240,743 @@ public final class RuleMatcher {
          * @return free cost
          */
         float getFree(final Cursor log, final float cost) {
-            if (this.limitType != DataProvider.LIMIT_TYPE_COST) {
-                if (this.parent != null) {
-                    return parent.getFree(log, cost);
+            return tariff.getFree(cost);
+        }
+    }
+
+    /**
+     * Compiled dispatch table of {@link Rule}s. Each log is checked against the {@link Rule}s
+     * which may match its (type, direction, roamed, my number) only. The order of {@link Rule}s
+     * is kept, so the first matching {@link Rule} still wins.
+     *
+     * @author flx
+     */
+    static final class RuleTable {
+
+        /** Number of log types in table: call, sms, mms, data. */
+        private static final int TYPES = DataProvider.TYPE_DATA - DataProvider.TYPE_CALL + 1;
+        /** Number of keys in table. */
+        private static final int KEYS = TYPES * 2 * 2;
+
+        /** All {@link Rule}s in order. */
+        private final Rule[] all;
+        /** Candidates per key, not yet filtered by my own number. */
+        private final Rule[][] candidates = new Rule[KEYS][];
+        /** Candidates per key and my own number. Filled on demand. */
+        private final ArrayList<HashMap<String, Rule[]>> byMyNumber;
+
+        /**
+         * Compile the dispatch table.
+         *
+         * @param list {@link Rule}s in order
+         */
+        RuleTable(final ArrayList<Rule> list) {
+            all = list.toArray(new Rule[list.size()]);
+            byMyNumber = new ArrayList<HashMap<String, Rule[]>>(KEYS);
+            final ArrayList<Rule> l = new ArrayList<Rule>(all.length);
+            for (int k = 0; k < KEYS; k++) {
+                final int t = DataProvider.TYPE_CALL + k / 4;
+                final int dir = (k / 2) % 2;
+                final int isRoamed = k % 2;
+                l.clear();
+                for (Rule r : all) {
+                    if (r.isCandidate(t, dir, isRoamed)) {
+                        l.add(r);
+                    }
                 }
-                return 0f;
+                candidates[k] = l.toArray(new Rule[l.size()]);
+                byMyNumber.add(new HashMap<String, Rule[]>());
+                Log.d(TAG, "rule table: type=" + t + " direction=" + dir + " roamed=" + isRoamed
+                        + ": " + candidates[k].length + "/" + all.length);
+            }
+        }
+
+        /**
+         * Get key for a log.
+         *
+         * @param t        type of log
+         * @param dir      direction of log
+         * @param isRoamed roamed state of log
+         * @return key, -1 if log is not covered by the table
+         */
+        private static int getKey(final int t, final int dir, final int isRoamed) {
+            if (t < DataProvider.TYPE_CALL || t > DataProvider.TYPE_DATA) {
+                return -1;
+            }
+            if (dir != DataProvider.DIRECTION_IN && dir != DataProvider.DIRECTION_OUT) {
+                return -1;
+            }
+            if (isRoamed != 0 && isRoamed != 1) {
+                return -1;
             }
-            final float l = ((float) limit) / CallMeter.HUNDRET;
-            if (l <= billedCost) {
-                return 0f;
+            return (t - DataProvider.TYPE_CALL) * 4 + dir * 2 + isRoamed;
+        }
+
+        /**
+         * Get candidates for a log.
+         *
+         * @param log {@link Cursor} representing the log
+         * @return {@link Rule}s, which passed isCandidate() for this log; null if the log needs
+         * to be checked against all {@link Rule}s
+         */
+        Rule[] get(final Cursor log) {
+            final int k = getKey(log.getInt(DataProvider.Logs.INDEX_TYPE),
+                    log.getInt(DataProvider.Logs.INDEX_DIRECTION),
+                    log.getInt(DataProvider.Logs.INDEX_ROAMED));
+            if (k < 0) {
+                return null;
             }
-            if (l >= billedCost + cost) {
-                return cost;
+            final String myNumber = log.getString(DataProvider.Logs.INDEX_MYNUMBER);
+            final HashMap<String, Rule[]> m = byMyNumber.get(k);
+            synchronized (m) {
+                Rule[] ret = m.get(myNumber);
+                if (ret == null) {
+                    final ArrayList<Rule> l = new ArrayList<Rule>(candidates[k].length);
+                    for (Rule r : candidates[k]) {
+                        if (r.isCandidate(myNumber)) {
+                            l.add(r);
+                        }
+                    }
+                    ret = l.toArray(new Rule[l.size()]);
+                    m.put(myNumber, ret);
+                }
+                return ret;
             }
-            return l - billedCost;
+        }
+
+        /**
+         * @return all {@link Rule}s in order
+         */
+        Rule[] getAll() {
+            return all;
+        }
+
+        /**
+         * @return number of {@link Rule}s
+         */
+        int size() {
+            return all.length;
         }
     }
 
     /**
-     * List of {@link Rule}s.
+     * Selects {@link Rule}s for a chunk of logs. Runs on a pool thread in parallel mode.
      */
-    private static ArrayList<Rule> rules = null;
+    private static final class Selector implements Callable<Selector> {
+
+        /** {@link RuleMatcher} of this run. */
+        private final RuleMatcher matcher;
+        /** Logs. */
+        private final MatrixCursor logs;
+        /** Selected {@link Rule}s per log. */
+        private final Rule[][] selected;
+        /** Number of checked {@link Rule}s. */
+        private long checked = 0L;
+
+        /**
+         * Default constructor.
+         *
+         * @param matcher0 {@link RuleMatcher} of this run
+         * @param logs0    logs
+         */
+        Selector(final RuleMatcher matcher0, final MatrixCursor logs0) {
+            matcher = matcher0;
+            logs = logs0;
+            selected = new Rule[logs0.getCount()][];
+        }
+
+        @Override
+        public Selector call() {
+            for (int i = 0; logs.moveToPosition(i); i++) {
+                selected[i] = matcher.select(logs, this);
+            }
+            return this;
+        }
+    }
+
     /**
-     * List of {@link Plan}s.
+     * State of a single run of match(). Posts progress and saves logs in batches, each with a
+     * {@link DataProvider.Checkpoint}.
      */
-    private static SparseArray<Plan> plans = null;
+    private static final class Run {
+
+        /** {@link RuleMatcher} of this run. */
+        private final RuleMatcher matcher;
+        /** {@link LogResultWriter}. */
+        private final LogResultWriter writer;
+        /** Number of logs matched by an interrupted run before this one. */
+        private final int done;
+        /** Number of logs, including those matched before. */
+        private final int count;
+        /** Match logs with low priority. */
+        private final boolean lowPriority;
+        /** Maximal number of logs saved in one batch. */
+        private final int batchSize;
+        /** Maximal time between saving two batches of logs. */
+        private final long batchMillis;
+        /** Time of last progress update. */
+        private long lastProgress;
+        /** Time of last saved batch. */
+        private long lastBatch;
+        /** Number of logs processed, including the current one. */
+        private int i = 1;
+        /** Id of current log. */
+        private long lid = -1L;
+        /** Date of current log. */
+        private long date = -1L;
+        /** Number of cancel() calls before this run. */
+        private final int cancels = cancelCount;
+
+        /**
+         * Default constructor.
+         *
+         * @param matcher0     {@link RuleMatcher} of this run
+         * @param writer0      {@link LogResultWriter}
+         * @param done0        number of logs matched by an interrupted run before
+         * @param count0       number of logs, including those matched before
+         * @param lowPriority0 match logs with low priority
+         */
+        Run(final RuleMatcher matcher0, final LogResultWriter writer0, final int done0,
+                final int count0, final boolean lowPriority0) {
+            matcher = matcher0;
+            writer = writer0;
+            done = done0;
+            count = count0;
+            lowPriority = lowPriority0;
+            if (DataProvider.isWriteAheadLogging()) {
+                batchSize = BATCH_SIZE;
+                batchMillis = BATCH_MILLIS;
+            } else {
+                batchSize = BATCH_SIZE_JOURNAL;
+                batchMillis = BATCH_MILLIS_JOURNAL;
+            }
+            lastProgress = SystemClock.elapsedRealtime();
+            lastBatch = lastProgress;
+        }
+
+        /**
+         * Save pending logs and totals together with the checkpoint.
+         *
+         * @throws OperationApplicationException OperationApplicationException
+         * @throws RemoteException               RemoteException
+         */
+        void save() throws OperationApplicationException, RemoteException {
+            if (writer.size() > 0 && lid >= 0L) {
+                writer.writeCheckpoint(lid, date, done + i, count);
+            }
+            matcher.saveResults(writer);
+        }
+
+        /**
+         * Call after each log.
+         *
+         * @param log {@link Cursor} positioned on the current log
+         * @return false if the run was cancelled; logs matched so far are saved
+         * @throws OperationApplicationException OperationApplicationException
+         * @throws RemoteException               RemoteException
+         */
+        boolean next(final Cursor log) throws OperationApplicationException, RemoteException {
+            lid = log.getLong(DataProvider.Logs.INDEX_ID);
+            date = log.getLong(DataProvider.Logs.INDEX_DATE);
+            if (isCancelled()) {
+                Log.i(TAG, "match cancelled after log " + lid + ": " + (done + i) + "/" + count);
+                save();
+                return false;
+            }
+            final long now = SystemClock.elapsedRealtime();
+            if (now - lastProgress >= PROGRESS_MILLIS) {
+                final Handler h = Plans.getHandler();
+                if (h != null) {
+                    final Message m = h.obtainMessage(Plans.MSG_BACKGROUND_PROGRESS_MATCHER);
+                    m.arg1 = done + i;
+                    m.arg2 = count;
+                    Log.d(TAG, "send progress: " + m.arg1 + "/" + count);
+                    m.sendToTarget();
+                } else {
+                    Log.d(TAG, "send progress: " + i + " handler=null");
+                }
+                lastProgress = now;
+            }
+            if (lowPriority) {
+                if (i % PROGRESS_STEPS == 0) {
+                    Log.d(TAG, "save logs..");
+                    save();
+                    Log.d(TAG, "sleeping..");
+                    try {
+                        Thread.sleep(CallMeter.MILLIS);
+                    } catch (InterruptedException e) {
+                        Log.e(TAG, "sleep interrupted", e);
+                    }
+                    Log.d(TAG, "sleep finished");
+                }
+            } else if (writer.size() >= batchSize || now - lastBatch >= batchMillis) {
+                Log.d(TAG, "save logs: " + writer.size());
+                save();
+                lastBatch = SystemClock.elapsedRealtime();
+                Log.d(TAG, "saved logs", now);
+            }
+            ++i;
+            return true;
+        }
+
+        /**
+         * @return true, if cancel() was called since this run started
+         */
+        boolean isCancelled() {
+            return cancelCount != cancels;
+        }
+    }
 
     /**
-     * Default constructor.
+     * Bounded LRU map of log signatures to results of select().
      */
-    private RuleMatcher() {
+    private static final class SelectionMemo extends LinkedHashMap<String, Rule[]> {
+
+        /** Serial version UID. */
+        private static final long serialVersionUID = 3214086525306474113L;
+
+        /**
+         * Default constructor.
+         */
+        SelectionMemo() {
+            super(MEMO_SIZE, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<String, Rule[]> eldest) {
+            return size() > MEMO_SIZE;
+        }
     }
 
     /**
-     * Load {@link Rule}s and {@link Plan}s.
-     *
-     * @param context {@link Context}
+     * Compiled {@link Rule}s: {@link RuleTable} and memo of select(). Nothing but the memo
+     * changes after loading, so a single {@link Ruleset} is shared by all running matches
+     * until flush() replaces it.
      */
-    private static void load(final Context context) {
-        Log.d(TAG, "load()");
-        if (rules != null && plans != null) {
-            return;
+    static final class Ruleset {
+
+        /** Dispatch table of {@link Rule}s. */
+        private final RuleTable table;
+        /** Memorized results of select(). Synchronize on it before access. */
+        private final SelectionMemo memo = new SelectionMemo();
+        /** Number of logs selected from memo. */
+        private long memoHits = 0L;
+        /** Number of logs not found in memo. */
+        private long memoMisses = 0L;
+
+        /**
+         * Load and compile all active {@link Rule}s with their groups.
+         *
+         * @param context {@link Context}
+         */
+        Ruleset(final Context context) {
+            final long ct = SystemClock.elapsedRealtime();
+            final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
+            final ContentResolver cr = context.getContentResolver();
+
+            // load all number and hour groups at once, rules share them
+            final Rule.Groups groups = new Rule.Groups(cr,
+                    p.getBoolean(Preferences.PREFS_STRIP_LEADING_ZEROS, false),
+                    p.getString(Preferences.PREFS_INT_PREFIX, ""));
+
+            final ArrayList<Rule> rules = new ArrayList<Rule>();
+            final Cursor cursor = cr.query(DataProvider.Rules.CONTENT_URI,
+                    DataProvider.Rules.PROJECTION, DataProvider.Rules.ACTIVE + ">0", null,
+                    DataProvider.Rules.ORDER);
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    rules.add(new Rule(groups, cursor, -1));
+                } while (cursor.moveToNext());
+            }
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+            table = new RuleTable(rules);
+            Log.d(TAG, "load rules: " + rules.size() + " groups=" + groups.size(), ct);
         }
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        stripLeadingZeros = prefs.getBoolean(Preferences.PREFS_STRIP_LEADING_ZEROS, false);
-        intPrefix = prefs.getString(Preferences.PREFS_INT_PREFIX, "");
-        zeroPrefix = !intPrefix.equals("+44") && !intPrefix.equals("+49");
-        prefs = null;
 
-        final ContentResolver cr = context.getContentResolver();
+        /**
+         * Get memorized result of select().
+         *
+         * @param key log's signature
+         * @return {@link Rule}s, NO_RULES if none matched; null if not memorized
+         */
+        private Rule[] getMemo(final String key) {
+            synchronized (memo) {
+                final Rule[] ret = memo.get(key);
+                if (ret == null) {
+                    ++memoMisses;
+                } else {
+                    ++memoHits;
+                }
+                return ret;
+            }
+        }
 
-        // load rules
-        rules = new ArrayList<Rule>();
-        Cursor cursor = cr.query(DataProvider.Rules.CONTENT_URI, DataProvider.Rules.PROJECTION,
-                DataProvider.Rules.ACTIVE + ">0", null, DataProvider.Rules.ORDER);
-        if (cursor != null && cursor.moveToFirst()) {
-            do {
-                rules.add(new Rule(cr, cursor, -1));
-            } while (cursor.moveToNext());
+        /**
+         * Memorize result of select().
+         *
+         * @param key      log's signature
+         * @param selected {@link Rule}s, null if none matched
+         */
+        private void putMemo(final String key, final Rule[] selected) {
+            synchronized (memo) {
+                memo.put(key, selected == null ? NO_RULES : selected);
+            }
         }
+    }
+
+    /** Empty result of select() in memo. */
+    private static final Rule[] NO_RULES = new Rule[0];
+    /** Current {@link Ruleset}. Loaded on demand. */
+    private static volatile Ruleset ruleset = null;
+    /** Incremented on flush(). */
+    private static volatile int rulesetGeneration = 0;
+    /** Incremented on cancel(). */
+    private static volatile int cancelCount = 0;
+    /** Index of {@link DataProvider.WebSMS}. Loaded on demand. */
+    private static volatile DateIndex webSMSIndex = null;
+    /** Index of {@link DataProvider.SipCall}. Loaded on demand. */
+    private static volatile DateIndex sipCallIndex = null;
+    /** Incremented on invalidateWebSMS(). */
+    private static volatile int webSMSGeneration = 0;
+    /** Incremented on invalidateSipCall(). */
+    private static volatile int sipCallGeneration = 0;
+    /** Generation of {@link DataProvider.PlanTotals}, incremented on reset. */
+    private static volatile int totalsGeneration = 0;
+
+    /** {@link ContentResolver}. */
+    private final ContentResolver cr;
+    /** {@link Ruleset} of this run; null, if logs are billed to a given {@link Plan} only. */
+    private final Ruleset rs;
+    /** {@link Plan}s of this run by id, holding their totals. */
+    private final SparseArray<Plan> plans;
+    /** {@link TimeZone} used for matching hours. */
+    private final TimeZone tz = TimeZone.getDefault();
+    /** Number of logs checked. */
+    private int statLogs = 0;
+    /** Number of {@link Rule}s checked. */
+    private long statCandidates = 0L;
+
+    /**
+     * Start a single run. All {@link Plan}s are loaded, their totals are loaded on demand. Runs
+     * do not share any state but their {@link Ruleset}.
+     *
+     * @param cr0 {@link ContentResolver}
+     * @param rs0 {@link Ruleset}; null, if logs are billed to a given {@link Plan} only
+     */
+    private RuleMatcher(final ContentResolver cr0, final Ruleset rs0) {
+        cr = cr0;
+        rs = rs0;
+        final Cursor cursor = cr0.query(DataProvider.Plans.CONTENT_URI,
+                DataProvider.Plans.PROJECTION, null, null, null);
+        plans = loadPlans(cr0, cursor);
         if (cursor != null && !cursor.isClosed()) {
             cursor.close();
-            cursor = null;
         }
+    }
+
+    /**
+     * Strip leading zeros.
+     *
+     * @param number number
+     * @return number without leading zeros
+     */
+    private static String stripLeadingZeros(final String number) {
+        final int l = number.length();
+        int i = 0;
+        while (i < l && number.charAt(i) == '0') {
+            ++i;
+        }
+        if (i == 0) {
+            return number;
+        }
+        return number.substring(i);
+    }
+
+    /**
+     * Convert national number to international. Old format internationals were converted to new
+     * format.
+     *
+     * @param iPrefix default prefix
+     * @param zPrefix concat prefix and number without leading zeros at number
+     * @param number  national number
+     * @return international number
+     */
+    private static String national2international(final String iPrefix, final boolean zPrefix,
+            final String number) {
+        if (number.startsWith("00800") || number.startsWith("000800")) {
+            return number;
+        } else if (number.startsWith("+")) {
+            return number;
+        } else if (number.startsWith("00")) {
+            return "+" + number.substring(2);
+        } else if (number.startsWith("0")) {
+            return iPrefix + number.substring(1);
+        } else if (iPrefix.length() > 1 && number.startsWith(iPrefix.substring(1))) {
+            return "+" + number;
+        } else if (zPrefix) {
+            return iPrefix + number;
+        } else {
+            return number;
+        }
+    }
+
+    /**
+     * Normalize a log's remote part the way it is compared to the numbers of a {@link Rule}.
+     *
+     * @param number    remote part as saved in {@link DataProvider.Logs#REMOTE}
+     * @param strip     strip leading zeros
+     * @param iPrefix international number prefix
+     * @return normalized number for {@link DataProvider.Logs#REMOTE_NORMALIZED}
+     */
+    public static String normalizeRemote(final String number, final boolean strip,
+            final String iPrefix) {
+        if (number == null || number.length() <= 1) {
+            return number;
+        }
+        String ret = number;
+        if (strip) {
+            ret = stripLeadingZeros(ret);
+        }
+        if (iPrefix != null && iPrefix.length() > 1) {
+            ret = national2international(iPrefix,
+                    !iPrefix.equals("+44") && !iPrefix.equals("+49"), ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Normalize a log's remote part as set in preferences.
+     *
+     * @param p      {@link SharedPreferences}
+     * @param number remote part as saved in {@link DataProvider.Logs#REMOTE}
+     * @return normalized number for {@link DataProvider.Logs#REMOTE_NORMALIZED}
+     */
+    public static String normalizeRemote(final SharedPreferences p, final String number) {
+        return normalizeRemote(number, p.getBoolean(Preferences.PREFS_STRIP_LEADING_ZEROS, false),
+                p.getString(Preferences.PREFS_INT_PREFIX, ""));
+    }
+
+    /**
+     * Recompute {@link DataProvider.Logs#REMOTE_NORMALIZED} of all logs after changing the
+     * preferences, {@link Rule}s are reloaded then. Logs without normalized remote part are
+     * filled on upgrade and import, see {@link DataProvider.Logs}.
+     *
+     * @param context {@link Context}
+     * @param all     recompute all logs, not only logs without normalized remote part
+     * @param strip   strip leading zeros
+     * @param prefix  international number prefix
+     */
+    public static synchronized void normalizeRemotes(final Context context, final boolean all,
+            final boolean strip, final String prefix) {
+        if (all) {
+            // numbers groups were compiled with the old preferences
+            flush();
+        }
+        final SQLiteDatabase db = DataProvider.getWritableDatabase();
+        if (db != null) {
+            DataProvider.Logs.normalizeRemotes(db, all, strip, prefix);
+        } else if (all) {
+            // no direct access: drop stale values, they are normalized while matching
+            final ContentValues cv = new ContentValues();
+            cv.putNull(DataProvider.Logs.REMOTE_NORMALIZED);
+            context.getContentResolver().update(DataProvider.Logs.CONTENT_URI, cv, null, null);
+        }
+    }
+
+    /**
+     * Get the current {@link Ruleset}.
+     *
+     * @param context {@link Context}
+     * @return {@link Ruleset}
+     */
+    static Ruleset getRuleset(final Context context) {
+        Ruleset ret = ruleset;
+        if (ret == null) {
+            final int g = rulesetGeneration;
+            ret = new Ruleset(context);
+            if (g == rulesetGeneration) {
+                ruleset = ret;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Load {@link Plan}s. Bill periods and merged plans are resolved from the same
+     * {@link Cursor}.
+     *
+     * @param cr     {@link ContentResolver}; null for {@link Plan}s not backed by
+     *               {@link DataProvider.PlanTotals}
+     * @param cursor {@link Cursor} of all {@link DataProvider.Plans} in default order
+     * @return real {@link Plan}s by id
+     */
+    static SparseArray<Plan> loadPlans(final ContentResolver cr, final Cursor cursor) {
+        return loadPlans(cr, cursor, -1);
+    }
 
-        // load plans
-        plans = new SparseArray<Plan>();
-        cursor = cr.query(DataProvider.Plans.CONTENT_URI, DataProvider.Plans.PROJECTION,
-                DataProvider.Plans.WHERE_REALPLANS, null, null);
+    /**
+     * Load {@link Plan}s. Bill periods and merged plans are resolved from the same
+     * {@link Cursor}.
+     *
+     * @param cr     {@link ContentResolver}; null for {@link Plan}s not backed by
+     *               {@link DataProvider.PlanTotals}
+     * @param cursor {@link Cursor} of all {@link DataProvider.Plans} in default order
+     * @param pid    load this plan and its parent only; -1 for all plans
+     * @return real {@link Plan}s by id
+     */
+    private static SparseArray<Plan> loadPlans(final ContentResolver cr, final Cursor cursor,
+            final int pid) {
+        final SparseArray<Plan> ret = new SparseArray<Plan>();
+        final SparseArray<long[]> billPeriods = new SparseArray<long[]>();
+        final SparseIntArray parents = new SparseIntArray();
         if (cursor != null && cursor.moveToFirst()) {
             do {
                 final int i = cursor.getInt(DataProvider.Plans.INDEX_ID);
-                plans.put(i, new Plan(cr, cursor));
+                if (cursor.getInt(DataProvider.Plans.INDEX_TYPE)
+                        == DataProvider.TYPE_BILLPERIOD) {
+                    billPeriods.put(i, new long[]{
+                            cursor.getInt(DataProvider.Plans.INDEX_BILLPERIOD),
+                            cursor.getLong(DataProvider.Plans.INDEX_BILLDAY)});
+                }
+                final String merged = cursor.getString(DataProvider.Plans.INDEX_MERGED_PLANS);
+                if (merged != null) {
+                    for (String s : merged.split(",")) {
+                        final int child = Utils.parseInt(s, -1);
+                        // first parent in default order wins, like Plans.getParent()
+                        if (child >= 0 && parents.indexOfKey(child) < 0) {
+                            parents.put(child, i);
+                        }
+                    }
+                }
             } while (cursor.moveToNext());
-        }
-        if (cursor != null && !cursor.isClosed()) {
-            cursor.close();
-            cursor = null;
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                final int t = cursor.getInt(DataProvider.Plans.INDEX_TYPE);
+                final int i = cursor.getInt(DataProvider.Plans.INDEX_ID);
+                if (t != DataProvider.TYPE_BILLPERIOD && t != DataProvider.TYPE_SPACING
+                        && t != DataProvider.TYPE_TITLE
+                        && (pid < 0 || i == pid || i == parents.get(pid, -1))) {
+                    ret.put(i, new Plan(cr, cursor, billPeriods, parents));
+                }
+            }
         }
         // update parent references
-        int l = plans.size();
+        final int l = ret.size();
         for (int i = 0; i < l; i++) {
-            Plan p = plans.valueAt(i);
-            p.parent = plans.get(p.ppid);
+            Plan p = ret.valueAt(i);
+            p.setParent(ret.get(p.ppid));
         }
+        return ret;
     }
 
     /**
-     * Reload Rules and plans.
+     * Reload {@link Rule}s. Running matches keep their {@link Ruleset}, the next ones load a
+     * new one.
      */
     static void flush() {
         Log.d(TAG, "flush()");
-        rules = null;
-        plans = null;
+        ++rulesetGeneration;
+        ruleset = null;
+        invalidateWebSMS();
+        invalidateSipCall();
+    }
+
+    /**
+     * Get index of {@link DataProvider.WebSMS}.
+     *
+     * @param cr {@link ContentResolver}
+     * @return {@link DateIndex}
+     */
+    private static DateIndex getWebSMSIndex(final ContentResolver cr) {
+        DateIndex ret = webSMSIndex;
+        if (ret == null) {
+            final int g = webSMSGeneration;
+            ret = new DateIndex(cr, DataProvider.WebSMS.CONTENT_URI,
+                    DataProvider.WebSMS.PROJECTION, DataProvider.WebSMS.DATE,
+                    DataProvider.WebSMS.INDEX_CONNECTOR, DataProvider.WebSMS.INDEX_DATE);
+            if (g == webSMSGeneration) {
+                webSMSIndex = ret;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get index of {@link DataProvider.SipCall}.
+     *
+     * @param cr {@link ContentResolver}
+     * @return {@link DateIndex}
+     */
+    private static DateIndex getSipCallIndex(final ContentResolver cr) {
+        DateIndex ret = sipCallIndex;
+        if (ret == null) {
+            final int g = sipCallGeneration;
+            ret = new DateIndex(cr, DataProvider.SipCall.CONTENT_URI,
+                    DataProvider.SipCall.PROJECTION, DataProvider.SipCall.DATE,
+                    DataProvider.SipCall.INDEX_PROVIDER, DataProvider.SipCall.INDEX_DATE);
+            if (g == sipCallGeneration) {
+                sipCallIndex = ret;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Drop index of {@link DataProvider.WebSMS}. Call after inserting new rows.
+     */
+    static void invalidateWebSMS() {
+        ++webSMSGeneration;
+        webSMSIndex = null;
+    }
+
+    /**
+     * Drop index of {@link DataProvider.SipCall}. Call after inserting new rows.
+     */
+    static void invalidateSipCall() {
+        ++sipCallGeneration;
+        sipCallIndex = null;
+    }
+
+    /**
+     * Cancel all running matches. Logs matched so far are saved with a
+     * {@link DataProvider.Checkpoint}, the next run goes on from there.
+     */
+    public static void cancel() {
+        Log.i(TAG, "cancel()");
+        ++cancelCount;
+    }
+
+    /**
+     * Drop cached totals of all {@link Plan}s. Call after resetting
+     * {@link DataProvider.PlanTotals}.
+     */
+    static void invalidateTotals() {
+        ++totalsGeneration;
+    }
+
+    /**
+     * Save matched logs and totals of all {@link Plan}s.
+     *
+     * @param writer {@link LogResultWriter}
+     * @throws OperationApplicationException OperationApplicationException
+     * @throws RemoteException               RemoteException
+     */
+    private void saveResults(final LogResultWriter writer)
+            throws OperationApplicationException, RemoteException {
+        if (writer.size() == 0) {
+            // totals are checked for resets within the transaction of the logs they cover
+            return;
+        }
+        final int l = plans.size();
+        for (int i = 0; i < l; i++) {
+            final Plan p = plans.valueAt(i);
+            if (p != null) {
+                p.saveTotals(writer);
+            }
+        }
+        writer.flush();
     }
 
     /**
@@ -1187,81 +2001,449 @@ public final class RuleMatcher {
         flush();
     }
 
-    /** Internal ar for matchLog(). */
-    private static final String WHERE = DataProvider.Logs.ID + " = ?";
+    /**
+     * Unmatch logs, which may match differently after editing a rule. Call before deleting the
+     * rule.
+     *
+     * @param context     {@link Context}
+     * @param rid         rule's id
+     * @param typeChanged rule's type was changed
+     */
+    public static void unmatchRule(final Context context, final long rid,
+            final boolean typeChanged) {
+        Log.d(TAG, "unmatchRule(" + rid + ")");
+        final RematchScope scope = new RematchScope(context.getContentResolver());
+        scope.addRule(rid, typeChanged);
+        unmatch(context, scope);
+    }
+
+    /**
+     * Unmatch logs, which may match differently after editing a plan. Call before deleting the
+     * plan.
+     *
+     * @param context {@link Context}
+     * @param pid     plan's id
+     * @param deleted plan is about to be deleted
+     */
+    public static void unmatchPlan(final Context context, final long pid, final boolean deleted) {
+        Log.d(TAG, "unmatchPlan(" + pid + ")");
+        final RematchScope scope = new RematchScope(context.getContentResolver());
+        scope.addPlan(pid, deleted);
+        unmatch(context, scope);
+    }
+
+    /**
+     * Unmatch logs, which may match differently after editing a hour group.
+     *
+     * @param context {@link Context}
+     * @param gid     group's id
+     */
+    public static void unmatchHoursGroup(final Context context, final long gid) {
+        Log.d(TAG, "unmatchHoursGroup(" + gid + ")");
+        final RematchScope scope = new RematchScope(context.getContentResolver());
+        scope.addHoursGroup(gid);
+        unmatch(context, scope);
+    }
+
+    /**
+     * Unmatch logs, which may match differently after editing a number group.
+     *
+     * @param context {@link Context}
+     * @param gid     group's id
+     */
+    public static void unmatchNumbersGroup(final Context context, final long gid) {
+        Log.d(TAG, "unmatchNumbersGroup(" + gid + ")");
+        final RematchScope scope = new RematchScope(context.getContentResolver());
+        scope.addNumbersGroup(gid);
+        unmatch(context, scope);
+    }
+
+    /**
+     * Unmatch logs within a {@link RematchScope}.
+     *
+     * @param context {@link Context}
+     * @param scope   {@link RematchScope}
+     */
+    private static void unmatch(final Context context, final RematchScope scope) {
+        if (scope.isFull()) {
+            unmatch(context);
+            return;
+        }
+        scope.unmatch(context.getContentResolver());
+        flush();
+    }
+
+    /**
+     * Bill all logs of a plan again after changing its prices. Logs keep their plan and rule.
+     * Falls back to unmatchPlan() if some rule checks the limit of this plan.
+     *
+     * @param context {@link Context}
+     * @param pid     plan's id
+     */
+    public static synchronized void rerate(final Context context, final long pid) {
+        Log.d(TAG, "rerate(" + pid + ")");
+        final long ct = SystemClock.elapsedRealtime();
+        final ContentResolver cr = context.getContentResolver();
+        final RuleMatcher m = new RuleMatcher(cr, getRuleset(context));
+        final SparseArray<Plan> ps = m.plans;
+        final Plan p = ps.get((int) pid);
+        if (p == null) {
+            Log.w(TAG, "no plan to rerate: " + pid);
+            return;
+        }
+        // plans sharing totals with this plan
+        final Plan root = p.parent == null ? p : p.parent;
+        final ArrayList<Plan> family = new ArrayList<Plan>();
+        final int l = ps.size();
+        for (int i = 0; i < l; i++) {
+            final Plan q = ps.valueAt(i);
+            if (q == root || q.parent == root) {
+                family.add(q);
+            }
+        }
+        for (Rule r : m.rs.table.getAll()) {
+            if (r.hasLimit() && family.contains(ps.get(r.getPlanId()))) {
+                Log.d(TAG, "rerate(): limit checked by rule " + r.getId());
+                unmatchPlan(context, pid, false);
+                return;
+            }
+        }
+
+        final String[] sql = p.getRatingSql();
+        final SQLiteDatabase db = DataProvider.getWritableDatabase();
+        if (sql != null && db != null) {
+            // billing does not depend on other logs
+            final String where = DataProvider.Logs.PLAN_ID + "=" + pid;
+            db.beginTransaction();
+            try {
+                DataProvider.PlanSums.update(db, where, null, -1);
+                db.execSQL("UPDATE " + DataProvider.Logs.TABLE + " SET "
+                        + DataProvider.Logs.BILL_AMOUNT + "=" + sql[0] + ","
+                        + DataProvider.Logs.COST + "=" + sql[1] + "," + DataProvider.Logs.FREE
+                        + "=0 WHERE " + where);
+                DataProvider.PlanSums.update(db, where, null, 1);
+                DataProvider.PlanTotals.reset(db, pid + "," + root.getId());
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            cr.notifyChange(DataProvider.Logs.CONTENT_URI, null);
+            Log.d(TAG, "rerate(): sql", ct);
+            return;
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        for (Plan q : family) {
+            q.rerating = true;
+            if (sb.length() > 0) {
+                sb.append(",");
+            }
+            sb.append(q.getId());
+        }
+        final LogResultWriter writer = LogResultWriter.getInstance(cr);
+        final Cursor cursor = cr.query(DataProvider.Logs.CONTENT_URI,
+                DataProvider.Logs.PROJECTION, DataProvider.Logs.PLAN_ID + " in (" + sb + ")", null,
+                DataProvider.Logs.DATE + " ASC");
+        try {
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    final Plan q = ps.get(cursor.getInt(DataProvider.Logs.INDEX_PLAN_ID));
+                    final long rid = cursor.isNull(DataProvider.Logs.INDEX_RULE_ID)
+                            ? DataProvider.NOT_FOUND
+                            : cursor.getLong(DataProvider.Logs.INDEX_RULE_ID);
+                    m.rate(writer, q, rid, cursor);
+                } while (cursor.moveToNext());
+            }
+            m.saveResults(writer);
+        } catch (OperationApplicationException e) {
+            Log.e(TAG, "error saving logs", e);
+        } catch (RemoteException e) {
+            Log.e(TAG, "error saving logs", e);
+        } finally {
+            writer.abort();
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+        Log.d(TAG, "rerate(): " + sb, ct);
+    }
 
     /**
      * Match a single log record given as {@link Cursor}.
      *
-     * @param cr  {@link ContentResolver}
-     * @param ops List of {@link ContentProviderOperation}s
-     * @param log {@link Cursor} representing the log
+     * @param writer {@link LogResultWriter}
+     * @param log    {@link Cursor} representing the log
      * @return true if a log was matched
      */
-    private static boolean matchLog(final ContentResolver cr,
-            final ArrayList<ContentProviderOperation> ops, final Cursor log) {
-        if (cr == null) {
-            Log.e(TAG, "matchLog(null, ops, log)");
-            return false;
-        }
+    private boolean matchLog(final LogResultWriter writer, final Cursor log) {
         if (log == null) {
-            Log.e(TAG, "matchLog(cr, ops, null)");
+            Log.e(TAG, "matchLog(writer, null)");
             return false;
         }
+        return rateLog(writer, log, select(log, null));
+    }
+
+    /**
+     * Bill a log to a {@link Plan}.
+     *
+     * @param writer {@link LogResultWriter}
+     * @param p      matched {@link Plan}
+     * @param rid    matched {@link Rule}'s id
+     * @param log    {@link Cursor} representing the log
+     */
+    private void rate(final LogResultWriter writer, final Plan p, final long rid,
+            final Cursor log) {
+        final long pid = p.getId();
         final long lid = log.getLong(DataProvider.Logs.INDEX_ID);
-        final int t = log.getInt(DataProvider.Logs.INDEX_TYPE);
-        Log.d(TAG, "matchLog(cr, " + lid + ")");
-        boolean matched = false;
-        if (rules == null) {
-            Log.e(TAG, "rules = null");
-            return false;
-        }
-        if (plans == null) {
-            Log.e(TAG, "plans = null");
-            return false;
+        Trace.event(Trace.MATCH_LOG, lid, pid, rid);
+        p.checkBillday(log);
+        final float ba = p.getBilledAmount(log);
+        final float bc = p.getCost(log, ba);
+        writer.write(log, pid, rid, ba, bc, p.getFree(log, bc));
+        p.updatePlan(ba, bc, log.getInt(DataProvider.Logs.INDEX_TYPE));
+    }
+
+    /**
+     * Select {@link Rule}s matching a log, without checking any limit. The result does not
+     * depend on other logs. This method does not change any state but the {@link Ruleset}'s
+     * memo and may run in parallel.
+     *
+     * @param log {@link Cursor} representing the log
+     * @param sel {@link Selector} counting checked {@link Rule}s, null for counting in
+     *            statCandidates
+     * @return matching {@link Rule}s in order, up to the first one without limit; null if none
+     */
+    private Rule[] select(final Cursor log, final Selector sel) {
+        final int hourOfWeek = Rule.HoursGroup.getHourOfWeek(
+                log.getLong(DataProvider.Logs.INDEX_DATE), tz);
+        final Rule[] candidates = rs.table.get(log);
+        final boolean compiled = candidates != null;
+        final Rule[] rules = compiled ? candidates : rs.table.all;
+        final int l = rules.length;
+
+        // logs with equal signature select equal rules
+        String key = null;
+        if (isMemorizable(rules)) {
+            key = getSignature(log, hourOfWeek);
+            final Rule[] m = rs.getMemo(key);
+            if (m != null) {
+                return m == NO_RULES ? null : m;
+            }
         }
-        final int l = rules.size();
+
+        ArrayList<Rule> ret = null;
+        int checked = 0;
+        final boolean profile = RuleProfiler.isEnabled();
         for (int i = 0; i < l; i++) {
-            final Rule r = rules.get(i);
-            if (r == null || !r.match(cr, log) || plans == null) {
+            final Rule r = rules[i];
+            ++checked;
+            if (r == null) {
                 continue;
             }
-            Log.d(TAG, "matched rule: " + r.getId());
-            final Plan p = plans.get(r.getPlanId());
-            if (p != null) {
-                final long pid = p.getId();
-                final long rid = r.getId();
-                Log.d(TAG, "found plan: " + pid);
-                p.checkBillday(log);
-                final float ba = p.getBilledAmount(log);
-                final float bc = p.getCost(log, ba);
-                ContentProviderOperation op = ContentProviderOperation
-                        .newUpdate(DataProvider.Logs.CONTENT_URI) // .
-                        .withValue(DataProvider.Logs.PLAN_ID, pid) // .
-                        .withValue(DataProvider.Logs.RULE_ID, rid) // .
-                        .withValue(DataProvider.Logs.BILL_AMOUNT, ba) // .
-                        .withValue(DataProvider.Logs.COST, bc) // .
-                        .withValue(DataProvider.Logs.FREE, p.getFree(log, bc)) // .
-                        .withSelection(WHERE, new String[]{String.valueOf(lid)}).build();
-                p.updatePlan(ba, bc, t);
-                ops.add(op);
-                matched = true;
+            final long t0 = profile ? System.nanoTime() : 0L;
+            final boolean matched = (compiled || r.matchType(log))
+                    && r.matchStatic(cr, log, hourOfWeek, !compiled);
+            if (profile) {
+                RuleProfiler.evaluated(r.getId(), matched, System.nanoTime() - t0);
+            }
+            if (!matched) {
+                continue;
+            }
+            if (ret == null) {
+                ret = new ArrayList<Rule>(1);
+            }
+            ret.add(r);
+            if (!r.hasLimit() && plans.get(r.getPlanId()) != null) {
                 break;
             }
         }
-        if (!matched) {
-            ContentProviderOperation op = ContentProviderOperation
-                    .newUpdate(DataProvider.Logs.CONTENT_URI) // .
-                    .withValue(DataProvider.Logs.PLAN_ID, DataProvider.NOT_FOUND) // .
-                    .withValue(DataProvider.Logs.RULE_ID, DataProvider.NOT_FOUND) // .
-                    .withSelection(WHERE, new String[]{String.valueOf(lid)}).build();
-            ops.add(op);
+        if (sel == null) {
+            statCandidates += checked;
+        } else {
+            sel.checked += checked;
+        }
+        final Rule[] selected = ret == null ? null : ret.toArray(new Rule[ret.size()]);
+        if (key != null) {
+            rs.putMemo(key, selected);
+        }
+        return selected;
+    }
+
+    /**
+     * Check if select() may use the memo for the given candidates.
+     *
+     * @param rs candidate {@link Rule}s
+     * @return true, if no {@link Rule} depends on anything but the log's signature
+     */
+    private static boolean isMemorizable(final Rule[] rs) {
+        for (Rule r : rs) {
+            if (r != null && r.dependsOnDate()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get a log's signature: all fields, which are checked by matchStatic(), without date.
+     *
+     * @param log        {@link Cursor} representing the log
+     * @param hourOfWeek log's hour of week
+     * @return signature
+     */
+    private static String getSignature(final Cursor log, final int hourOfWeek) {
+        return log.getInt(DataProvider.Logs.INDEX_TYPE) + "|"
+                + log.getInt(DataProvider.Logs.INDEX_DIRECTION) + "|"
+                + log.getInt(DataProvider.Logs.INDEX_ROAMED) + "|" + hourOfWeek + "|"
+                + log.getString(DataProvider.Logs.INDEX_MYNUMBER) + "|"
+                + log.getString(DataProvider.Logs.INDEX_REMOTE);
+    }
+
+    /**
+     * @return number of logs selected from memo since last flush()
+     */
+    public static long getMemoHits() {
+        final Ruleset r = ruleset;
+        if (r == null) {
+            return 0L;
+        }
+        synchronized (r.memo) {
+            return r.memoHits;
+        }
+    }
+
+    /**
+     * @return number of logs not found in memo since last flush()
+     */
+    public static long getMemoMisses() {
+        final Ruleset r = ruleset;
+        if (r == null) {
+            return 0L;
+        }
+        synchronized (r.memo) {
+            return r.memoMisses;
+        }
+    }
+
+    /**
+     * Bill a log to the first selected {@link Rule}, which limit is not reached. Logs need to be
+     * rated in order.
+     *
+     * @param writer   {@link LogResultWriter}
+     * @param log      {@link Cursor} representing the log
+     * @param selected {@link Rule}s returned by select()
+     * @return true if a log was matched
+     */
+    private boolean rateLog(final LogResultWriter writer, final Cursor log,
+            final Rule[] selected) {
+        ++statLogs;
+        if (selected != null) {
+            for (Rule r : selected) {
+                if (!r.matchLimit(plans, log)) {
+                    continue;
+                }
+                final Plan p = plans.get(r.getPlanId());
+                if (p != null) {
+                    if (RuleProfiler.isEnabled()) {
+                        RuleProfiler.billed(r.getId());
+                    }
+                    rate(writer, p, r.getId(), log);
+                    return true;
+                }
+            }
+        }
+        final long lid = log.getLong(DataProvider.Logs.INDEX_ID);
+        Trace.event(Trace.MATCH_LOG, lid, DataProvider.NOT_FOUND, DataProvider.NOT_FOUND);
+        writer.writeNotFound(log);
+        return false;
+    }
+
+    /**
+     * Copy logs to memory.
+     *
+     * @param cursor {@link Cursor} of logs, moved behind the copied logs
+     * @param n      maximal number of logs
+     * @return {@link MatrixCursor} holding the logs
+     */
+    private static MatrixCursor copyLogs(final Cursor cursor, final int n) {
+        final MatrixCursor ret = new MatrixCursor(DataProvider.Logs.PROJECTION, n);
+        for (int i = 0; i < n && !cursor.isAfterLast(); i++) {
+            ret.addRow(copyLog(cursor));
+            cursor.moveToNext();
+        }
+        return ret;
+    }
+
+    /**
+     * Copy a single log to memory.
+     *
+     * @param cursor {@link Cursor} pointing to the log
+     * @return row of {@link DataProvider.Logs#PROJECTION}
+     */
+    static Object[] copyLog(final Cursor cursor) {
+        return new Object[]{cursor.getLong(DataProvider.Logs.INDEX_ID),
+                cursor.getLong(DataProvider.Logs.INDEX_PLAN_ID),
+                cursor.getLong(DataProvider.Logs.INDEX_RULE_ID),
+                cursor.getInt(DataProvider.Logs.INDEX_TYPE),
+                cursor.getInt(DataProvider.Logs.INDEX_DIRECTION),
+                cursor.getLong(DataProvider.Logs.INDEX_DATE),
+                cursor.getLong(DataProvider.Logs.INDEX_AMOUNT),
+                cursor.getFloat(DataProvider.Logs.INDEX_BILL_AMOUNT),
+                cursor.getString(DataProvider.Logs.INDEX_REMOTE),
+                cursor.getInt(DataProvider.Logs.INDEX_ROAMED),
+                cursor.getFloat(DataProvider.Logs.INDEX_COST),
+                cursor.getFloat(DataProvider.Logs.INDEX_FREE),
+                cursor.getString(DataProvider.Logs.INDEX_MYNUMBER),
+                cursor.getString(DataProvider.Logs.INDEX_REMOTE_NORMALIZED)};
+    }
+
+    /**
+     * Match logs in parallel. {@link Rule}s are selected for chunks of logs on a pool of
+     * threads. Limits are checked and logs are billed in order on the calling thread. The
+     * result is the same as matching all logs one by one.
+     *
+     * @param cursor  {@link Cursor} of logs, positioned on the first log
+     * @param run     {@link Run}
+     * @param threads number of threads
+     * @return true if a log was matched
+     * @throws OperationApplicationException OperationApplicationException
+     * @throws RemoteException               RemoteException
+     */
+    private boolean matchParallel(final Cursor cursor, final Run run, final int threads)
+            throws OperationApplicationException, RemoteException {
+        boolean ret = false;
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final LinkedList<Future<Selector>> queue = new LinkedList<Future<Selector>>();
+        try {
+            boolean goon = true;
+            while (goon && (!cursor.isAfterLast() || !queue.isEmpty())) {
+                while (!cursor.isAfterLast() && queue.size() < threads * 2) {
+                    queue.add(pool.submit(new Selector(this, copyLogs(cursor, CHUNK_SIZE))));
+                }
+                final Selector s = queue.removeFirst().get();
+                statCandidates += s.checked;
+                final Cursor log = s.logs;
+                final Rule[][] selected = s.selected;
+                for (int i = 0; goon && log.moveToPosition(i); i++) {
+                    ret |= rateLog(run.writer, log, selected[i]);
+                    goon = run.next(log);
+                }
+                log.close();
+            }
+        } catch (InterruptedException e) {
+            // logs not rated yet are matched with next run
+            Log.e(TAG, "interrupted while matching", e);
+        } catch (ExecutionException e) {
+            Log.e(TAG, "error selecting rules", e);
+        } finally {
+            pool.shutdownNow();
         }
-        return matched;
+        return ret;
     }
 
     /**
-     * Match a single log record.
+     * Bill a single log record to a given plan. Does not wait for running matches. Totals of the
+     * plan and its parent are reset, running matches load them again.
      *
      * @param cr  {@link ContentResolver}
      * @param lid id of log item
@@ -1278,11 +2460,12 @@ public final class RuleMatcher {
         }
         Log.d(TAG, "matchLog(cr, " + lid + "," + pid + ")");
 
-        if (plans == null) {
-            Log.e(TAG, "plans = null");
-            return;
+        final Cursor plans = cr.query(DataProvider.Plans.CONTENT_URI,
+                DataProvider.Plans.PROJECTION, null, null, null);
+        final Plan p = loadPlans(cr, plans, pid).get(pid);
+        if (plans != null && !plans.isClosed()) {
+            plans.close();
         }
-        final Plan p = plans.get(pid);
         if (p == null) {
             Log.e(TAG, "plan=null");
             return;
@@ -1297,7 +2480,6 @@ public final class RuleMatcher {
             log.close();
             return;
         }
-        final int t = log.getInt(DataProvider.Logs.INDEX_TYPE);
         p.checkBillday(log);
         final ContentValues cv = new ContentValues();
         cv.put(DataProvider.Logs.PLAN_ID, pid);
@@ -1306,71 +2488,99 @@ public final class RuleMatcher {
         final float bc = p.getCost(log, ba);
         cv.put(DataProvider.Logs.COST, bc);
         cv.put(DataProvider.Logs.FREE, p.getFree(log, bc));
-        p.updatePlan(ba, bc, t);
-        cr.update(DataProvider.Logs.CONTENT_URI, cv, DataProvider.Logs.ID + " = ?",
-                new String[]{String.valueOf(lid)});
         log.close();
+        final String[] where = new String[]{String.valueOf(lid)};
+        final SQLiteDatabase db = DataProvider.getWritableDatabase();
+        if (db == null) {
+            cr.update(DataProvider.Logs.CONTENT_URI, cv, DataProvider.Logs.ID + " = ?", where);
+            cr.delete(DataProvider.PlanTotals.CONTENT_URI, null, null);
+            invalidateTotals();
+            return;
+        }
+        // running matches check for reset totals within their transaction: they either commit
+        // their totals before this one or drop them
+        db.beginTransaction();
+        try {
+            cr.update(DataProvider.Logs.CONTENT_URI, cv, DataProvider.Logs.ID + " = ?", where);
+            DataProvider.PlanTotals.reset(db, p.parent == null ? String.valueOf(pid)
+                    : pid + "," + p.parent.getId());
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        cr.notifyChange(DataProvider.Logs.CONTENT_URI, null);
     }
 
     /**
-     * Match all unmatched logs.
+     * Match all unmatched logs. Runs are serialized, as they pick up the same logs. Other
+     * methods do not wait for them.
      *
      * @param context    {@link Context}
      * @param showStatus post status to dialog/handler
      * @return true if a log was matched
      */
     static synchronized boolean match(final Context context, final boolean showStatus) {
-        Log.d(TAG, "match(ctx, " + showStatus + ")");
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean lowPriority = prefs.getBoolean(Preferences.PREFS_MATCHER_LOW_PRIORITY,
+                false);
+        final int threads = lowPriority ? 1 : Math.max(1, Math.min(MAX_THREADS,
+                Utils.parseInt(prefs.getString(Preferences.PREFS_MATCHER_THREADS, "1"), 1)));
+        return match(context, showStatus, lowPriority, threads);
+    }
+
+    /**
+     * Match all unmatched logs with the given settings.
+     *
+     * @param context     {@link Context}
+     * @param showStatus  post status to dialog/handler
+     * @param lowPriority match logs with low priority
+     * @param threads     number of threads selecting rules; 1 matches logs one by one
+     * @return true if a log was matched
+     */
+    static synchronized boolean match(final Context context, final boolean showStatus,
+            final boolean lowPriority, final int threads) {
+        Log.d(TAG, "match(ctx, " + showStatus + ", " + lowPriority + ", " + threads + ")");
         boolean ret = false;
-        load(context);
         final ContentResolver cr = context.getContentResolver();
+        final RuleMatcher matcher = new RuleMatcher(cr, getRuleset(context));
         final Cursor cursor = cr.query(DataProvider.Logs.CONTENT_URI, DataProvider.Logs.PROJECTION,
                 DataProvider.Logs.PLAN_ID + " = " + DataProvider.NO_ID, null,
                 DataProvider.Logs.DATE + " ASC");
+        final long[] checkpoint = DataProvider.Checkpoint.get(cr);
         if (cursor.moveToFirst()) {
-            final int l = cursor.getCount();
+            int done = 0;
+            if (checkpoint != null) {
+                // an interrupted run left off here, unmatched logs are the rest of it
+                Log.i(TAG, "resume match after log " + checkpoint[0] + ": " + checkpoint[2]
+                        + "/" + checkpoint[3]);
+                done = (int) checkpoint[2];
+            }
+            final int l = done + cursor.getCount();
             Handler h = null;
             if (showStatus) {
                 h = Plans.getHandler();
                 if (h != null) {
                     final Message m = h.obtainMessage(Plans.MSG_BACKGROUND_PROGRESS_MATCHER);
-                    m.arg1 = 0;
+                    m.arg1 = done;
                     m.arg2 = l;
                     m.sendToTarget();
                 }
             }
+            final LogResultWriter writer = LogResultWriter.getInstance(cr);
             try {
-                ArrayList<ContentProviderOperation> ops = new ArrayList<ContentProviderOperation>();
-                int i = 1;
-                do {
-                    ret |= matchLog(cr, ops, cursor);
-                    if (i % PROGRESS_STEPS == 0 || (i < PROGRESS_STEPS && i % CallMeter.TEN == 0)) {
-                        h = Plans.getHandler();
-                        if (h != null) {
-                            final Message m = h
-                                    .obtainMessage(Plans.MSG_BACKGROUND_PROGRESS_MATCHER);
-                            m.arg1 = i;
-                            m.arg2 = l;
-                            Log.d(TAG, "send progress: " + i + "/" + l);
-                            m.sendToTarget();
-                        } else {
-                            Log.d(TAG, "send progress: " + i + " handler=null");
-                        }
-                        Log.d(TAG, "save logs..");
-                        cr.applyBatch(DataProvider.AUTHORITY, ops);
-                        ops.clear();
-                        Log.d(TAG, "sleeping..");
-                        try {
-                            Thread.sleep(CallMeter.MILLIS);
-                        } catch (InterruptedException e) {
-                            Log.e(TAG, "sleep interrupted", e);
-                        }
-                        Log.d(TAG, "sleep finished");
-                    }
-                    ++i;
-                } while (cursor.moveToNext());
-                if (ops.size() > 0) {
-                    cr.applyBatch(DataProvider.AUTHORITY, ops);
+                final Run run = new Run(matcher, writer, done, l, lowPriority);
+                if (threads > 1) {
+                    ret = matcher.matchParallel(cursor, run, threads);
+                } else {
+                    boolean goon;
+                    do {
+                        ret |= matcher.matchLog(writer, cursor);
+                        goon = run.next(cursor);
+                    } while (goon && cursor.moveToNext());
+                }
+                matcher.saveResults(writer);
+                if (!run.isCancelled()) {
+                    cr.delete(DataProvider.Checkpoint.CONTENT_URI, null, null);
                 }
             } catch (IllegalStateException e) {
                 Log.e(TAG, "illegal state in RuleMatcher's loop", e);
@@ -1378,7 +2588,13 @@ public final class RuleMatcher {
                 Log.e(TAG, "illegal operation in RuleMatcher's loop", e);
             } catch (RemoteException e) {
                 Log.e(TAG, "remote exception in RuleMatcher's loop", e);
+            } finally {
+                // totals of logs, which were not saved, are dropped with this run
+                writer.abort();
             }
+        } else if (checkpoint != null) {
+            // run was interrupted after saving its last log
+            cr.delete(DataProvider.Checkpoint.CONTENT_URI, null, null);
         }
         try {
             if (!cursor.isClosed()) {
@@ -1387,27 +2603,36 @@ public final class RuleMatcher {
         } catch (IllegalStateException e) {
             Log.e(TAG, "illegal state while closing cursor", e);
         }
+        final int sl = matcher.statLogs;
+        if (sl > 0) {
+            final long sc = matcher.statCandidates;
+            Log.i(TAG, "matched logs: " + sl + ", checked rules: " + sc
+                    + ", avg. candidates per log: " + (sc / sl) + "/" + matcher.rs.table.size()
+                    + ", memo hits/misses: " + getMemoHits() + "/" + getMemoMisses());
+        }
 
         if (ret) {
             final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(context);
             final boolean a80 = p.getBoolean(Preferences.PREFS_ALERT80, true);
             final boolean a100 = p.getBoolean(Preferences.PREFS_ALERT100, true);
             // check for alerts
-            if ((a80 || a100) && plans != null && plans.size() > 0) {
+            final SparseArray<Plan> ps = matcher.plans;
+            if ((a80 || a100) && ps.size() > 0) {
                 final long now = System.currentTimeMillis();
                 int alert = 0;
                 Plan alertPlan = null;
-                int l = plans.size();
+                int l = ps.size();
                 for (int i = 0; i < l; i++) {
-                    final Plan plan = plans.valueAt(i);
+                    final Plan plan = ps.valueAt(i);
                     if (plan == null) {
                         continue;
                     }
                     if (plan.nextAlert > now) {
                         continue;
                     }
-                    int used = DataProvider.Plans.getUsed(plan.limitType, plan.type,
-                            plan.billedAmount, plan.billedCost);
+                    final Tariff t = plan.tariff;
+                    int used = DataProvider.Plans.getUsed(t.limitType, t.type, t.billedAmount,
+                            t.billedCost);
                     if (a100 && used > CallMeter.HUNDRET) {
                         alert = used;
                         alertPlan = plan;
@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+/**
+ * Count evaluations, matches, time and rejections by step for each rule checked by the
+ * {@link RuleMatcher}. Counting is off by default and costs a single check per rule then.
+ *
+ * @author flx
+ */
+public final class RuleProfiler {
+
+    /** Column: evaluations. */
+    private static final int EVALUATED = 0;
+    /** Column: evaluations matching the log. */
+    private static final int MATCHED = 1;
+    /** Column: logs billed. */
+    private static final int BILLED = 2;
+    /** Column: time spent in ns. */
+    private static final int NANOS = 3;
+    /** Column: rejections, one per step. */
+    private static final int REJECTED = 4;
+    /** Number of columns. */
+    private static final int COLUMNS = REJECTED + Trace.STEPS;
+
+    /** Nanoseconds per millisecond. */
+    private static final double NANOS_MS = 1000000d;
+
+    /** Projection of rules used for the report. */
+    private static final String[] PROJECTION = new String[]{DataProvider.Rules.ID,
+            DataProvider.Rules.NAME, DataProvider.Rules.WHAT};
+
+    /** Profiling enabled. */
+    private static volatile boolean enabled = false;
+
+    /** Counters by rule id. */
+    private static final SparseArray<long[]> COUNTERS = new SparseArray<long[]>();
+
+    /**
+     * Default constructor.
+     */
+    private RuleProfiler() {
+    }
+
+    /**
+     * @return true, if rules are profiled
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enable or disable profiling. Counters are kept.
+     *
+     * @param enable enable profiling
+     */
+    public static void setEnabled(final boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * Drop all counters.
+     */
+    public static void reset() {
+        synchronized (COUNTERS) {
+            COUNTERS.clear();
+        }
+    }
+
+    /**
+     * Get counters of a rule. Call while holding the lock.
+     *
+     * @param rid rule's id
+     * @return counters
+     */
+    private static long[] get(final int rid) {
+        long[] ret = COUNTERS.get(rid);
+        if (ret == null) {
+            ret = new long[COLUMNS];
+            COUNTERS.put(rid, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * A rule was checked against a log.
+     *
+     * @param rid     rule's id
+     * @param matched log matched
+     * @param nanos   time spent
+     */
+    static void evaluated(final int rid, final boolean matched, final long nanos) {
+        synchronized (COUNTERS) {
+            final long[] c = get(rid);
+            ++c[EVALUATED];
+            if (matched) {
+                ++c[MATCHED];
+            }
+            c[NANOS] += nanos;
+        }
+    }
+
+    /**
+     * A rule rejected a log.
+     *
+     * @param rid  rule's id
+     * @param step rejecting step
+     */
+    static void rejected(final int rid, final int step) {
+        synchronized (COUNTERS) {
+            ++get(rid)[REJECTED + step];
+        }
+    }
+
+    /**
+     * A log was billed by a rule.
+     *
+     * @param rid rule's id
+     */
+    static void billed(final int rid) {
+        synchronized (COUNTERS) {
+            ++get(rid)[BILLED];
+        }
+    }
+
+    /**
+     * Format time.
+     *
+     * @param nanos time in ns
+     * @return time in ms
+     */
+    private static String formatTime(final long nanos) {
+        return String.format("%.1fms", nanos / NANOS_MS);
+    }
+
+    /**
+     * Get a text report of all rules in their order and some suggestions for reordering them.
+     *
+     * @param context {@link Context}
+     * @return report
+     */
+    public static String getReport(final Context context) {
+        final ArrayList<Integer> ids = new ArrayList<Integer>();
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<Integer> whats = new ArrayList<Integer>();
+        final Cursor cursor = context.getContentResolver().query(
+                DataProvider.Rules.CONTENT_URI, PROJECTION, null, null,
+                DataProvider.Rules.DEFAULT_ORDER);
+        if (cursor != null && cursor.moveToFirst()) {
+            do {
+                ids.add(cursor.getInt(0));
+                names.add(cursor.getString(1));
+                whats.add(cursor.getInt(2));
+            } while (cursor.moveToNext());
+        }
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+        }
+
+        final int l = ids.size();
+        final long[][] counters = new long[l][];
+        synchronized (COUNTERS) {
+            for (int i = 0; i < l; i++) {
+                final long[] c = COUNTERS.get(ids.get(i));
+                counters[i] = c == null ? new long[COLUMNS] : c.clone();
+            }
+        }
+
+        final StringBuilder sb = new StringBuilder();
+        sb.append("profiling: ").append(enabled ? "on" : "off");
+        sb.append("\nmemo hits/misses: ").append(RuleMatcher.getMemoHits()).append('/')
+                .append(RuleMatcher.getMemoMisses());
+        sb.append("\nrules skipped by type, direction and roaming index are not counted\n");
+        long totalNanos = 0L;
+        int slowest = -1;
+        for (int i = 0; i < l; i++) {
+            final long[] c = counters[i];
+            sb.append("\n#").append(i + 1).append(' ').append(names.get(i)).append(" (")
+                    .append(ids.get(i)).append(")");
+            sb.append("\n  evaluated: ").append(c[EVALUATED]);
+            sb.append(", matched: ").append(c[MATCHED]);
+            sb.append(", billed: ").append(c[BILLED]);
+            sb.append(", time: ").append(formatTime(c[NANOS]));
+            if (c[EVALUATED] > 0L) {
+                sb.append(" (").append(c[NANOS] / c[EVALUATED]).append("ns/log)");
+            }
+            boolean first = true;
+            for (int s = 0; s < Trace.STEPS; s++) {
+                if (c[REJECTED + s] == 0L) {
+                    continue;
+                }
+                sb.append(first ? "\n  rejected: " : ", ");
+                sb.append(Trace.getStepName(s)).append('=').append(c[REJECTED + s]);
+                first = false;
+            }
+            totalNanos += c[NANOS];
+            if (slowest < 0 || c[NANOS] > counters[slowest][NANOS]) {
+                slowest = i;
+            }
+        }
+        sb.append("\n\ntotal time: ").append(formatTime(totalNanos));
+
+        sb.append("\n\nsuggestions:");
+        boolean suggested = false;
+        for (int i = 0; i < l; i++) {
+            final long[] c = counters[i];
+            if (c[EVALUATED] > 0L && c[MATCHED] == 0L) {
+                sb.append("\n- '").append(names.get(i)).append("' was checked ")
+                        .append(c[EVALUATED])
+                        .append(" times, but never matched. Delete it or move it down.");
+                suggested = true;
+            } else if (c[EVALUATED] > 0L && c[MATCHED] > 0L && c[BILLED] == 0L) {
+                sb.append("\n- '").append(names.get(i)).append("' matched ").append(c[MATCHED])
+                        .append(" times, but never billed a log. Check its plan's limit.");
+                suggested = true;
+            }
+            // find the last rule of the same kind before this one
+            for (int j = i - 1; j >= 0; j--) {
+                if (!whats.get(j).equals(whats.get(i))) {
+                    continue;
+                }
+                if (c[BILLED] > counters[j][BILLED] && counters[j][EVALUATED] > 0L) {
+                    sb.append("\n- '").append(names.get(i)).append("' billed ")
+                            .append(c[BILLED]).append(" logs, '").append(names.get(j))
+                            .append("' before it billed ").append(counters[j][BILLED])
+                            .append(". Move it up, if they do not match the same logs.");
+                    suggested = true;
+                }
+                break;
+            }
+        }
+        if (slowest >= 0 && totalNanos > 0L) {
+            final long[] c = counters[slowest];
+            int step = -1;
+            for (int s = 0; s < Trace.STEPS; s++) {
+                if (c[REJECTED + s] > 0L && (step < 0 || c[REJECTED + s] > c[REJECTED + step])) {
+                    step = s;
+                }
+            }
+            sb.append("\n- '").append(names.get(slowest)).append("' took most time: ")
+                    .append(formatTime(c[NANOS]));
+            if (step >= 0) {
+                sb.append(", most logs were rejected by ").append(Trace.getStepName(step));
+            }
+            sb.append('.');
+            suggested = true;
+        }
+        if (!suggested) {
+            sb.append("\n- none");
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,379 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import de.ub0r.android.callmeter.CallMeter;
+
+/**
+ * Compiled prices of a plan and its totals of the current bill period. Bills a log given by type
+ * and amount. Does not depend on {@link android.database.Cursor} and does not allocate.
+ *
+ * @author flx
+ */
+final class Tariff {
+
+    /** Type of plan. */
+    int type;
+    /** Type of limit. */
+    int limitType;
+    /** Limit. */
+    long limit;
+    /** Billmode. */
+    int billModeFirstLength = 1, billModeNextLength = 1;
+    /** Cost per item. */
+    float costPerItem;
+    /** Cost per amount. */
+    float costPerAmount1, costPerAmount2;
+    /** Cost per item in limit. */
+    float costPerItemInLimit;
+    /** Cost per amount in limit. */
+    float costPerAmountInLimit1, costPerAmountInLimit2;
+    /** Units for mixed plans. */
+    int upc, ups, upm, upd;
+    /** Strip first x seconds. */
+    int stripSeconds;
+    /** Strip everything but first x seconds. */
+    int stripPast;
+    /** Parent's {@link Tariff}. */
+    Tariff parent = null;
+
+    /** Amount billed this period. */
+    float billedAmount = 0f;
+    /** Cost billed this period. */
+    float billedCost = 0f;
+
+    /**
+     * Get upc/upd/upm/ups according to log type.
+     *
+     * @param logType log type
+     * @return units per *
+     */
+    int getUP(final int logType) {
+        switch (logType) {
+            case DataProvider.TYPE_CALL:
+                return upc;
+            case DataProvider.TYPE_DATA:
+                return upd;
+            case DataProvider.TYPE_MMS:
+                return upm;
+            case DataProvider.TYPE_SMS:
+                return ups;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * @return remaining limit before it is reached.
+     */
+    float getRemainingLimit() {
+        if (parent != null && limitType == DataProvider.LIMIT_TYPE_NONE) {
+            return parent.getRemainingLimit();
+        }
+        switch (limitType) {
+            case DataProvider.LIMIT_TYPE_COST:
+                return limit - billedCost * CallMeter.HUNDRET;
+            case DataProvider.LIMIT_TYPE_UNITS:
+                return limit - billedAmount;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * Round up time with bill mode in mind.
+     *
+     * @param time time
+     * @return rounded time
+     */
+    long roundTime(final long time) {
+        // 0 => 0
+        if (time <= 0) {
+            return 0;
+        }
+        final long fl = billModeFirstLength;
+        final long nl = billModeNextLength;
+        // !0 ..
+        if (time <= fl) { // round first slot
+            return fl;
+        }
+        if (nl == 0) {
+            return fl;
+        }
+        if (time % nl == 0 || nl == 1) {
+            return time;
+        }
+        // round up to next full slot
+        return ((time / nl) + 1) * nl;
+    }
+
+    /**
+     * Add a billed log to the totals.
+     *
+     * @param amount billed amount
+     * @param cost   billed cost
+     * @param t      type of log
+     */
+    void update(final float amount, final float cost, final int t) {
+        billedAmount += amount;
+        billedCost += cost;
+        final Tariff pp = parent;
+        if (pp != null) {
+            if (type != DataProvider.TYPE_MIXED && pp.type == DataProvider.TYPE_MIXED) {
+                switch (t) {
+                    case DataProvider.TYPE_CALL:
+                        pp.billedAmount += amount * pp.upc / CallMeter.SECONDS_MINUTE;
+                        break;
+                    case DataProvider.TYPE_MMS:
+                        pp.billedAmount += amount * pp.upm;
+                        break;
+                    case DataProvider.TYPE_SMS:
+                        pp.billedAmount += amount * pp.ups;
+                        break;
+                    default:
+                        break;
+                }
+            } else {
+                pp.billedAmount += amount;
+            }
+            pp.billedCost += cost;
+        }
+    }
+
+    /**
+     * Get billed amount for amount.
+     *
+     * @param t      type of log
+     * @param amount amount of log
+     * @return billed amount.
+     */
+    float getBilledAmount(final int t, final long amount) {
+        float ret;
+        switch (t) {
+            case DataProvider.TYPE_CALL:
+                ret = roundTime(amount);
+                if (stripSeconds > 0) {
+                    ret -= stripSeconds;
+                    if (ret < 0f) {
+                        ret = 0f;
+                    }
+                }
+                if (stripPast > 0 && ret > stripPast) {
+                    ret = stripPast;
+                }
+                break;
+            default:
+                ret = amount;
+                break;
+        }
+
+        if (type == DataProvider.TYPE_MIXED) {
+            switch (t) {
+                case DataProvider.TYPE_CALL:
+                    ret = ret * upc / CallMeter.SECONDS_MINUTE;
+                    break;
+                case DataProvider.TYPE_SMS:
+                    ret = ret * ups;
+                    break;
+                case DataProvider.TYPE_MMS:
+                    ret = ret * upm;
+                    break;
+                case DataProvider.TYPE_DATA:
+                    ret = ret * upd / CallMeter.BYTE_MB;
+                default:
+                    break;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get cost for amount.
+     *
+     * @param t       type of log
+     * @param bAmount billed amount
+     * @return cost
+     */
+    float getCost(final int t, final float bAmount) {
+        final int pt = type;
+
+        float ret = 0f;
+        float as0; // split amount: before limit
+        float as1; // split amount: after limit
+        Tariff p;
+        float f = 1; // factor for mixed plans with limits merging this plan
+        if (parent != null && limitType == DataProvider.LIMIT_TYPE_NONE) {
+            p = parent;
+            if (pt != DataProvider.TYPE_MIXED && p.type == DataProvider.TYPE_MIXED) {
+                f = 1f / p.getUP(t);
+                switch (t) {
+                    case DataProvider.TYPE_CALL:
+                        f *= CallMeter.SECONDS_MINUTE;
+                        break;
+                    case DataProvider.TYPE_DATA:
+                        f *= CallMeter.BYTE_MB;
+                        break;
+                    default:
+                        // nothing to do
+                        break;
+                }
+            }
+        } else {
+            p = this;
+        }
+        // split amount at limit
+        float remaining = p.getRemainingLimit() * f;
+        if (p.limitType == DataProvider.LIMIT_TYPE_NONE || remaining <= 0f) {
+            as0 = 0;
+            as1 = bAmount;
+        } else if (p.limitType == DataProvider.LIMIT_TYPE_UNITS && remaining < bAmount) {
+            as0 = remaining;
+            as1 = bAmount - remaining;
+        } else { // TODO: fix for LIMIT_TYPE_COST
+            as0 = bAmount;
+            as1 = 0;
+        }
+
+        if (t == DataProvider.TYPE_SMS || pt == DataProvider.TYPE_MIXED) {
+            ret += as0 * costPerItemInLimit + as1 * costPerItem;
+        } else {
+            ret += as0 > 0f ? costPerItemInLimit : costPerItem;
+        }
+
+        switch (t) {
+            case DataProvider.TYPE_CALL:
+                if (bAmount <= billModeFirstLength) {
+                    // bAmount is most likely < remaining
+                    ret += (as0 * costPerAmountInLimit1 + as1 * costPerAmount1)
+                            / CallMeter.SECONDS_MINUTE;
+                } else if (as0 == 0f) {
+                    ret += costPerAmount1 * billModeFirstLength / CallMeter.SECONDS_MINUTE;
+                    ret += costPerAmount2 * (bAmount - billModeFirstLength)
+                            / CallMeter.SECONDS_MINUTE;
+                } else if (as1 == 0f) {
+                    ret += costPerAmountInLimit1 * billModeFirstLength / CallMeter.SECONDS_MINUTE;
+                    ret += costPerAmountInLimit2 * (bAmount - billModeFirstLength)
+                            / CallMeter.SECONDS_MINUTE;
+                } else if (as0 == billModeFirstLength) {
+                    ret += costPerAmountInLimit1 * billModeFirstLength / CallMeter.SECONDS_MINUTE;
+                    ret += costPerAmount2 * (bAmount - billModeFirstLength)
+                            / CallMeter.SECONDS_MINUTE;
+                } else if (as0 > billModeFirstLength) {
+                    ret += costPerAmountInLimit1 * billModeFirstLength / CallMeter.SECONDS_MINUTE;
+                    ret += (as0 - billModeFirstLength) * costPerAmountInLimit2
+                            / CallMeter.SECONDS_MINUTE;
+                    ret += as1 * costPerAmount2 / CallMeter.SECONDS_MINUTE;
+                } else { // as0 < billModeFirstLength && as0 > 0 && as1 > 0
+                    ret += as0 * costPerAmountInLimit1 / CallMeter.SECONDS_MINUTE;
+                    ret += (billModeFirstLength - as0) * costPerAmount1 / CallMeter.SECONDS_MINUTE;
+                    ret += costPerAmount2 * (bAmount - billModeFirstLength)
+                            / CallMeter.SECONDS_MINUTE;
+                }
+                break;
+            case DataProvider.TYPE_DATA:
+                ret += (as0 * costPerAmountInLimit1 + as1 * costPerAmount1) / CallMeter.BYTE_MB;
+                break;
+            default:
+                break;
+        }
+        return ret;
+    }
+
+    /**
+     * Get amount of free cost.
+     *
+     * @param cost cost calculated by getCost()
+     * @return free cost
+     */
+    float getFree(final float cost) {
+        if (limitType != DataProvider.LIMIT_TYPE_COST) {
+            if (parent != null) {
+                return parent.getFree(cost);
+            }
+            return 0f;
+        }
+        final float l = ((float) limit) / CallMeter.HUNDRET;
+        if (l <= billedCost) {
+            return 0f;
+        }
+        if (l >= billedCost + cost) {
+            return cost;
+        }
+        return l - billedCost;
+    }
+
+    /**
+     * Get SQL expressions billing a log, like getBilledAmount(), getCost() and getFree() do.
+     * Only available if billing does not depend on other logs, i.e. there is no limit.
+     *
+     * @return {billed amount, cost} expressions; null if billing depends on other logs
+     */
+    String[] getRatingSql() {
+        if (limitType != DataProvider.LIMIT_TYPE_NONE
+                || (parent != null && parent.limitType != DataProvider.LIMIT_TYPE_NONE)) {
+            return null;
+        }
+        final String a = DataProvider.Logs.AMOUNT;
+        final long fl = billModeFirstLength;
+        final long nl = billModeNextLength;
+        // roundTime()
+        String call = "CASE WHEN " + a + "<=0 THEN 0 WHEN " + a + "<=" + fl + " THEN " + fl;
+        if (nl == 0) {
+            call += " ELSE " + fl + " END";
+        } else if (nl == 1) {
+            call += " ELSE " + a + " END";
+        } else {
+            call += " WHEN " + a + "%" + nl + "=0 THEN " + a + " ELSE (" + a + "/" + nl + "+1)*"
+                    + nl + " END";
+        }
+        if (stripSeconds > 0) {
+            call = "max((" + call + ")-" + stripSeconds + ",0)";
+        }
+        if (stripPast > 0) {
+            call = "min(" + call + "," + stripPast + ")";
+        }
+        final String t = DataProvider.Logs.TYPE;
+        String ba;
+        if (type == DataProvider.TYPE_MIXED) {
+            ba = "(CASE " + t + " WHEN " + DataProvider.TYPE_CALL + " THEN (" + call + ")*" + upc
+                    + "/" + CallMeter.SECONDS_MINUTE + ".0 WHEN " + DataProvider.TYPE_SMS
+                    + " THEN " + a + "*" + ups + " WHEN " + DataProvider.TYPE_MMS + " THEN " + a
+                    + "*" + upm + " WHEN " + DataProvider.TYPE_DATA + " THEN " + a + "*" + upd
+                    + "/" + CallMeter.BYTE_MB + ".0 ELSE " + a + " END)";
+        } else {
+            ba = "(CASE " + t + " WHEN " + DataProvider.TYPE_CALL + " THEN (" + call + ") ELSE "
+                    + a + " END)";
+        }
+        // getCost() with nothing in limit
+        String item;
+        if (type == DataProvider.TYPE_MIXED) {
+            item = ba + "*" + costPerItem;
+        } else {
+            item = "CASE " + t + " WHEN " + DataProvider.TYPE_SMS + " THEN " + ba + "*"
+                    + costPerItem + " ELSE " + costPerItem + " END";
+        }
+        final String cost = "(" + item + " + CASE " + t + " WHEN " + DataProvider.TYPE_CALL
+                + " THEN (CASE WHEN " + ba + "<=" + fl + " THEN " + ba + "*" + costPerAmount1
+                + " ELSE " + costPerAmount1 * fl + "+(" + ba + "-" + fl + ")*" + costPerAmount2
+                + " END)/" + CallMeter.SECONDS_MINUTE + ".0 WHEN " + DataProvider.TYPE_DATA
+                + " THEN " + ba + "*" + costPerAmount1 + "/" + CallMeter.BYTE_MB
+                + ".0 ELSE 0 END)";
+        return new String[]{ba, cost};
+    }
+}
@@ -0,0 +1,903 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.AssetManager;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.support.v4.util.LruCache;
+import android.util.SparseArray;
+
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import de.ub0r.android.callmeter.ui.prefs.Preferences;
+import de.ub0r.android.lib.Log;
+
+/**
+ * Rates the user's logs against rule sets, which are not imported, or against the user's own rule
+ * set with an edit applied. Neither the rule sets nor the logs are written to the database. The
+ * rule sets published under www/rulesets are bundled as assets in {@link #ASSETS_RULESETS}.
+ *
+ * @author flx
+ */
+public final class TariffComparison {
+
+    /** Tag for output. */
+    private static final String TAG = "tc";
+
+    /** Maximal number of threads. */
+    private static final int MAX_THREADS = 8;
+
+    /** Directory of bundled rule sets in assets. */
+    public static final String ASSETS_RULESETS = "rulesets";
+    /** File extension of bundled rule sets. */
+    private static final String ASSETS_EXTENSION = ".xml";
+
+    /** Size of buffer for reading rule sets. */
+    private static final int BUFFER_SIZE = 8192;
+    /** Maximal number of rows of all rule sets held by {@link #CACHE}. */
+    private static final int CACHE_ROWS = 5000;
+
+    /** Where clause for logs: skip logs added manually to the user's own plans. */
+    private static final String WHERE_LOGS = DataProvider.Logs.DATE + " >= ? AND "
+            + DataProvider.Logs.DATE + " < ? AND (" + DataProvider.Logs.RULE_ID + " != "
+            + DataProvider.NOT_FOUND + " OR " + DataProvider.Logs.PLAN_ID + " < 0)";
+
+    /** Parsed rule sets by name. Bounded by {@link #CACHE_ROWS}. */
+    private static final LruCache<String, RuleSet> CACHE = new LruCache<String, RuleSet>(
+            CACHE_ROWS) {
+        @Override
+        protected int sizeOf(final String key, final RuleSet value) {
+            return value.size();
+        }
+    };
+
+    /**
+     * Loads a {@link RuleSet} by name.
+     */
+    private interface RuleSetLoader {
+
+        /**
+         * Load a {@link RuleSet}.
+         *
+         * @param name name of rule set
+         * @return {@link RuleSet}, null if it could not be loaded
+         */
+        RuleSet load(final String name);
+    }
+
+    /**
+     * Cost of a single rule set.
+     */
+    public static final class Result {
+
+        /** Name of rule set. */
+        public final String name;
+        /** Total cost: cost of logs and base fees. */
+        public final float cost;
+        /** Base fees of all plans. */
+        public final float fees;
+        /** Number of logs matched by any rule. */
+        public final int matched;
+        /** Number of logs not matched by any rule. */
+        public final int notMatched;
+
+        /**
+         * Default constructor.
+         *
+         * @param c rated {@link Candidate}
+         */
+        private Result(final Candidate c) {
+            name = c.name;
+            fees = c.fees;
+            cost = c.cost + c.fees;
+            matched = c.matched;
+            notMatched = c.notMatched;
+        }
+    }
+
+    /**
+     * Change of a single {@link DataProvider.Plans}' totals in the current bill period caused by
+     * an edit.
+     */
+    public static final class Delta {
+
+        /** Plan's id. */
+        public final long plan;
+        /** Plan's name. */
+        public final String name;
+        /** Plan's type. */
+        public final int type;
+        /** Change of number of logs. */
+        public final int count;
+        /** Change of billed amount. */
+        public final float billedAmount;
+        /** Change of cost. */
+        public final float cost;
+
+        /**
+         * Default constructor.
+         *
+         * @param plan0   plan's id
+         * @param row     plan's {@link ContentValues}
+         * @param before  {count, billed amount, cost} before the edit, may be null
+         * @param after   {count, billed amount, cost} after the edit, may be null
+         */
+        private Delta(final long plan0, final ContentValues row, final float[] before,
+                final float[] after) {
+            plan = plan0;
+            name = row == null ? null : row.getAsString(DataProvider.Plans.NAME);
+            final Integer t = row == null ? null : row.getAsInteger(DataProvider.Plans.TYPE);
+            type = t == null ? DataProvider.TYPE_MIXED : t;
+            final float[] b = before == null ? new float[3] : before;
+            final float[] a = after == null ? new float[3] : after;
+            count = (int) (a[0] - b[0]);
+            billedAmount = a[1] - b[1];
+            cost = a[2] - b[2];
+        }
+    }
+
+    /**
+     * A rule set as {@link ContentValues} by table. Does not hold any state of a run.
+     */
+    private static final class RuleSet {
+
+        /** Hash of XML. */
+        private final int hash;
+        /** {@link ContentValues} by table name. */
+        private final HashMap<String, ArrayList<ContentValues>> tables;
+
+        /**
+         * Parse a rule set from XML.
+         *
+         * @param context {@link Context}
+         * @param xml     XML
+         * @throws XmlPullParserException XmlPullParserException
+         * @throws IOException            IOException
+         */
+        RuleSet(final Context context, final String xml) throws XmlPullParserException,
+                IOException {
+            hash = xml.hashCode();
+            tables = DataProvider.parseRuleSet(context, xml);
+            sortRules();
+        }
+
+        /**
+         * Load the user's own rule set from {@link DataProvider}.
+         *
+         * @param cr {@link ContentResolver}
+         */
+        RuleSet(final ContentResolver cr) {
+            hash = 0;
+            tables = new HashMap<String, ArrayList<ContentValues>>();
+            load(cr, DataProvider.Rules.TABLE, DataProvider.Rules.CONTENT_URI,
+                    DataProvider.Rules.PROJECTION);
+            load(cr, DataProvider.Plans.TABLE, DataProvider.Plans.CONTENT_URI,
+                    DataProvider.Plans.PROJECTION);
+            load(cr, DataProvider.Numbers.TABLE, DataProvider.Numbers.CONTENT_URI,
+                    DataProvider.Numbers.PROJECTION);
+            load(cr, DataProvider.Hours.TABLE, DataProvider.Hours.CONTENT_URI,
+                    DataProvider.Hours.PROJECTION);
+            sortRules();
+        }
+
+        /**
+         * Copy a rule set with a single row replaced. Rows are shared with the original.
+         *
+         * @param base  original {@link RuleSet}
+         * @param table table of the row
+         * @param id    id of the row
+         * @param row   new row
+         */
+        RuleSet(final RuleSet base, final String table, final long id, final ContentValues row) {
+            hash = base.hash;
+            tables = new HashMap<String, ArrayList<ContentValues>>(base.tables);
+            final ArrayList<ContentValues> list = new ArrayList<ContentValues>(base.get(table));
+            final String sid = String.valueOf(id);
+            final int l = list.size();
+            for (int i = 0; i < l; i++) {
+                if (sid.equals(list.get(i).getAsString(DataProvider.Rules.ID))) {
+                    list.set(i, row);
+                }
+            }
+            tables.put(table, list);
+            if (DataProvider.Rules.TABLE.equals(table)) {
+                sortRules();
+            }
+        }
+
+        /**
+         * Load a table from {@link DataProvider} in its default order.
+         *
+         * @param cr         {@link ContentResolver}
+         * @param table      table name
+         * @param uri        content {@link Uri}
+         * @param projection projection
+         */
+        private void load(final ContentResolver cr, final String table, final Uri uri,
+                final String[] projection) {
+            final ArrayList<ContentValues> list = get(table);
+            final Cursor cursor = cr.query(uri, projection, null, null, null);
+            if (cursor != null && cursor.moveToFirst()) {
+                do {
+                    final ContentValues cv = new ContentValues();
+                    DatabaseUtils.cursorRowToContentValues(cursor, cv);
+                    list.add(cv);
+                } while (cursor.moveToNext());
+            }
+            if (cursor != null && !cursor.isClosed()) {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Sort rules, they are matched in order.
+         */
+        private void sortRules() {
+            final ArrayList<ContentValues> rules = get(DataProvider.Rules.TABLE);
+            Collections.sort(rules, new Comparator<ContentValues>() {
+                @Override
+                public int compare(final ContentValues lhs, final ContentValues rhs) {
+                    int ret = compareLong(lhs, rhs, DataProvider.Rules.ORDER);
+                    if (ret == 0) {
+                        ret = compareLong(lhs, rhs, DataProvider.Rules.ID);
+                    }
+                    return ret;
+                }
+            });
+        }
+
+        /**
+         * Get a row by id.
+         *
+         * @param table table name
+         * @param id    id of the row
+         * @return {@link ContentValues}, null if not found
+         */
+        ContentValues get(final String table, final long id) {
+            final String sid = String.valueOf(id);
+            for (ContentValues cv : get(table)) {
+                if (sid.equals(cv.getAsString(DataProvider.Rules.ID))) {
+                    return cv;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Get a table. Synchronized, as cached rule sets are shared by all threads.
+         *
+         * @param table table name
+         * @return {@link ContentValues}, never null
+         */
+        synchronized ArrayList<ContentValues> get(final String table) {
+            ArrayList<ContentValues> ret = tables.get(table);
+            if (ret == null) {
+                ret = new ArrayList<ContentValues>();
+                tables.put(table, ret);
+            }
+            return ret;
+        }
+
+        /**
+         * @return number of rows of all tables
+         */
+        synchronized int size() {
+            int ret = 0;
+            for (ArrayList<ContentValues> list : tables.values()) {
+                ret += list.size();
+            }
+            return Math.max(1, ret);
+        }
+
+        /**
+         * Get a table as {@link Cursor}.
+         *
+         * @param table      table name
+         * @param projection projection
+         * @return {@link MatrixCursor}
+         */
+        Cursor query(final String table, final String[] projection) {
+            final ArrayList<ContentValues> list = get(table);
+            final MatrixCursor ret = new MatrixCursor(projection, list.size());
+            final int l = projection.length;
+            for (ContentValues cv : list) {
+                final Object[] row = new Object[l];
+                for (int i = 0; i < l; i++) {
+                    row[i] = cv.get(projection[i]);
+                }
+                ret.addRow(row);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * A rule set compiled for a single run. Holds the totals of its {@link RuleMatcher.Plan}s.
+     */
+    private static final class Candidate implements Callable<Candidate> {
+
+        /** Name of rule set. */
+        private final String name;
+        /** {@link RuleMatcher.RuleTable}. */
+        private final RuleMatcher.RuleTable ruleTable;
+        /** {@link RuleMatcher.Plan}s by id. */
+        private final SparseArray<RuleMatcher.Plan> plans;
+        /** Base fees. */
+        private final float fees;
+
+        /** {@link ContentResolver}, used for looking up websms and sipcalls. */
+        private final ContentResolver cr;
+        /** Logs as rows of {@link DataProvider.Logs#PROJECTION}. */
+        private final ArrayList<Object[]> logs;
+        /** {@link TimeZone} used for matching hours. */
+        private final TimeZone tz;
+
+        /** Cost of logs. */
+        private float cost = 0f;
+        /** Number of logs matched by any rule. */
+        private int matched = 0;
+        /** Number of logs not matched by any rule. */
+        private int notMatched = 0;
+        /** {count, billed amount, cost} by plan's id. */
+        private final SparseArray<float[]> stats = new SparseArray<float[]>();
+
+        /**
+         * Compile a {@link RuleSet}.
+         *
+         * @param name0   name of rule set
+         * @param rs      {@link RuleSet}
+         * @param periods number of bill periods
+         * @param cr0     {@link ContentResolver}
+         * @param logs0   logs as rows of {@link DataProvider.Logs#PROJECTION}
+         * @param tz0     {@link TimeZone} used for matching hours
+         * @param strip   strip leading zeros
+         * @param iPrefix international number prefix
+         */
+        Candidate(final String name0, final RuleSet rs, final int periods,
+                final ContentResolver cr0, final ArrayList<Object[]> logs0, final TimeZone tz0,
+                final boolean strip, final String iPrefix) {
+            name = name0;
+            cr = cr0;
+            logs = logs0;
+            tz = tz0;
+
+            final RuleMatcher.Rule.Groups groups = new RuleMatcher.Rule.Groups(
+                    rs.query(DataProvider.Numbers.TABLE, DataProvider.Numbers.PROJECTION),
+                    rs.query(DataProvider.Hours.TABLE, DataProvider.Hours.PROJECTION), strip,
+                    iPrefix);
+
+            final ArrayList<RuleMatcher.Rule> rules = new ArrayList<RuleMatcher.Rule>();
+            Cursor cursor = rs.query(DataProvider.Rules.TABLE, DataProvider.Rules.PROJECTION);
+            if (cursor.moveToFirst()) {
+                do {
+                    // missing active flag defaults to active, like in the database
+                    if (cursor.isNull(DataProvider.Rules.INDEX_ACTIVE)
+                            || cursor.getInt(DataProvider.Rules.INDEX_ACTIVE) > 0) {
+                        rules.add(new RuleMatcher.Rule(groups, cursor, -1));
+                    }
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+            ruleTable = new RuleMatcher.RuleTable(rules);
+
+            float f = 0f;
+            cursor = rs.query(DataProvider.Plans.TABLE, DataProvider.Plans.PROJECTION);
+            plans = RuleMatcher.loadPlans(null, cursor);
+            if (cursor.moveToFirst()) {
+                do {
+                    final int t = cursor.getInt(DataProvider.Plans.INDEX_TYPE);
+                    if (t != DataProvider.TYPE_SPACING && t != DataProvider.TYPE_TITLE) {
+                        f += cursor.getFloat(DataProvider.Plans.INDEX_COST_PER_PLAN);
+                    }
+                } while (cursor.moveToNext());
+            }
+            cursor.close();
+            fees = f * periods;
+        }
+
+        @Override
+        public Candidate call() {
+            final long ct = SystemClock.elapsedRealtime();
+            final MatrixCursor log = new MatrixCursor(DataProvider.Logs.PROJECTION, logs.size());
+            for (Object[] row : logs) {
+                log.addRow(row);
+            }
+            for (int i = 0; log.moveToPosition(i); i++) {
+                if (rate(log)) {
+                    ++matched;
+                } else {
+                    ++notMatched;
+                }
+            }
+            log.close();
+            Log.d(TAG, "rated " + name + ": " + cost + " + " + fees, ct);
+            return this;
+        }
+
+        /**
+         * Bill a log to the first matching {@link RuleMatcher.Rule}, which limit is not reached.
+         * Logs need to be rated in order.
+         *
+         * @param log {@link Cursor} representing the log
+         * @return true if a log was matched
+         */
+        private boolean rate(final Cursor log) {
+            final int hourOfWeek = RuleMatcher.Rule.HoursGroup.getHourOfWeek(
+                    log.getLong(DataProvider.Logs.INDEX_DATE), tz);
+            final RuleMatcher.Rule[] candidates = ruleTable.get(log);
+            final boolean compiled = candidates != null;
+            for (RuleMatcher.Rule r : compiled ? candidates : ruleTable.getAll()) {
+                if (!compiled && !r.matchType(log)) {
+                    continue;
+                }
+                if (!r.matchStatic(cr, log, hourOfWeek, !compiled)
+                        || !r.matchLimit(plans, log)) {
+                    continue;
+                }
+                final RuleMatcher.Plan p = plans.get(r.getPlanId());
+                if (p == null) {
+                    continue;
+                }
+                p.checkBillday(log);
+                final float ba = p.getBilledAmount(log);
+                final float bc = p.getCost(log, ba);
+                cost += bc - p.getFree(log, bc);
+                p.updatePlan(ba, bc, log.getInt(DataProvider.Logs.INDEX_TYPE));
+                final int pid = (int) p.getId();
+                float[] st = stats.get(pid);
+                if (st == null) {
+                    st = new float[3];
+                    stats.put(pid, st);
+                }
+                ++st[0];
+                st[1] += ba;
+                st[2] += bc;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Default constructor.
+     */
+    private TariffComparison() {
+    }
+
+    /**
+     * Compare two {@link ContentValues} by a numeric key.
+     *
+     * @param lhs left {@link ContentValues}
+     * @param rhs right {@link ContentValues}
+     * @param key key
+     * @return see {@link Comparator#compare(Object, Object)}
+     */
+    private static int compareLong(final ContentValues lhs, final ContentValues rhs,
+            final String key) {
+        final Long l = lhs.getAsLong(key);
+        final Long r = rhs.getAsLong(key);
+        final long a = l == null ? 0L : l;
+        final long b = r == null ? 0L : r;
+        return a < b ? -1 : (a == b ? 0 : 1);
+    }
+
+    /**
+     * Get a parsed {@link RuleSet}. Parsed rule sets are cached until their XML changes or they
+     * are evicted from {@link #CACHE}.
+     *
+     * @param context {@link Context}
+     * @param name    name of rule set
+     * @param xml     XML
+     * @return {@link RuleSet}, null if XML could not be parsed
+     */
+    private static RuleSet getRuleSet(final Context context, final String name,
+            final String xml) {
+        final RuleSet cached = CACHE.get(name);
+        if (cached != null && cached.hash == xml.hashCode()) {
+            return cached;
+        }
+        try {
+            final RuleSet rs = new RuleSet(context, xml);
+            CACHE.put(name, rs);
+            return rs;
+        } catch (XmlPullParserException e) {
+            Log.e(TAG, "error parsing rule set: " + name, e);
+        } catch (IOException e) {
+            Log.e(TAG, "error parsing rule set: " + name, e);
+        }
+        return null;
+    }
+
+    /**
+     * Get a parsed {@link RuleSet} bundled in assets. Assets do not change, a cached rule set is
+     * returned without reading its XML.
+     *
+     * @param context {@link Context}
+     * @param assets  {@link AssetManager}
+     * @param name    name of rule set
+     * @return {@link RuleSet}, null if it could not be read or parsed
+     */
+    private static RuleSet getBundledRuleSet(final Context context, final AssetManager assets,
+            final String name) {
+        final String key = ASSETS_RULESETS + "/" + name + ASSETS_EXTENSION;
+        final RuleSet cached = CACHE.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final StringBuilder sb = new StringBuilder();
+        try {
+            final BufferedReader r = new BufferedReader(new InputStreamReader(assets.open(key),
+                    "UTF-8"));
+            try {
+                final char[] buf = new char[BUFFER_SIZE];
+                int l;
+                while ((l = r.read(buf)) > 0) {
+                    sb.append(buf, 0, l);
+                }
+            } finally {
+                r.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "error reading rule set: " + key, e);
+            return null;
+        }
+        return getRuleSet(context, key, sb.toString());
+    }
+
+    /**
+     * Get the time frame of the last completed bill periods. Falls back to months, if the bill
+     * period is infinite.
+     *
+     * @param billperiod bill period, see {@link DataProvider.Plans#BILLPERIOD}
+     * @param billday    first bill day
+     * @param periods    number of completed bill periods; 0 for the current bill period
+     * @return {start, end}
+     */
+    private static long[] getTimeFrame(final int billperiod, final long billday,
+            final int periods) {
+        final long now = System.currentTimeMillis();
+        Calendar end = null;
+        Calendar start = null;
+        if (billperiod != DataProvider.BILLPERIOD_INFINITE) {
+            end = DataProvider.Plans.getBillDay(billperiod, billday, now, false);
+            start = end;
+            for (int i = 0; i < periods && start != null; i++) {
+                start = DataProvider.Plans.getBillDay(billperiod, billday,
+                        start.getTimeInMillis() - 1L, false);
+            }
+        }
+        if (end == null || start == null) {
+            end = Calendar.getInstance();
+            end.setTimeInMillis(now);
+            start = (Calendar) end.clone();
+            start.add(Calendar.MONTH, -Math.max(1, periods));
+        }
+        if (periods == 0) {
+            return new long[]{start.getTimeInMillis(), Long.MAX_VALUE};
+        }
+        return new long[]{start.getTimeInMillis(), end.getTimeInMillis()};
+    }
+
+    /**
+     * Load logs of a time frame.
+     *
+     * @param cr    {@link ContentResolver}
+     * @param frame {start, end}
+     * @return logs as rows of {@link DataProvider.Logs#PROJECTION} in order
+     */
+    private static ArrayList<Object[]> loadLogs(final ContentResolver cr, final long[] frame) {
+        final ArrayList<Object[]> ret = new ArrayList<Object[]>();
+        final Cursor cursor = cr.query(DataProvider.Logs.CONTENT_URI,
+                DataProvider.Logs.PROJECTION, WHERE_LOGS, new String[]{
+                String.valueOf(frame[0]), String.valueOf(frame[1])},
+                DataProvider.Logs.DATE + " ASC");
+        if (cursor != null && cursor.moveToFirst()) {
+            do {
+                ret.add(RuleMatcher.copyLog(cursor));
+            } while (cursor.moveToNext());
+        }
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+        }
+        return ret;
+    }
+
+    /**
+     * Rate the logs of the last completed bill periods against rule sets. Rule sets are rated
+     * in parallel. Neither the rule sets nor the logs are written to the database.
+     *
+     * @param context  {@link Context}
+     * @param ruleSets XML of rule sets by name, in the format read by
+     *                 {@link DataProvider#importData(Context, String)}
+     * @param periods  number of bill periods
+     * @return {@link Result}s, cheapest first; rule sets, which could not be parsed, are skipped
+     */
+    public static Result[] compare(final Context context, final Map<String, String> ruleSets,
+            final int periods) {
+        return compare(context, ruleSets.keySet().toArray(new String[ruleSets.size()]),
+                new RuleSetLoader() {
+                    @Override
+                    public RuleSet load(final String name) {
+                        return getRuleSet(context, name, ruleSets.get(name));
+                    }
+                }, periods);
+    }
+
+    /**
+     * Rate the logs of the last completed bill periods against all rule sets bundled in
+     * {@link #ASSETS_RULESETS}. See {@link #compare(Context, Map, int)}.
+     *
+     * @param context {@link Context}
+     * @param periods number of bill periods
+     * @return {@link Result}s named by file name without extension, cheapest first
+     */
+    public static Result[] compareBundled(final Context context, final int periods) {
+        final AssetManager assets = context.getAssets();
+        final ArrayList<String> names = new ArrayList<String>();
+        try {
+            for (String f : assets.list(ASSETS_RULESETS)) {
+                if (f.endsWith(ASSETS_EXTENSION)) {
+                    names.add(f.substring(0, f.length() - ASSETS_EXTENSION.length()));
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "error listing rule sets", e);
+        }
+        return compare(context, names.toArray(new String[names.size()]), new RuleSetLoader() {
+            @Override
+            public RuleSet load(final String name) {
+                return getBundledRuleSet(context, assets, name);
+            }
+        }, periods);
+    }
+
+    /**
+     * Rate the logs of the last completed bill periods against rule sets. Each rule set is
+     * loaded, compiled and rated on a worker thread; only the {@link Result} is kept.
+     *
+     * @param context {@link Context}
+     * @param names   names of rule sets
+     * @param loader  {@link RuleSetLoader} for rule sets by name
+     * @param periods number of bill periods
+     * @return {@link Result}s, cheapest first; rule sets, which could not be loaded, are skipped
+     */
+    private static Result[] compare(final Context context, final String[] names,
+            final RuleSetLoader loader, final int periods) {
+        final long ct = SystemClock.elapsedRealtime();
+        final ContentResolver cr = context.getContentResolver();
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean strip = prefs.getBoolean(Preferences.PREFS_STRIP_LEADING_ZEROS, false);
+        final String prefix = prefs.getString(Preferences.PREFS_INT_PREFIX, "");
+
+        // time frame of the user's first bill period
+        int billperiod = DataProvider.BILLPERIOD_INFINITE;
+        long billday = 0L;
+        final Cursor cursor = cr.query(DataProvider.Plans.CONTENT_URI,
+                DataProvider.Plans.PROJECTION, DataProvider.Plans.TYPE + " = "
+                        + DataProvider.TYPE_BILLPERIOD, null, null);
+        if (cursor != null && cursor.moveToFirst()) {
+            billperiod = cursor.getInt(DataProvider.Plans.INDEX_BILLPERIOD);
+            billday = cursor.getLong(DataProvider.Plans.INDEX_BILLDAY);
+        }
+        if (cursor != null && !cursor.isClosed()) {
+            cursor.close();
+        }
+
+        // load logs once, they are shared by all candidates
+        final ArrayList<Object[]> logs = loadLogs(cr,
+                getTimeFrame(billperiod, billday, periods));
+        Log.d(TAG, "compare(): logs=" + logs.size() + " rulesets=" + names.length);
+
+        final TimeZone tz = TimeZone.getDefault();
+        final ArrayList<Result> ret = new ArrayList<Result>(names.length);
+        final int threads = Math.max(1, Math.min(MAX_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            final ArrayList<Future<Result>> futures = new ArrayList<Future<Result>>(
+                    names.length);
+            for (final String name : names) {
+                futures.add(pool.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        final RuleSet rs = loader.load(name);
+                        if (rs == null) {
+                            return null;
+                        }
+                        try {
+                            return new Result(new Candidate(name, rs, periods, cr, logs, tz,
+                                    strip, prefix).call());
+                        } catch (NumberFormatException e) {
+                            Log.e(TAG, "invalid rule set: " + name, e);
+                            return null;
+                        }
+                    }
+                }));
+            }
+            for (Future<Result> f : futures) {
+                try {
+                    final Result r = f.get();
+                    if (r != null) {
+                        ret.add(r);
+                    }
+                } catch (ExecutionException e) {
+                    Log.e(TAG, "error rating rule set", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "interrupted while comparing", e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        final Result[] a = ret.toArray(new Result[ret.size()]);
+        Arrays.sort(a, new Comparator<Result>() {
+            @Override
+            public int compare(final Result lhs, final Result rhs) {
+                final int c = Float.compare(lhs.cost, rhs.cost);
+                if (c != 0) {
+                    return c;
+                }
+                return lhs.name.compareTo(rhs.name);
+            }
+        });
+        Log.d(TAG, "compare()", ct);
+        return a;
+    }
+
+    /**
+     * Preview the effect of an edited {@link DataProvider.Rules} row on the current bill period.
+     *
+     * @param context {@link Context}
+     * @param id      rule's id
+     * @param before  rule's row before the edit
+     * @param changes changed values
+     * @return {@link Delta}s of all changed plans
+     */
+    public static Delta[] previewRule(final Context context, final long id,
+            final ContentValues before, final ContentValues changes) {
+        return preview(context, DataProvider.Rules.TABLE, id, before, changes);
+    }
+
+    /**
+     * Preview the effect of an edited {@link DataProvider.Plans} row on the current bill period.
+     *
+     * @param context {@link Context}
+     * @param id      plan's id
+     * @param before  plan's row before the edit
+     * @param changes changed values
+     * @return {@link Delta}s of all changed plans
+     */
+    public static Delta[] previewPlan(final Context context, final long id,
+            final ContentValues before, final ContentValues changes) {
+        return preview(context, DataProvider.Plans.TABLE, id, before, changes);
+    }
+
+    /**
+     * Rate the logs of the current bill period against the user's rule set before and after an
+     * edit. Nothing is written to the database.
+     *
+     * @param context {@link Context}
+     * @param table   table of the edited row
+     * @param id      id of the edited row
+     * @param before  row before the edit
+     * @param changes changed values
+     * @return {@link Delta}s of all changed plans
+     */
+    private static Delta[] preview(final Context context, final String table, final long id,
+            final ContentValues before, final ContentValues changes) {
+        final long ct = SystemClock.elapsedRealtime();
+        final ContentResolver cr = context.getContentResolver();
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        final boolean strip = prefs.getBoolean(Preferences.PREFS_STRIP_LEADING_ZEROS, false);
+        final String prefix = prefs.getString(Preferences.PREFS_INT_PREFIX, "");
+
+        final RuleSet base = new RuleSet(cr);
+        final ContentValues after = new ContentValues(before);
+        after.putAll(changes);
+        final RuleSet rsBefore = new RuleSet(base, table, id, before);
+        final RuleSet rsAfter = new RuleSet(base, table, id, after);
+
+        // current bill period of the edited plan
+        Long pid = id;
+        if (DataProvider.Rules.TABLE.equals(table)) {
+            pid = after.getAsLong(DataProvider.Rules.PLAN_ID);
+        }
+        ContentValues bp = pid == null ? null : rsAfter.get(DataProvider.Plans.TABLE, pid);
+        if (bp != null && !Integer.valueOf(DataProvider.TYPE_BILLPERIOD).equals(
+                bp.getAsInteger(DataProvider.Plans.TYPE))) {
+            final Long bpid = bp.getAsLong(DataProvider.Plans.BILLPERIOD_ID);
+            bp = bpid == null ? null : rsAfter.get(DataProvider.Plans.TABLE, bpid);
+        }
+        final Integer billperiod = bp == null ? null
+                : bp.getAsInteger(DataProvider.Plans.BILLPERIOD);
+        final Long billday = bp == null ? null : bp.getAsLong(DataProvider.Plans.BILLDAY);
+        final ArrayList<Object[]> logs = loadLogs(cr, getTimeFrame(
+                billperiod == null ? DataProvider.BILLPERIOD_INFINITE : billperiod,
+                billday == null ? 0L : billday, 0));
+        Log.d(TAG, "preview(): logs=" + logs.size());
+
+        // rate before and after in parallel
+        final TimeZone tz = TimeZone.getDefault();
+        final ArrayList<Delta> ret = new ArrayList<Delta>();
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            final Future<Candidate> fb = pool.submit(new Candidate("before", rsBefore, 0, cr,
+                    logs, tz, strip, prefix));
+            final Future<Candidate> fa = pool.submit(new Candidate("after", rsAfter, 0, cr,
+                    logs, tz, strip, prefix));
+            final SparseArray<float[]> sb = fb.get().stats;
+            final SparseArray<float[]> sa = fa.get().stats;
+            final SparseArray<float[]> all = new SparseArray<float[]>();
+            int l = sb.size();
+            for (int i = 0; i < l; i++) {
+                all.put(sb.keyAt(i), sb.valueAt(i));
+            }
+            l = sa.size();
+            for (int i = 0; i < l; i++) {
+                all.put(sa.keyAt(i), sa.valueAt(i));
+            }
+            l = all.size();
+            for (int i = 0; i < l; i++) {
+                final int p = all.keyAt(i);
+                final Delta d = new Delta(p, rsAfter.get(DataProvider.Plans.TABLE, p),
+                        sb.get(p), sa.get(p));
+                if (d.count != 0 || d.billedAmount != 0f || d.cost != 0f) {
+                    ret.add(d);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "interrupted while previewing", e);
+        } catch (ExecutionException e) {
+            Log.e(TAG, "error previewing", e);
+        } catch (NumberFormatException e) {
+            Log.e(TAG, "invalid edit", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        Log.d(TAG, "preview()", ct);
+        return ret.toArray(new Delta[ret.size()]);
+    }
+}
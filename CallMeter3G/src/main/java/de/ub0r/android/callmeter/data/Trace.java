@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import android.os.SystemClock;
+
+/**
+ * Trace of events on hot paths: matching, querying and reading logs. Events are typed and carry
+ * up to three numbers. They are kept in a ring buffer of primitive arrays and formatted only by
+ * dump(). Nothing is allocated while tracing is disabled or enabled.
+ *
+ * @author flx
+ */
+public final class Trace {
+
+    /** Trace compiled in. Set to false to turn all calls into no-ops. */
+    public static final boolean COMPILED = true;
+
+    /** Number of events kept. */
+    private static final int SIZE = 2048;
+
+    /** Event: rule checked; a=rule id, b=step, c=result. */
+    public static final int MATCH_STEP = 0;
+    /** Event: plan's limit reached; a=rule id, b=plan id. */
+    public static final int MATCH_LIMIT = 1;
+    /** Event: log matched; a=log id, b=plan id, c=rule id. */
+    public static final int MATCH_LOG = 2;
+    /** Event: query; a=uri id, b=time in ms. */
+    public static final int QUERY = 3;
+    /** Event: insert; a=uri id, b=new id. */
+    public static final int INSERT = 4;
+    /** Event: update; a=uri id, b=updated rows. */
+    public static final int UPDATE = 5;
+    /** Event: log read from system; a=type, b=date, c=amount. */
+    public static final int INGEST = 6;
+
+    /** Step of MATCH_STEP: roaming. */
+    public static final int STEP_ROAMED = 0;
+    /** Step of MATCH_STEP: direction. */
+    public static final int STEP_DIRECTION = 1;
+    /** Step of MATCH_STEP: type. */
+    public static final int STEP_TYPE = 2;
+    /** Step of MATCH_STEP: websms or sipcall. */
+    public static final int STEP_WEBSMS_SIPCALL = 3;
+    /** Step of MATCH_STEP: plan's limit. */
+    public static final int STEP_LIMIT = 4;
+    /** Step of MATCH_STEP: my own number. */
+    public static final int STEP_MYNUMBER = 5;
+    /** Step of MATCH_STEP: included hours. */
+    public static final int STEP_INHOURS = 6;
+    /** Step of MATCH_STEP: excluded hours. */
+    public static final int STEP_EXHOURS = 7;
+    /** Step of MATCH_STEP: included numbers. */
+    public static final int STEP_INNUMBERS = 8;
+    /** Step of MATCH_STEP: excluded numbers. */
+    public static final int STEP_EXNUMBERS = 9;
+    /** Number of steps. */
+    public static final int STEPS = 10;
+
+    /** Names of events. */
+    private static final String[] EVENTS = new String[]{"match_step", "match_limit",
+            "match_log", "query", "insert", "update", "ingest"};
+    /** Names of steps. */
+    private static final String[] STEP_NAMES = new String[]{"roamed", "direction", "type",
+            "websms/sipcall", "limit", "mynumber", "inhours", "exhours", "innumbers",
+            "exnumbers"};
+
+    /** Tracing enabled. */
+    private static volatile boolean enabled = false;
+
+    /** Lock for ring buffer. */
+    private static final Object LOCK = new Object();
+    /** Time of event. */
+    private static final long[] TIME = new long[SIZE];
+    /** Type of event. */
+    private static final int[] TYPE = new int[SIZE];
+    /** First value. */
+    private static final long[] A = new long[SIZE];
+    /** Second value. */
+    private static final long[] B = new long[SIZE];
+    /** Third value. */
+    private static final long[] C = new long[SIZE];
+    /** Next position in ring buffer. */
+    private static int next = 0;
+    /** Number of events in ring buffer. */
+    private static int count = 0;
+
+    /**
+     * Default constructor.
+     */
+    private Trace() {
+    }
+
+    /**
+     * @return true, if events are recorded
+     */
+    public static boolean isEnabled() {
+        return COMPILED && enabled;
+    }
+
+    /**
+     * Enable or disable tracing. Recorded events are kept.
+     *
+     * @param enable enable tracing
+     */
+    public static void setEnabled(final boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * Record an event. Overrides the oldest event, if the buffer is full.
+     *
+     * @param type type of event
+     * @param a    first value
+     * @param b    second value
+     * @param c    third value
+     */
+    public static void event(final int type, final long a, final long b, final long c) {
+        if (!COMPILED || !enabled) {
+            return;
+        }
+        final long t = SystemClock.elapsedRealtime();
+        synchronized (LOCK) {
+            TIME[next] = t;
+            TYPE[next] = type;
+            A[next] = a;
+            B[next] = b;
+            C[next] = c;
+            next = (next + 1) % SIZE;
+            if (count < SIZE) {
+                ++count;
+            }
+        }
+    }
+
+    /**
+     * Get name of a step.
+     *
+     * @param step step of MATCH_STEP
+     * @return name of step
+     */
+    public static String getStepName(final int step) {
+        return STEP_NAMES[step];
+    }
+
+    /**
+     * Drop all recorded events.
+     */
+    public static void clear() {
+        synchronized (LOCK) {
+            next = 0;
+            count = 0;
+        }
+    }
+
+    /**
+     * Format recorded events, oldest first.
+     *
+     * @return events, one per line
+     */
+    public static String dump() {
+        final StringBuilder sb = new StringBuilder();
+        synchronized (LOCK) {
+            int i = (next - count + SIZE) % SIZE;
+            final long t0 = TIME[i];
+            for (int j = 0; j < count; j++) {
+                sb.append('+').append(TIME[i] - t0).append("ms ");
+                final int t = TYPE[i];
+                sb.append(t >= 0 && t < EVENTS.length ? EVENTS[t] : String.valueOf(t));
+                sb.append(' ').append(A[i]).append(' ');
+                if (t == MATCH_STEP && B[i] >= 0 && B[i] < STEPS) {
+                    sb.append(STEP_NAMES[(int) B[i]]);
+                } else {
+                    sb.append(B[i]);
+                }
+                sb.append(' ').append(C[i]).append('\n');
+                i = (i + 1) % SIZE;
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -28,6 +28,7 @@ import android.app.TimePickerDialog;
 import android.app.TimePickerDialog.OnTimeSetListener;
 import android.content.ContentValues;
 import android.os.Bundle;
+import android.preference.PreferenceManager;
 import android.text.format.DateFormat;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -48,6 +49,7 @@ import de.ub0r.android.callmeter.CallMeter;
 import de.ub0r.android.callmeter.R;
 import de.ub0r.android.callmeter.data.DataProvider;
 import de.ub0r.android.callmeter.data.LogRunnerService;
+import de.ub0r.android.callmeter.data.RuleMatcher;
 import de.ub0r.android.callmeter.ui.prefs.Preferences;
 import de.ub0r.android.lib.Log;
 import de.ub0r.android.lib.Utils;
@@ -193,6 +195,8 @@ public final class AddLogActivity extends SherlockActivity implements OnClickLis
                 cv.put(DataProvider.Logs.PLAN_ID, DataProvider.NO_ID);
                 cv.put(DataProvider.Logs.RULE_ID, DataProvider.NO_ID);
                 cv.put(DataProvider.Logs.REMOTE, r);
+                cv.put(DataProvider.Logs.REMOTE_NORMALIZED, RuleMatcher.normalizeRemote(
+                        PreferenceManager.getDefaultSharedPreferences(this), r));
                 cv.put(DataProvider.Logs.DATE, cal.getTimeInMillis());
                 if (roamed) {
                     cv.put(DataProvider.Logs.ROAMED, 1);
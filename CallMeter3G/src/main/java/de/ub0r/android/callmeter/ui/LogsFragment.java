@@ -48,7 +48,9 @@ import android.widget.AdapterView.OnItemLongClickListener;
 import android.widget.TextView;
 import android.widget.ToggleButton;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.RejectedExecutionException;
 
 import de.ub0r.android.callmeter.R;
@@ -100,6 +102,10 @@ public final class LogsFragment extends SherlockListFragment implements OnClickL
     /** Unique id for this {@link LogFragment}s loader. */
     private static final int LOADER_UID = -2;
 
+    /** Sort order of logs, served by the index on date. */
+    public static final String ORDER = DataProvider.Logs.TABLE + "." + DataProvider.Logs.DATE
+            + " DESC";
+
     /**
      * Adapter binding logs to View.
      *
@@ -367,6 +373,32 @@ public final class LogsFragment extends SherlockListFragment implements OnClickL
         e.commit();
     }
 
+    /**
+     * Get selection of logs shown. Types and directions are not looked up by index: logs are read
+     * by the index on date in {@link #ORDER} instead of being sorted afterwards.
+     *
+     * @param types      types of logs shown
+     * @param directions directions of logs shown
+     * @param plans      selection of plans, see parseMergerWhere(); null for all plans
+     * @return selection
+     */
+    public static String getWhere(final List<Integer> types, final List<Integer> directions,
+            final String plans) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("+").append(DataProvider.Logs.TABLE).append(".").append(DataProvider.Logs.TYPE)
+                .append(" in (-1");
+        for (Integer t : types) {
+            sb.append(",").append(t);
+        }
+        sb.append(") and +").append(DataProvider.Logs.TABLE).append(".")
+                .append(DataProvider.Logs.DIRECTION).append(" in (-1");
+        for (Integer d : directions) {
+            sb.append(",").append(d);
+        }
+        sb.append(")");
+        return DbUtils.sqlAnd(plans, sb.toString());
+    }
+
     /**
      * Set Adapter.
      *
@@ -378,34 +410,33 @@ public final class LogsFragment extends SherlockListFragment implements OnClickL
             return;
         }
 
-        String where = DataProvider.Logs.TABLE + "." + DataProvider.Logs.TYPE + " in (-1";
+        final ArrayList<Integer> types = new ArrayList<Integer>();
         if (this.tbCall != null && tbCall.isChecked()) {
-            where += "," + DataProvider.TYPE_CALL;
+            types.add(DataProvider.TYPE_CALL);
         }
         if (this.tbSMS != null && tbSMS.isChecked()) {
-            where += "," + DataProvider.TYPE_SMS;
+            types.add(DataProvider.TYPE_SMS);
         }
         if (this.tbMMS != null && tbMMS.isChecked()) {
-            where += "," + DataProvider.TYPE_MMS;
+            types.add(DataProvider.TYPE_MMS);
         }
         if (this.tbData != null && tbData.isChecked()) {
-            where += "," + DataProvider.TYPE_DATA;
+            types.add(DataProvider.TYPE_DATA);
         }
-        where += ") and " + DataProvider.Logs.TABLE + "." + DataProvider.Logs.DIRECTION + " in (-1";
+        final ArrayList<Integer> directions = new ArrayList<Integer>();
         if (this.tbIn != null && tbIn.isChecked()) {
-            where += "," + DataProvider.DIRECTION_IN;
+            directions.add(DataProvider.DIRECTION_IN);
         }
         if (this.tbOut != null && tbOut.isChecked()) {
-            where += "," + DataProvider.DIRECTION_OUT;
+            directions.add(DataProvider.DIRECTION_OUT);
         }
-        where += ")";
-
+        String plans = null;
         if (this.planId > 0L && tbPlan != null && tbPlan.isChecked()) {
-            String plans = DataProvider.Plans.parseMergerWhere(this.getActivity()
+            plans = DataProvider.Plans.parseMergerWhere(this.getActivity()
                     .getContentResolver(), planId);
-            where = DbUtils.sqlAnd(plans, where);
-            Log.d(TAG, "where: " + where);
         }
+        final String where = getWhere(types, directions, plans);
+        Log.d(TAG, "where: " + where);
         Bundle args = new Bundle(1);
         args.putString("where", where);
 
@@ -517,7 +548,7 @@ public final class LogsFragment extends SherlockListFragment implements OnClickL
             where = args.getString("where");
         }
         return new CursorLoader(this.getActivity(), DataProvider.Logs.CONTENT_URI_JOIN,
-                DataProvider.Logs.PROJECTION_JOIN, where, null, DataProvider.Logs.DATE + " DESC");
+                DataProvider.Logs.PROJECTION_JOIN, where, null, ORDER);
     }
 
     @Override
@@ -27,6 +27,7 @@ import com.viewpagerindicator.TitlePageIndicator;
 import android.app.ProgressDialog;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.database.Cursor;
@@ -53,6 +54,7 @@ import de.ub0r.android.callmeter.R;
 import de.ub0r.android.callmeter.data.DataProvider;
 import de.ub0r.android.callmeter.data.LogRunnerReceiver;
 import de.ub0r.android.callmeter.data.LogRunnerService;
+import de.ub0r.android.callmeter.data.RuleMatcher;
 import de.ub0r.android.callmeter.ui.prefs.Preferences;
 import de.ub0r.android.lib.ChangelogHelper;
 import de.ub0r.android.lib.DonationHelper;
@@ -170,6 +172,16 @@ public final class Plans extends SherlockFragmentActivity implements OnPageChang
                             statusMatcher.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
                             statusMatcher.setMax(msg.arg2);
                             statusMatcher.setIndeterminate(false);
+                            // stops at the next batch, the next run goes on from there
+                            statusMatcher.setButton(DialogInterface.BUTTON_NEGATIVE,
+                                    Plans.this.getString(android.R.string.cancel),
+                                    new DialogInterface.OnClickListener() {
+                                        @Override
+                                        public void onClick(final DialogInterface dialog,
+                                                final int which) {
+                                            RuleMatcher.cancel();
+                                        }
+                                    });
                             statusMatcherProgress = true;
                             Log.d(TAG, "showing dialog..");
                             statusMatcher.show();
@@ -243,6 +243,7 @@ public final class PlansFragment extends SherlockListFragment implements OnClick
                     spb.setSpan(new StyleSpan(Typeface.BOLD), 0, spb.length(),
                             Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
                     if (plan.type != DataProvider.TYPE_BILLPERIOD) {
+                        // all-time and today's sums cover whole days, even in history mode
                         if (showTotal) {
                             spb.append(delimiter
                                     + Common.formatValues(context, plan.now, plan.type,
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.ui.prefs;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.net.Uri;
+import android.os.AsyncTask;
+
+import de.ub0r.android.callmeter.R;
+import de.ub0r.android.callmeter.data.TariffComparison;
+import de.ub0r.android.callmeter.ui.Common;
+
+/**
+ * Preview the effect of an edited rule or plan on the current bill period in background.
+ *
+ * @author flx
+ */
+abstract class EditPreview extends AsyncTask<Void, Void, TariffComparison.Delta[]> {
+
+    /** {@link Context}. */
+    private final Context context;
+    /** Id of edited row. */
+    private final long id;
+    /** Row before the edit. */
+    private final ContentValues before;
+    /** Changed values. */
+    private final ContentValues changes;
+    /** Edited row is a rule, not a plan. */
+    private final boolean isRule;
+
+    /**
+     * Default constructor. Call before saving the changes.
+     *
+     * @param ctx        {@link Context}
+     * @param uri        {@link Uri} of edited row
+     * @param projection projection of edited row
+     * @param changes0   changed values, not saved yet
+     * @param isRule0    edited row is a rule, not a plan
+     */
+    EditPreview(final Context ctx, final Uri uri, final String[] projection,
+            final ContentValues changes0, final boolean isRule0) {
+        context = ctx.getApplicationContext();
+        id = Long.parseLong(uri.getLastPathSegment());
+        before = getRow(ctx.getContentResolver(), uri, projection);
+        changes = new ContentValues(changes0);
+        isRule = isRule0;
+    }
+
+    /**
+     * Get a row.
+     *
+     * @param cr         {@link ContentResolver}
+     * @param uri        {@link Uri} of row
+     * @param projection projection
+     * @return row as {@link ContentValues}
+     */
+    private static ContentValues getRow(final ContentResolver cr, final Uri uri,
+            final String[] projection) {
+        final ContentValues ret = new ContentValues();
+        final Cursor c = cr.query(uri, projection, null, null, null);
+        if (c != null && c.moveToFirst()) {
+            DatabaseUtils.cursorRowToContentValues(c, ret);
+        }
+        if (c != null && !c.isClosed()) {
+            c.close();
+        }
+        return ret;
+    }
+
+    /**
+     * Get a number with sign.
+     *
+     * @param v number
+     * @param s formatted absolute number
+     * @return formatted number with sign
+     */
+    private static String signed(final float v, final String s) {
+        return (v < 0f ? "-" : "+") + s;
+    }
+
+    @Override
+    protected TariffComparison.Delta[] doInBackground(final Void... params) {
+        if (isRule) {
+            return TariffComparison.previewRule(context, id, before, changes);
+        } else {
+            return TariffComparison.previewPlan(context, id, before, changes);
+        }
+    }
+
+    @Override
+    protected void onPostExecute(final TariffComparison.Delta[] result) {
+        if (result == null || result.length == 0) {
+            onPreview(context.getString(R.string.preview_none));
+            return;
+        }
+        final String cformat = Preferences.getCurrencyFormat(context);
+        final StringBuilder sb = new StringBuilder();
+        for (TariffComparison.Delta d : result) {
+            if (sb.length() > 0) {
+                sb.append("\n");
+            }
+            sb.append(d.name).append(": ");
+            sb.append(signed(d.count, String.valueOf(Math.abs(d.count))));
+            sb.append(" / ");
+            sb.append(signed(d.billedAmount,
+                    Common.formatAmount(d.type, Math.abs(d.billedAmount), true)));
+            sb.append(" / ");
+            sb.append(signed(d.cost, String.format(cformat, Math.abs(d.cost))));
+        }
+        onPreview(sb.toString());
+    }
+
+    /**
+     * Preview is ready.
+     *
+     * @param summary changes per plan
+     */
+    abstract void onPreview(final String summary);
+}
@@ -171,7 +171,7 @@ public final class HourGroupEdit extends SherlockPreferenceActivity implements
                             null, null);
         }
         reload();
-        RuleMatcher.unmatch(this);
+        RuleMatcher.unmatchHoursGroup(this, gid);
     }
 
     /**
@@ -274,7 +274,8 @@ public final class HourGroupEdit extends SherlockPreferenceActivity implements
                                                     .withAppendedId(DataProvider.Hours.CONTENT_URI,
                                                             id), null, null);
                                     HourGroupEdit.this.reload();
-                                    RuleMatcher.unmatch(HourGroupEdit.this);
+                                    RuleMatcher.unmatchHoursGroup(HourGroupEdit.this,
+                                            HourGroupEdit.this.gid);
                                     break;
                                 default:
                                     break;
@@ -311,7 +312,8 @@ public final class HourGroupEdit extends SherlockPreferenceActivity implements
                                 ContentUris.withAppendedId(DataProvider.HoursGroup.CONTENT_URI,
                                         HourGroupEdit.this.gid), null, null);
                         Preferences.setDefaultPlan(HourGroupEdit.this, false);
-                        RuleMatcher.unmatch(HourGroupEdit.this);
+                        RuleMatcher.unmatchHoursGroup(HourGroupEdit.this,
+                                HourGroupEdit.this.gid);
                         HourGroupEdit.this.finish();
                     }
                 });
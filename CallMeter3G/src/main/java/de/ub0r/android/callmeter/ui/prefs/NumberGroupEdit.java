@@ -181,7 +181,8 @@ public final class NumberGroupEdit extends SherlockPreferenceActivity implements
                                 ContentUris.withAppendedId(DataProvider.NumbersGroup.CONTENT_URI,
                                         NumberGroupEdit.this.gid), null, null);
                         Preferences.setDefaultPlan(NumberGroupEdit.this, false);
-                        RuleMatcher.unmatch(NumberGroupEdit.this);
+                        RuleMatcher.unmatchNumbersGroup(NumberGroupEdit.this,
+                                NumberGroupEdit.this.gid);
                         NumberGroupEdit.this.finish();
                     }
                 });
@@ -243,7 +244,7 @@ public final class NumberGroupEdit extends SherlockPreferenceActivity implements
                     null);
         }
         reload();
-        RuleMatcher.unmatch(this);
+        RuleMatcher.unmatchNumbersGroup(this, gid);
     }
 
     /**
@@ -346,7 +347,8 @@ public final class NumberGroupEdit extends SherlockPreferenceActivity implements
                                                     DataProvider.Numbers.CONTENT_URI, id), null,
                                             null);
                                     NumberGroupEdit.this.reload();
-                                    RuleMatcher.unmatch(NumberGroupEdit.this);
+                                    RuleMatcher.unmatchNumbersGroup(NumberGroupEdit.this,
+                                            NumberGroupEdit.this.gid);
                                     break;
                                 default:
                                     break;
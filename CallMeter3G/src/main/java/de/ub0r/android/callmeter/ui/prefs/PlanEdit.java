@@ -22,16 +22,21 @@ import com.actionbarsherlock.app.SherlockPreferenceActivity;
 
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.Preference;
 import android.preference.PreferenceManager;
 import android.preference.PreferenceScreen;
 import android.text.InputType;
 
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.List;
+import java.util.Map;
 
 import de.ub0r.android.callmeter.R;
 import de.ub0r.android.callmeter.data.DataProvider;
@@ -49,12 +54,25 @@ public final class PlanEdit extends SherlockPreferenceActivity implements Update
     /** Tag for debug out. */
     private static final String TAG = "pe";
 
+    /** Keys, which do not change any log. */
+    private static final List<String> KEYS_NOTHING = Arrays.asList(DataProvider.Plans.NAME,
+            DataProvider.Plans.SHORTNAME, DataProvider.Plans.COST_PER_PLAN);
+    /** Keys, which change billing of logs, but not their plan. */
+    private static final List<String> KEYS_PRICE = Arrays.asList(
+            DataProvider.Plans.COST_PER_ITEM, DataProvider.Plans.COST_PER_AMOUNT1,
+            DataProvider.Plans.COST_PER_AMOUNT2, DataProvider.Plans.COST_PER_ITEM_IN_LIMIT,
+            DataProvider.Plans.COST_PER_AMOUNT_IN_LIMIT1,
+            DataProvider.Plans.COST_PER_AMOUNT_IN_LIMIT2, DataProvider.Plans.BILLMODE,
+            DataProvider.Plans.STRIP_SECONDS, DataProvider.Plans.STRIP_PAST);
+
     /** This rule's {@link Uri}. */
     private Uri uri = null;
     /** Id of edited filed. */
     private int pid = -1;
     /** {@link ContentValues} holding preferences. */
     private ContentValues values = new ContentValues();
+    /** Changes of current bill period caused by last edit. */
+    private String preview = null;
 
     @SuppressWarnings("deprecation")
     @Override
@@ -82,6 +100,13 @@ public final class PlanEdit extends SherlockPreferenceActivity implements Update
     private void reload() {
         PreferenceScreen ps = (PreferenceScreen) findPreference("container");
         ps.removeAll();
+        if (preview != null) {
+            final Preference pp = new Preference(this);
+            pp.setPersistent(false);
+            pp.setTitle(R.string.preview_);
+            pp.setSummary(preview);
+            ps.addPreference(pp);
+        }
 
         Cursor c = getContentResolver().query(this.uri, DataProvider.Plans.PROJECTION, null,
                 null, null);
@@ -488,18 +513,55 @@ public final class PlanEdit extends SherlockPreferenceActivity implements Update
         if (this.uri != null && l > 0) {
             boolean badkey = !this.values.containsKey(DataProvider.Plans.NAME);
             badkey &= !this.values.containsKey(DataProvider.Plans.SHORTNAME);
-            boolean needUnmatch = l > 1 || badkey;
+            final boolean merged = values.containsKey(DataProvider.Plans.MERGED_PLANS);
+            boolean needUnmatch = false;
+            boolean needRerate = false;
+            for (Map.Entry<String, Object> e : values.valueSet()) {
+                final String k = e.getKey();
+                if (KEYS_PRICE.contains(k)) {
+                    needRerate = true;
+                } else if (!KEYS_NOTHING.contains(k)) {
+                    needUnmatch = true;
+                }
+            }
             badkey &= !this.values.containsKey(DataProvider.Plans.LIMIT);
             badkey &= !this.values.containsKey(DataProvider.Plans.COST_PER_ITEM);
             badkey &= !this.values.containsKey(DataProvider.Plans.COST_PER_AMOUNT1);
             boolean nonDefault = l > 1 || badkey;
+            EditPreview ep = null;
+            if (!merged && (needUnmatch || needRerate)) {
+                ep = new EditPreview(this, uri, DataProvider.Plans.PROJECTION, values, false) {
+                    @Override
+                    void onPreview(final String summary) {
+                        if (!isFinishing()) {
+                            preview = summary;
+                            reload();
+                        }
+                    }
+                };
+            }
             getContentResolver().update(this.uri, values, null, null);
             values.clear();
             if (nonDefault) {
                 Preferences.setDefaultPlan(this, false);
             }
-            if (needUnmatch) {
+            if (merged) {
                 RuleMatcher.unmatch(this);
+            } else if (needUnmatch) {
+                RuleMatcher.unmatchPlan(this, pid, false);
+            } else if (needRerate) {
+                final Context context = getApplicationContext();
+                new AsyncTask<Void, Void, Void>() {
+                    @Override
+                    protected Void doInBackground(final Void... params) {
+                        RuleMatcher.rerate(context, pid);
+                        return null;
+                    }
+                }.execute((Void) null);
+            }
+            if (ep != null) {
+                preview = getString(R.string.preview_running);
+                ep.execute((Void) null);
             }
             reload();
         }
@@ -211,6 +211,7 @@ public final class Plans extends SherlockPreferenceActivity implements OnPrefere
                                                 @Override
                                                 public void onClick(final DialogInterface dialog,
                                                         final int which) {
+                                                    RuleMatcher.unmatchPlan(Plans.this, id, true);
                                                     Plans.this
                                                             .getContentResolver()
                                                             .delete(ContentUris.withAppendedId(
@@ -219,7 +220,6 @@ public final class Plans extends SherlockPreferenceActivity implements OnPrefere
                                                                     null, null);
                                                     Plans.this.reload();
                                                     Preferences.setDefaultPlan(Plans.this, false);
-                                                    RuleMatcher.unmatch(Plans.this);
                                                 }
                                             });
                                     b.show();
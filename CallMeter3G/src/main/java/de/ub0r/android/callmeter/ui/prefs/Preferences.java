@@ -155,10 +155,18 @@ public final class Preferences extends SherlockPreferenceActivity implements
     public static final String PREFS_SHOWHELP = "show_help";
     /** Preference's name: show length/cost of call. */
     public static final String PREFS_SHOWCALLINFO = "show_callinfo";
+    /** Preference's name: match logs with low priority. */
+    public static final String PREFS_MATCHER_LOW_PRIORITY = "matcher_low_priority";
+    /** Preference's name: number of threads for matching logs. */
+    public static final String PREFS_MATCHER_THREADS = "matcher_threads";
     /** Preference's name: strip leading zeros. */
     public static final String PREFS_STRIP_LEADING_ZEROS = "strip_leading_zeros";
     /** Preference's name: international prefix. */
     public static final String PREFS_INT_PREFIX = "intPrefix";
+    /** Preference's name: trace matcher and database. */
+    public static final String PREFS_TRACE = "trace";
+    /** Preference's name: profile rules. */
+    public static final String PREFS_PROFILE_RULES = "profile_rules";
     /** Preference's name: ask for plan. */
     public static final String PREFS_ASK_FOR_PLAN = "ask_for_plan";
     /** Preference's name: ask for plan, auto hide. */
@@ -166,6 +174,9 @@ public final class Preferences extends SherlockPreferenceActivity implements
     /** Preference's name: default plan for ask for plan. */
     public static final String PREFS_ASK_FOR_PLAN_DEFAULT = "ask_for_plan_default";
 
+    /** Path of {@link Uri}s pointing to assets, see {@link #getAssetUri(String)}. */
+    private static final String ASSET_PATH = "/android_asset/";
+
     /** Default rule set. */
     private static final InputStream IS_DEFAULT = new InputStream() {
         @Override
@@ -489,6 +500,16 @@ public final class Preferences extends SherlockPreferenceActivity implements
         }
     }
 
+    /**
+     * Get a {@link Uri} to import a file from assets.
+     *
+     * @param path path in assets
+     * @return {@link Uri} for this activity's intent data
+     */
+    public static Uri getAssetUri(final String path) {
+        return Uri.parse("file://" + ASSET_PATH + path);
+    }
+
     /**
      * Get a {@link InputStream} from {@link Uri}.
      *
@@ -500,6 +521,8 @@ public final class Preferences extends SherlockPreferenceActivity implements
         String scheme = uri.getScheme();
         if (uri.toString().equals("content://default")) {
             return IS_DEFAULT;
+        } else if (scheme.equals("file") && uri.getPath().startsWith(ASSET_PATH)) {
+            return getAssets().open(uri.getPath().substring(ASSET_PATH.length()));
         } else if (scheme.equals("content") || scheme.equals("file")) {
             try {
                 return cr.openInputStream(uri);
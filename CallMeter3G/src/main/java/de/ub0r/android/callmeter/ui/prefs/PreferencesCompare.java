@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.ui.prefs;
+
+import com.actionbarsherlock.app.SherlockPreferenceActivity;
+import com.actionbarsherlock.view.Window;
+
+import android.content.Intent;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.preference.Preference;
+import android.preference.PreferenceGroup;
+import android.widget.Toast;
+
+import de.ub0r.android.callmeter.R;
+import de.ub0r.android.callmeter.data.TariffComparison;
+import de.ub0r.android.lib.Utils;
+
+/**
+ * Show bundled rule sets ranked by the cost of the user's logs of the last bill periods.
+ *
+ * @author flx
+ */
+public final class PreferencesCompare extends SherlockPreferenceActivity {
+
+    /** Number of bill periods compared. */
+    private static final int PERIODS = 3;
+
+    /**
+     * {@link AsyncTask} rating all bundled rule sets and adding {@link Preference}s for them.
+     *
+     * @author flx
+     */
+    private class Comparer extends AsyncTask<Void, Void, TariffComparison.Result[]> {
+
+        @Override
+        protected void onPreExecute() {
+            PreferencesCompare.this.setProgressBarIndeterminate(true);
+            PreferencesCompare.this.setProgressBarIndeterminateVisibility(true);
+        }
+
+        @Override
+        protected TariffComparison.Result[] doInBackground(final Void... params) {
+            return TariffComparison.compareBundled(PreferencesCompare.this, PERIODS);
+        }
+
+        @SuppressWarnings("deprecation")
+        @Override
+        protected void onPostExecute(final TariffComparison.Result[] result) {
+            final PreferencesCompare context = PreferencesCompare.this;
+            context.setProgressBarIndeterminateVisibility(false);
+            if (result == null || result.length == 0) {
+                Toast.makeText(context, R.string.compare_rulesets_none, Toast.LENGTH_LONG)
+                        .show();
+                return;
+            }
+            final String cformat = Preferences.getCurrencyFormat(context);
+            final PreferenceGroup g = (PreferenceGroup) context
+                    .findPreference("compare_rulesets_results");
+            for (TariffComparison.Result r : result) {
+                final Preference p = new Preference(context);
+                p.setTitle(r.name.replace('_', ' '));
+                p.setSummary(context.getString(R.string.compare_rulesets_summary,
+                        String.format(cformat, r.cost), r.notMatched));
+                // import it with the usual confirmation
+                final Intent i = new Intent(context, Preferences.class);
+                i.setData(Preferences.getAssetUri(TariffComparison.ASSETS_RULESETS + "/"
+                        + r.name + ".xml"));
+                p.setIntent(i);
+                g.addPreference(p);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @SuppressWarnings("deprecation")
+    @Override
+    public void onCreate(final Bundle savedInstanceState) {
+        requestWindowFeature(Window.FEATURE_INDETERMINATE_PROGRESS);
+        super.onCreate(savedInstanceState);
+        Utils.setLocale(this);
+        addPreferencesFromResource(R.xml.compare_rulesets);
+        new Comparer().execute((Void) null);
+    }
+}
@@ -23,7 +23,9 @@ import com.actionbarsherlock.app.SherlockPreferenceActivity;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import android.app.AlertDialog.Builder;
 import android.appwidget.AppWidgetManager;
+import android.content.ActivityNotFoundException;
 import android.content.ComponentName;
 import android.content.Intent;
 import android.content.SharedPreferences;
@@ -52,6 +54,9 @@ import java.util.Iterator;
 
 import de.ub0r.android.callmeter.R;
 import de.ub0r.android.callmeter.data.ExportProvider;
+import de.ub0r.android.callmeter.data.RuleMatcher;
+import de.ub0r.android.callmeter.data.RuleProfiler;
+import de.ub0r.android.callmeter.data.Trace;
 import de.ub0r.android.callmeter.ui.HelpActivity;
 import de.ub0r.android.callmeter.widget.LogsAppWidgetConfigure;
 import de.ub0r.android.callmeter.widget.LogsAppWidgetProvider;
@@ -88,6 +93,8 @@ public final class PreferencesPlain extends SherlockPreferenceActivity implement
     private static final String IMPORT = "IMPORT";
     /** Action. */
     private static final String ADVANCED = "ADVANCED";
+    /** Action. */
+    private static final String DEBUG = "DEBUG";
 
     private static final long CACHE_TIMEOUT = 1000L * 60L * 15L; // 15min
 
@@ -206,6 +213,9 @@ public final class PreferencesPlain extends SherlockPreferenceActivity implement
             addPreferencesFromResource(R.xml.prefs_apperance_textsize);
         } else if (BEHAVIOR.equals(a)) {
             addPreferencesFromResource(R.xml.prefs_behavior);
+            findPreference(Preferences.PREFS_STRIP_LEADING_ZEROS)
+                    .setOnPreferenceChangeListener(this);
+            findPreference(Preferences.PREFS_INT_PREFIX).setOnPreferenceChangeListener(this);
         } else if (ALERT.equals(a)) {
             addPreferencesFromResource(R.xml.prefs_behavior_alert);
         } else if (ASK_FOR_PLAN.equals(a)) {
@@ -228,6 +238,14 @@ public final class PreferencesPlain extends SherlockPreferenceActivity implement
         } else if (ADVANCED.equals(a)) {
             addPreferencesFromResource(R.xml.prefs_advanced);
             findPreference(Preferences.PREFS_ADVANCED).setOnPreferenceChangeListener(this);
+        } else if (DEBUG.equals(a)) {
+            addPreferencesFromResource(R.xml.prefs_debug);
+            findPreference(Preferences.PREFS_PROFILE_RULES).setOnPreferenceChangeListener(this);
+            findPreference(Preferences.PREFS_TRACE).setOnPreferenceChangeListener(this);
+            findPreference("profile_report").setOnPreferenceClickListener(this);
+            findPreference("profile_send").setOnPreferenceClickListener(this);
+            findPreference("profile_reset").setOnPreferenceClickListener(this);
+            findPreference("send_trace").setOnPreferenceClickListener(this);
         }
 
     }
@@ -344,10 +362,58 @@ public final class PreferencesPlain extends SherlockPreferenceActivity implement
             i.setData(Uri.parse("content://default"));
             startActivity(i);
             return true;
+        } else if (k.equals("profile_report") || k.equals("profile_send")) {
+            final boolean send = k.equals("profile_send");
+            new AsyncTask<Void, Void, String>() {
+                @Override
+                protected String doInBackground(final Void... params) {
+                    return RuleProfiler.getReport(PreferencesPlain.this);
+                }
+
+                @Override
+                protected void onPostExecute(final String result) {
+                    if (send) {
+                        sendText("Call Meter 3G: Rule Profile", result);
+                    } else if (!isFinishing()) {
+                        final Builder b = new Builder(PreferencesPlain.this);
+                        b.setTitle(R.string.profile_report_);
+                        b.setMessage(result);
+                        b.setPositiveButton(android.R.string.ok, null);
+                        b.show();
+                    }
+                }
+            }.execute((Void) null);
+            return true;
+        } else if (k.equals("profile_reset")) {
+            RuleProfiler.reset();
+            return true;
+        } else if (k.equals("send_trace")) {
+            sendText("Call Meter 3G: Trace", Trace.dump());
+            return true;
         }
         return false;
     }
 
+    /**
+     * Send a text report.
+     *
+     * @param subject subject
+     * @param text    text
+     */
+    private void sendText(final String subject, final String text) {
+        final Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("text/plain");
+        intent.putExtra(Intent.EXTRA_EMAIL, new String[]{"android@ub0r.de", ""});
+        intent.putExtra(Intent.EXTRA_TEXT, text);
+        intent.putExtra(Intent.EXTRA_SUBJECT, subject);
+        try {
+            startActivity(intent);
+        } catch (ActivityNotFoundException e) {
+            Log.e(TAG, "no mail", e);
+            Toast.makeText(this, "no mail app found", Toast.LENGTH_LONG).show();
+        }
+    }
+
     @Override
     public boolean onPreferenceChange(final Preference preference, final Object newValue) {
         final String k = preference.getKey();
@@ -356,6 +422,31 @@ public final class PreferencesPlain extends SherlockPreferenceActivity implement
                 startActivity(new Intent(this, HelpActivity.class));
             }
             return true;
+        } else if (k.equals(Preferences.PREFS_PROFILE_RULES)) {
+            RuleProfiler.setEnabled(newValue.equals(true));
+            return true;
+        } else if (k.equals(Preferences.PREFS_TRACE)) {
+            Trace.setEnabled(newValue.equals(true));
+            if (!newValue.equals(true)) {
+                Trace.clear();
+            }
+            return true;
+        } else if (k.equals(Preferences.PREFS_STRIP_LEADING_ZEROS)
+                || k.equals(Preferences.PREFS_INT_PREFIX)) {
+            // new value is not saved yet
+            final SharedPreferences p = PreferenceManager.getDefaultSharedPreferences(this);
+            final boolean strip = k.equals(Preferences.PREFS_STRIP_LEADING_ZEROS) ? newValue
+                    .equals(true) : p.getBoolean(Preferences.PREFS_STRIP_LEADING_ZEROS, false);
+            final String prefix = k.equals(Preferences.PREFS_INT_PREFIX) ? (String) newValue : p
+                    .getString(Preferences.PREFS_INT_PREFIX, "");
+            new AsyncTask<Void, Void, Void>() {
+                @Override
+                protected Void doInBackground(final Void... params) {
+                    RuleMatcher.normalizeRemotes(getApplicationContext(), true, strip, prefix);
+                    return null;
+                }
+            }.execute((Void) null);
+            return true;
         }
         return false;
     }
@@ -21,6 +21,7 @@ package de.ub0r.android.callmeter.ui.prefs;
 import com.actionbarsherlock.app.SherlockPreferenceActivity;
 
 import android.app.AlertDialog.Builder;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.DialogInterface;
 import android.database.Cursor;
@@ -54,6 +55,8 @@ public final class RuleEdit extends SherlockPreferenceActivity implements Update
     private Uri uri = null;
     /** {@link ContentValues} holding preferences. */
     private ContentValues values = new ContentValues();
+    /** Changes of current bill period caused by last edit. */
+    private String preview = null;
 
     /** Array holding {@link String}s. */
     private String[] inOutNomatterCalls = null;
@@ -170,6 +173,13 @@ public final class RuleEdit extends SherlockPreferenceActivity implements Update
     private void reload() {
         PreferenceScreen ps = (PreferenceScreen) findPreference("container");
         ps.removeAll();
+        if (preview != null) {
+            final Preference pp = new Preference(this);
+            pp.setPersistent(false);
+            pp.setTitle(R.string.preview_);
+            pp.setSummary(preview);
+            ps.addPreference(pp);
+        }
 
         boolean hasCallsSimId = LogRunnerService.checkCallsSimIdColumn(this.getContentResolver());
         boolean hasSmsSimId = LogRunnerService.checkSmsSimIdColumn(this.getContentResolver());
@@ -418,10 +428,23 @@ public final class RuleEdit extends SherlockPreferenceActivity implements Update
     @Override
     public void onUpdateValue(final android.preference.Preference p) {
         if (this.uri != null && values.size() > 0) {
+            final boolean typeChanged = values.containsKey(DataProvider.Rules.WHAT);
+            final EditPreview ep = new EditPreview(this, uri, DataProvider.Rules.PROJECTION,
+                    values, true) {
+                @Override
+                void onPreview(final String summary) {
+                    if (!isFinishing()) {
+                        preview = summary;
+                        reload();
+                    }
+                }
+            };
             getContentResolver().update(this.uri, values, null, null);
             values.clear();
             Preferences.setDefaultPlan(this, false);
-            RuleMatcher.unmatch(this);
+            RuleMatcher.unmatchRule(this, ContentUris.parseId(this.uri), typeChanged);
+            preview = getString(R.string.preview_running);
+            ep.execute((Void) null);
             reload();
         }
     }
@@ -241,6 +241,7 @@ public final class Rules extends SherlockPreferenceActivity implements OnPrefere
                                                 @Override
                                                 public void onClick(final DialogInterface dialog,
                                                         final int which) {
+                                                    RuleMatcher.unmatchRule(Rules.this, id, false);
                                                     Rules.this
                                                             .getContentResolver()
                                                             .delete(ContentUris.withAppendedId(
@@ -249,7 +250,6 @@ public final class Rules extends SherlockPreferenceActivity implements OnPrefere
                                                                     null, null);
                                                     Rules.this.reload();
                                                     Preferences.setDefaultPlan(Rules.this, false);
-                                                    RuleMatcher.unmatch(Rules.this);
                                                 }
                                             });
                                     b.show();
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import de.ub0r.android.callmeter.CallMeter;
+
+/**
+ * Time to rate a single log with {@link Tariff}: billed amount, cost, free cost and totals.
+ * Run with gradle :CallMeter3GTest:jmh.
+ *
+ * @author flx
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TariffBenchmark {
+
+    /** Number of logs rated per invocation. */
+    private static final int LOGS = 1024;
+
+    /** Types of logs. */
+    private final int[] types = new int[LOGS];
+    /** Amounts of logs. */
+    private final long[] amounts = new long[LOGS];
+
+    /** Mixed plan with limit, parent of call and sms. */
+    private final Tariff mixed = new Tariff();
+    /** Call plan with 60/1 bill mode. */
+    private final Tariff call = new Tariff();
+    /** SMS plan. */
+    private final Tariff sms = new Tariff();
+    /** Data plan without limit. */
+    private final Tariff data = new Tariff();
+
+    /**
+     * Create plans and logs: 60% calls, 30% sms, 10% data.
+     */
+    @Setup
+    public void setUp() {
+        mixed.type = DataProvider.TYPE_MIXED;
+        mixed.limitType = DataProvider.LIMIT_TYPE_UNITS;
+        mixed.limit = 100000;
+        mixed.upc = 1;
+        mixed.ups = 1;
+        call.type = DataProvider.TYPE_CALL;
+        call.billModeFirstLength = 60;
+        call.billModeNextLength = 1;
+        call.costPerAmount1 = 0.09f;
+        call.costPerAmount2 = 0.09f;
+        call.parent = mixed;
+        sms.type = DataProvider.TYPE_SMS;
+        sms.costPerItem = 0.09f;
+        sms.parent = mixed;
+        data.type = DataProvider.TYPE_DATA;
+        data.costPerAmount1 = 0.24f;
+        final Random r = new Random(42L);
+        for (int i = 0; i < LOGS; i++) {
+            final int p = r.nextInt(10);
+            if (p < 6) {
+                types[i] = DataProvider.TYPE_CALL;
+                amounts[i] = r.nextInt(600);
+            } else if (p < 9) {
+                types[i] = DataProvider.TYPE_SMS;
+                amounts[i] = 1;
+            } else {
+                types[i] = DataProvider.TYPE_DATA;
+                amounts[i] = r.nextInt((int) CallMeter.BYTE_MB);
+            }
+        }
+    }
+
+    /**
+     * Rate all logs, starting with empty totals.
+     *
+     * @return sum of cost
+     */
+    @Benchmark
+    @OperationsPerInvocation(LOGS)
+    public float rate() {
+        mixed.billedAmount = 0f;
+        mixed.billedCost = 0f;
+        call.billedAmount = 0f;
+        call.billedCost = 0f;
+        sms.billedAmount = 0f;
+        sms.billedCost = 0f;
+        data.billedAmount = 0f;
+        data.billedCost = 0f;
+        float ret = 0f;
+        for (int i = 0; i < LOGS; i++) {
+            final int t = types[i];
+            final Tariff p;
+            switch (t) {
+                case DataProvider.TYPE_CALL:
+                    p = call;
+                    break;
+                case DataProvider.TYPE_SMS:
+                    p = sms;
+                    break;
+                default:
+                    p = data;
+                    break;
+            }
+            final float ba = p.getBilledAmount(t, amounts[i]);
+            final float cost = p.getCost(t, ba);
+            ret += p.getFree(cost);
+            p.update(ba, cost, t);
+        }
+        return ret + mixed.billedCost + data.billedCost;
+    }
+}
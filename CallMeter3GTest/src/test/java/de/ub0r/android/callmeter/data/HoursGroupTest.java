@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import org.junit.Test;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test hour of week used for matching {@link RuleMatcher.Rule.HoursGroup}s against the
+ * {@link Calendar} based matching it replaced, especially around DST transitions.
+ *
+ * @author flx
+ */
+public class HoursGroupTest {
+
+    /** Milliseconds per minute. */
+    private static final long MILLIS_MINUTE = 60L * 1000L;
+    /** Milliseconds per hour. */
+    private static final long MILLIS_HOUR = 60L * MILLIS_MINUTE;
+    /** Hours per day. */
+    private static final int HOURS_DAY = 24;
+    /** Days per week. */
+    private static final int DAYS_WEEK = 7;
+
+    /** Zones checked against {@link Calendar}: whole, half and 30 minutes DST shifts. */
+    private static final String[] ZONES = new String[]{"Europe/Berlin", "America/New_York",
+            "America/St_Johns", "Asia/Kolkata", "Australia/Adelaide", "Australia/Lord_Howe",
+            "Pacific/Chatham", "UTC"};
+
+    /**
+     * Get hour of week the way HoursGroup.match() did before with {@link Calendar}.
+     *
+     * @param date date
+     * @param tz   {@link TimeZone}
+     * @return day of week (sunday = 0) * 24 + hour of day
+     */
+    private static int getHourOfWeekCalendar(final long date, final TimeZone tz) {
+        final Calendar cal = Calendar.getInstance(tz);
+        cal.setTimeInMillis(date);
+        final int d = (cal.get(Calendar.DAY_OF_WEEK) - Calendar.SUNDAY) % DAYS_WEEK;
+        return d * HOURS_DAY + cal.get(Calendar.HOUR_OF_DAY);
+    }
+
+    /**
+     * Parse a date in UTC.
+     *
+     * @param s date as yyyy-MM-dd HH:mm
+     * @return date in milliseconds
+     * @throws ParseException ParseException
+     */
+    private static long utc(final String s) throws ParseException {
+        final SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+        f.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return f.parse(s).getTime();
+    }
+
+    /**
+     * Get hour of week.
+     *
+     * @param zone id of {@link TimeZone}
+     * @param date date in UTC as yyyy-MM-dd HH:mm
+     * @return hour of week
+     * @throws ParseException ParseException
+     */
+    private static int how(final String zone, final String date) throws ParseException {
+        return RuleMatcher.Rule.HoursGroup.getHourOfWeek(utc(date), TimeZone.getTimeZone(zone));
+    }
+
+    /**
+     * Compare every minute around a date with {@link Calendar}.
+     *
+     * @param date  date
+     * @param tz    {@link TimeZone}
+     * @param hours hours checked before and after date
+     */
+    private static void assertSameAsCalendar(final long date, final TimeZone tz,
+            final int hours) {
+        final long end = date + hours * MILLIS_HOUR;
+        for (long d = date - hours * MILLIS_HOUR; d <= end; d += MILLIS_MINUTE) {
+            assertEquals(tz.getID() + " at " + d, getHourOfWeekCalendar(d, tz),
+                    RuleMatcher.Rule.HoursGroup.getHourOfWeek(d, tz));
+        }
+    }
+
+    /**
+     * Europe/Berlin skips 02:00-03:00 on 2013-03-31, a sunday.
+     *
+     * @throws ParseException ParseException
+     */
+    @Test
+    public void testSpringForward() throws ParseException {
+        assertEquals(1, how("Europe/Berlin", "2013-03-31 00:59"));
+        assertEquals(3, how("Europe/Berlin", "2013-03-31 01:00"));
+        assertSameAsCalendar(utc("2013-03-31 01:00"), TimeZone.getTimeZone("Europe/Berlin"), 3);
+    }
+
+    /**
+     * Europe/Berlin repeats 02:00-03:00 on 2013-10-27, a sunday.
+     *
+     * @throws ParseException ParseException
+     */
+    @Test
+    public void testFallBack() throws ParseException {
+        assertEquals(2, how("Europe/Berlin", "2013-10-27 00:00"));
+        assertEquals(2, how("Europe/Berlin", "2013-10-27 00:59"));
+        assertEquals(2, how("Europe/Berlin", "2013-10-27 01:00"));
+        assertEquals(2, how("Europe/Berlin", "2013-10-27 01:59"));
+        assertEquals(3, how("Europe/Berlin", "2013-10-27 02:00"));
+        assertSameAsCalendar(utc("2013-10-27 01:00"), TimeZone.getTimeZone("Europe/Berlin"), 3);
+    }
+
+    /**
+     * America/St_Johns has a half-hour offset and skips 02:00-03:00 on 2013-03-10, a sunday.
+     *
+     * @throws ParseException ParseException
+     */
+    @Test
+    public void testHalfHourSpringForward() throws ParseException {
+        assertEquals(1, how("America/St_Johns", "2013-03-10 05:29"));
+        assertEquals(3, how("America/St_Johns", "2013-03-10 05:30"));
+        assertSameAsCalendar(utc("2013-03-10 05:30"), TimeZone.getTimeZone("America/St_Johns"),
+                3);
+    }
+
+    /**
+     * America/St_Johns has a half-hour offset and repeats 01:00-02:00 on 2013-11-03, a sunday.
+     *
+     * @throws ParseException ParseException
+     */
+    @Test
+    public void testHalfHourFallBack() throws ParseException {
+        assertEquals(1, how("America/St_Johns", "2013-11-03 04:29"));
+        assertEquals(1, how("America/St_Johns", "2013-11-03 04:30"));
+        assertEquals(2, how("America/St_Johns", "2013-11-03 05:30"));
+        assertSameAsCalendar(utc("2013-11-03 04:30"), TimeZone.getTimeZone("America/St_Johns"),
+                3);
+    }
+
+    /**
+     * Australia/Lord_Howe shifts by 30 minutes and skips 02:00-02:30 on 2013-10-06, a sunday.
+     *
+     * @throws ParseException ParseException
+     */
+    @Test
+    public void testHalfHourShift() throws ParseException {
+        assertEquals(1, how("Australia/Lord_Howe", "2013-10-05 15:29"));
+        assertEquals(2, how("Australia/Lord_Howe", "2013-10-05 15:30"));
+        assertSameAsCalendar(utc("2013-10-05 15:30"),
+                TimeZone.getTimeZone("Australia/Lord_Howe"), 3);
+    }
+
+    /**
+     * Asia/Kolkata has a half-hour offset: saturday 23:59 is followed by sunday 00:00.
+     *
+     * @throws ParseException ParseException
+     */
+    @Test
+    public void testWeekWrap() throws ParseException {
+        assertEquals(6 * HOURS_DAY + 23, how("Asia/Kolkata", "2013-06-01 18:29"));
+        assertEquals(0, how("Asia/Kolkata", "2013-06-01 18:30"));
+    }
+
+    /**
+     * Dates before 1970 in UTC: 1969-12-31 was a wednesday.
+     *
+     * @throws ParseException ParseException
+     */
+    @Test
+    public void testBeforeEpoch() throws ParseException {
+        assertEquals(3 * HOURS_DAY + 23, how("UTC", "1969-12-31 23:30"));
+        assertEquals(4 * HOURS_DAY, how("UTC", "1970-01-01 00:00"));
+    }
+
+    /**
+     * Find all offset changes of 2012-2014 in all ZONES and compare every minute around them
+     * with {@link Calendar}.
+     *
+     * @throws ParseException ParseException
+     */
+    @Test
+    public void testAllTransitions() throws ParseException {
+        final long start = utc("2012-01-01 00:00");
+        final long end = utc("2015-01-01 00:00");
+        for (String zone : ZONES) {
+            final TimeZone tz = TimeZone.getTimeZone(zone);
+            assertEquals(zone, tz.getID());
+            int transitions = 0;
+            int offset = tz.getOffset(start);
+            for (long d = start; d < end; d += MILLIS_HOUR) {
+                final int o = tz.getOffset(d);
+                if (o != offset) {
+                    assertSameAsCalendar(d, tz, 2);
+                    offset = o;
+                    ++transitions;
+                }
+            }
+            assertTrue(zone, tz.useDaylightTime() ? transitions >= 6 : transitions == 0);
+            // samples spread over all hours of the week
+            for (long d = start; d < end; d += 7L * MILLIS_MINUTE + 13L * MILLIS_HOUR) {
+                assertEquals(zone, getHourOfWeekCalendar(d, tz),
+                        RuleMatcher.Rule.HoursGroup.getHourOfWeek(d, tz));
+            }
+        }
+    }
+}
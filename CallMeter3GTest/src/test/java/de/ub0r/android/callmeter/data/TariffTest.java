@@ -0,0 +1,665 @@
+/*
+ * Copyright (C) 2009-2013 Felix Bechstein
+ *
+ * This file is part of Call Meter 3G.
+ *
+ * This program is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU General Public License as published by the Free Software
+ * Foundation; either version 3 of the License, or (at your option) any later
+ * version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * this program; If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.ub0r.android.callmeter.data;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import de.ub0r.android.callmeter.CallMeter;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test {@link Tariff} against hand computed results and against the formulas of
+ * RuleMatcher.Plan it was extracted from.
+ *
+ * @author flx
+ */
+public class TariffTest {
+
+    /** Allowed error for hand computed results. */
+    private static final float DELTA = 1e-5f;
+    /** One MB. */
+    private static final long MB = CallMeter.BYTE_MB;
+
+    /**
+     * Create a {@link Tariff} without limit.
+     *
+     * @param type type of plan
+     * @param fl   length of first slot
+     * @param nl   length of next slots
+     * @return {@link Tariff}
+     */
+    private static Tariff tariff(final int type, final int fl, final int nl) {
+        final Tariff t = new Tariff();
+        t.type = type;
+        t.limitType = DataProvider.LIMIT_TYPE_NONE;
+        t.billModeFirstLength = fl;
+        t.billModeNextLength = nl;
+        return t;
+    }
+
+    /**
+     * Set prices of a {@link Tariff}.
+     *
+     * @param t       {@link Tariff}
+     * @param item    cost per item
+     * @param amount1 cost per amount, first slot
+     * @param amount2 cost per amount, next slots
+     * @param itemIn  cost per item in limit
+     * @param in1     cost per amount in limit, first slot
+     * @param in2     cost per amount in limit, next slots
+     * @return {@link Tariff}
+     */
+    private static Tariff prices(final Tariff t, final float item, final float amount1,
+            final float amount2, final float itemIn, final float in1, final float in2) {
+        t.costPerItem = item;
+        t.costPerAmount1 = amount1;
+        t.costPerAmount2 = amount2;
+        t.costPerItemInLimit = itemIn;
+        t.costPerAmountInLimit1 = in1;
+        t.costPerAmountInLimit2 = in2;
+        return t;
+    }
+
+    /**
+     * Set limit of a {@link Tariff}.
+     *
+     * @param t         {@link Tariff}
+     * @param limitType type of limit
+     * @param limit     limit
+     * @param billed    amount billed so far
+     * @return {@link Tariff}
+     */
+    private static Tariff limit(final Tariff t, final int limitType, final long limit,
+            final float billed) {
+        t.limitType = limitType;
+        t.limit = limit;
+        t.billedAmount = billed;
+        return t;
+    }
+
+    /**
+     * Bill modes: rounding to first and next slots.
+     */
+    @Test
+    public void testBillModes() {
+        final Tariff t11 = tariff(DataProvider.TYPE_CALL, 1, 1);
+        assertEquals(0L, t11.roundTime(0));
+        assertEquals(1L, t11.roundTime(1));
+        assertEquals(7L, t11.roundTime(7));
+
+        final Tariff t601 = tariff(DataProvider.TYPE_CALL, 60, 1);
+        assertEquals(60L, t601.roundTime(1));
+        assertEquals(61L, t601.roundTime(61));
+
+        final Tariff t6060 = tariff(DataProvider.TYPE_CALL, 60, 60);
+        assertEquals(0L, t6060.roundTime(-5));
+        assertEquals(60L, t6060.roundTime(1));
+        assertEquals(60L, t6060.roundTime(60));
+        assertEquals(120L, t6060.roundTime(61));
+        assertEquals(120L, t6060.roundTime(120));
+
+        final Tariff t306 = tariff(DataProvider.TYPE_CALL, 30, 6);
+        assertEquals(30L, t306.roundTime(29));
+        assertEquals(36L, t306.roundTime(31));
+        assertEquals(36L, t306.roundTime(36));
+        assertEquals(42L, t306.roundTime(37));
+
+        final Tariff t100 = tariff(DataProvider.TYPE_CALL, 10, 0);
+        assertEquals(10L, t100.roundTime(100));
+
+        assertEquals(120f, t6060.getBilledAmount(DataProvider.TYPE_CALL, 61), 0f);
+        // bill modes apply to calls only
+        assertEquals(61f, t6060.getBilledAmount(DataProvider.TYPE_DATA, 61), 0f);
+    }
+
+    /**
+     * Strip first seconds and everything past some seconds from calls.
+     */
+    @Test
+    public void testStrip() {
+        final Tariff t = tariff(DataProvider.TYPE_CALL, 1, 1);
+        t.stripSeconds = 10;
+        assertEquals(0f, t.getBilledAmount(DataProvider.TYPE_CALL, 5), 0f);
+        assertEquals(55f, t.getBilledAmount(DataProvider.TYPE_CALL, 65), 0f);
+        t.stripPast = 60;
+        assertEquals(60f, t.getBilledAmount(DataProvider.TYPE_CALL, 100), 0f);
+        assertEquals(40f, t.getBilledAmount(DataProvider.TYPE_CALL, 50), 0f);
+        t.stripSeconds = 0;
+        assertEquals(60f, t.getBilledAmount(DataProvider.TYPE_CALL, 100), 0f);
+        // seconds are stripped after rounding
+        final Tariff r = tariff(DataProvider.TYPE_CALL, 60, 60);
+        r.stripSeconds = 10;
+        assertEquals(110f, r.getBilledAmount(DataProvider.TYPE_CALL, 61), 0f);
+    }
+
+    /**
+     * Units of mixed plans.
+     */
+    @Test
+    public void testMixedUnits() {
+        final Tariff t = tariff(DataProvider.TYPE_MIXED, 1, 1);
+        t.upc = 2;
+        t.ups = 1;
+        t.upm = 3;
+        t.upd = 4;
+        assertEquals(3f, t.getBilledAmount(DataProvider.TYPE_CALL, 90), DELTA);
+        assertEquals(2f, t.getBilledAmount(DataProvider.TYPE_SMS, 2), DELTA);
+        assertEquals(3f, t.getBilledAmount(DataProvider.TYPE_MMS, 1), DELTA);
+        assertEquals(8f, t.getBilledAmount(DataProvider.TYPE_DATA, 2 * MB), DELTA);
+        assertEquals(2, t.getUP(DataProvider.TYPE_CALL));
+        assertEquals(4, t.getUP(DataProvider.TYPE_DATA));
+
+        // mixed plans bill items with cost per item
+        prices(t, 0.1f, 0f, 0f, 0f, 0f, 0f);
+        assertEquals(0.3f, t.getCost(DataProvider.TYPE_MMS, 3f), DELTA);
+    }
+
+    /**
+     * Calls with 60/60 bill mode, each branch of splitting at the limit.
+     */
+    @Test
+    public void testCallSplitAtLimit() {
+        final Tariff t = prices(tariff(DataProvider.TYPE_CALL, 60, 60), 0.1f, 0.6f, 0.3f,
+                0.01f, 0.06f, 0.03f);
+        // first slot only, no limit
+        assertEquals(0.7f, t.getCost(DataProvider.TYPE_CALL, 60f), DELTA);
+        // no limit
+        assertEquals(1.0f, t.getCost(DataProvider.TYPE_CALL, 120f), DELTA);
+        // limit reached
+        limit(t, DataProvider.LIMIT_TYPE_UNITS, 100, 100f);
+        assertEquals(1.0f, t.getCost(DataProvider.TYPE_CALL, 120f), DELTA);
+        // all in limit
+        limit(t, DataProvider.LIMIT_TYPE_UNITS, 1000, 0f);
+        assertEquals(0.1f, t.getCost(DataProvider.TYPE_CALL, 120f), DELTA);
+        // first slot in limit
+        limit(t, DataProvider.LIMIT_TYPE_UNITS, 100, 40f);
+        assertEquals(0.37f, t.getCost(DataProvider.TYPE_CALL, 120f), DELTA);
+        // more than first slot in limit
+        limit(t, DataProvider.LIMIT_TYPE_UNITS, 100, 10f);
+        assertEquals(0.535f, t.getCost(DataProvider.TYPE_CALL, 180f), DELTA);
+        // part of first slot in limit
+        limit(t, DataProvider.LIMIT_TYPE_UNITS, 100, 70f);
+        assertEquals(0.64f, t.getCost(DataProvider.TYPE_CALL, 120f), DELTA);
+    }
+
+    /**
+     * SMS and data split at the limit.
+     */
+    @Test
+    public void testSplitAtLimit() {
+        final Tariff sms = limit(prices(tariff(DataProvider.TYPE_SMS, 1, 1), 0.09f, 0f, 0f, 0f,
+                0f, 0f), DataProvider.LIMIT_TYPE_UNITS, 10, 8f);
+        assertEquals(2f, sms.getRemainingLimit(), 0f);
+        assertEquals(0.27f, sms.getCost(DataProvider.TYPE_SMS, 5f), DELTA);
+
+        final Tariff data = limit(prices(tariff(DataProvider.TYPE_DATA, 1, 1), 0f, 0.5f, 0f, 0f,
+                0f, 0f), DataProvider.LIMIT_TYPE_UNITS, 100 * MB, 99 * MB);
+        assertEquals(1.0f, data.getCost(DataProvider.TYPE_DATA, 3 * MB), DELTA);
+    }
+
+    /**
+     * Limit of cost and free cost.
+     */
+    @Test
+    public void testCostLimit() {
+        final Tariff t = limit(prices(tariff(DataProvider.TYPE_SMS, 1, 1), 0.2f, 0f, 0f, 0.1f,
+                0f, 0f), DataProvider.LIMIT_TYPE_COST, 500, 0f);
+        t.billedCost = 4f;
+        assertEquals(100f, t.getRemainingLimit(), DELTA);
+        // limits of cost bill with prices in limit
+        assertEquals(0.3f, t.getCost(DataProvider.TYPE_SMS, 3f), DELTA);
+        assertEquals(0.5f, t.getFree(0.5f), DELTA);
+        assertEquals(1f, t.getFree(2f), DELTA);
+        t.billedCost = 5f;
+        assertEquals(0f, t.getFree(1f), 0f);
+        // no free cost without a limit of cost
+        final Tariff u = tariff(DataProvider.TYPE_SMS, 1, 1);
+        assertEquals(0f, u.getFree(1f), 0f);
+    }
+
+    /**
+     * Totals, limits and free cost of parent plans.
+     */
+    @Test
+    public void testParent() {
+        final Tariff mixed = limit(tariff(DataProvider.TYPE_MIXED, 1, 1),
+                DataProvider.LIMIT_TYPE_UNITS, 100, 0f);
+        mixed.upc = 1;
+        mixed.ups = 2;
+        mixed.upm = 5;
+        final Tariff call = prices(tariff(DataProvider.TYPE_CALL, 1, 1), 0f, 0.6f, 0.6f, 0f, 0f,
+                0f);
+        call.parent = mixed;
+        final Tariff sms = tariff(DataProvider.TYPE_SMS, 1, 1);
+        sms.parent = mixed;
+
+        // children's amounts are converted to the parent's units
+        call.update(120f, 1.5f, DataProvider.TYPE_CALL);
+        assertEquals(120f, call.billedAmount, DELTA);
+        assertEquals(2f, mixed.billedAmount, DELTA);
+        assertEquals(1.5f, mixed.billedCost, DELTA);
+        sms.update(3f, 0.3f, DataProvider.TYPE_SMS);
+        assertEquals(8f, mixed.billedAmount, DELTA);
+        assertEquals(1.8f, mixed.billedCost, DELTA);
+
+        // children without own limit use the parent's limit
+        assertEquals(92f, call.getRemainingLimit(), DELTA);
+        // 92 units left are 5520s of calls
+        assertEquals(4.8f, call.getCost(DataProvider.TYPE_CALL, 6000f), DELTA);
+
+        // parents of the same type get amounts as they are
+        final Tariff calls = tariff(DataProvider.TYPE_CALL, 1, 1);
+        final Tariff child = tariff(DataProvider.TYPE_CALL, 60, 60);
+        child.parent = calls;
+        child.update(120f, 0.5f, DataProvider.TYPE_CALL);
+        assertEquals(120f, calls.billedAmount, DELTA);
+        assertEquals(0.5f, calls.billedCost, DELTA);
+
+        // free cost of the parent
+        limit(calls, DataProvider.LIMIT_TYPE_COST, 100, 0f);
+        assertEquals(0.5f, child.getFree(1f), DELTA);
+    }
+
+    /**
+     * Rate random logs with random plans and compare with the formulas of RuleMatcher.Plan.
+     */
+    @Test
+    public void testBaseline() {
+        final Random r = new Random(42L);
+        final int[] types = new int[]{DataProvider.TYPE_CALL, DataProvider.TYPE_SMS,
+                DataProvider.TYPE_MMS, DataProvider.TYPE_DATA};
+        final int[][] billModes = new int[][]{{1, 1}, {60, 1}, {60, 60}, {30, 6}, {10, 0}};
+        for (int n = 0; n < 500; n++) {
+            final Tariff parent = new Tariff();
+            final BaselinePlan bparent = new BaselinePlan();
+            randomize(r, parent, bparent, types, billModes);
+            final Tariff t = new Tariff();
+            final BaselinePlan b = new BaselinePlan();
+            randomize(r, t, b, types, billModes);
+            if (r.nextBoolean()) {
+                t.parent = parent;
+                b.parent = bparent;
+            }
+            for (int i = 0; i < 100; i++) {
+                final int type = types[r.nextInt(types.length)];
+                final long amount;
+                switch (type) {
+                    case DataProvider.TYPE_CALL:
+                        amount = r.nextInt(600);
+                        break;
+                    case DataProvider.TYPE_DATA:
+                        amount = r.nextInt((int) (10 * MB));
+                        break;
+                    default:
+                        amount = 1 + r.nextInt(3);
+                        break;
+                }
+                final String msg = "plan " + n + ", log " + i;
+                final float ba = t.getBilledAmount(type, amount);
+                assertEquals(msg, b.getBilledAmount(type, amount), ba, 0f);
+                final float cost = t.getCost(type, ba);
+                assertEquals(msg, b.getCost(type, ba), cost, 0f);
+                assertEquals(msg, b.getFree(cost), t.getFree(cost), 0f);
+                t.update(ba, cost, type);
+                b.updatePlan(ba, cost, type);
+                assertEquals(msg, b.billedAmount, t.billedAmount, 0f);
+                assertEquals(msg, b.billedCost, t.billedCost, 0f);
+                assertEquals(msg, bparent.billedAmount, parent.billedAmount, 0f);
+                assertEquals(msg, bparent.billedCost, parent.billedCost, 0f);
+            }
+        }
+    }
+
+    /**
+     * Set equal random fields.
+     *
+     * @param r         {@link Random}
+     * @param t         {@link Tariff}
+     * @param b         {@link BaselinePlan}
+     * @param types     types of logs
+     * @param billModes bill modes
+     */
+    private static void randomize(final Random r, final Tariff t, final BaselinePlan b,
+            final int[] types, final int[][] billModes) {
+        b.type = t.type = r.nextInt(5) == 0 ? DataProvider.TYPE_MIXED
+                : types[r.nextInt(types.length)];
+        b.limitType = t.limitType = r.nextInt(3);
+        b.limit = t.limit = r.nextInt(1000);
+        final int[] bm = billModes[r.nextInt(billModes.length)];
+        b.billModeFirstLength = t.billModeFirstLength = bm[0];
+        b.billModeNextLength = t.billModeNextLength = bm[1];
+        b.costPerItem = t.costPerItem = r.nextInt(100) / 100f;
+        b.costPerAmount1 = t.costPerAmount1 = r.nextInt(100) / 100f;
+        b.costPerAmount2 = t.costPerAmount2 = r.nextInt(100) / 100f;
+        b.costPerItemInLimit = t.costPerItemInLimit = r.nextInt(10) / 100f;
+        b.costPerAmountInLimit1 = t.costPerAmountInLimit1 = r.nextInt(10) / 100f;
+        b.costPerAmountInLimit2 = t.costPerAmountInLimit2 = r.nextInt(10) / 100f;
+        b.upc = t.upc = 1 + r.nextInt(3);
+        b.ups = t.ups = 1 + r.nextInt(3);
+        b.upm = t.upm = 1 + r.nextInt(3);
+        b.upd = t.upd = 1 + r.nextInt(3);
+        b.stripSeconds = t.stripSeconds = r.nextBoolean() ? 0 : r.nextInt(30);
+        b.stripPast = t.stripPast = r.nextBoolean() ? 0 : r.nextInt(600);
+    }
+
+    /**
+     * Rating formulas of RuleMatcher.Plan before {@link Tariff} was extracted. Reading the log
+     * from a Cursor and logging were removed.
+     */
+    private static final class BaselinePlan {
+
+        /** Type of log. */
+        private int type;
+        /** Type of limit. */
+        private int limitType;
+        /** Limit. */
+        private long limit;
+        /** Billmode. */
+        private int billModeFirstLength, billModeNextLength;
+        /** Cost per item. */
+        private float costPerItem;
+        /** Cost per amount. */
+        private float costPerAmount1, costPerAmount2;
+        /** Cost per item in limit. */
+        private float costPerItemInLimit;
+        /** Cost per amount in limit. */
+        private float costPerAmountInLimit1, costPerAmountInLimit2;
+        /** Units for mixed plans. */
+        private int upc, ups, upm, upd;
+        /** Strip first x seconds. */
+        private int stripSeconds;
+        /** Strip everything but first x seconds. */
+        private int stripPast;
+        /** Parent plan. */
+        private BaselinePlan parent = null;
+        /** Amount billed this period. */
+        private float billedAmount = 0f;
+        /** Cost billed this period. */
+        private float billedCost = 0f;
+
+        /**
+         * Get upc/upd/upm/ups according to log type.
+         *
+         * @param logType log type
+         * @return units per *
+         */
+        int getUP(final int logType) {
+            switch (logType) {
+                case DataProvider.TYPE_CALL:
+                    return upc;
+                case DataProvider.TYPE_DATA:
+                    return upd;
+                case DataProvider.TYPE_MMS:
+                    return upm;
+                case DataProvider.TYPE_SMS:
+                    return ups;
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * @return remaining limit before it is reached.
+         */
+        float getRemainingLimit() {
+            if (this.parent != null && limitType == DataProvider.LIMIT_TYPE_NONE) {
+                return parent.getRemainingLimit();
+            } else {
+                switch (this.limitType) {
+                    case DataProvider.LIMIT_TYPE_COST:
+                        return limit - billedCost * CallMeter.HUNDRET;
+                    case DataProvider.LIMIT_TYPE_UNITS:
+                        return limit - billedAmount;
+                    default:
+                        return 0;
+                }
+            }
+        }
+
+        /**
+         * Round up time with bill mode in mind.
+         *
+         * @param time time
+         * @return rounded time
+         */
+        private long roundTime(final long time) {
+            // 0 => 0
+            if (time <= 0) {
+                return 0;
+            }
+            final long fl = billModeFirstLength;
+            final long nl = billModeNextLength;
+            // !0 ..
+            if (time <= fl) { // round first slot
+                return fl;
+            }
+            if (nl == 0) {
+                return fl;
+            }
+            if (time % nl == 0 || nl == 1) {
+                return time;
+            }
+            // round up to next full slot
+            return ((time / nl) + 1) * nl;
+        }
+
+        /**
+         * Update {@link BaselinePlan}.
+         *
+         * @param amount billed amount
+         * @param cost   billed cost
+         * @param t      type of log
+         */
+        void updatePlan(final float amount, final float cost, final int t) {
+            billedAmount += amount;
+            billedCost += cost;
+            final BaselinePlan pp = parent;
+            if (pp != null) {
+                if (this.type != DataProvider.TYPE_MIXED && pp.type == DataProvider.TYPE_MIXED) {
+                    switch (t) {
+                        case DataProvider.TYPE_CALL:
+                            pp.billedAmount += amount * pp.upc / CallMeter.SECONDS_MINUTE;
+                            break;
+                        case DataProvider.TYPE_MMS:
+                            pp.billedAmount += amount * pp.upm;
+                            break;
+                        case DataProvider.TYPE_SMS:
+                            pp.billedAmount += amount * pp.ups;
+                            break;
+                        default:
+                            break;
+                    }
+                } else {
+                    pp.billedAmount += amount;
+                }
+                parent.billedCost += cost;
+            }
+        }
+
+        /**
+         * Get billed amount for amount.
+         *
+         * @param t      type of log
+         * @param amount amount of log
+         * @return billed amount.
+         */
+        float getBilledAmount(final int t, final long amount) {
+            float ret = 0f;
+            switch (t) {
+                case DataProvider.TYPE_CALL:
+                    ret = roundTime(amount);
+                    if (this.stripSeconds > 0) {
+                        ret -= stripSeconds;
+                        if (ret < 0f) {
+                            ret = 0f;
+                        }
+                    }
+                    if (this.stripPast > 0 && ret > stripPast) {
+                        ret = stripPast;
+                    }
+                    break;
+                default:
+                    ret = amount;
+                    break;
+            }
+
+            if (this.type == DataProvider.TYPE_MIXED) {
+                switch (t) {
+                    case DataProvider.TYPE_CALL:
+                        ret = ret * upc / CallMeter.SECONDS_MINUTE;
+                        break;
+                    case DataProvider.TYPE_SMS:
+                        ret = ret * ups;
+                        break;
+                    case DataProvider.TYPE_MMS:
+                        ret = ret * upm;
+                        break;
+                    case DataProvider.TYPE_DATA:
+                        ret = ret * upd / CallMeter.BYTE_MB;
+                    default:
+                        break;
+                }
+            }
+            return ret;
+        }
+
+        /**
+         * Get cost for amount.
+         *
+         * @param t       type of log
+         * @param bAmount billed amount
+         * @return cost
+         */
+        float getCost(final int t, final float bAmount) {
+            final int pt = type;
+
+            float ret = 0f;
+            float as0; // split amount: before limit
+            float as1; // split amount: after limit
+            BaselinePlan p;
+            float f = 1; // factor for mixed plans with limits merging this plan
+            if (this.parent != null && limitType == DataProvider.LIMIT_TYPE_NONE) {
+                p = parent;
+                if (pt != DataProvider.TYPE_MIXED && p.type == DataProvider.TYPE_MIXED) {
+                    f = 1f / p.getUP(t);
+                    switch (t) {
+                        case DataProvider.TYPE_CALL:
+                            f *= CallMeter.SECONDS_MINUTE;
+                            break;
+                        case DataProvider.TYPE_DATA:
+                            f *= CallMeter.BYTE_MB;
+                            break;
+                        default:
+                            // nothing to do
+                            break;
+                    }
+                }
+            } else {
+                p = this;
+            }
+            // split amount at limit
+            float remaining = p.getRemainingLimit() * f;
+            if (p.limitType == DataProvider.LIMIT_TYPE_NONE || remaining <= 0f) {
+                as0 = 0;
+                as1 = bAmount;
+            } else if (p.limitType == DataProvider.LIMIT_TYPE_UNITS && remaining < bAmount) {
+                as0 = remaining;
+                as1 = bAmount - remaining;
+            } else {
+                as0 = bAmount;
+                as1 = 0;
+            }
+
+            if (t == DataProvider.TYPE_SMS || pt == DataProvider.TYPE_MIXED) {
+                ret += as0 * costPerItemInLimit + as1 * costPerItem;
+            } else {
+                ret += as0 > 0f ? costPerItemInLimit : costPerItem;
+            }
+
+            switch (t) {
+                case DataProvider.TYPE_CALL:
+                    if (bAmount <= billModeFirstLength) {
+                        ret += (as0 * costPerAmountInLimit1 + as1 * costPerAmount1)
+                                / CallMeter.SECONDS_MINUTE;
+                    } else if (as0 == 0f) {
+                        ret += costPerAmount1 * billModeFirstLength
+                                / CallMeter.SECONDS_MINUTE;
+                        ret += costPerAmount2 * (bAmount - billModeFirstLength)
+                                / CallMeter.SECONDS_MINUTE;
+                    } else if (as1 == 0f) {
+                        ret += costPerAmountInLimit1 * billModeFirstLength
+                                / CallMeter.SECONDS_MINUTE;
+                        ret += costPerAmountInLimit2 * (bAmount - billModeFirstLength)
+                                / CallMeter.SECONDS_MINUTE;
+                    } else if (as0 == billModeFirstLength) {
+                        ret += costPerAmountInLimit1 * billModeFirstLength
+                                / CallMeter.SECONDS_MINUTE;
+                        ret += costPerAmount2 * (bAmount - billModeFirstLength)
+                                / CallMeter.SECONDS_MINUTE;
+                    } else if (as0 > billModeFirstLength) {
+                        ret += costPerAmountInLimit1 * billModeFirstLength
+                                / CallMeter.SECONDS_MINUTE;
+                        ret += (as0 - billModeFirstLength) * costPerAmountInLimit2
+                                / CallMeter.SECONDS_MINUTE;
+                        ret += as1 * costPerAmount2 / CallMeter.SECONDS_MINUTE;
+                    } else {
+                        ret += as0 * costPerAmountInLimit1 / CallMeter.SECONDS_MINUTE;
+                        ret += (this.billModeFirstLength - as0) * costPerAmount1
+                                / CallMeter.SECONDS_MINUTE;
+                        ret += costPerAmount2 * (bAmount - billModeFirstLength)
+                                / CallMeter.SECONDS_MINUTE;
+                    }
+                    break;
+                case DataProvider.TYPE_DATA:
+                    ret += (as0 * costPerAmountInLimit1 + as1 * costPerAmount1)
+                            / CallMeter.BYTE_MB;
+                    break;
+                default:
+                    break;
+            }
+            return ret;
+        }
+
+        /**
+         * Get amount of free cost.
+         *
+         * @param cost cost calculated by getCost()
+         * @return free cost
+         */
+        float getFree(final float cost) {
+            if (this.limitType != DataProvider.LIMIT_TYPE_COST) {
+                if (this.parent != null) {
+                    return parent.getFree(cost);
+                }
+                return 0f;
+            }
+            final float l = ((float) limit) / CallMeter.HUNDRET;
+            if (l <= billedCost) {
+                return 0f;
+            }
+            if (l >= billedCost + cost) {
+                return cost;
+            }
+            return l - billedCost;
+        }
+    }
+}